@@ -4,17 +4,50 @@ package com.ppublica.shopify.security.authentication;
 /**
  * Holds a password loaded from a properties file for subsequent dynamic encryptor creation.
  * 
+ * <p>A CipherPassword can optionally have a key id. The key id is stored with every token encrypted with this 
+ * password, so that the password can be rotated: tokens encrypted with a previous password are still decrypted 
+ * with it and re-encrypted with the current one. A CipherPassword without a key id is the "legacy" key, used for 
+ * tokens that were stored before key ids were introduced.</p>
+ * 
  * @author N F
  *
  */
 public class CipherPassword {
+	
+	/**
+	 * The maximum length of a key id.
+	 */
+	public static final int MAX_KEY_ID_LENGTH = 32;
+	
+	private final String keyId;
 	private final String password;
 	
 	public CipherPassword(String password) {
+		this(null, password);
+	}
+	
+	/**
+	 * Create a CipherPassword with a key id.
+	 * 
+	 * @param keyId The key id, or null for the legacy key. Letters, digits, '.', '_' and '-' only.
+	 * @param password The password
+	 */
+	public CipherPassword(String keyId, String password) {
+		if(keyId != null && !keyId.isEmpty() && (keyId.length() > MAX_KEY_ID_LENGTH || !keyId.matches("[A-Za-z0-9._-]+"))) {
+			throw new IllegalArgumentException("Invalid key id: " + keyId);
+		}
+		this.keyId = (keyId == null || keyId.isEmpty()) ? null : keyId;
 		this.password = password;
 	}
 	
 	public String getPassword() {
 		return this.password;
 	}
+	
+	/**
+	 * @return The key id, or null if this is the legacy key
+	 */
+	public String getKeyId() {
+		return this.keyId;
+	}
 }
@@ -0,0 +1,260 @@
+package com.ppublica.shopify.security.authentication;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
+import java.util.regex.Pattern;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.web.util.UriUtils;
+
+/**
+ * The client secrets a ClientRegistration's requests can be signed with: its current secret and, while the secret is
+ * being rotated, the previous ones that requests already in flight are still signed with.
+ *
+ * <p>Each secret has one Mac initialized with its key when the secrets are built. It's never used directly: each
+ * signature is made with a clone of it, which costs a copy of its state instead of keying a new Mac, and keeps
+ * nothing per thread. A signature is checked with the secret that matched last first, then with the others in
+ * order, so outside of a rotation (or once Shopify signs with the new secret) a request costs one Mac. Matches are
+ * counted per secret, so that a previous secret can be removed once it no longer matches.</p>
+ *
+ * @author N F
+ * @see ShopifyVerificationStrategy
+ * @see ShopifySessionTokenVerifier
+ */
+public class ShopifyClientSecrets {
+	private final Log logger = LogFactory.getLog(ShopifyClientSecrets.class);
+
+	private static final String ALGORITHM = "HmacSHA256";
+
+	private final String clientSecret;
+	private final List<Mac> prototypes = new ArrayList<>();
+	private final List<SecretKeySpec> keys = new ArrayList<>();
+	private final LongAdder[] matches;
+
+	private volatile int lastMatched;
+
+	/**
+	 * Construct ShopifyClientSecrets with only the current secret.
+	 *
+	 * @param clientSecret The current client secret
+	 */
+	public ShopifyClientSecrets(String clientSecret) {
+		this(clientSecret, Collections.emptyList());
+	}
+
+	/**
+	 * Construct ShopifyClientSecrets
+	 *
+	 * @param clientSecret The current client secret
+	 * @param previousSecrets The previous client secrets, most recent first
+	 */
+	public ShopifyClientSecrets(String clientSecret, List<String> previousSecrets) {
+		if(clientSecret == null || clientSecret.isEmpty()) {
+			throw new IllegalArgumentException("A client secret is required");
+		}
+		this.clientSecret = clientSecret;
+
+		addKey(clientSecret);
+		if(previousSecrets != null) {
+			for(String secret : previousSecrets) {
+				if(secret != null && !secret.isEmpty() && !secret.equals(clientSecret)) {
+					addKey(secret);
+				}
+			}
+		}
+
+		this.matches = new LongAdder[keys.size()];
+		for(int i = 0; i < matches.length; i++) {
+			matches[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * @return The current client secret
+	 */
+	public String getClientSecret() {
+		return clientSecret;
+	}
+
+	/**
+	 * @return The number of secrets: the current one and the previous ones
+	 */
+	public int size() {
+		return keys.size();
+	}
+
+	/**
+	 * Sign the message with a secret, using a clone of its Mac.
+	 *
+	 * @param index The index of the secret: 0 for the current one, then the previous ones in order
+	 * @param message The message
+	 * @return The HMAC-SHA256 of the message
+	 */
+	public byte[] sign(int index, byte[] message) {
+		return newMac(index).doFinal(message);
+	}
+
+	/**
+	 * Sign the message with a secret, using a clone of its Mac.
+	 *
+	 * @param index The index of the secret
+	 * @param message The message, encoded as UTF-8
+	 * @return The HMAC-SHA256 of the message
+	 */
+	public byte[] sign(int index, String message) {
+		return sign(index, message.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Create a new Mac for a secret, for a message that's signed incrementally. It's a clone of the secret's Mac,
+	 * or a newly initialized one if the provider's Mac can't be cloned.
+	 *
+	 * @param index The index of the secret
+	 * @return A Mac initialized with the secret
+	 */
+	public Mac newMac(int index) {
+		try {
+			return (Mac) prototypes.get(index).clone();
+		} catch(CloneNotSupportedException ex) {
+			return newMac(keys.get(index));
+		}
+	}
+
+	/**
+	 * Find the secret a signature was made with: the one that matched last is tried first, then the others in
+	 * order. Each secret is tried at most once.
+	 *
+	 * @param signatureMatches Whether the signature was made with the secret at the given index
+	 * @return The index of the secret that matched, or -1 if none did
+	 */
+	public int match(IntPredicate signatureMatches) {
+		int first = lastMatched;
+
+		if(signatureMatches.test(first)) {
+			return matched(first);
+		}
+		for(int i = 0; i < keys.size(); i++) {
+			if(i != first && signatureMatches.test(i)) {
+				return matched(i);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Check the hmac parameter of a query string as directed by Shopify: the hmac parameter is removed from the query
+	 * string, and what's left is hashed and compared to its value. If that fails, the url-decoded query string is 
+	 * checked, in case it was url-encoded by the server.
+	 * 
+	 * <p>Used by ShopifyVerificationStrategy and its reactive equivalent.</p>
+	 *
+	 * @param rawQueryString The query string, as received
+	 * @param hmac The value of the hmac parameter
+	 * @return true if the hmac was made with one of the secrets
+	 */
+	public boolean isValidQuery(String rawQueryString, String hmac) {
+		if(isValidQueryString(rawQueryString, hmac)) {
+			return true;
+		}
+		logger.debug("url-decoding request query string");
+		// sometimes the query string has been url encoded (by the server...?)
+		return isValidQueryString(UriUtils.decode(rawQueryString, StandardCharsets.UTF_8), hmac);
+	}
+
+	/**
+	 * Check the X-Shopify-Hmac-SHA256 header of a webhook: the base64-encoded HMAC-SHA256 of the raw body. The 
+	 * encoded digest is compared to the header in constant time.
+	 * 
+	 * <p>Used by ShopifyVerificationStrategy and its reactive equivalent, so that both check webhooks the same 
+	 * way.</p>
+	 *
+	 * @param body The request body, as received
+	 * @param hmac The value of the X-Shopify-Hmac-SHA256 header
+	 * @return true if the hmac was made with one of the secrets
+	 */
+	public boolean matchesWebhookHmac(byte[] body, String hmac) {
+		if(body == null || hmac == null || hmac.isEmpty()) {
+			return false;
+		}
+		byte[] expected = hmac.getBytes(StandardCharsets.US_ASCII);
+		
+		return match(i -> MessageDigest.isEqual(Base64.getEncoder().encode(sign(i, body)), expected)) >= 0;
+	}
+
+	/**
+	 * @param index The index of the secret
+	 * @return The number of signatures that matched the secret
+	 */
+	public long getMatchCount(int index) {
+		return matches[index].sum();
+	}
+
+	private int matched(int index) {
+		matches[index].increment();
+		if(index != lastMatched) {
+			lastMatched = index;
+			if(index > 0 && logger.isDebugEnabled()) {
+				logger.debug("A request was signed with previous client secret " + index);
+			}
+		}
+		return index;
+	}
+
+	/*
+	 * 1. Constructs the hmac parameter as it should appear in the url.
+	 * 2. Removes it from the query string.
+	 * 3. The query string is hashed with each secret.
+	 * 4. If a hash equals the hmac value, the request came from Shopify.
+	 */
+	private boolean isValidQueryString(String rawQueryString, String hmac) {
+		String hmacQueryStringPiece = ShopifyVerificationStrategy.HMAC_PARAMETER + "=" + hmac + "&";
+
+		String processedQuery = rawQueryString.replaceFirst(Pattern.quote(hmacQueryStringPiece), "");
+
+		if(rawQueryString.equals(processedQuery)) {
+			// maybe the hmac parameter is the last parameter
+			processedQuery = rawQueryString.replaceFirst(Pattern.quote("&" + ShopifyVerificationStrategy.HMAC_PARAMETER + "=" + hmac), "");
+
+			if(rawQueryString.equals(processedQuery)) {
+				// hmac as it appears in the query string is encoded, whereas in the parameter map it is decoded
+				logger.debug("HMAC parameter not found in query string");
+				return false;
+			}
+		}
+
+		byte[] message = processedQuery.getBytes(StandardCharsets.UTF_8);
+
+		return match(i -> Hex.encodeHexString(sign(i, message)).equals(hmac)) >= 0;
+	}
+
+	private void addKey(String secret) {
+		SecretKeySpec key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+
+		keys.add(key);
+		// fails now rather than on the first request
+		prototypes.add(newMac(key));
+	}
+
+	private static Mac newMac(SecretKeySpec key) {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(key);
+			return mac;
+		} catch(GeneralSecurityException ex) {
+			throw new IllegalStateException("Unable to initialize " + ALGORITHM, ex);
+		}
+	}
+
+}
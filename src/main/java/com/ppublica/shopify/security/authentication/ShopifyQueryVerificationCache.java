@@ -0,0 +1,166 @@
+package com.ppublica.shopify.security.authentication;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Enforces the replay window of the query strings Shopify signs, and remembers the ones already verified so that
+ * an embedded app reloaded with the same signed url isn't verified again.
+ *
+ * <p>A signed query is fresh if its timestamp parameter is within maxAge seconds of now, in either direction. The
+ * timestamp is parsed in place, so a stale or missing one is rejected without allocating, before any HMAC work. The
+ * rejections are counted by reason.</p>
+ *
+ * <p>A verified query is cached, keyed by the raw query string (which includes its hmac and timestamp), until it's
+ * no longer fresh. At most maxCacheSize queries are cached; when full, the stale ones are removed and, if that isn't
+ * enough, new queries aren't cached.</p>
+ *
+ * @author N F
+ * @see ShopifyVerificationStrategy
+ */
+public class ShopifyQueryVerificationCache {
+
+	/**
+	 * The default replay window, in seconds: 600.
+	 */
+	public static final long DEFAULT_MAX_AGE = 600L;
+
+	/**
+	 * The default maximum number of verified queries cached: 10000.
+	 */
+	public static final int DEFAULT_MAX_CACHE_SIZE = 10000;
+
+	private final Map<String, Long> verified = new ConcurrentHashMap<>();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder missingTimestamps = new LongAdder();
+	private final LongAdder staleTimestamps = new LongAdder();
+
+	private long maxAge = TimeUnit.SECONDS.toMillis(DEFAULT_MAX_AGE);
+	private int maxCacheSize = DEFAULT_MAX_CACHE_SIZE;
+
+	/**
+	 * Set the replay window: how far the timestamp of a signed query can be from now.
+	 *
+	 * @param maxAge The window in seconds
+	 */
+	public void setMaxAge(long maxAge) {
+		if(maxAge < 1) {
+			throw new IllegalArgumentException("The max age must be at least 1 second");
+		}
+		this.maxAge = TimeUnit.SECONDS.toMillis(maxAge);
+	}
+
+	/**
+	 * Set the maximum number of verified queries cached. 0 disables the cache, but not the replay window.
+	 *
+	 * @param maxCacheSize The maximum number of queries
+	 */
+	public void setMaxCacheSize(int maxCacheSize) {
+		if(maxCacheSize < 0) {
+			throw new IllegalArgumentException("The maximum cache size can't be negative");
+		}
+		this.maxCacheSize = maxCacheSize;
+	}
+
+	/**
+	 * @param timestamp The timestamp parameter, in seconds since the epoch
+	 * @param now The current time in milliseconds
+	 * @return true if the timestamp is within the replay window
+	 */
+	public boolean isFresh(String timestamp, long now) {
+		long seconds = parseSeconds(timestamp);
+		if(seconds < 0) {
+			missingTimestamps.increment();
+			return false;
+		}
+		if(Math.abs(now - seconds * 1000) > maxAge) {
+			staleTimestamps.increment();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param query The raw query string
+	 * @param now The current time in milliseconds
+	 * @return true if the query was verified and is still fresh
+	 */
+	public boolean isVerified(String query, long now) {
+		Long staleAt = verified.get(query);
+		if(staleAt == null) {
+			return false;
+		}
+		if(now > staleAt) {
+			verified.remove(query, staleAt);
+			return false;
+		}
+		hits.increment();
+		return true;
+	}
+
+	/**
+	 * Remember that the query was verified.
+	 *
+	 * @param query The raw query string
+	 * @param timestamp Its fresh timestamp parameter
+	 * @param now The current time in milliseconds
+	 */
+	public void putVerified(String query, String timestamp, long now) {
+		if(maxCacheSize == 0) {
+			return;
+		}
+		if(verified.size() >= maxCacheSize) {
+			verified.values().removeIf(staleAt -> now > staleAt);
+			if(verified.size() >= maxCacheSize) {
+				return;
+			}
+		}
+		verified.put(query, parseSeconds(timestamp) * 1000 + maxAge);
+	}
+
+	/**
+	 * @return The number of queries found verified in the cache
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	public int getCacheSize() {
+		return verified.size();
+	}
+
+	/**
+	 * @return The number of signed requests rejected because their timestamp was missing or not a number
+	 */
+	public long getMissingTimestampCount() {
+		return missingTimestamps.sum();
+	}
+
+	/**
+	 * @return The number of signed requests rejected because their timestamp was outside the replay window
+	 */
+	public long getStaleTimestampCount() {
+		return staleTimestamps.sum();
+	}
+
+	/*
+	 * The timestamp in seconds, or -1 if it isn't made of 1 to 12 digits.
+	 */
+	private static long parseSeconds(String timestamp) {
+		if(timestamp == null || timestamp.isEmpty() || timestamp.length() > 12) {
+			return -1;
+		}
+		long seconds = 0;
+		for(int i = 0; i < timestamp.length(); i++) {
+			char c = timestamp.charAt(i);
+			if(c < '0' || c > '9') {
+				return -1;
+			}
+			seconds = seconds * 10 + (c - '0');
+		}
+		return seconds;
+	}
+
+}
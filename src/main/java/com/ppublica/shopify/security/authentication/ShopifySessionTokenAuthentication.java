@@ -0,0 +1,30 @@
+package com.ppublica.shopify.security.authentication;
+
+import org.springframework.security.core.Transient;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.oauth2.core.user.OAuth2User;
+
+/**
+ * The Authentication set for a request that carried a valid session token. It's an OAuth2AuthenticationToken, so 
+ * the rest of the application can treat it like the one ShopifyExistingTokenFilter sets, but it's transient: 
+ * Spring Security never saves it in the HttpSession, so every request must carry its own session token.
+ * 
+ * @author N F
+ * @see com.ppublica.shopify.security.filters.ShopifySessionTokenFilter
+ */
+@Transient
+public class ShopifySessionTokenAuthentication extends OAuth2AuthenticationToken {
+
+	private static final long serialVersionUID = -2261590637460961245L;
+
+	/**
+	 * Build a ShopifySessionTokenAuthentication.
+	 * 
+	 * @param principal The store
+	 * @param authorizedClientRegistrationId The registration id
+	 */
+	public ShopifySessionTokenAuthentication(OAuth2User principal, String authorizedClientRegistrationId) {
+		super(principal, null, authorizedClientRegistrationId);
+	}
+
+}
@@ -0,0 +1,247 @@
+package com.ppublica.shopify.security.authentication;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Verifies the session tokens that App Bridge sends from an embedded app in the Authorization header: JWTs signed
+ * with HS256 using the app's client secret.
+ *
+ * <p>A token is valid if its signature matches, it hasn't expired and isn't used before its nbf time (both allowing
+ * for clock skew), its aud is the app's client id, and its iss and dest are on the same shop. The shop is the host
+ * of dest.</p>
+ *
+ * <p>The signature is checked with ShopifyClientSecrets, so tokens signed with a previous client secret are still
+ * valid while it's being rotated. The HMAC keys are derived once, and each signature uses a clone of a keyed Mac. A verified token is
+ * cached, keyed by the token itself, until it expires, so the App Bridge token that's reused for a minute of API
+ * calls is only parsed and checked once. At most maxCacheSize tokens are cached; when full, expired tokens are
+ * removed and, if that isn't enough, new tokens aren't cached.</p>
+ *
+ * @author N F
+ * @see com.ppublica.shopify.security.filters.ShopifySessionTokenFilter
+ */
+public class ShopifySessionTokenVerifier {
+	private final Log logger = LogFactory.getLog(ShopifySessionTokenVerifier.class);
+
+	/**
+	 * The default clock skew allowed when checking exp and nbf, in milliseconds: 5000.
+	 */
+	public static final long DEFAULT_CLOCK_SKEW = 5000L;
+
+	/**
+	 * The default maximum number of verified tokens cached: 10000.
+	 */
+	public static final int DEFAULT_MAX_CACHE_SIZE = 10000;
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private final String clientId;
+	private final ShopifyClientSecrets clientSecrets;
+	private final Map<String, VerifiedToken> cache = new ConcurrentHashMap<>();
+	private final LongAdder cacheHits = new LongAdder();
+
+	private long clockSkew = DEFAULT_CLOCK_SKEW;
+	private int maxCacheSize = DEFAULT_MAX_CACHE_SIZE;
+
+	/**
+	 * Build a ShopifySessionTokenVerifier for the app.
+	 *
+	 * @param clientRegistration The ClientRegistration that holds the client id and client secret
+	 */
+	public ShopifySessionTokenVerifier(ClientRegistration clientRegistration) {
+		this(clientRegistration, new ShopifyClientSecrets(clientRegistration.getClientSecret()));
+	}
+
+	/**
+	 * Build a ShopifySessionTokenVerifier for the app that also accepts tokens signed with previous client secrets.
+	 *
+	 * @param clientRegistration The ClientRegistration that holds the client id
+	 * @param clientSecrets The ShopifyClientSecrets of the ClientRegistration's client secret
+	 */
+	public ShopifySessionTokenVerifier(ClientRegistration clientRegistration, ShopifyClientSecrets clientSecrets) {
+		this.clientId = clientRegistration.getClientId();
+		this.clientSecrets = clientSecrets;
+	}
+
+	/**
+	 * Verify the session token.
+	 *
+	 * @param token The encoded JWT
+	 * @return The full domain of the shop the token was issued for, or null if the token is not valid
+	 */
+	public String verify(String token) {
+		if(token == null || token.isEmpty()) {
+			return null;
+		}
+		long now = System.currentTimeMillis();
+
+		VerifiedToken verified = cache.get(token);
+		if(verified != null) {
+			if(verified.isValidAt(now, clockSkew)) {
+				cacheHits.increment();
+				return verified.shop;
+			}
+			if(now - clockSkew >= verified.expiresAt) {
+				cache.remove(token, verified);
+			}
+			return null;
+		}
+
+		verified = parseAndVerify(token);
+		if(verified == null || !verified.isValidAt(now, clockSkew)) {
+			return null;
+		}
+		cache(token, verified, now);
+
+		return verified.shop;
+	}
+
+	/**
+	 * @return The number of tokens verified from the cache
+	 */
+	public long getCacheHitCount() {
+		return cacheHits.sum();
+	}
+
+	public int getCacheSize() {
+		return cache.size();
+	}
+
+	/**
+	 * Set the clock skew allowed between Shopify and this server when checking exp and nbf.
+	 *
+	 * @param clockSkew The skew in milliseconds
+	 */
+	public void setClockSkew(long clockSkew) {
+		if(clockSkew < 0) {
+			throw new IllegalArgumentException("The clock skew can't be negative");
+		}
+		this.clockSkew = clockSkew;
+	}
+
+	/**
+	 * Set the maximum number of verified tokens cached. 0 disables the cache.
+	 *
+	 * @param maxCacheSize The maximum number of tokens
+	 */
+	public void setMaxCacheSize(int maxCacheSize) {
+		if(maxCacheSize < 0) {
+			throw new IllegalArgumentException("The maximum cache size can't be negative");
+		}
+		this.maxCacheSize = maxCacheSize;
+	}
+
+	private VerifiedToken parseAndVerify(String token) {
+		int firstDot = token.indexOf('.');
+		int secondDot = token.indexOf('.', firstDot + 1);
+		if(firstDot < 0 || secondDot < 0 || token.indexOf('.', secondDot + 1) >= 0) {
+			logger.debug("The session token is not a JWT");
+			return null;
+		}
+
+		try {
+			byte[] signature = Base64.getUrlDecoder().decode(token.substring(secondDot + 1));
+			byte[] signed = token.substring(0, secondDot).getBytes(StandardCharsets.US_ASCII);
+
+			if(clientSecrets.match(i -> MessageDigest.isEqual(clientSecrets.sign(i, signed), signature)) < 0) {
+				logger.debug("The session token signature does not match");
+				return null;
+			}
+
+			JsonNode header = MAPPER.readTree(Base64.getUrlDecoder().decode(token.substring(0, firstDot)));
+			if(!"HS256".equals(header.path("alg").asText())) {
+				logger.debug("The session token is not signed with HS256");
+				return null;
+			}
+
+			JsonNode claims = MAPPER.readTree(Base64.getUrlDecoder().decode(token.substring(firstDot + 1, secondDot)));
+			if(!claims.path("exp").canConvertToLong() || !audienceMatches(claims.path("aud"))) {
+				logger.debug("The session token has no expiry or was issued for another app");
+				return null;
+			}
+
+			String shop = host(claims.path("dest").asText(null));
+			String issuer = host(claims.path("iss").asText(null));
+			if(shop == null || !shop.equals(issuer)) {
+				logger.debug("The session token's iss and dest are not the same shop");
+				return null;
+			}
+
+			long notBefore = claims.path("nbf").canConvertToLong() ? claims.path("nbf").asLong() * 1000 : Long.MIN_VALUE;
+
+			return new VerifiedToken(shop, claims.path("exp").asLong() * 1000, notBefore);
+
+		} catch(IllegalArgumentException | IOException ex) {
+			logger.debug("Unable to read the session token", ex);
+			return null;
+		}
+	}
+
+	private boolean audienceMatches(JsonNode aud) {
+		if(aud.isArray()) {
+			for(JsonNode audience : aud) {
+				if(clientId.equals(audience.asText())) {
+					return true;
+				}
+			}
+			return false;
+		}
+		return clientId.equals(aud.asText(null));
+	}
+
+	private static String host(String uri) {
+		if(uri == null) {
+			return null;
+		}
+		try {
+			return new URI(uri).getHost();
+		} catch(URISyntaxException ex) {
+			return null;
+		}
+	}
+
+	private void cache(String token, VerifiedToken verified, long now) {
+		if(maxCacheSize == 0) {
+			return;
+		}
+		if(cache.size() >= maxCacheSize) {
+			cache.values().removeIf(cached -> now - clockSkew >= cached.expiresAt);
+			if(cache.size() >= maxCacheSize) {
+				return;
+			}
+		}
+		cache.put(token, verified);
+	}
+
+	private static final class VerifiedToken {
+		private final String shop;
+		private final long expiresAt;
+		private final long notBefore;
+
+		private VerifiedToken(String shop, long expiresAt, long notBefore) {
+			this.shop = shop;
+			this.expiresAt = expiresAt;
+			this.notBefore = notBefore;
+		}
+
+		boolean isValidAt(long now, long clockSkew) {
+			return now - clockSkew < expiresAt && now + clockSkew >= notBefore;
+		}
+	}
+
+}
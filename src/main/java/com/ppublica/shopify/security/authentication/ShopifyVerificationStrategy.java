@@ -3,10 +3,9 @@ package com.ppublica.shopify.security.authentication;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
-import java.util.Base64;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
@@ -23,7 +22,10 @@ import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequ
 import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
 import org.springframework.web.util.UriUtils;
 
+import com.ppublica.shopify.security.service.ShopDomains;
+import com.ppublica.shopify.security.service.TokenService;
 import com.ppublica.shopify.security.web.ShopifyHttpSessionOAuth2AuthorizationRequestRepository;
+import com.ppublica.shopify.security.web.ShopifyRequestContext;
 
 
 /**
@@ -31,6 +33,9 @@ import com.ppublica.shopify.security.web.ShopifyHttpSessionOAuth2AuthorizationRe
  * ShopifyHttpSessionOAuth2AuthorizationRequestRepository to verify the nonce in the "state" request parameter for 
  * the "whitelisted redirection url". ClientRegistrationRepository is used to obtain the secret to check the HMAC.
  * 
+ * <p>The HMAC is checked with the ShopifyClientSecrets of the client secret, so that while it's being rotated, 
+ * requests signed with a previous secret are still verified. A client secret without ShopifyClientSecrets set 
+ * is only checked against itself.</p>
  * 
  * @author N F
  * @see com.ppublica.shopify.security.web.ShopifyHttpSessionOAuth2AuthorizationRequestRepository
@@ -43,10 +48,13 @@ public class ShopifyVerificationStrategy {
 	public static final String NONCE_PARAMETER = OAuth2ParameterNames.STATE;
 	public static final String HMAC_PARAMETER = "hmac";
 	public static final String HMAC_HEADER = "X-Shopify-Hmac-SHA256";
+	public static final String TIMESTAMP_PARAMETER = "timestamp";
 
 	
 	private ShopifyHttpSessionOAuth2AuthorizationRequestRepository authReqRepository;
 	private ClientRegistrationRepository clientRegistrationRepository;
+	private ShopifyQueryVerificationCache verificationCache;
+	private final Map<String, ShopifyClientSecrets> clientSecrets = new ConcurrentHashMap<>();
 	
 	/**
 	 * Create a new ShopifyVerificationStrategy
@@ -60,6 +68,26 @@ public class ShopifyVerificationStrategy {
 
 	}
 	
+	/**
+	 * Set the ShopifyQueryVerificationCache that enforces the replay window and caches verified query strings. If 
+	 * not set, the timestamp isn't checked and every request is verified.
+	 * 
+	 * @param verificationCache The ShopifyQueryVerificationCache, or null
+	 */
+	public void setVerificationCache(ShopifyQueryVerificationCache verificationCache) {
+		this.verificationCache = verificationCache;
+	}
+	
+	/**
+	 * Set the ShopifyClientSecrets to check the HMAC with when a ClientRegistration's secret is their current 
+	 * secret.
+	 * 
+	 * @param clientSecrets The ShopifyClientSecrets
+	 */
+	public void setClientSecrets(ShopifyClientSecrets clientSecrets) {
+		this.clientSecrets.put(clientSecrets.getClientSecret(), clientSecrets);
+	}
+	
 	
 	/**
 	 * Perform HMAC verification as directed by Shopify. It obtains the hmac parameter from the query string, and 
@@ -68,10 +96,29 @@ public class ShopifyVerificationStrategy {
 	 * <p>This method checks in case the query string has been URL encoded. Tomcat by default decodes request 
 	 * parameters, so hmac is expected to be url decoded.</p>
 	 * 
+	 * <p>A request whose shop parameter isn't a single valid shop domain is rejected without computing the HMAC.</p>
+	 * 
+	 * <p>If a ShopifyQueryVerificationCache is set, a request whose timestamp is outside the replay window is 
+	 * rejected first, and a query string that was already verified isn't verified again.</p>
+	 * 
+	 * <p>The result is recorded in the request's ShopifyRequestContext, so the request is only checked once.</p>
+	 * 
 	 * @param request The HttpServletRequest
 	 * @return true if HMAC is valid, false otherwise
 	 */
 	public boolean isShopifyRequest(HttpServletRequest request) {
+		ShopifyRequestContext context = ShopifyRequestContext.get(request);
+		Boolean fromShopify = context.getFromShopify();
+		
+		if(fromShopify == null) {
+			fromShopify = verifyQuery(request);
+			context.setFromShopify(fromShopify);
+		}
+		
+		return fromShopify;
+	}
+	
+	private boolean verifyQuery(HttpServletRequest request) {
 		Map<String,String[]> requestParameters = this.getRequestParameters(request);
 				
 		if(requestParameters == null) {
@@ -80,6 +127,13 @@ public class ShopifyVerificationStrategy {
 			
 		}
 		
+		String[] shopValues = requestParameters.get(TokenService.SHOP_ATTRIBUTE_NAME);
+		
+		if(shopValues != null && (shopValues.length != 1 || !ShopDomains.isValid(shopValues[0]))) {
+			logger.debug("The shop parameter is not a valid shop domain");
+			return false;
+		}
+		
 		String[] hmacValues = requestParameters.get(HMAC_PARAMETER);
 		
 		if(hmacValues == null || hmacValues.length != 1) {
@@ -94,59 +148,35 @@ public class ShopifyVerificationStrategy {
 			return false;
 		}
 		
-		String secret = getClientSecret(request);
+		String timestamp = null;
+		long now = System.currentTimeMillis();
 		
-		if(!isShopifyQueryRequest(request.getQueryString(), hmacValue, secret)) {
-			logger.debug("url-decoding request query string");
-			// try again...
-			// sometimes the query string has been url encoded (by the server...?)
-			return isShopifyQueryRequest(UriUtils.decode(request.getQueryString(), StandardCharsets.UTF_8), hmacValue, secret);
-
-		}
-		return true;
-
-		
-	}
-	
-	/*
-	 * 1. Constructs the hmac parameter as it should appear in the url.
-	 * 2. Removes it from the query string.
-	 * 3. The query string is hashed with the secret.
-	 * 4. If the hash equals the hmac value, the request came from Shopify.
-	 */
-	private boolean isShopifyQueryRequest(String rawQueryString, String hmac, String secret) {
-		String hmacQueryStringPiece = HMAC_PARAMETER + "=" + hmac + "&";
-
-		String processedQuery = rawQueryString.replaceFirst(Pattern.quote(hmacQueryStringPiece), "");
-				
-		if(rawQueryString.equals(processedQuery)) {
-			// hmacQueryStringPiece not found
-			// maybe the hmac parameter is the last parameter
+		if(verificationCache != null) {
+			String[] timestampValues = requestParameters.get(TIMESTAMP_PARAMETER);
+			timestamp = timestampValues == null || timestampValues.length != 1 ? null : timestampValues[0];
 			
-			processedQuery = rawQueryString.replaceFirst(Pattern.quote("&" + HMAC_PARAMETER + "=" + hmac), "");
-
-			if(rawQueryString.equals(processedQuery)) {
-				// hmac not found 
-				// it should have been found because the hmac parameter should be from query string
-				// ... unless there is an encoding issue
-				// (hmac as it appears in query string is encoded, whereas in parameter map it is decoded
-				logger.debug("HMAC parameter not found in query string");
+			if(!verificationCache.isFresh(timestamp, now)) {
+				logger.debug("The timestamp parameter is missing or outside the replay window");
 				return false;
-
 			}
-			
 		}
 		
-		String shaOfQuery = hash(secret, processedQuery);
+		String query = request.getQueryString();
 		
-		if(shaOfQuery.equals(hmac)) {
+		if(verificationCache != null && verificationCache.isVerified(query, now)) {
 			return true;
 		}
+		
+		boolean verified = getClientSecrets(getClientSecret(request)).isValidQuery(query, hmacValue);
+		
+		if(verified && verificationCache != null) {
+			verificationCache.putVerified(query, timestamp, now);
+		}
+		
+		return verified;
 
-		return false;
 		
 	}
-
 	
 	/**
 	 * This method makes sure there is an OAuth2AuthorizationRequest in the HttpSession
@@ -287,6 +317,22 @@ public class ShopifyVerificationStrategy {
 	}
 	
 
+	/**
+	 * Get the ShopifyClientSecrets set for the client secret, or ones with only that secret. 
+	 * 
+	 * @param clientSecret The current client secret
+	 * @return The ShopifyClientSecrets
+	 * @throws ShopifyVerificationException if the client secret is null
+	 */
+	protected ShopifyClientSecrets getClientSecrets(String clientSecret) {
+		if(clientSecret == null) {
+			throw new ShopifyVerificationException("No client secret found");
+		}
+		
+		return clientSecrets.computeIfAbsent(clientSecret, ShopifyClientSecrets::new);
+	}
+	
+
 	/**
 	 * Obtain the request parameters from the HttpServletRequest object. Useful when swapping the request parameter 
 	 * map for unit tests.
@@ -351,7 +397,9 @@ public class ShopifyVerificationStrategy {
 	
 	
 	/**
-	 * Uses a secret to hash the body. The result is then base64-encoded to compare to the base64-encoded hmac.
+	 * Uses a secret to hash the body. The raw digest is then base64-encoded to compare to the base64-encoded hmac, 
+	 * as ShopifyClientSecrets.matchesWebhookHmac does for the reactive stack too. The previous secrets in the 
+	 * ShopifyClientSecrets of the secret are tried too.
 	 * 
 	 * @param body The request body
 	 * @param hmac The hmac
@@ -360,14 +408,15 @@ public class ShopifyVerificationStrategy {
 	 */
 	public boolean isShopifyHeaderRequest(String body, String hmac, String secret) {
 		
-		String hashValue = hash(secret, body);
-
+		ShopifyClientSecrets secrets = getClientSecrets(secret);
+		
+		if(body == null) {
+			throw new ShopifyVerificationException("Error hashing");
+		}
 		// From Shopify:
 		// "Each webhook request includes a base64-encoded X-Shopify-Hmac-SHA256 header"
 		
-		String encodedValue = Base64.getEncoder().encodeToString(hashValue.getBytes());
-
-		return encodedValue.equals(hmac);
+		return secrets.matchesWebhookHmac(body.getBytes(StandardCharsets.UTF_8), hmac);
 	}
 	
 	
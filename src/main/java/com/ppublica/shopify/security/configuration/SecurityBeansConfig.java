@@ -1,15 +1,43 @@
 package com.ppublica.shopify.security.configuration;
 
 import com.ppublica.shopify.security.authentication.CipherPassword;
+import com.ppublica.shopify.security.authentication.ShopifyClientSecrets;
+import com.ppublica.shopify.security.authentication.ShopifyQueryVerificationCache;
+import com.ppublica.shopify.security.authentication.ShopifySessionTokenVerifier;
 import com.ppublica.shopify.security.configurer.delegates.*;
+import com.ppublica.shopify.security.repository.ExecutorTokenRepository;
+import com.ppublica.shopify.security.repository.InMemoryTokenRepository;
+import com.ppublica.shopify.security.repository.MappedFileTokenRepository;
 import com.ppublica.shopify.security.repository.ShopifyTokenRepositoryImpl;
+import com.ppublica.shopify.security.repository.StoreAccessTokensSchema;
 import com.ppublica.shopify.security.repository.TokenRepository;
+import com.ppublica.shopify.security.service.AesGcmTokenCipher;
+import com.ppublica.shopify.security.service.BoundedBlockingExecutor;
+import com.ppublica.shopify.security.service.CipherKeyRing;
+import com.ppublica.shopify.security.service.ShopifyOAuth2AuthorizedClientService;
+import com.ppublica.shopify.security.service.ShopifyRateLimiter;
+import com.ppublica.shopify.security.service.ShopifyStoreRehydrator;
+import com.ppublica.shopify.security.service.StoreCache;
+import com.ppublica.shopify.security.service.StoreCacheWarmer;
+import com.ppublica.shopify.security.service.StaleStoreSweeper;
+import com.ppublica.shopify.security.service.StoreLastSeenTracker;
+import com.ppublica.shopify.security.service.TokenReEncryptionJob;
+import com.ppublica.shopify.security.service.TokenService;
+import com.ppublica.shopify.security.service.WriteBehindOAuth2AuthorizedClientService;
+import com.ppublica.shopify.security.web.ShopifyCookieOAuth2AuthorizationRequestRepository;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
 import org.springframework.security.oauth2.client.registration.ClientRegistration;
 import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
 import org.springframework.security.oauth2.client.registration.InMemoryClientRegistrationRepository;
@@ -24,9 +52,11 @@ import org.springframework.security.web.csrf.CsrfTokenRepository;
  *
  * <p>Requires the following beans to be in the ApplicationContext:</p>
  * <ul>
- * 	<li>JdbcTemplate</li>
+ * 	<li>JdbcTemplate (unless ppublica.shopify.security.file-store.directory or ppublica.shopify.security.in-memory-store.enabled is set)</li>
  * </ul>
  *
+ * <p>A second JdbcTemplate, named "shopifyReadJdbcTemplate", can be added to read stores from a replica.</p>
+ *
  *
  *
  * <p>Beans created:</p>
@@ -39,9 +69,10 @@ import org.springframework.security.web.csrf.CsrfTokenRepository;
  * 	<li>AuthorizationSuccessPageStrategy</li>
  * 	<li>AuthenticationSuccessHandler</li>
  * 	<li>ClientRegistration</li>
+ * 	<li>ShopifyClientSecrets</li>
  * 	<li>ClientRegistrationRepository</li>
  * 	<li>TokenService</li>
- * 	<li>OAuth2AuthorizedClientService</li>
+ * 	<li>OAuth2AuthorizedClientService (write-behind if enabled)</li>
  * 	<li>ShopifyHttpSessionOAuth2AuthorizationRequestRepository</li>
  * 	<li>OAuth2AuthorizationRequestResolver</li>
  * 	<li>ShopifyVerificationStrategy</li>
@@ -51,6 +82,17 @@ import org.springframework.security.web.csrf.CsrfTokenRepository;
  * 	<li>ShopifyCsrf</li>
  * 	<li>ShopifyLogout</li>
  * 	<li>ShopifyOAuth2</li>
+ * 	<li>BoundedBlockingExecutor (only if enabled)</li>
+ * 	<li>TokenReEncryptionJob (only if enabled)</li>
+ * 	<li>StoreCache (only if enabled)</li>
+ * 	<li>StoreCacheWarmer (only if enabled)</li>
+ * 	<li>StoreLastSeenTracker (only if enabled)</li>
+ * 	<li>StaleStoreSweeper (only if enabled)</li>
+ * 	<li>ShopifySessionTokenVerifier (only if enabled)</li>
+ * 	<li>ShopifyStoreRehydrator (only if enabled)</li>
+ * 	<li>ShopifyRateLimiter (only if enabled)</li>
+ * 	<li>ShopifyCookieOAuth2AuthorizationRequestRepository (only if enabled)</li>
+ * 	<li>ShopifyQueryVerificationCache (unless disabled)</li>
  * </ul>
  *
  * <p>The following properties are searched to populate several objects:</p>
@@ -66,10 +108,70 @@ import org.springframework.security.web.csrf.CsrfTokenRepository;
  * 	<li>ppublica.shopify.security.endpoints.menu-link=</li>
  *
  * 	<li>ppublica.shopify.security.cipher.password= **required**</li>
+ * 	<li>ppublica.shopify.security.cipher.key-id=</li>
+ * 	<li>ppublica.shopify.security.cipher.previous-passwords=</li>
+ * 	<li>ppublica.shopify.security.cipher.algorithm=</li>
+ * 	<li>ppublica.shopify.security.cipher.re-encryption.enabled=</li>
+ * 	<li>ppublica.shopify.security.cipher.re-encryption.batch-size=</li>
+ * 	<li>ppublica.shopify.security.cipher.re-encryption.pause=</li>
  *
  * 	<li>ppublica.shopify.security.client.client_id= **required**</li>
  * 	<li>ppublica.shopify.security.client.client_secret= **required**</li>
+ * 	<li>ppublica.shopify.security.client.previous-secrets=</li>
  * 	<li>ppublica.shopify.security.client.scope= **required**</li>
+ *
+ * 	<li>ppublica.shopify.security.read-after-write-window=</li>
+ * 	<li>ppublica.shopify.security.file-store.directory=</li>
+ * 	<li>ppublica.shopify.security.in-memory-store.enabled=</li>
+ * 	<li>ppublica.shopify.security.in-memory-store.snapshot-file=</li>
+ * 	<li>ppublica.shopify.security.schema.initialize=</li>
+ * 	<li>ppublica.shopify.security.schema.check=</li>
+ *
+ * 	<li>ppublica.shopify.security.store-cache.enabled=</li>
+ * 	<li>ppublica.shopify.security.store-cache.max-size=</li>
+ * 	<li>ppublica.shopify.security.store-cache.time-to-live=</li>
+ * 	<li>ppublica.shopify.security.store-cache.warmup.enabled=</li>
+ * 	<li>ppublica.shopify.security.store-cache.warmup.max-stores=</li>
+ * 	<li>ppublica.shopify.security.store-cache.warmup.parallelism=</li>
+ * 	<li>ppublica.shopify.security.store-cache.warmup.time-budget=</li>
+ *
+ * 	<li>ppublica.shopify.security.last-seen.enabled=</li>
+ * 	<li>ppublica.shopify.security.last-seen.flush-interval=</li>
+ * 	<li>ppublica.shopify.security.last-seen.max-pending=</li>
+ *
+ * 	<li>ppublica.shopify.security.stale-store-sweeper.enabled=</li>
+ * 	<li>ppublica.shopify.security.stale-store-sweeper.max-age=</li>
+ * 	<li>ppublica.shopify.security.stale-store-sweeper.dry-run=</li>
+ * 	<li>ppublica.shopify.security.stale-store-sweeper.batch-size=</li>
+ * 	<li>ppublica.shopify.security.stale-store-sweeper.pause=</li>
+ * 	<li>ppublica.shopify.security.stale-store-sweeper.interval=</li>
+ *
+ * 	<li>ppublica.shopify.security.session-token.enabled=</li>
+ * 	<li>ppublica.shopify.security.session-token.clock-skew=</li>
+ * 	<li>ppublica.shopify.security.session-token.max-cache-size=</li>
+ *
+ * 	<li>ppublica.shopify.security.session.shop-only=</li>
+ *
+ * 	<li>ppublica.shopify.security.rate-limit.enabled=</li>
+ * 	<li>ppublica.shopify.security.rate-limit.address.requests-per-minute=</li>
+ * 	<li>ppublica.shopify.security.rate-limit.shop.requests-per-minute=</li>
+ * 	<li>ppublica.shopify.security.rate-limit.burst=</li>
+ * 	<li>ppublica.shopify.security.rate-limit.max-keys=</li>
+ *
+ * 	<li>ppublica.shopify.security.authorization-request.cookie.enabled=</li>
+ * 	<li>ppublica.shopify.security.authorization-request.cookie.max-age=</li>
+ *
+ * 	<li>ppublica.shopify.security.hmac.replay-window.enabled=</li>
+ * 	<li>ppublica.shopify.security.hmac.replay-window.max-age=</li>
+ * 	<li>ppublica.shopify.security.hmac.max-cache-size=</li>
+ *
+ * 	<li>ppublica.shopify.security.blocking-executor.enabled=</li>
+ * 	<li>ppublica.shopify.security.blocking-executor.max-concurrency=</li>
+ *
+ * 	<li>ppublica.shopify.security.write-behind.enabled=</li>
+ * 	<li>ppublica.shopify.security.write-behind.max-pending=</li>
+ * 	<li>ppublica.shopify.security.write-behind.max-attempts=</li>
+ * 	<li>ppublica.shopify.security.write-behind.retry-delay=</li>
  * </ul>
  *
  * @author N F
@@ -81,15 +183,338 @@ public class SecurityBeansConfig {
 
 	public static final String SHOPIFY_REGISTRATION_ID = "shopify";
 
+	/**
+	 * The name of the optional JdbcTemplate bean used to read stores, usually from a replica.
+	 */
+	public static final String READ_JDBC_TEMPLATE_BEAN_NAME = "shopifyReadJdbcTemplate";
 
+
+	/**
+	 * Create the TokenRepository. If a JdbcTemplate named "shopifyReadJdbcTemplate" is in the ApplicationContext,
+	 * stores are read with it, except for a store written within the read-after-write window. In that case, the
+	 * JdbcTemplate used for writes must be marked as primary.
+	 *
+	 * <p>If a file store directory is set, the stores are kept in files in that directory instead, and no
+	 * JdbcTemplate is needed. If the in-memory store is enabled, the stores are kept in memory, and saved to the
+	 * snapshot file (if any) on shutdown.</p>
+	 *
+	 * <p>If schema initialization is enabled, the StoreAccessTokens table and its indexes are created if they're
+	 * missing. Otherwise, a warning is logged if the table has no unique index on storeDomain.</p>
+	 *
+	 * <p>Tracking when stores were last seen needs a repository that can save it: it can't be enabled with the file
+	 * store, or with a StoreAccessTokens table that has no lastSeen column.</p>
+	 *
+	 * @param jdbcProvider The JdbcTemplate for writes (and reads, if there's no read JdbcTemplate)
+	 * @param readJdbc The JdbcTemplate for reads, if any
+	 * @param blockingExecutor The executor for the JDBC calls, if enabled
+	 * @param readAfterWriteWindow How long, in milliseconds, a store is read with the write JdbcTemplate after it's written (defaults to 5000)
+	 * @param fileStoreDirectory The directory of the file store, if any
+	 * @param inMemory Whether the stores should be kept in memory
+	 * @param snapshotFile The file the in-memory stores are loaded from and saved to, if any
+	 * @param initializeSchema Whether the StoreAccessTokens table and its indexes should be created if missing
+	 * @param checkSchema Whether to warn if the StoreAccessTokens table has no unique index on storeDomain (defaults to true)
+	 * @param lastSeen Whether the table has a lastSeen column, kept up to date by a StoreLastSeenTracker
+	 * @return The TokenRepository
+	 */
 	@Bean
-	public TokenRepository getTokenRepository(JdbcTemplate jdbc) {
+	public TokenRepository getTokenRepository(ObjectProvider<JdbcTemplate> jdbcProvider, @Qualifier(READ_JDBC_TEMPLATE_BEAN_NAME) ObjectProvider<JdbcTemplate> readJdbc,
+			ObjectProvider<BoundedBlockingExecutor> blockingExecutor,
+			@Value("${ppublica.shopify.security.read-after-write-window:" + ShopifyTokenRepositoryImpl.DEFAULT_READ_AFTER_WRITE_WINDOW + "}") long readAfterWriteWindow,
+			@Value("${ppublica.shopify.security.file-store.directory:}") String fileStoreDirectory,
+			@Value("${ppublica.shopify.security.in-memory-store.enabled:false}") boolean inMemory,
+			@Value("${ppublica.shopify.security.in-memory-store.snapshot-file:}") String snapshotFile,
+			@Value("${ppublica.shopify.security.schema.initialize:false}") boolean initializeSchema,
+			@Value("${ppublica.shopify.security.schema.check:true}") boolean checkSchema,
+			@Value("${ppublica.shopify.security.last-seen.enabled:false}") boolean lastSeen) {
+		if(inMemory) {
+			logger.debug("Storing stores in memory");
+
+			return snapshotFile.isEmpty() ? new InMemoryTokenRepository() : new InMemoryTokenRepository(Paths.get(snapshotFile));
+		}
+
+		if(!fileStoreDirectory.isEmpty()) {
+			if(lastSeen) {
+				throw new IllegalStateException("ppublica.shopify.security.last-seen.enabled is not supported with ppublica.shopify.security.file-store.directory");
+			}
+			logger.debug("Storing stores in files in " + fileStoreDirectory);
+			MappedFileTokenRepository fileRepo = new MappedFileTokenRepository(Paths.get(fileStoreDirectory));
+			fileRepo.start();
+
+			return fileRepo;
+		}
+
+		JdbcTemplate jdbc = jdbcProvider.getIfAvailable();
+		if(jdbc == null) {
+			throw new RuntimeException("A JdbcTemplate is required to store the access tokens, unless ppublica.shopify.security.file-store.directory is set");
+		}
+
+		StoreAccessTokensSchema schema = new StoreAccessTokensSchema(jdbc);
+		if(initializeSchema) {
+			schema.initialize();
+		} else if(checkSchema) {
+			try {
+				schema.checkIndexes();
+			} catch(RuntimeException ex) {
+				logger.debug("Unable to check the StoreAccessTokens indexes", ex);
+			}
+		}
+
+		if(lastSeen && !initializeSchema && !hasLastSeenColumn(schema)) {
+			throw new IllegalStateException("ppublica.shopify.security.last-seen.enabled requires a lastSeen column in StoreAccessTokens. "
+					+ "Set ppublica.shopify.security.schema.initialize=true to add it.");
+		}
+
 		ShopifyTokenRepositoryImpl repo = new ShopifyTokenRepositoryImpl();
 		repo.setJdbc(jdbc);
+		repo.setLastSeenColumn(lastSeen);
+
+		JdbcTemplate readTemplate = readJdbc.getIfAvailable();
+		if(readTemplate != null && readTemplate != jdbc) {
+			logger.debug("Reading stores with " + READ_JDBC_TEMPLATE_BEAN_NAME);
+			repo.setReadJdbc(readTemplate);
+			repo.setReadAfterWriteWindow(readAfterWriteWindow);
+		}
+
+		BoundedBlockingExecutor executor = blockingExecutor.getIfAvailable();
+		if(executor != null) {
+			return new ExecutorTokenRepository(repo, executor);
+		}
 
 		return repo;
 	}
 
+	/**
+	 * Create the executor that limits how many blocking JDBC calls and token exchanges run at once, if enabled. The
+	 * calling thread still waits for each call. Virtual threads are used when the JDK supports them.
+	 *
+	 * @param enabled Whether blocking work should be moved to the executor
+	 * @param maxConcurrency The maximum number of blocking tasks in flight (defaults to 64)
+	 * @return The BoundedBlockingExecutor, or null if not enabled
+	 */
+	@Bean(destroyMethod = "shutdown")
+	public BoundedBlockingExecutor shopifyBlockingExecutor(@Value("${ppublica.shopify.security.blocking-executor.enabled:false}") boolean enabled,
+			@Value("${ppublica.shopify.security.blocking-executor.max-concurrency:64}") int maxConcurrency) {
+		if(!enabled) {
+			return null;
+		}
+
+		if(logger.isDebugEnabled()) {
+			logger.debug("Running blocking work on an executor. Max concurrency: " + maxConcurrency);
+		}
+
+		return BoundedBlockingExecutor.newDefault(maxConcurrency);
+	}
+
+	/**
+	 * Create the TokenService. Passwords that were previously used to encrypt tokens can be listed as comma-separated
+	 * keyId:password entries. The legacy password (no key id) is written as :password.
+	 *
+	 * @param tokenRepository The TokenRepository
+	 * @param cipherPassword The current CipherPassword
+	 * @param clientRegistrationRepository The ClientRegistrationRepository
+	 * @param previousPasswords The previous passwords, if any
+	 * @param algorithm The algorithm new tokens are encrypted with (defaults to queryable-text)
+	 * @param storeCache The StoreCache, if enabled
+	 * @param lastSeenTracker The StoreLastSeenTracker, if enabled
+	 * @return The TokenService
+	 */
+	@Bean(initMethod = "init")
+	public TokenService tokenService(TokenRepository tokenRepository, CipherPassword cipherPassword, ClientRegistrationRepository clientRegistrationRepository,
+			@Value("${ppublica.shopify.security.cipher.previous-passwords:}") String previousPasswords,
+			@Value("${ppublica.shopify.security.cipher.algorithm:" + CipherKeyRing.DEFAULT_ALGORITHM + "}") String algorithm,
+			ObjectProvider<StoreCache> storeCache, ObjectProvider<StoreLastSeenTracker> lastSeenTracker) {
+		TokenService tokenService = new TokenService(tokenRepository, cipherPassword, clientRegistrationRepository);
+		tokenService.setPreviousCipherPasswords(parseCipherPasswords(previousPasswords));
+		tokenService.setCipherAlgorithm(algorithm);
+		tokenService.setStoreCache(storeCache.getIfAvailable());
+		tokenService.setLastSeenTracker(lastSeenTracker.getIfAvailable());
+
+		return tokenService;
+	}
+
+	/**
+	 * Create the cache of decrypted stores, if enabled.
+	 *
+	 * @param enabled Whether stores should be cached
+	 * @param maxSize The maximum number of stores cached (defaults to 10000)
+	 * @param timeToLive How long a store stays cached, in milliseconds (defaults to 300000)
+	 * @return The StoreCache, or null if not enabled
+	 */
+	@Bean
+	public StoreCache storeCache(@Value("${ppublica.shopify.security.store-cache.enabled:false}") boolean enabled,
+			@Value("${ppublica.shopify.security.store-cache.max-size:" + StoreCache.DEFAULT_MAX_SIZE + "}") int maxSize,
+			@Value("${ppublica.shopify.security.store-cache.time-to-live:" + StoreCache.DEFAULT_TIME_TO_LIVE + "}") long timeToLive) {
+		if(!enabled) {
+			return null;
+		}
+
+		return new StoreCache(maxSize, timeToLive);
+	}
+
+	/**
+	 * Create the StoreCacheWarmer, if the StoreCache and warm-up are enabled. The cache is warmed before the
+	 * context finishes starting, for at most the time budget.
+	 *
+	 * @param tokenService The TokenService
+	 * @param tokenRepository The TokenRepository
+	 * @param storeCache The StoreCache, if enabled
+	 * @param enabled Whether to warm the cache at startup
+	 * @param maxStores The maximum number of stores to load (defaults to the cache's maximum size)
+	 * @param parallelism The number of stores decrypted at the same time (defaults to the number of processors)
+	 * @param timeBudget How long the warm-up may take, in milliseconds (defaults to 30000)
+	 * @return The StoreCacheWarmer, or null if not enabled
+	 */
+	@Bean(initMethod = "warm")
+	public StoreCacheWarmer storeCacheWarmer(TokenService tokenService, TokenRepository tokenRepository, ObjectProvider<StoreCache> storeCache,
+			@Value("${ppublica.shopify.security.store-cache.warmup.enabled:false}") boolean enabled,
+			@Value("${ppublica.shopify.security.store-cache.warmup.max-stores:0}") int maxStores,
+			@Value("${ppublica.shopify.security.store-cache.warmup.parallelism:0}") int parallelism,
+			@Value("${ppublica.shopify.security.store-cache.warmup.time-budget:" + StoreCacheWarmer.DEFAULT_TIME_BUDGET + "}") long timeBudget) {
+		StoreCache cache = storeCache.getIfAvailable();
+		if(!enabled || cache == null) {
+			return null;
+		}
+
+		StoreCacheWarmer warmer = new StoreCacheWarmer(tokenService, tokenRepository, cache);
+		if(maxStores > 0) {
+			warmer.setMaxStores(maxStores);
+		}
+		if(parallelism > 0) {
+			warmer.setParallelism(parallelism);
+		}
+		warmer.setTimeBudget(timeBudget);
+
+		return warmer;
+	}
+
+	/**
+	 * Create the StoreLastSeenTracker, if enabled. It starts flushing when the context starts, and flushes what's
+	 * pending when it closes. The StoreAccessTokens table needs a lastSeen column (see StoreAccessTokensSchema), and
+	 * startup fails if the TokenRepository doesn't support updateLastSeen.
+	 *
+	 * @param tokenRepository The TokenRepository
+	 * @param enabled Whether to record when stores were last seen
+	 * @param flushInterval The time between flushes in milliseconds (defaults to 60000)
+	 * @param maxPending The maximum number of stores waiting to be flushed (defaults to 100000)
+	 * @return The StoreLastSeenTracker, or null if not enabled
+	 */
+	@Bean(initMethod = "start", destroyMethod = "stop")
+	public StoreLastSeenTracker storeLastSeenTracker(TokenRepository tokenRepository,
+			@Value("${ppublica.shopify.security.last-seen.enabled:false}") boolean enabled,
+			@Value("${ppublica.shopify.security.last-seen.flush-interval:" + StoreLastSeenTracker.DEFAULT_FLUSH_INTERVAL + "}") long flushInterval,
+			@Value("${ppublica.shopify.security.last-seen.max-pending:" + StoreLastSeenTracker.DEFAULT_MAX_PENDING + "}") int maxPending) {
+		if(!enabled) {
+			return null;
+		}
+
+		try {
+			tokenRepository.updateLastSeen(Collections.emptyMap());
+		} catch(UnsupportedOperationException ex) {
+			throw new IllegalStateException("ppublica.shopify.security.last-seen.enabled is not supported by " + tokenRepository.getClass().getSimpleName(), ex);
+		}
+
+		StoreLastSeenTracker tracker = new StoreLastSeenTracker(tokenRepository);
+		tracker.setFlushInterval(flushInterval);
+		tracker.setMaxPending(maxPending);
+
+		return tracker;
+	}
+
+	/**
+	 * Create the StaleStoreSweeper, if enabled. It sweeps when the context starts, and then every interval.
+	 *
+	 * @param tokenService The TokenService
+	 * @param tokenRepository The TokenRepository
+	 * @param enabled Whether to delete stale stores
+	 * @param maxAge The time a store can go unseen before it's stale, in milliseconds (defaults to 90 days)
+	 * @param dryRun Whether to only log the stale stores (defaults to false)
+	 * @param batchSize The number of stores per batch (defaults to 500)
+	 * @param pause The pause between batches in milliseconds (defaults to 1000)
+	 * @param interval The time between sweeps in milliseconds (defaults to 24 hours)
+	 * @return The StaleStoreSweeper, or null if not enabled
+	 */
+	@Bean(initMethod = "start", destroyMethod = "stop")
+	public StaleStoreSweeper staleStoreSweeper(TokenService tokenService, TokenRepository tokenRepository,
+			@Value("${ppublica.shopify.security.stale-store-sweeper.enabled:false}") boolean enabled,
+			@Value("${ppublica.shopify.security.stale-store-sweeper.max-age:" + StaleStoreSweeper.DEFAULT_MAX_AGE + "}") long maxAge,
+			@Value("${ppublica.shopify.security.stale-store-sweeper.dry-run:false}") boolean dryRun,
+			@Value("${ppublica.shopify.security.stale-store-sweeper.batch-size:" + StaleStoreSweeper.DEFAULT_BATCH_SIZE + "}") int batchSize,
+			@Value("${ppublica.shopify.security.stale-store-sweeper.pause:" + StaleStoreSweeper.DEFAULT_PAUSE + "}") long pause,
+			@Value("${ppublica.shopify.security.stale-store-sweeper.interval:" + StaleStoreSweeper.DEFAULT_INTERVAL + "}") long interval) {
+		if(!enabled) {
+			return null;
+		}
+
+		StaleStoreSweeper sweeper = new StaleStoreSweeper(tokenService, tokenRepository);
+		sweeper.setMaxAge(maxAge);
+		sweeper.setDryRun(dryRun);
+		sweeper.setBatchSize(batchSize);
+		sweeper.setPauseBetweenBatches(pause);
+		sweeper.setInterval(interval);
+
+		return sweeper;
+	}
+
+	/**
+	 * Create the job that re-encrypts every stored token with the current CipherPassword, if enabled. It starts
+	 * when the context starts.
+	 *
+	 * @param tokenService The TokenService
+	 * @param tokenRepository The TokenRepository
+	 * @param enabled Whether to re-encrypt the stored tokens
+	 * @param batchSize The number of stores per batch (defaults to 500)
+	 * @param pause The pause between batches in milliseconds (defaults to 1000)
+	 * @return The TokenReEncryptionJob, or null if not enabled
+	 */
+	@Bean(initMethod = "start", destroyMethod = "stop")
+	public TokenReEncryptionJob tokenReEncryptionJob(TokenService tokenService, TokenRepository tokenRepository,
+			@Value("${ppublica.shopify.security.cipher.re-encryption.enabled:false}") boolean enabled,
+			@Value("${ppublica.shopify.security.cipher.re-encryption.batch-size:" + TokenReEncryptionJob.DEFAULT_BATCH_SIZE + "}") int batchSize,
+			@Value("${ppublica.shopify.security.cipher.re-encryption.pause:" + TokenReEncryptionJob.DEFAULT_PAUSE + "}") long pause) {
+		if(!enabled) {
+			return null;
+		}
+
+		TokenReEncryptionJob job = new TokenReEncryptionJob(tokenService, tokenRepository);
+		job.setBatchSize(batchSize);
+		job.setPauseBetweenBatches(pause);
+
+		return job;
+	}
+
+	/**
+	 * Create the OAuth2AuthorizedClientService that stores the access tokens. If write-behind is enabled, stores
+	 * are saved in the background after the authorization redirect.
+	 *
+	 * @param tokenService The TokenService
+	 * @param writeBehind Whether stores should be saved in the background
+	 * @param maxPending The maximum number of stores waiting to be saved (defaults to 1000)
+	 * @param maxAttempts The number of times a save is attempted (defaults to 5)
+	 * @param retryDelay The delay before the first retry in milliseconds (defaults to 500)
+	 * @return The OAuth2AuthorizedClientService
+	 */
+	@Bean
+	public OAuth2AuthorizedClientService authorizedClientService(TokenService tokenService,
+			@Value("${ppublica.shopify.security.write-behind.enabled:false}") boolean writeBehind,
+			@Value("${ppublica.shopify.security.write-behind.max-pending:" + WriteBehindOAuth2AuthorizedClientService.DEFAULT_MAX_PENDING + "}") int maxPending,
+			@Value("${ppublica.shopify.security.write-behind.max-attempts:" + WriteBehindOAuth2AuthorizedClientService.DEFAULT_MAX_ATTEMPTS + "}") int maxAttempts,
+			@Value("${ppublica.shopify.security.write-behind.retry-delay:" + WriteBehindOAuth2AuthorizedClientService.DEFAULT_RETRY_DELAY + "}") long retryDelay) {
+		ShopifyOAuth2AuthorizedClientService clientService = new ShopifyOAuth2AuthorizedClientService(tokenService);
+
+		if(!writeBehind) {
+			return clientService;
+		}
+
+		logger.debug("Saving stores with write-behind");
+
+		WriteBehindOAuth2AuthorizedClientService writeBehindService = new WriteBehindOAuth2AuthorizedClientService(clientService);
+		writeBehindService.setMaxPending(maxPending);
+		writeBehindService.setMaxAttempts(maxAttempts);
+		writeBehindService.setRetryDelay(retryDelay);
+
+		return writeBehindService;
+	}
+
 	@Bean
 	public ShopifyPaths shopifyPaths(@Value("${ppublica.shopify.security.endpoints.install:}") String installPath,
 							  @Value("${ppublica.shopify.security.endpoints.authorization-redirect:}") String authorizationRedirectPath,
@@ -122,11 +547,12 @@ public class SecurityBeansConfig {
 	}
 
 	@Bean
-	public CipherPassword cipherPassword(@Value("${ppublica.shopify.security.cipher.password:#{null}}") String password) {
+	public CipherPassword cipherPassword(@Value("${ppublica.shopify.security.cipher.password:#{null}}") String password,
+			@Value("${ppublica.shopify.security.cipher.key-id:}") String keyId) {
 		if(password == null) {
 			throw new RuntimeException("Cipher password is required! Set the property ppublica.shopify.security.cipher.password");
 		}
-		return new CipherPassword(password);
+		return new CipherPassword(keyId, password);
 	}
 
 	@Bean
@@ -160,6 +586,159 @@ public class SecurityBeansConfig {
             .build();
     }
 
+	/**
+	 * Create the ShopifyClientSecrets of the ClientRegistration. ShopifySecurityConfigurer sets them on the 
+	 * ShopifyVerificationStrategy, so that while the client secret is being rotated, requests still signed with a 
+	 * previous secret are verified.
+	 *
+	 * @param shopifyClientRegistration The ClientRegistration that holds the current client secret
+	 * @param previousSecrets The previous client secrets, comma-separated, most recent first
+	 * @return The ShopifyClientSecrets
+	 */
+	@Bean
+	public ShopifyClientSecrets shopifyClientSecrets(ClientRegistration shopifyClientRegistration,
+			@Value("${ppublica.shopify.security.client.previous-secrets:}") String previousSecrets) {
+		List<String> previous = new ArrayList<>();
+
+		for(String secret : previousSecrets.split(",")) {
+			if(!secret.trim().isEmpty()) {
+				previous.add(secret.trim());
+			}
+		}
+
+		return new ShopifyClientSecrets(shopifyClientRegistration.getClientSecret(), previous);
+	}
+
+	/**
+	 * Create the ShopifySessionTokenVerifier, if enabled. ShopifySecurityConfigurer then adds a 
+	 * ShopifySessionTokenFilter that authenticates requests with App Bridge session tokens.
+	 *
+	 * @param shopifyClientRegistration The ClientRegistration whose secret signs the session tokens
+	 * @param shopifyClientSecrets The current and previous client secrets
+	 * @param enabled Whether to authenticate requests with session tokens
+	 * @param clockSkew The clock skew allowed when checking exp and nbf, in milliseconds (defaults to 5000)
+	 * @param maxCacheSize The maximum number of verified tokens cached (defaults to 10000)
+	 * @return The ShopifySessionTokenVerifier, or null if not enabled
+	 */
+	@Bean
+	public ShopifySessionTokenVerifier shopifySessionTokenVerifier(ClientRegistration shopifyClientRegistration, ShopifyClientSecrets shopifyClientSecrets,
+			@Value("${ppublica.shopify.security.session-token.enabled:false}") boolean enabled,
+			@Value("${ppublica.shopify.security.session-token.clock-skew:" + ShopifySessionTokenVerifier.DEFAULT_CLOCK_SKEW + "}") long clockSkew,
+			@Value("${ppublica.shopify.security.session-token.max-cache-size:" + ShopifySessionTokenVerifier.DEFAULT_MAX_CACHE_SIZE + "}") int maxCacheSize) {
+		if(!enabled) {
+			return null;
+		}
+
+		ShopifySessionTokenVerifier verifier = new ShopifySessionTokenVerifier(shopifyClientRegistration, shopifyClientSecrets);
+		verifier.setClockSkew(clockSkew);
+		verifier.setMaxCacheSize(maxCacheSize);
+
+		return verifier;
+	}
+
+	/**
+	 * Create the ShopifyStoreRehydrator, if stores should be kept in the session with their shop only. 
+	 * ShopifySecurityConfigurer then adds a ShopifyStoreRehydrationFilter that loads the access token of the store 
+	 * on each request.
+	 *
+	 * @param authorizedClientService The OAuth2AuthorizedClientService the tokens are loaded with
+	 * @param shopOnly Whether to leave the access token out of the session
+	 * @return The ShopifyStoreRehydrator, or null if not enabled
+	 */
+	@Bean
+	public ShopifyStoreRehydrator shopifyStoreRehydrator(OAuth2AuthorizedClientService authorizedClientService,
+			@Value("${ppublica.shopify.security.session.shop-only:false}") boolean shopOnly) {
+		if(!shopOnly) {
+			return null;
+		}
+
+		return new ShopifyStoreRehydrator(authorizedClientService);
+	}
+
+	/**
+	 * Create the ShopifyRateLimiter, if enabled. ShopifySecurityConfigurer then adds a ShopifyRateLimitFilter that
+	 * limits the requests to the install and authorization redirect paths per client address and per shop.
+	 *
+	 * @param enabled Whether to limit the requests
+	 * @param addressRequestsPerMinute The requests per minute allowed from one address (defaults to 30)
+	 * @param shopRequestsPerMinute The requests per minute allowed for one shop (defaults to 10)
+	 * @param burst The requests allowed at once (defaults to 10)
+	 * @param maxKeys The maximum number of addresses, and of shops, tracked (defaults to 100000)
+	 * @return The ShopifyRateLimiter, or null if not enabled
+	 */
+	@Bean
+	public ShopifyRateLimiter shopifyRateLimiter(
+			@Value("${ppublica.shopify.security.rate-limit.enabled:false}") boolean enabled,
+			@Value("${ppublica.shopify.security.rate-limit.address.requests-per-minute:" + ShopifyRateLimiter.DEFAULT_ADDRESS_REQUESTS_PER_MINUTE + "}") int addressRequestsPerMinute,
+			@Value("${ppublica.shopify.security.rate-limit.shop.requests-per-minute:" + ShopifyRateLimiter.DEFAULT_SHOP_REQUESTS_PER_MINUTE + "}") int shopRequestsPerMinute,
+			@Value("${ppublica.shopify.security.rate-limit.burst:" + ShopifyRateLimiter.DEFAULT_BURST + "}") int burst,
+			@Value("${ppublica.shopify.security.rate-limit.max-keys:" + ShopifyRateLimiter.DEFAULT_MAX_KEYS + "}") int maxKeys) {
+		if(!enabled) {
+			return null;
+		}
+
+		ShopifyRateLimiter rateLimiter = new ShopifyRateLimiter();
+		rateLimiter.setAddressRequestsPerMinute(addressRequestsPerMinute);
+		rateLimiter.setShopRequestsPerMinute(shopRequestsPerMinute);
+		rateLimiter.setBurst(burst);
+		rateLimiter.setMaxKeys(maxKeys);
+
+		return rateLimiter;
+	}
+
+	/**
+	 * Create the ShopifyQueryVerificationCache, unless disabled. ShopifySecurityConfigurer sets it on the 
+	 * ShopifyVerificationStrategy, so that signed requests whose timestamp is outside the replay window are rejected,
+	 * and a signed query string that was already verified is a map lookup.
+	 *
+	 * @param enabled Whether to enforce the replay window (defaults to true)
+	 * @param maxAge The replay window, in seconds (defaults to 600)
+	 * @param maxCacheSize The maximum number of verified query strings cached (defaults to 10000)
+	 * @return The ShopifyQueryVerificationCache, or null if disabled
+	 */
+	@Bean
+	public ShopifyQueryVerificationCache shopifyQueryVerificationCache(
+			@Value("${ppublica.shopify.security.hmac.replay-window.enabled:true}") boolean enabled,
+			@Value("${ppublica.shopify.security.hmac.replay-window.max-age:" + ShopifyQueryVerificationCache.DEFAULT_MAX_AGE + "}") long maxAge,
+			@Value("${ppublica.shopify.security.hmac.max-cache-size:" + ShopifyQueryVerificationCache.DEFAULT_MAX_CACHE_SIZE + "}") int maxCacheSize) {
+		if(!enabled) {
+			return null;
+		}
+
+		ShopifyQueryVerificationCache verificationCache = new ShopifyQueryVerificationCache();
+		verificationCache.setMaxAge(maxAge);
+		verificationCache.setMaxCacheSize(maxCacheSize);
+
+		return verificationCache;
+	}
+
+	/**
+	 * Create the ShopifyCookieOAuth2AuthorizationRequestRepository, if enabled. The OAuth2AuthorizationRequests are
+	 * then kept in an encrypted cookie instead of the HttpSession, so no session is created until a store is
+	 * authenticated. The cookie is encrypted with a key derived from the cipher password, separate from the tokens'.
+	 *
+	 * @param shopifyPaths The ShopifyPaths
+	 * @param cipherPassword The current CipherPassword
+	 * @param enabled Whether to keep the authorization requests in a cookie
+	 * @param maxAge The time the cookie is kept, in seconds (defaults to 600)
+	 * @return The ShopifyCookieOAuth2AuthorizationRequestRepository, or null if not enabled
+	 */
+	@Bean
+	public ShopifyCookieOAuth2AuthorizationRequestRepository shopifyCookieAuthorizationRequestRepository(ShopifyPaths shopifyPaths,
+			CipherPassword cipherPassword,
+			@Value("${ppublica.shopify.security.authorization-request.cookie.enabled:false}") boolean enabled,
+			@Value("${ppublica.shopify.security.authorization-request.cookie.max-age:" + ShopifyCookieOAuth2AuthorizationRequestRepository.DEFAULT_MAX_AGE + "}") long maxAge) {
+		if(!enabled) {
+			return null;
+		}
+
+		ShopifyCookieOAuth2AuthorizationRequestRepository repository = new ShopifyCookieOAuth2AuthorizationRequestRepository(
+				shopifyPaths.getInstallPath(), new AesGcmTokenCipher(new CipherPassword("authorization-request", cipherPassword.getPassword())));
+		repository.setMaxAge(maxAge);
+
+		return repository;
+	}
+
 	@Bean
 	public CsrfTokenRepository csrfTokenRepository() {
 		CookieCsrfTokenRepository repo = new CookieCsrfTokenRepository();
@@ -189,12 +768,49 @@ public class SecurityBeansConfig {
 	}
 
 	@Bean
-	public ShopifyOAuth2 shopifyOAuth2(ShopifyPaths shopifyPaths, ClientRegistration shopifyClientRegistration) {
-		return new ShopifyOAuth2(shopifyPaths, shopifyClientRegistration);
+	public ShopifyOAuth2 shopifyOAuth2(ShopifyPaths shopifyPaths, ClientRegistration shopifyClientRegistration, ObjectProvider<BoundedBlockingExecutor> blockingExecutor,
+			ObjectProvider<ShopifyStoreRehydrator> storeRehydrator, ObjectProvider<ShopifyCookieOAuth2AuthorizationRequestRepository> cookieAuthorizationRequestRepository) {
+		ShopifyOAuth2 shopifyOAuth2 = new ShopifyOAuth2(shopifyPaths, shopifyClientRegistration);
+		shopifyOAuth2.setBlockingExecutor(blockingExecutor.getIfAvailable());
+		shopifyOAuth2.setShopOnlyInSession(storeRehydrator.getIfAvailable() != null);
+		shopifyOAuth2.setCookieAuthorizationRequestRepository(cookieAuthorizationRequestRepository.getIfAvailable());
+
+		return shopifyOAuth2;
 	}
 
 	@Bean
 	public ClientRegistrationRepository clientRegistrationRepository(ClientRegistration shopifyClientRegistration) {
 		return new InMemoryClientRegistrationRepository(shopifyClientRegistration);
 	}
-}
\ No newline at end of file
+
+	private List<CipherPassword> parseCipherPasswords(String passwords) {
+		List<CipherPassword> parsed = new ArrayList<>();
+
+		if(passwords == null || passwords.trim().isEmpty()) {
+			return parsed;
+		}
+
+		for(String entry : passwords.split(",")) {
+			int separator = entry.indexOf(':');
+			if(separator < 0) {
+				throw new RuntimeException("Invalid previous cipher password. Use keyId:password, or :password for the legacy password");
+			}
+			parsed.add(new CipherPassword(entry.substring(0, separator).trim(), entry.substring(separator + 1)));
+		}
+
+		return parsed;
+	}
+
+	/*
+	 * If the metadata can't be read, assume the column is there rather than fail at startup.
+	 */
+	private boolean hasLastSeenColumn(StoreAccessTokensSchema schema) {
+		try {
+			return schema.hasLastSeenColumn();
+		} catch(RuntimeException ex) {
+			logger.debug("Unable to check the StoreAccessTokens columns", ex);
+			return true;
+		}
+	}
+
+}
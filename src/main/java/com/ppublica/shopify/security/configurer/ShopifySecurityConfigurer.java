@@ -5,10 +5,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import com.ppublica.shopify.security.authentication.CipherPassword;
-import com.ppublica.shopify.security.repository.TokenRepository;
-import com.ppublica.shopify.security.service.ShopifyOAuth2AuthorizedClientService;
-import com.ppublica.shopify.security.service.TokenService;
+import com.ppublica.shopify.security.web.ShopifyCookieOAuth2AuthorizationRequestRepository;
 import com.ppublica.shopify.security.web.ShopifyHttpSessionOAuth2AuthorizationRequestRepository;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -22,19 +19,29 @@ import org.springframework.security.oauth2.client.web.OAuth2AuthorizationRequest
 import org.springframework.security.web.access.intercept.FilterSecurityInterceptor;
 import org.springframework.security.web.authentication.logout.LogoutFilter;
 import org.springframework.security.web.authentication.ui.DefaultLogoutPageGeneratingFilter;
+import org.springframework.security.web.context.SecurityContextPersistenceFilter;
 import org.springframework.security.web.session.ConcurrentSessionFilter;
+import org.springframework.security.web.session.SessionManagementFilter;
 
+import com.ppublica.shopify.security.authentication.ShopifyClientSecrets;
+import com.ppublica.shopify.security.authentication.ShopifySessionTokenVerifier;
 import com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy;
 import com.ppublica.shopify.security.configuration.ShopifyPaths;
 import com.ppublica.shopify.security.configurer.delegates.HttpSecurityBuilderConfigurerDelegate;
 import com.ppublica.shopify.security.filters.DefaultAuthenticationFailureFilter;
+import com.ppublica.shopify.security.filters.ShopifyAuthorizationRequestCookieFilter;
 import com.ppublica.shopify.security.filters.DefaultInstallFilter;
 import com.ppublica.shopify.security.filters.DefaultLoginEndpointFilter;
 import com.ppublica.shopify.security.filters.DefaultUserInfoFilter;
 import com.ppublica.shopify.security.filters.ShopifyExistingTokenFilter;
 import com.ppublica.shopify.security.filters.ShopifyOriginFilter;
+import com.ppublica.shopify.security.filters.ShopifyRateLimitFilter;
+import com.ppublica.shopify.security.filters.ShopifySessionTokenFilter;
+import com.ppublica.shopify.security.filters.ShopifyStoreRehydrationFilter;
 import com.ppublica.shopify.security.filters.UninstallFilter;
 import com.ppublica.shopify.security.service.ShopifyBeansUtils;
+import com.ppublica.shopify.security.service.ShopifyRateLimiter;
+import com.ppublica.shopify.security.service.ShopifyStoreRehydrator;
 
 
 /**
@@ -100,6 +107,10 @@ public class ShopifySecurityConfigurer<H extends HttpSecurityBuilder<H>>
 	 * 	<li>ShopifyOriginFilter</li>
 	 * 	<li>ShopifyExistingTokenFilter</li>
 	 * 	<li>UninstallFilter</li>
+	 * 	<li>ShopifySessionTokenFilter (if session token authentication is enabled)</li>
+	 * 	<li>ShopifyStoreRehydrationFilter (if stores are kept in the session with their shop only)</li>
+	 * 	<li>ShopifyRateLimitFilter (if rate limiting is enabled)</li>
+	 * 	<li>ShopifyAuthorizationRequestCookieFilter (if authorization requests are kept in a cookie)</li>
 	 *
 	 *	<li>DefaultInstallFilter</li>
 	 *	<li>DefaultLoginEndpointFilter</li>
@@ -119,16 +130,25 @@ public class ShopifySecurityConfigurer<H extends HttpSecurityBuilder<H>>
 		ClientRegistration clientRegistration = ShopifyBeansUtils.getClientRegistration(http);
 		ClientRegistrationRepository clientRegistrationRepository = clientRegistrationRepository(clientRegistration);
 		ShopifyPaths sP = ShopifyBeansUtils.getShopifyPaths(http);
-		ShopifyHttpSessionOAuth2AuthorizationRequestRepository sessionRepository = customAuthorizationRequestRepository(sP);
-		TokenRepository tokenRepository = ShopifyBeansUtils.getTokenRepository(http);
-		CipherPassword cipherPassword = ShopifyBeansUtils.getCipherPassword(http);
-		TokenService tokenService = tokenService(tokenRepository, cipherPassword, clientRegistrationRepository);
+		ShopifyCookieOAuth2AuthorizationRequestRepository cookieRepository = ShopifyBeansUtils.getCookieAuthorizationRequestRepository(http);
+		ShopifyHttpSessionOAuth2AuthorizationRequestRepository sessionRepository = cookieRepository != null ? cookieRepository : customAuthorizationRequestRepository(sP);
 
 		ShopifyVerificationStrategy verStr = shopifyVerficationStrategy(clientRegistrationRepository, sessionRepository);
-		OAuth2AuthorizedClientService cS = clientService(tokenService);
+		verStr.setVerificationCache(ShopifyBeansUtils.getQueryVerificationCache(http));
+		ShopifyClientSecrets clientSecrets = ShopifyBeansUtils.getClientSecrets(http);
+		if(clientSecrets != null) {
+			verStr.setClientSecrets(clientSecrets);
+		}
+		OAuth2AuthorizedClientService cS = ShopifyBeansUtils.getAuthorizedClientService(http);
+
+		ShopifyStoreRehydrator storeRehydrator = ShopifyBeansUtils.getStoreRehydrator(http);
+
+		ShopifyExistingTokenFilter existingTokenFilter = new ShopifyExistingTokenFilter(cS, sP.getInstallPath());
+		existingTokenFilter.setLastSeenTracker(ShopifyBeansUtils.getStoreLastSeenTracker(http));
+		existingTokenFilter.setShopOnlyInSession(storeRehydrator != null);
 
 		http.addFilterAfter(new ShopifyOriginFilter(verStr, sP.getAnyAuthorizationRedirectPath(), sP.getAnyInstallPath()), LogoutFilter.class);
-		http.addFilterAfter(new ShopifyExistingTokenFilter(cS, sP.getInstallPath()), ShopifyOriginFilter.class);
+		http.addFilterAfter(existingTokenFilter, ShopifyOriginFilter.class);
 		http.addFilterBefore(new UninstallFilter(sP.getUninstallUri(), verStr, cS, ShopifyBeansUtils.getJacksonConverter(http)), OAuth2AuthorizationRequestRedirectFilter.class);
 
 		logger.info("***ShopifySecurityConfigurer configure... filters added:");
@@ -136,6 +156,33 @@ public class ShopifySecurityConfigurer<H extends HttpSecurityBuilder<H>>
 		logger.info("ShopifyExistingTokenFilter");
 		logger.info("UninstallFilter");
 
+		ShopifySessionTokenVerifier sessionTokenVerifier = ShopifyBeansUtils.getSessionTokenVerifier(http);
+		if(sessionTokenVerifier != null) {
+			ShopifySessionTokenFilter sessionTokenFilter = new ShopifySessionTokenFilter(sessionTokenVerifier, cS);
+			sessionTokenFilter.setLastSeenTracker(ShopifyBeansUtils.getStoreLastSeenTracker(http));
+
+			http.addFilterAfter(sessionTokenFilter, SessionManagementFilter.class);
+			logger.info("ShopifySessionTokenFilter");
+		}
+
+		if(storeRehydrator != null) {
+			http.addFilterAfter(new ShopifyStoreRehydrationFilter(storeRehydrator), SecurityContextPersistenceFilter.class);
+			logger.info("ShopifyStoreRehydrationFilter");
+		}
+
+		ShopifyRateLimiter rateLimiter = ShopifyBeansUtils.getRateLimiter(http);
+		if(rateLimiter != null) {
+			ShopifyRateLimitFilter rateLimitFilter = new ShopifyRateLimitFilter(rateLimiter, sP.getAnyInstallPath(), sP.getAnyAuthorizationRedirectPath());
+			rateLimitFilter.setVerificationStrategy(verStr);
+			http.addFilterBefore(rateLimitFilter, SecurityContextPersistenceFilter.class);
+			logger.info("ShopifyRateLimitFilter");
+		}
+
+		if(cookieRepository != null) {
+			http.addFilterBefore(new ShopifyAuthorizationRequestCookieFilter(), OAuth2AuthorizationRequestRedirectFilter.class);
+			logger.info("ShopifyAuthorizationRequestCookieFilter");
+		}
+
 		Map<String, String> menuLinks = new HashMap<>();
 		boolean isCustomInstallPath = sP.isCustomInstallPath();
 		boolean isCustomLoginEndpoint = sP.isCustomLoginEndpoint();
@@ -188,12 +235,4 @@ public class ShopifySecurityConfigurer<H extends HttpSecurityBuilder<H>>
 		return new ShopifyVerificationStrategy(clientRegistrationRepository, customAuthorizationRequestRepository);
 	}
 
-	private TokenService tokenService(TokenRepository repo, CipherPassword cipherPassword, ClientRegistrationRepository clientRegistrationRepository) {
-		return new TokenService(repo, cipherPassword, clientRegistrationRepository);
-	}
-
-	private OAuth2AuthorizedClientService clientService(TokenService tokenService) {
-		return new ShopifyOAuth2AuthorizedClientService(tokenService);
-	}
-
 }
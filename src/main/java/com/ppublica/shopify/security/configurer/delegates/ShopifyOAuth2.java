@@ -1,6 +1,7 @@
 package com.ppublica.shopify.security.configurer.delegates;
 
 import com.ppublica.shopify.security.configuration.ShopifyPaths;
+import com.ppublica.shopify.security.service.BoundedBlockingExecutor;
 import com.ppublica.shopify.security.service.DefaultShopifyUserService;
 import com.ppublica.shopify.security.web.*;
 import org.apache.commons.logging.Log;
@@ -33,6 +34,9 @@ public class ShopifyOAuth2 implements HttpSecurityBuilderConfigurerDelegate {
 	private String authenticationFailureUrl;
 	private ShopifyPaths shopifyPaths;
 	private ClientRegistration shopifyClientRegistration;
+	private BoundedBlockingExecutor blockingExecutor;
+	private boolean shopOnlyInSession;
+	private ShopifyCookieOAuth2AuthorizationRequestRepository cookieAuthorizationRequestRepository;
 
 	/**
 	 * Construct the ShopifyOAuth2
@@ -84,6 +88,11 @@ public class ShopifyOAuth2 implements HttpSecurityBuilderConfigurerDelegate {
 			          	.loginPage(this.loginEndpoint) // for use outside of an embedded app since it involves a redirect
 			          	.failureUrl(this.authenticationFailureUrl); // see AbstractAuthenticationFilterConfigurer and AbstractAuthenticationProcessingFilter
 
+		if(cookieAuthorizationRequestRepository != null) {
+			// OAuth2LoginAuthenticationFilter then reads and removes the cookie
+			configurer.authorizationEndpoint().authorizationRequestRepository(cookieAuthorizationRequestRepository);
+		}
+
 	}
 
 	protected AuthenticationSuccessHandler getSuccessHandler() {
@@ -91,7 +100,10 @@ public class ShopifyOAuth2 implements HttpSecurityBuilderConfigurerDelegate {
 	}
 
 	protected OAuth2UserService<OAuth2UserRequest, OAuth2User> getUserService() {
-		return new DefaultShopifyUserService();
+		DefaultShopifyUserService userService = new DefaultShopifyUserService();
+		userService.setShopOnlyInSession(shopOnlyInSession);
+
+		return userService;
 	}
 
 	protected OAuth2AuthorizationRequestResolver getRequestResolver() {
@@ -104,7 +116,38 @@ public class ShopifyOAuth2 implements HttpSecurityBuilderConfigurerDelegate {
 	}
 
 	protected OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> getAccessTokenResponseClient() {
-		return new ShopifyAuthorizationCodeTokenResponseClient();
+		ShopifyAuthorizationCodeTokenResponseClient client = new ShopifyAuthorizationCodeTokenResponseClient();
+		client.setBlockingExecutor(blockingExecutor);
+
+		return client;
+	}
+
+	/**
+	 * Set the executor the token exchange will run on. If not set, the exchange runs on the request thread.
+	 *
+	 * @param blockingExecutor The BoundedBlockingExecutor
+	 */
+	public void setBlockingExecutor(BoundedBlockingExecutor blockingExecutor) {
+		this.blockingExecutor = blockingExecutor;
+	}
+
+	/**
+	 * Set whether the ShopifyStore created after the OAuth flow is kept in the session with its shop only.
+	 *
+	 * @param shopOnlyInSession true to leave the access token out of the session
+	 */
+	public void setShopOnlyInSession(boolean shopOnlyInSession) {
+		this.shopOnlyInSession = shopOnlyInSession;
+	}
+
+	/**
+	 * Set the repository that keeps the OAuth2AuthorizationRequests in a cookie. If not set, they're kept in the
+	 * HttpSession.
+	 *
+	 * @param cookieAuthorizationRequestRepository The ShopifyCookieOAuth2AuthorizationRequestRepository, or null
+	 */
+	public void setCookieAuthorizationRequestRepository(ShopifyCookieOAuth2AuthorizationRequestRepository cookieAuthorizationRequestRepository) {
+		this.cookieAuthorizationRequestRepository = cookieAuthorizationRequestRepository;
 	}
 
 	private AuthorizationSuccessPageStrategy authorizationPageStrategy(ShopifyPaths path) {
@@ -122,6 +165,9 @@ public class ShopifyOAuth2 implements HttpSecurityBuilderConfigurerDelegate {
 	}
 
 	private ShopifyHttpSessionOAuth2AuthorizationRequestRepository customAuthorizationRequestRepository(ShopifyPaths shopifyPaths) {
+		if(cookieAuthorizationRequestRepository != null) {
+			return cookieAuthorizationRequestRepository;
+		}
 		return new ShopifyHttpSessionOAuth2AuthorizationRequestRepository(shopifyPaths.getInstallPath());
 	}
 
@@ -15,6 +15,8 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.ppublica.shopify.security.web.ShopifyRequestContext;
+
 /**
  * A filter that generates the page shown whenever an error occurs during authentication. THe user is redirected 
  * to this uri, and this filter processes it.
@@ -109,20 +111,7 @@ public class DefaultAuthenticationFailureFilter implements Filter {
 			return false;
 		}
 		
-		String uri = req.getRequestURI();
-		
-		int pathParamIndex = uri.indexOf(';');
-
-		if (pathParamIndex > 0) {
-			// strip everything after the first semi-colon
-			uri = uri.substring(0, pathParamIndex);
-		}
-
-		if ("".equals(req.getContextPath())) {
-			return uri.equals(authenticationFailurePath);
-		}
-
-		return uri.equals(req.getContextPath() + authenticationFailurePath);
+		return authenticationFailurePath.equals(ShopifyRequestContext.get(req).getPath());
 		
 	}
 	
@@ -16,6 +16,8 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.ppublica.shopify.security.web.ShopifyRequestContext;
+
 
 /**
  * This filter generates an HTML page that is seen after successful completion of OAuth2 authorization with
@@ -155,24 +157,9 @@ public class DefaultAuthorizationRedirectPathFilter implements Filter {
 		if (!"GET".equals(req.getMethod())) {
 			return false;
 		}
-		String uri = req.getRequestURI();
-		
-		int pathParamIndex = uri.indexOf(';');
-
-		if (pathParamIndex > 0) {
-			// strip everything after the first semi-colon
-			uri = uri.substring(0, pathParamIndex);
-		}
-
-		if (req.getQueryString() != null) {
-			uri += "?" + req.getQueryString();
-		}
-
-		if ("".equals(req.getContextPath())) {
-			return uri.startsWith(authorizationRedirectPath);
-		}
+		String path = ShopifyRequestContext.get(req).getPath();
 
-		return uri.startsWith(req.getContextPath() + authorizationRedirectPath);
+		return path != null && path.startsWith(authorizationRedirectPath);
 		
 	}
 	
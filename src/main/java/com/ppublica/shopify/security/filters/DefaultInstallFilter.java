@@ -19,6 +19,8 @@ import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
 
+import com.ppublica.shopify.security.web.ShopifyRequestContext;
+
 /**
  * A filter that generates an HTML page with all the installation logic Shopify requires for an embedded app.
  * It uses 2 request attributes (set by ShopifyRedirectStrategy) to populate 2 redirect uris. Which one is used
@@ -232,20 +234,7 @@ public class DefaultInstallFilter implements Filter {
 			return false;
 		}
 		
-		String uri = req.getRequestURI();
-		
-		int pathParamIndex = uri.indexOf(';');
-
-		if (pathParamIndex > 0) {
-			// strip everything after the first semi-colon
-			uri = uri.substring(0, pathParamIndex);
-		}
-
-		if ("".equals(req.getContextPath())) {
-			return uri.equals(installPathShopify);
-		}
-
-		return uri.equals(req.getContextPath() + installPathShopify);
+		return installPathShopify.equals(ShopifyRequestContext.get(req).getPath());
 		
 	}
 	
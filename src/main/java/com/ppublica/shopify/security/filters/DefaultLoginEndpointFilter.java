@@ -11,7 +11,6 @@ import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpSession;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -20,6 +19,8 @@ import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
 import org.springframework.security.web.csrf.CsrfToken;
 
+import com.ppublica.shopify.security.web.ShopifyRequestContext;
+
 
 /**
  * This filter generates a default login page with a text box to log in to a particular store. The form will
@@ -36,7 +37,6 @@ import org.springframework.security.web.csrf.CsrfToken;
 public class DefaultLoginEndpointFilter implements Filter {
 	private final Log logger = LogFactory.getLog(DefaultLoginEndpointFilter.class);
 
-	private final String SHOPIFY_EMBEDDED_APP = ShopifyOriginFilter.SHOPIFY_EMBEDDED_APP;
 	private String installPathShopify;
 	private String logoutEndpoint;
 	private String loginEnpoint;
@@ -191,14 +191,7 @@ public class DefaultLoginEndpointFilter implements Filter {
 	}
 	
 	private boolean isEmbeddedApp(HttpServletRequest req) {
-		boolean isEmbedded = false;
-		
-		HttpSession session = req.getSession(false);
-		if(session != null) {
-			isEmbedded = session.getAttribute(SHOPIFY_EMBEDDED_APP) == null ? false : true;
-		}
-		
-		return isEmbedded;
+		return ShopifyRequestContext.get(req).isEmbeddedApp();
 	}
 	
 	/*
@@ -209,24 +202,13 @@ public class DefaultLoginEndpointFilter implements Filter {
 			return false;
 		}
 		
-		String uri = req.getRequestURI();
-		
-		int pathParamIndex = uri.indexOf(';');
-
-		if (pathParamIndex > 0) {
-			// strip everything after the first semi-colon
-			uri = uri.substring(0, pathParamIndex);
-		}
-
-		if (req.getQueryString() != null) {
-			uri += "?" + req.getQueryString();
-		}
+		String path = ShopifyRequestContext.get(req).getPath();
 
-		if ("".equals(req.getContextPath())) {
-			return uri.equals(loginEnpoint);
+		if (path != null && req.getQueryString() != null) {
+			path += "?" + req.getQueryString();
 		}
 
-		return uri.equals(req.getContextPath() + loginEnpoint);
+		return loginEnpoint.equals(path);
 		
 	}
 	
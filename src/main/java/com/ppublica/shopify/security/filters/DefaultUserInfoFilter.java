@@ -11,7 +11,6 @@ import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpSession;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -20,6 +19,8 @@ import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
 import org.springframework.security.oauth2.core.user.OAuth2User;
 
+import com.ppublica.shopify.security.web.ShopifyRequestContext;
+
 
 /**
  * This filter responds to the userInfoPath it's provided and displays some useful information about the app:
@@ -109,12 +110,7 @@ public class DefaultUserInfoFilter implements Filter {
 		OAuth2User store = getAuthenticationPrincipalForRequest(req);
 		String apiKey = (String)store.getAttributes().get("shopify_client_api_key");
 		String shopOrigin = (String)store.getName();
-		HttpSession session = getHttpSessionForRequest(req);
-		boolean isLoginFromEmbedded = false;
-		
-		if(session != null) {
-			isLoginFromEmbedded = session.getAttribute("SHOPIFY_EMBEDDED_APP") != null ? true : false;
-		}
+		boolean isLoginFromEmbedded = ShopifyRequestContext.get(req).isEmbeddedApp();
 
 		StringBuilder sb = new StringBuilder();
 		
@@ -145,11 +141,6 @@ public class DefaultUserInfoFilter implements Filter {
 		
 	}
 	
-	private HttpSession getHttpSessionForRequest(HttpServletRequest req) {
-		return req.getSession(false);
-		
-	}
-	
 	private boolean isAuthenticated() {
 		Authentication auth = SecurityContextHolder.getContext().getAuthentication();
 		
@@ -166,20 +157,7 @@ public class DefaultUserInfoFilter implements Filter {
 			return false;
 		}
 		
-		String uri = req.getRequestURI();
-		
-		int pathParamIndex = uri.indexOf(';');
-
-		if (pathParamIndex > 0) {
-			// strip everything after the first semi-colon
-			uri = uri.substring(0, pathParamIndex);
-		}
-
-		if ("".equals(req.getContextPath())) {
-			return uri.equals(userInfoPathShopify);
-		}
-
-		return uri.equals(req.getContextPath() + userInfoPathShopify);
+		return userInfoPathShopify.equals(ShopifyRequestContext.get(req).getPath());
 		
 	}
 	
@@ -0,0 +1,48 @@
+package com.ppublica.shopify.security.filters;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.springframework.web.filter.GenericFilterBean;
+
+import com.ppublica.shopify.security.web.ShopifyCookieOAuth2AuthorizationRequestRepository;
+
+
+/**
+ * This filter exposes the HttpServletResponse as a request attribute, so that
+ * ShopifyCookieOAuth2AuthorizationRequestRepository can set its cookie when ShopifyOAuth2AuthorizationRequestResolver
+ * saves an OAuth2AuthorizationRequest. It's added before OAuth2AuthorizationRequestRedirectFilter, and only when
+ * authorization requests are kept in a cookie.
+ *
+ * @author N F
+ * @see ShopifyCookieOAuth2AuthorizationRequestRepository
+ * @see com.ppublica.shopify.security.configurer.ShopifySecurityConfigurer
+ */
+public class ShopifyAuthorizationRequestCookieFilter extends GenericFilterBean {
+
+	/**
+	 * Expose the response for the rest of the chain.
+	 *
+	 * @param request The request
+	 * @param response The response
+	 * @param chain The security filter chain
+	 * @throws IOException When invoking chain
+	 * @throws ServletException When invoking the chain
+	 */
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+			throws IOException, ServletException {
+		request.setAttribute(ShopifyCookieOAuth2AuthorizationRequestRepository.RESPONSE_ATTRIBUTE, response);
+
+		try {
+			chain.doFilter(request, response);
+		} finally {
+			request.removeAttribute(ShopifyCookieOAuth2AuthorizationRequestRepository.RESPONSE_ATTRIBUTE);
+		}
+	}
+
+}
@@ -19,10 +19,11 @@ import org.springframework.security.oauth2.core.user.OAuth2User;
 import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
 import org.springframework.web.filter.GenericFilterBean;
 
-import com.ppublica.shopify.security.service.TokenService;
 import com.ppublica.shopify.security.authentication.ShopifyOriginToken;
 import com.ppublica.shopify.security.configuration.SecurityBeansConfig;
 import com.ppublica.shopify.security.service.ShopifyStore;
+import com.ppublica.shopify.security.service.StoreLastSeenTracker;
+import com.ppublica.shopify.security.web.ShopifyRequestContext;
 
 
 /**
@@ -34,6 +35,9 @@ import com.ppublica.shopify.security.service.ShopifyStore;
  * <p>If it did, this filter attempts to find a token for the store and set it as the Authentication. By default, 
  * it uses ShopifyOAuth2AuthorizedClientService to load the OAuth2AuthorizedClient.</p>
  * 
+ * <p>If a StoreLastSeenTracker is set, every store found is recorded as seen. If shopOnlyInSession is set, the 
+ * ShopifyStore is kept in the session without its access token.</p>
+ * 
  * <p>This filter ensures that after this filter, the request has no ShopifyOriginToken. The Authentication will 
  * either be null, or an OAuth2AuthenticationToken.</p>
  * 
@@ -47,6 +51,8 @@ public class ShopifyExistingTokenFilter extends GenericFilterBean {
 
 	private OAuth2AuthorizedClientService clientService;
 	private AntPathRequestMatcher requestMatcher;
+	private StoreLastSeenTracker lastSeenTracker;
+	private boolean shopOnlyInSession;
 	private static final String REGISTRATION_ID = SecurityBeansConfig.SHOPIFY_REGISTRATION_ID;
 	
 	/**
@@ -61,6 +67,25 @@ public class ShopifyExistingTokenFilter extends GenericFilterBean {
 		
 	}
 
+	/**
+	 * Set the StoreLastSeenTracker that records each store found. By default, no store is recorded.
+	 * 
+	 * @param lastSeenTracker The StoreLastSeenTracker, or null
+	 */
+	public void setLastSeenTracker(StoreLastSeenTracker lastSeenTracker) {
+		this.lastSeenTracker = lastSeenTracker;
+	}
+
+	/**
+	 * Set whether the ShopifyStore is kept in the session with its shop only, in which case a 
+	 * ShopifyStoreRehydrationFilter must load its token on later requests. Defaults to false.
+	 * 
+	 * @param shopOnlyInSession true to leave the access token out of the session
+	 */
+	public void setShopOnlyInSession(boolean shopOnlyInSession) {
+		this.shopOnlyInSession = shopOnlyInSession;
+	}
+
 	/**
 	 * If the request matches this filter, set a OAuth2AuthenticationToken for the store if a ShopifyOriginToken is 
 	 * in the SecurityContext. If not, continue the filter chain. ShopifyOriginToken is always removed before 
@@ -78,7 +103,7 @@ public class ShopifyExistingTokenFilter extends GenericFilterBean {
 
 		HttpServletRequest req = (HttpServletRequest) request;
 		
-		if(!requestMatcher.matches(req)) {
+		if(!ShopifyRequestContext.get(req).matches(requestMatcher)) {
 			chain.doFilter(request, response);
 
 			return;
@@ -123,10 +148,10 @@ public class ShopifyExistingTokenFilter extends GenericFilterBean {
 	
 	private OAuth2AuthenticationToken getToken(HttpServletRequest request) {
 		
-		String shopName = request.getParameter(TokenService.SHOP_ATTRIBUTE_NAME);
+		String shopName = ShopifyRequestContext.get(request).getShop();
 		
-		if(shopName == null || shopName.isEmpty()) {
-			logger.debug("Unable to find store. No shop name found in request parameters");
+		if(shopName == null) {
+			logger.debug("Unable to find store. No valid shop name found in request parameters");
 			return null;
 		}
 		
@@ -138,6 +163,10 @@ public class ShopifyExistingTokenFilter extends GenericFilterBean {
 			logger.info("The store " + shopName + " has not been installed.");
 			return null;
 		}
+		
+		if(lastSeenTracker != null) {
+			lastSeenTracker.recordAccess(shopName);
+		}
 
 		// create an OAuth2AuthenticationToken
 		
@@ -154,7 +183,7 @@ public class ShopifyExistingTokenFilter extends GenericFilterBean {
 		String apiKey = client.getClientRegistration().getClientId();
 		
 		return new ShopifyStore(client.getPrincipalName(),
-														  client.getAccessToken().getTokenValue(), apiKey, null);
+														  client.getAccessToken().getTokenValue(), apiKey, null, shopOnlyInSession);
 	}
 	
 	
@@ -28,6 +28,7 @@ import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
 
 import com.ppublica.shopify.security.authentication.ShopifyOriginToken;
 import com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy;
+import com.ppublica.shopify.security.web.ShopifyRequestContext;
 
 
 /**
@@ -53,6 +54,8 @@ import com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy;
  * </ul>
  * <p>It will remain unchanged if the user is already authenticated and the request did not come from Shopify. 
  * If it had the attribute, it'll remain. It it didn't have it, it will not be added.</p>
+ * <p>The path matches and the embedded app attribute are recorded in the ShopifyRequestContext, for the filters 
+ * after this one.</p>
  *  
  * @author N F
  * @see com.ppublica.shopify.security.configuration.ShopifyPaths
@@ -123,7 +126,7 @@ public class ShopifyOriginFilter implements Filter {
 		logger.debug("ShopifyOriginFilter applied");
 		
 		// this filter will be applied
-		mustBeFromShopify = mustComeFromShopifyMatcher.matches((HttpServletRequest)request);
+		mustBeFromShopify = ShopifyRequestContext.get((HttpServletRequest)request).matches(mustComeFromShopifyMatcher);
 
 		comesFromShopify = isShopifyRequest(request);
 
@@ -202,11 +205,15 @@ public class ShopifyOriginFilter implements Filter {
 	// should apply the filter if the request matches
 	// any path passed in to this filter
 	private boolean applyFilter(ServletRequest request) {
-		HttpServletRequest req = (HttpServletRequest)request;
+		ShopifyRequestContext context = ShopifyRequestContext.get((HttpServletRequest)request);
 		
-		boolean match = this.applicablePaths.stream().anyMatch(i -> i.matches(req));
+		for(AntPathRequestMatcher matcher : applicablePaths) {
+			if(context.matches(matcher)) {
+				return true;
+			}
+		}
 		
-		return match;
+		return false;
 		
 	}
 	
@@ -216,6 +223,7 @@ public class ShopifyOriginFilter implements Filter {
 		HttpSession session = req.getSession(false);
 		if(session != null) {
 			session.setAttribute(SHOPIFY_EMBEDDED_APP, true);
+			ShopifyRequestContext.get(req).setEmbeddedApp(true);
 		}
 	}
 	
@@ -225,6 +233,7 @@ public class ShopifyOriginFilter implements Filter {
 		HttpSession session = req.getSession(false);
 		if(session != null) {
 			session.removeAttribute(SHOPIFY_EMBEDDED_APP);
+			ShopifyRequestContext.get(req).setEmbeddedApp(false);
 		}
 	}	
 	public void setAccessDeniedHandler(AccessDeniedHandler handler) {
@@ -0,0 +1,135 @@
+package com.ppublica.shopify.security.filters;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+import org.springframework.web.filter.GenericFilterBean;
+
+import com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy;
+import com.ppublica.shopify.security.service.ShopifyRateLimiter;
+import com.ppublica.shopify.security.web.ShopifyRequestContext;
+
+
+/**
+ * This filter limits the requests to the install and authorization redirect paths, which anyone can call: each one
+ * otherwise creates a session, saves an OAuth2AuthorizationRequest, or verifies an HMAC.
+ *
+ * <p>A request is rejected with 429 Too Many Requests, and a Retry-After header, if its client address is over the
+ * limit. A request for a shop that isn't signed by Shopify (it has no hmac parameter, or its HMAC doesn't match) is
+ * also rejected if the shop is over its limit. A request Shopify signed is never limited by its shop, so requests
+ * that anyone can send for a shop can't lock the shop out of the app. A shop parameter that isn't a valid shop
+ * domain isn't limited here, since it's rejected before any work is done anyway. The filter is added before
+ * SecurityContextPersistenceFilter, so a rejected request never touches the session.</p>
+ *
+ * <p>The HMAC is checked with the ShopifyVerificationStrategy, which records the result in the request's
+ * ShopifyRequestContext, so it isn't checked again later in the chain. Without a ShopifyVerificationStrategy,
+ * every request for a shop is counted against it.</p>
+ *
+ * <p>The client address is the request's remote address. Behind a proxy, a ForwardedHeaderFilter should set it
+ * from the forwarded headers.</p>
+ *
+ * @author N F
+ * @see ShopifyRateLimiter
+ * @see com.ppublica.shopify.security.configurer.ShopifySecurityConfigurer
+ */
+public class ShopifyRateLimitFilter extends GenericFilterBean {
+	private final Log logger = LogFactory.getLog(ShopifyRateLimitFilter.class);
+
+	private final ShopifyRateLimiter rateLimiter;
+	private final List<AntPathRequestMatcher> applicablePaths = new ArrayList<>();
+	private ShopifyVerificationStrategy verificationStrategy;
+
+	/**
+	 * Construct a ShopifyRateLimitFilter
+	 *
+	 * @param rateLimiter The ShopifyRateLimiter
+	 * @param paths The paths to limit
+	 */
+	public ShopifyRateLimitFilter(ShopifyRateLimiter rateLimiter, String... paths) {
+		this.rateLimiter = rateLimiter;
+		for(String path : paths) {
+			applicablePaths.add(new AntPathRequestMatcher(path));
+		}
+	}
+
+	/**
+	 * Set the ShopifyVerificationStrategy used to tell requests signed by Shopify apart, so that they aren't limited
+	 * per shop.
+	 *
+	 * @param verificationStrategy The ShopifyVerificationStrategy, or null
+	 */
+	public void setVerificationStrategy(ShopifyVerificationStrategy verificationStrategy) {
+		this.verificationStrategy = verificationStrategy;
+	}
+
+	/**
+	 * Reject the request if it matches one of the paths and is over the limit.
+	 *
+	 * @param request The request
+	 * @param response The response
+	 * @param chain The security filter chain
+	 * @throws IOException When invoking chain
+	 * @throws ServletException When invoking the chain
+	 */
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+			throws IOException, ServletException {
+
+		HttpServletRequest req = (HttpServletRequest) request;
+
+		if(applies(req) && !isAllowed(req)) {
+			if(logger.isDebugEnabled()) {
+				logger.debug("Rate limit exceeded for " + req.getRemoteAddr());
+			}
+			HttpServletResponse resp = (HttpServletResponse) response;
+			resp.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+			resp.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(rateLimiter.getRetryAfterSeconds()));
+			return;
+		}
+
+		chain.doFilter(request, response);
+	}
+
+	private boolean applies(HttpServletRequest req) {
+		ShopifyRequestContext context = ShopifyRequestContext.get(req);
+		
+		for(AntPathRequestMatcher matcher : applicablePaths) {
+			if(context.matches(matcher)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isAllowed(HttpServletRequest req) {
+		if(!rateLimiter.tryAcquireForAddress(req.getRemoteAddr())) {
+			return false;
+		}
+
+		String shop = ShopifyRequestContext.get(req).getShop();
+
+		if(shop == null || isFromShopify(req)) {
+			return true;
+		}
+		return rateLimiter.tryAcquireForShop(shop);
+	}
+
+	private boolean isFromShopify(HttpServletRequest req) {
+		return verificationStrategy != null && req.getParameter(ShopifyVerificationStrategy.HMAC_PARAMETER) != null
+				&& verificationStrategy.isShopifyRequest(req);
+	}
+
+}
@@ -0,0 +1,133 @@
+package com.ppublica.shopify.security.filters;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
+import org.springframework.web.filter.GenericFilterBean;
+
+import com.ppublica.shopify.security.authentication.ShopifySessionTokenAuthentication;
+import com.ppublica.shopify.security.authentication.ShopifySessionTokenVerifier;
+import com.ppublica.shopify.security.configuration.SecurityBeansConfig;
+import com.ppublica.shopify.security.service.ShopDomains;
+import com.ppublica.shopify.security.service.ShopifyStore;
+import com.ppublica.shopify.security.service.StoreLastSeenTracker;
+
+
+/**
+ * This filter authenticates requests that carry an App Bridge session token ("Authorization: Bearer &lt;jwt&gt;"), 
+ * so that an embedded app's API calls don't need an HttpSession.
+ * 
+ * <p>If the request isn't already authenticated (an anonymous Authentication doesn't count) and its session token 
+ * is valid, the store is loaded with the OAuth2AuthorizedClientService (which, by default, uses the StoreCache if 
+ * enabled) and a ShopifySessionTokenAuthentication is set. Since that Authentication is transient, it's never 
+ * saved in the HttpSession. Requests without a valid token, or for a store that isn't installed, continue 
+ * unauthenticated.</p>
+ * 
+ * <p>The filter is added after SessionManagementFilter, so that session fixation protection isn't applied to every 
+ * API call.</p>
+ * 
+ * @author N F
+ * @see ShopifySessionTokenVerifier
+ * @see com.ppublica.shopify.security.configurer.ShopifySecurityConfigurer
+ */
+public class ShopifySessionTokenFilter extends GenericFilterBean {
+	private final Log logger = LogFactory.getLog(ShopifySessionTokenFilter.class);
+
+	private static final String BEARER_PREFIX = "Bearer ";
+	private static final String REGISTRATION_ID = SecurityBeansConfig.SHOPIFY_REGISTRATION_ID;
+
+	private final ShopifySessionTokenVerifier verifier;
+	private final OAuth2AuthorizedClientService clientService;
+	private StoreLastSeenTracker lastSeenTracker;
+
+	/**
+	 * Construct a ShopifySessionTokenFilter
+	 * 
+	 * @param verifier To verify the session tokens
+	 * @param clientService To obtain the token for the store
+	 */
+	public ShopifySessionTokenFilter(ShopifySessionTokenVerifier verifier, OAuth2AuthorizedClientService clientService) {
+		this.verifier = verifier;
+		this.clientService = clientService;
+	}
+
+	/**
+	 * Set the StoreLastSeenTracker that records each store authenticated. By default, no store is recorded.
+	 * 
+	 * @param lastSeenTracker The StoreLastSeenTracker, or null
+	 */
+	public void setLastSeenTracker(StoreLastSeenTracker lastSeenTracker) {
+		this.lastSeenTracker = lastSeenTracker;
+	}
+
+	/**
+	 * Authenticate the request with its session token, if it has one and isn't already authenticated.
+	 * 
+	 * @param request The request
+	 * @param response The response
+	 * @param chain The security filter chain
+	 * @throws IOException When invoking chain
+	 * @throws ServletException When invoking the chain
+	 */
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+			throws IOException, ServletException {
+
+		String header = ((HttpServletRequest) request).getHeader(HttpHeaders.AUTHORIZATION);
+		
+		if(header != null && header.regionMatches(true, 0, BEARER_PREFIX, 0, BEARER_PREFIX.length()) && !isAuthenticated()) {
+			ShopifySessionTokenAuthentication authentication = authenticate(header.substring(BEARER_PREFIX.length()).trim());
+			
+			if(authentication != null) {
+				SecurityContextHolder.getContext().setAuthentication(authentication);
+			}
+		}
+		
+		chain.doFilter(request, response);
+	}
+	
+	private boolean isAuthenticated() {
+		Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+		
+		return auth != null && !(auth instanceof AnonymousAuthenticationToken);
+	}
+	
+	private ShopifySessionTokenAuthentication authenticate(String token) {
+		String shopName = ShopDomains.normalize(verifier.verify(token));
+		
+		if(shopName == null) {
+			logger.debug("The session token is not valid");
+			return null;
+		}
+		
+		OAuth2AuthorizedClient client = clientService.loadAuthorizedClient(REGISTRATION_ID, shopName);
+		
+		if(client == null) {
+			logger.info("The store " + shopName + " has not been installed.");
+			return null;
+		}
+		
+		if(lastSeenTracker != null) {
+			lastSeenTracker.recordAccess(shopName);
+		}
+		
+		ShopifyStore store = new ShopifyStore(client.getPrincipalName(), client.getAccessToken().getTokenValue(), 
+				client.getClientRegistration().getClientId(), null);
+		
+		return new ShopifySessionTokenAuthentication(store, REGISTRATION_ID);
+	}
+
+}
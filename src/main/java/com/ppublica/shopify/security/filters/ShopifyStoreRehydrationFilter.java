@@ -0,0 +1,75 @@
+package com.ppublica.shopify.security.filters;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.web.filter.GenericFilterBean;
+
+import com.ppublica.shopify.security.service.ShopifyStore;
+import com.ppublica.shopify.security.service.ShopifyStoreRehydrator;
+
+
+/**
+ * This filter puts the access token back into a ShopifyStore that was read from the session without one, because
+ * only its shop was kept there.
+ *
+ * <p>The filter is added right after SecurityContextPersistenceFilter, so that the rest of the chain sees the
+ * token. If the store's token can't be found because the store was uninstalled, the Authentication is removed and
+ * the request continues unauthenticated.</p>
+ *
+ * @author N F
+ * @see ShopifyStoreRehydrator
+ * @see com.ppublica.shopify.security.configurer.ShopifySecurityConfigurer
+ */
+public class ShopifyStoreRehydrationFilter extends GenericFilterBean {
+	private final Log logger = LogFactory.getLog(ShopifyStoreRehydrationFilter.class);
+
+	private final ShopifyStoreRehydrator rehydrator;
+
+	/**
+	 * Construct a ShopifyStoreRehydrationFilter
+	 *
+	 * @param rehydrator To load the token of the store
+	 */
+	public ShopifyStoreRehydrationFilter(ShopifyStoreRehydrator rehydrator) {
+		this.rehydrator = rehydrator;
+	}
+
+	/**
+	 * If the Authentication is an OAuth2AuthenticationToken for a ShopifyStore, make sure the store has its token.
+	 *
+	 * @param request The request
+	 * @param response The response
+	 * @param chain The security filter chain
+	 * @throws IOException When invoking chain
+	 * @throws ServletException When invoking the chain
+	 */
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+			throws IOException, ServletException {
+
+		Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+
+		if(auth instanceof OAuth2AuthenticationToken && auth.getPrincipal() instanceof ShopifyStore) {
+			OAuth2AuthenticationToken oauth2Token = (OAuth2AuthenticationToken) auth;
+
+			if(!rehydrator.rehydrate(oauth2Token.getAuthorizedClientRegistrationId(), (ShopifyStore) oauth2Token.getPrincipal())) {
+				logger.debug("The store in the session is no longer installed. Removing the Authentication");
+				SecurityContextHolder.getContext().setAuthentication(null);
+			}
+		}
+
+		chain.doFilter(request, response);
+
+	}
+
+}
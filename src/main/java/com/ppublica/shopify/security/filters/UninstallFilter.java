@@ -20,6 +20,7 @@ import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
 
 import com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy;
 import com.ppublica.shopify.security.configuration.SecurityBeansConfig;
+import com.ppublica.shopify.security.service.ShopDomains;
 
 
 /**
@@ -120,10 +121,10 @@ public class UninstallFilter implements Filter {
 			uninstallFailure(request, response);
 			return;
 		} 
-		String storeName = body.getShop_domain();
+		String storeName = ShopDomains.normalize(body.getShop_domain());
 
-		if(storeName == null || storeName.isEmpty()) {
-			logger.debug("No shop_domain found in body");
+		if(storeName == null) {
+			logger.debug("No valid shop_domain found in body");
 			uninstallFailure(request, response);
 			return;
 		}
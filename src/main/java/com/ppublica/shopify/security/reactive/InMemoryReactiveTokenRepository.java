@@ -0,0 +1,71 @@
+package com.ppublica.shopify.security.reactive;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ppublica.shopify.security.repository.PersistedStoreAccessToken;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * An implementation of ReactiveTokenRepository that keeps the stores in memory. It's meant for tests and for
+ * applications that don't need the tokens to survive a restart.
+ * 
+ * <p>Stored objects are copied on the way in and on the way out, so callers can't change a stored token by 
+ * mutating the PersistedStoreAccessToken they passed in or got back.</p>
+ * 
+ * @author N F
+ *
+ */
+public class InMemoryReactiveTokenRepository implements ReactiveTokenRepository {
+	
+	private final Map<String, PersistedStoreAccessToken> stores = new ConcurrentHashMap<>();
+	private final AtomicLong ids = new AtomicLong();
+
+	@Override
+	public Mono<PersistedStoreAccessToken> findTokenForStore(String store) {
+		return Mono.fromSupplier(() -> copy(stores.get(store)));
+	}
+
+	@Override
+	public Mono<Void> saveNewStore(PersistedStoreAccessToken accessToken) {
+		return Mono.fromRunnable(() -> {
+			PersistedStoreAccessToken toSave = copy(accessToken);
+			toSave.setId(ids.incrementAndGet());
+			stores.put(toSave.getStoreDomain(), toSave);
+		});
+	}
+
+	@Override
+	public Mono<Void> updateStore(PersistedStoreAccessToken token) {
+		return Mono.fromRunnable(() -> stores.computeIfPresent(token.getStoreDomain(), (domain, existing) -> {
+			PersistedStoreAccessToken updated = copy(token);
+			updated.setId(existing.getId());
+			return updated;
+		}));
+	}
+
+	@Override
+	public Mono<Void> uninstallStore(String storeName) {
+		return Mono.fromRunnable(() -> stores.remove(storeName));
+	}
+	
+	private static PersistedStoreAccessToken copy(PersistedStoreAccessToken token) {
+		if(token == null) {
+			return null;
+		}
+		PersistedStoreAccessToken copy = new PersistedStoreAccessToken();
+		copy.setId(token.getId());
+		copy.setStoreDomain(token.getStoreDomain());
+		copy.setTokenType(token.getTokenType());
+		copy.setTokenAndSalt(token.getTokenAndSalt());
+		copy.setIssuedAt(token.getIssuedAt());
+		copy.setExpiresAt(token.getExpiresAt());
+		copy.setScopes(token.getScopes() == null ? null : new HashSet<>(token.getScopes()));
+		
+		return copy;
+	}
+
+}
@@ -0,0 +1,169 @@
+package com.ppublica.shopify.security.reactive;
+
+import java.util.Set;
+import java.util.function.Function;
+
+import com.ppublica.shopify.security.repository.PersistedStoreAccessToken;
+import com.ppublica.shopify.security.repository.ScopeDictionary;
+import com.ppublica.shopify.security.service.EncryptedTokenAndSalt;
+
+import io.r2dbc.spi.Connection;
+import io.r2dbc.spi.ConnectionFactory;
+import io.r2dbc.spi.Row;
+import io.r2dbc.spi.Statement;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * An implementation of ReactiveTokenRepository that persists to a SQL database through an R2DBC ConnectionFactory.
+ * It uses the same StoreAccessTokens table as ShopifyTokenRepositoryImpl, so both can share a database.
+ * 
+ * <p>Bind markers are driver-specific. By default, the indexed "$1, $2..." style (PostgreSQL, H2) is used. Call
+ * {@link #setBindMarkers(BindMarkers)} for drivers that expect anonymous "?" markers (MySQL, MariaDB).</p>
+ * 
+ * @author N F
+ * @see com.ppublica.shopify.security.repository.ShopifyTokenRepositoryImpl
+ */
+public class R2dbcReactiveTokenRepository implements ReactiveTokenRepository {
+	
+	private static final String SELECT_INFO_FOR_SHOP = "SELECT id, storeDomain, tokenType, tokenValue, salt, issuedAt, expiresAt, scopes FROM StoreAccessTokens WHERE storeDomain=%s";
+	private static final String SAVE_ACCESS_TOKEN = "INSERT INTO StoreAccessTokens(storeDomain,tokenType,tokenValue,salt,issuedAt,expiresAt,scopes) VALUES(%s,%s,%s,%s,%s,%s,%s)";
+	private static final String UPDATE_TOKEN_FOR_STORE = "UPDATE StoreAccessTokens SET tokenType=%s, tokenValue=%s, salt=%s, issuedAt=%s, expiresAt=%s, scopes=%s WHERE storeDomain=%s";
+	private static final String REMOVE_STORE = "DELETE FROM StoreAccessTokens WHERE storeDomain=%s";
+	
+	/**
+	 * The style of bind marker the R2DBC driver expects.
+	 */
+	public enum BindMarkers {
+		/**
+		 * $1, $2, ...
+		 */
+		DOLLAR_INDEXED(i -> "$" + (i + 1)),
+		
+		/**
+		 * ?, ?, ...
+		 */
+		ANONYMOUS(i -> "?");
+		
+		private final Function<Integer, String> marker;
+		
+		BindMarkers(Function<Integer, String> marker) {
+			this.marker = marker;
+		}
+		
+		String render(String template, int count) {
+			Object[] markers = new Object[count];
+			for(int i = 0; i < count; i++) {
+				markers[i] = marker.apply(i);
+			}
+			return String.format(template, markers);
+		}
+	}
+	
+	private final ConnectionFactory connectionFactory;
+	private String selectInfoForShop;
+	private String saveAccessToken;
+	private String updateTokenForStore;
+	private String removeStore;
+	
+	/**
+	 * Build an R2dbcReactiveTokenRepository that uses "$1"-style bind markers.
+	 * 
+	 * @param connectionFactory The R2DBC ConnectionFactory
+	 */
+	public R2dbcReactiveTokenRepository(ConnectionFactory connectionFactory) {
+		this.connectionFactory = connectionFactory;
+		setBindMarkers(BindMarkers.DOLLAR_INDEXED);
+	}
+	
+	public void setBindMarkers(BindMarkers bindMarkers) {
+		this.selectInfoForShop = bindMarkers.render(SELECT_INFO_FOR_SHOP, 1);
+		this.saveAccessToken = bindMarkers.render(SAVE_ACCESS_TOKEN, 7);
+		this.updateTokenForStore = bindMarkers.render(UPDATE_TOKEN_FOR_STORE, 7);
+		this.removeStore = bindMarkers.render(REMOVE_STORE, 1);
+	}
+
+	@Override
+	public Mono<PersistedStoreAccessToken> findTokenForStore(String store) {
+		return withConnection(conn -> Flux.from(conn.createStatement(selectInfoForShop)
+														.bind(0, store)
+														.execute())
+											.flatMap(result -> result.map((row, metadata) -> mapRow(row))))
+				.next();
+	}
+
+	@Override
+	public Mono<Void> saveNewStore(PersistedStoreAccessToken accessToken) {
+		return update(conn -> {
+			Statement statement = conn.createStatement(saveAccessToken)
+					.bind(0, accessToken.getStoreDomain())
+					.bind(1, accessToken.getTokenType())
+					.bind(2, accessToken.getTokenAndSalt().getEncryptedToken())
+					.bind(3, accessToken.getTokenAndSalt().getSalt());
+			bindLong(statement, 4, accessToken.getIssuedAt());
+			bindLong(statement, 5, accessToken.getExpiresAt());
+			
+			return statement.bind(6, getScopeString(accessToken.getScopes()));
+		});
+	}
+
+	@Override
+	public Mono<Void> updateStore(PersistedStoreAccessToken token) {
+		return update(conn -> {
+			Statement statement = conn.createStatement(updateTokenForStore)
+					.bind(0, token.getTokenType())
+					.bind(1, token.getTokenAndSalt().getEncryptedToken())
+					.bind(2, token.getTokenAndSalt().getSalt());
+			bindLong(statement, 3, token.getIssuedAt());
+			bindLong(statement, 4, token.getExpiresAt());
+			
+			return statement.bind(5, getScopeString(token.getScopes()))
+							.bind(6, token.getStoreDomain());
+		});
+	}
+
+	@Override
+	public Mono<Void> uninstallStore(String storeName) {
+		return update(conn -> conn.createStatement(removeStore).bind(0, storeName));
+	}
+	
+	private <T> Flux<T> withConnection(Function<Connection, Flux<T>> action) {
+		return Flux.usingWhen(connectionFactory.create(),
+				action,
+				Connection::close,
+				(conn, err) -> conn.close(),
+				Connection::close);
+	}
+	
+	private Mono<Void> update(Function<Connection, Statement> statement) {
+		return withConnection(conn -> Flux.from(statement.apply(conn).execute())
+											.flatMap(result -> result.getRowsUpdated()))
+				.then();
+	}
+	
+	private static void bindLong(Statement statement, int index, Long value) {
+		if(value == null) {
+			statement.bindNull(index, Long.class);
+		} else {
+			statement.bind(index, value);
+		}
+	}
+	
+	static PersistedStoreAccessToken mapRow(Row row) {
+		PersistedStoreAccessToken token = new PersistedStoreAccessToken();
+		token.setId(row.get("id", Long.class));
+		token.setStoreDomain(row.get("storeDomain", String.class));
+		token.setTokenType(row.get("tokenType", String.class));
+		token.setIssuedAt(row.get("issuedAt", Long.class));
+		token.setExpiresAt(row.get("expiresAt", Long.class));
+		token.setScopes(ScopeDictionary.getShared().decode(row.get("scopes", String.class)));
+		token.setTokenAndSalt(new EncryptedTokenAndSalt(row.get("tokenValue", String.class), row.get("salt", String.class)));
+		
+		return token;
+	}
+	
+	private static String getScopeString(Set<String> scopes) {
+		return ScopeDictionary.getShared().encode(scopes);
+	}
+
+}
@@ -0,0 +1,86 @@
+package com.ppublica.shopify.security.reactive;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.ReactiveOAuth2AuthorizedClientService;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * The non-blocking equivalent of ShopifyOAuth2AuthorizedClientService. It uses ReactiveTokenService to save the 
+ * store, or to update the store credentials if this store has already been "installed".
+ * 
+ * @author N F
+ * @see com.ppublica.shopify.security.service.ShopifyOAuth2AuthorizedClientService
+ * @see ShopifyExistingTokenWebFilter
+ * @see UninstallWebFilter
+ */
+public class ReactiveShopifyOAuth2AuthorizedClientService implements ReactiveOAuth2AuthorizedClientService {
+	private final Log logger = LogFactory.getLog(ReactiveShopifyOAuth2AuthorizedClientService.class);
+
+	private ReactiveTokenService tokenService;
+	
+	public ReactiveShopifyOAuth2AuthorizedClientService(ReactiveTokenService tokenService) {
+		this.tokenService = tokenService;
+	}
+
+	/**
+	 * Load the store that matches the provided principalName.
+	 * 
+	 * @param clientRegistrationId The registration id (e.g. "shopify")
+	 * @param principalName The full Shopify shop domain
+	 * @return The OAuth2AuthorizedClient or an empty Mono if store not found
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T extends OAuth2AuthorizedClient> Mono<T> loadAuthorizedClient(String clientRegistrationId,
+			String principalName) {
+		return (Mono<T>) tokenService.getStore(principalName);
+	}
+
+	/**
+	 * Decides whether it should update the store or add the new store based on whether or not this store
+	 * exists already.
+	 * 
+	 * @param authorizedClient The authenticated OAuth2AuthorizedClient
+	 * @param principal The OAuth2AuthenticationToken
+	 * @return A Mono that completes when the store is saved
+	 */
+	@Override
+	public Mono<Void> saveAuthorizedClient(OAuth2AuthorizedClient authorizedClient, Authentication principal) {
+		if(!OAuth2AuthenticationToken.class.isAssignableFrom(principal.getClass())) {
+			return Mono.error(new IllegalArgumentException("The principal must be of type OAuth2AuthenticationToken"));
+		}
+		
+		OAuth2AuthenticationToken pr = (OAuth2AuthenticationToken)principal;
+		
+		String shop = pr.getPrincipal().getName();
+		
+		return tokenService.doesStoreExist(shop)
+				.flatMap(exists -> {
+					if(exists) {
+						return tokenService.updateStore(authorizedClient, pr)
+								.doOnSuccess(v -> logger.info("Successfully updated store " + shop));
+					}
+					return tokenService.saveNewStore(authorizedClient, pr)
+							.doOnSuccess(v -> logger.info("Successfully saved store " + shop));
+				});
+	}
+
+	/**
+	 * Permanently delete/uninstall the store that matches the shop domain/principalName.
+	 * 
+	 * @param clientRegistrationId The registration id (e.g. "shopify")
+	 * @param principalName The full shop domain
+	 * @return A Mono that completes when the store is removed
+	 */
+	@Override
+	public Mono<Void> removeAuthorizedClient(String clientRegistrationId, String principalName) {
+		return tokenService.uninstallStore(principalName)
+				.doOnSuccess(v -> logger.info("Successfully uninstalled store " + principalName));
+	}
+
+}
@@ -0,0 +1,247 @@
+package com.ppublica.shopify.security.reactive;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.registration.ReactiveClientRegistrationRepository;
+import org.springframework.security.oauth2.client.web.server.ServerAuthorizationRequestRepository;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.util.UriUtils;
+
+import com.ppublica.shopify.security.authentication.ShopifyClientSecrets;
+import com.ppublica.shopify.security.authentication.ShopifyQueryVerificationCache;
+import com.ppublica.shopify.security.authentication.ShopifyVerificationException;
+import com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy;
+import com.ppublica.shopify.security.service.ShopDomains;
+import com.ppublica.shopify.security.service.TokenService;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * The non-blocking equivalent of ShopifyVerificationStrategy. Provides methods for determining if a request came 
+ * from Shopify.
+ * 
+ * <p>The webhook body is copied as its DataBuffers arrive (up to a maximum size), so the payload is never decoded 
+ * into a String and never blocks the event loop. Once it's complete, it's checked with 
+ * ShopifyClientSecrets.matchesWebhookHmac, the same as ShopifyVerificationStrategy does, and can be read after 
+ * verification.</p>
+ * 
+ * <p>Like ShopifyVerificationStrategy, the HMAC is checked with the ShopifyClientSecrets of the client secret.</p>
+ * 
+ * @author N F
+ * @see ShopifyVerificationStrategy
+ * @see ShopifyOriginWebFilter
+ * @see UninstallWebFilter
+ */
+public class ReactiveShopifyVerificationStrategy {
+	private final Log logger = LogFactory.getLog(ReactiveShopifyVerificationStrategy.class);
+	
+	/**
+	 * The default maximum size of a webhook body: 256 KB.
+	 */
+	public static final int DEFAULT_MAX_BODY_SIZE = 256 * 1024;
+	
+	private ReactiveClientRegistrationRepository clientRegistrationRepository;
+	private ServerAuthorizationRequestRepository<OAuth2AuthorizationRequest> authorizationRequestRepository;
+	private int maxBodySize = DEFAULT_MAX_BODY_SIZE;
+	private ShopifyQueryVerificationCache verificationCache;
+	private final Map<String, ShopifyClientSecrets> clientSecrets = new ConcurrentHashMap<>();
+	
+	/**
+	 * Create a new ReactiveShopifyVerificationStrategy
+	 * 
+	 * @param clientRegistrationRepository The ReactiveClientRegistrationRepository
+	 * @param authorizationRequestRepository Where the OAuth2AuthorizationRequests are saved
+	 */
+	public ReactiveShopifyVerificationStrategy(ReactiveClientRegistrationRepository clientRegistrationRepository,
+			ServerAuthorizationRequestRepository<OAuth2AuthorizationRequest> authorizationRequestRepository) {
+		this.clientRegistrationRepository = clientRegistrationRepository;
+		this.authorizationRequestRepository = authorizationRequestRepository;
+	}
+	
+	/**
+	 * Set the ShopifyQueryVerificationCache that enforces the replay window and caches verified query strings. If 
+	 * not set, the timestamp isn't checked and every request is verified.
+	 * 
+	 * @param verificationCache The ShopifyQueryVerificationCache, or null
+	 */
+	public void setVerificationCache(ShopifyQueryVerificationCache verificationCache) {
+		this.verificationCache = verificationCache;
+	}
+	
+	/**
+	 * Set the ShopifyClientSecrets to check the HMAC with when a ClientRegistration's secret is their current 
+	 * secret, so that requests signed with a previous secret are still verified.
+	 * 
+	 * @param clientSecrets The ShopifyClientSecrets
+	 */
+	public void setClientSecrets(ShopifyClientSecrets clientSecrets) {
+		this.clientSecrets.put(clientSecrets.getClientSecret(), clientSecrets);
+	}
+	
+	/**
+	 * Perform HMAC verification of the query string as directed by Shopify, using the client secret of the 
+	 * ClientRegistration with the given id. A request whose shop parameter isn't a single valid shop domain, or 
+	 * whose timestamp is outside the replay window of the ShopifyQueryVerificationCache (if set), is rejected without
+	 * computing the HMAC.
+	 * 
+	 * @param exchange The ServerWebExchange
+	 * @param registrationId The registration id
+	 * @return A Mono that emits true if the HMAC is valid, false otherwise
+	 */
+	public Mono<Boolean> isShopifyRequest(ServerWebExchange exchange, String registrationId) {
+		ServerHttpRequest request = exchange.getRequest();
+		String hmacValue = request.getQueryParams().getFirst(ShopifyVerificationStrategy.HMAC_PARAMETER);
+		String rawQuery = request.getURI().getRawQuery();
+		
+		if(hmacValue == null || hmacValue.isEmpty() || rawQuery == null) {
+			logger.debug("No HMAC parameter found");
+			return Mono.just(false);
+		}
+		
+		String timestamp = request.getQueryParams().getFirst(ShopifyVerificationStrategy.TIMESTAMP_PARAMETER);
+		long now = System.currentTimeMillis();
+		
+		if(verificationCache != null && !verificationCache.isFresh(timestamp, now)) {
+			logger.debug("The timestamp parameter is missing or outside the replay window");
+			return Mono.just(false);
+		}
+		
+		List<String> shopValues = request.getQueryParams().get(TokenService.SHOP_ATTRIBUTE_NAME);
+		
+		if(shopValues != null && (shopValues.size() != 1 || !ShopDomains.isValid(shopValues.get(0)))) {
+			logger.debug("The shop parameter is not a valid shop domain");
+			return Mono.just(false);
+		}
+		
+		if(verificationCache != null && verificationCache.isVerified(rawQuery, now)) {
+			return Mono.just(true);
+		}
+		
+		return getClientSecret(registrationId)
+				.map(secret -> getClientSecrets(secret).isValidQuery(rawQuery, hmacValue))
+				.doOnNext(verified -> {
+					if(verified && verificationCache != null) {
+						verificationCache.putVerified(rawQuery, timestamp, now);
+					}
+				})
+				.defaultIfEmpty(false);
+	}
+	
+	/**
+	 * This method makes sure there is a saved OAuth2AuthorizationRequest that matches the nonce that was provided 
+	 * in this request.
+	 * 
+	 * @param exchange The ServerWebExchange
+	 * @return A Mono that emits true if the nonce is valid, false otherwise
+	 */
+	public Mono<Boolean> hasValidNonce(ServerWebExchange exchange) {
+		String nonce = exchange.getRequest().getQueryParams().getFirst(ShopifyVerificationStrategy.NONCE_PARAMETER);
+		
+		if(nonce == null || nonce.isEmpty()) {
+			logger.debug("No NONCE parameter found");
+			return Mono.just(false);
+		}
+		
+		return authorizationRequestRepository.loadAuthorizationRequest(exchange)
+				.map(authReq -> nonce.equals(authReq.getState()) 
+						|| UriUtils.decode(nonce, StandardCharsets.UTF_8).equals(authReq.getState()))
+				.defaultIfEmpty(false);
+	}
+	
+	/**
+	 * Checks that the request has the X-Shopify-Hmac-SHA256 header and that it matches the HMAC of the body. 
+	 * The body is copied as each DataBuffer arrives, and hashed once it's complete.
+	 * 
+	 * @param exchange The ServerWebExchange
+	 * @param registrationId The registration id
+	 * @return A Mono that emits the body if the HMAC is valid, or an empty Mono otherwise
+	 */
+	public Mono<byte[]> verifyHeaderRequest(ServerWebExchange exchange, String registrationId) {
+		String hmacValue = exchange.getRequest().getHeaders().getFirst(ShopifyVerificationStrategy.HMAC_HEADER);
+		
+		if(hmacValue == null || hmacValue.isEmpty()) {
+			logger.debug("No HMAC header found");
+			return Mono.empty();
+		}
+		
+		return getClientSecret(registrationId)
+				.flatMap(secret -> exchange.getRequest().getBody()
+						.reduce(new WebhookBody(maxBodySize), WebhookBody::update)
+						.filter(WebhookBody::isComplete)
+						.map(WebhookBody::getBody)
+						.filter(body -> getClientSecrets(secret).matchesWebhookHmac(body, hmacValue)));
+	}
+	
+	/**
+	 * Set the maximum number of body bytes that will be read when verifying a webhook. Larger bodies fail 
+	 * verification.
+	 * 
+	 * @param maxBodySize The maximum size in bytes
+	 */
+	public void setMaxBodySize(int maxBodySize) {
+		this.maxBodySize = maxBodySize;
+	}
+	
+	private Mono<String> getClientSecret(String registrationId) {
+		return clientRegistrationRepository.findByRegistrationId(registrationId)
+				.map(ClientRegistration::getClientSecret)
+				.switchIfEmpty(Mono.error(() -> new ShopifyVerificationException("No client secret found")));
+	}
+	
+	private ShopifyClientSecrets getClientSecrets(String clientSecret) {
+		return clientSecrets.computeIfAbsent(clientSecret, ShopifyClientSecrets::new);
+	}
+	
+	/*
+	 * Accumulates a copy of the bytes as the body's DataBuffers are emitted. Each DataBuffer is released once it's 
+	 * been consumed. reduce always emits the seed, so an empty body is an empty WebhookBody.
+	 */
+	static class WebhookBody {
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		private final int maxBodySize;
+		private boolean tooLarge;
+		
+		WebhookBody(int maxBodySize) {
+			this.maxBodySize = maxBodySize;
+		}
+		
+		WebhookBody update(DataBuffer buffer) {
+			try {
+				if(!tooLarge) {
+					if(body.size() + buffer.readableByteCount() > maxBodySize) {
+						tooLarge = true;
+					} else {
+						ByteBuffer bytes = buffer.asByteBuffer();
+						byte[] copy = new byte[bytes.remaining()];
+						bytes.get(copy);
+						body.write(copy, 0, copy.length);
+					}
+				}
+			} finally {
+				DataBufferUtils.release(buffer);
+			}
+			return this;
+		}
+		
+		boolean isComplete() {
+			return !tooLarge;
+		}
+		
+		byte[] getBody() {
+			return body.toByteArray();
+		}
+	}
+
+}
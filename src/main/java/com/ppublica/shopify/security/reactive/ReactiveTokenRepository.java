@@ -0,0 +1,48 @@
+package com.ppublica.shopify.security.reactive;
+
+import com.ppublica.shopify.security.repository.PersistedStoreAccessToken;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * The non-blocking equivalent of TokenRepository. Provides methods for directly interacting with the repository 
+ * that contains the OAuth tokens.
+ * 
+ * @author N F
+ * @see com.ppublica.shopify.security.repository.TokenRepository
+ */
+public interface ReactiveTokenRepository {
+	
+	/**
+	 * Find the shop that matches the full shop name provided.
+	 * 
+	 * @param store The full shop name
+	 * @return The PersistedStoreAccessToken that matches the shop name, or an empty Mono if not found
+	 */
+	Mono<PersistedStoreAccessToken> findTokenForStore(String store);
+	
+	/**
+	 * Save a new store.
+	 * 
+	 * @param accessToken The PersistedStoreAccessToken to persist
+	 * @return A Mono that completes when the store is saved
+	 */
+	Mono<Void> saveNewStore(PersistedStoreAccessToken accessToken);
+	
+	/**
+	 * Update the info for an existing store.
+	 * 
+	 * @param token The PersistedStoreAccessToken with the updated info
+	 * @return A Mono that completes when the store is updated
+	 */
+	Mono<Void> updateStore(PersistedStoreAccessToken token);
+	
+	/**
+	 * Uninstall completely the store that matches the given full shop domain.
+	 * 
+	 * @param storeName The full store domain
+	 * @return A Mono that completes when the store is removed
+	 */
+	Mono<Void> uninstallStore(String storeName);
+
+}
@@ -0,0 +1,188 @@
+package com.ppublica.shopify.security.reactive;
+
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.oauth2.client.registration.ReactiveClientRegistrationRepository;
+
+import com.ppublica.shopify.security.authentication.CipherPassword;
+import com.ppublica.shopify.security.configuration.SecurityBeansConfig;
+import com.ppublica.shopify.security.repository.PersistedStoreAccessToken;
+import com.ppublica.shopify.security.repository.PersistedStoreAccessTokenUtility;
+import com.ppublica.shopify.security.service.CipherKeyRing;
+import com.ppublica.shopify.security.service.EncryptedTokenAndSalt;
+import com.ppublica.shopify.security.service.TokenEncryptor;
+
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * The non-blocking equivalent of TokenService. Provides methods to interact with the ReactiveTokenRepository to get, 
+ * save, update, or delete a store.
+ * 
+ * <p>Encrypting and decrypting a token is CPU-bound (and, for tokens in the queryable text format, requires a key 
+ * derivation), so that work is moved off the event loop onto the parallel Scheduler by default. The encryption 
+ * itself is done by a TokenEncryptor, like in TokenService.</p>
+ * 
+ * @author N F
+ * @see com.ppublica.shopify.security.service.TokenService
+ * @see ReactiveShopifyOAuth2AuthorizedClientService
+ */
+public class ReactiveTokenService {
+	private final Log logger = LogFactory.getLog(ReactiveTokenService.class);
+
+	private ReactiveTokenRepository tokenRepository;
+	private TokenEncryptor tokenEncryptor;
+	private ReactiveClientRegistrationRepository clientRepository;
+	private PersistedStoreAccessTokenUtility persistedAccessTokenUtility = new PersistedStoreAccessTokenUtility();
+	private Scheduler cryptoScheduler = Schedulers.parallel();
+	
+	/**
+	 * Build a new ReactiveTokenService.
+	 * 
+	 * @param tokenRepository The ReactiveTokenRepository
+	 * @param cipherPassword The CipherPassword
+	 * @param clientRepository The ReactiveClientRegistrationRepository
+	 */
+	public ReactiveTokenService(ReactiveTokenRepository tokenRepository, CipherPassword cipherPassword, ReactiveClientRegistrationRepository clientRepository) {
+		this.tokenRepository = tokenRepository;
+		this.tokenEncryptor = new TokenEncryptor(cipherPassword);
+		this.clientRepository = clientRepository;
+	}
+	
+	/**
+	 * Save a new store. It uses an OAuth2AuthorizedClient with a raw token to create an encrypted token 
+	 * to persist.
+	 * 
+	 * @param authorizedClient The OAuth2AuthorizedClient with credentials.
+	 * @param principal The OAuth2AuthenticationToken that contains the user info
+	 * @return A Mono that completes when the store is saved
+	 */
+	public Mono<Void> saveNewStore(OAuth2AuthorizedClient authorizedClient, OAuth2AuthenticationToken principal) {
+		return toPersistedToken(authorizedClient, principal)
+					.flatMap(tokenRepository::saveNewStore);
+	}
+	
+	/**
+	 * Checks for the existence of a store that matches the provided storeDomain String.
+	 * 
+	 * @param shopDomain The full shop domain
+	 * @return A Mono that emits true if store exists, false otherwise
+	 */
+	public Mono<Boolean> doesStoreExist(String shopDomain) {
+		return tokenRepository.findTokenForStore(shopDomain)
+					.hasElement();
+	}
+	
+	/**
+	 * Emits an OAuth2AuthorizedClient if and only if it finds a store that matches the shopDomain.
+	 * If there's a problem decrypting the token for the store, the Mono completes empty.
+	 * 
+	 * @param shopDomain The full shop domain
+	 * @return The OAuth2AuthorizedClient representing the store, or an empty Mono
+	 */
+	public Mono<OAuth2AuthorizedClient> getStore(String shopDomain) {
+		return tokenRepository.findTokenForStore(shopDomain)
+				.flatMap(ets -> Mono.fromCallable(() -> tokenEncryptor.decrypt(ets))
+										.subscribeOn(cryptoScheduler)
+										.switchIfEmpty(Mono.defer(() -> {
+											logger.info("The salt and encrypted passwords are out of date/corrupted");
+											return Mono.empty();
+										}))
+										.flatMap(decrypted -> clientRepository.findByRegistrationId(SecurityBeansConfig.SHOPIFY_REGISTRATION_ID)
+												.switchIfEmpty(Mono.error(() -> new RuntimeException("An error occurred retrieving the ClientRegistration for " + SecurityBeansConfig.SHOPIFY_REGISTRATION_ID)))
+												.map(cr -> persistedAccessTokenUtility.fromPersistedStoreAccessTokenToOAuth2AuthorizedClient(ets, decrypted, cr))));
+	}
+	
+	/**
+	 * Updates the store info for an an existing store. 
+	 * 
+	 * @param authorizedClient The OAuth2AuthorizedClient with credentials.
+	 * @param principal The OAuth2AuthenticationToken that contains the user info
+	 * @return A Mono that completes when the store is updated
+	 */
+	public Mono<Void> updateStore(OAuth2AuthorizedClient authorizedClient, OAuth2AuthenticationToken principal) {
+		return toPersistedToken(authorizedClient, principal)
+					.flatMap(tokenRepository::updateStore);
+	}
+	
+	/**
+	 * Calls ReactiveTokenRepository to uninstall the store that matches the shopDomain.
+	 * 
+	 * @param shopDomain The full domain of the store to be uninstalled
+	 * @return A Mono that completes when the store is removed
+	 */
+	public Mono<Void> uninstallStore(String shopDomain) {
+		if(shopDomain == null || shopDomain.isEmpty()) {
+			return Mono.empty();
+		}
+		return tokenRepository.uninstallStore(shopDomain);
+	}
+	
+	public void setPersistedStoreAccessTokenUtility(PersistedStoreAccessTokenUtility customPersistedAccessTokenUtility) {
+		this.persistedAccessTokenUtility = customPersistedAccessTokenUtility;
+	}
+	
+	/**
+	 * Set the passwords that were previously used to encrypt tokens. They are only used for decryption.
+	 * 
+	 * @param previousCipherPasswords The previous CipherPasswords, each with a different key id
+	 */
+	public void setPreviousCipherPasswords(List<CipherPassword> previousCipherPasswords) {
+		tokenEncryptor.setPreviousCipherPasswords(previousCipherPasswords);
+	}
+	
+	/**
+	 * Set the algorithm new tokens are encrypted with: "queryable-text" (the default) or "aes-gcm". Tokens 
+	 * encrypted with either algorithm can always be decrypted.
+	 * 
+	 * @param cipherAlgorithm The algorithm
+	 * @throws IllegalArgumentException if the algorithm is not supported
+	 */
+	public void setCipherAlgorithm(String cipherAlgorithm) {
+		tokenEncryptor.setCipherAlgorithm(cipherAlgorithm);
+	}
+	
+	/**
+	 * Build the CipherKeyRing from the passwords and algorithm that were set. Otherwise, it's built when a token is 
+	 * first encrypted or decrypted.
+	 */
+	public void init() {
+		tokenEncryptor.init();
+	}
+	
+	/**
+	 * Replace the CipherKeyRing, for example to use a custom TokenCipher. 
+	 * 
+	 * @param keyRing The CipherKeyRing
+	 */
+	public void setCipherKeyRing(CipherKeyRing keyRing) {
+		tokenEncryptor.setCipherKeyRing(keyRing);
+	}
+	
+	/**
+	 * Set the Scheduler that encryption and decryption run on. Defaults to Schedulers.parallel().
+	 * 
+	 * @param cryptoScheduler The Scheduler
+	 */
+	public void setCryptoScheduler(Scheduler cryptoScheduler) {
+		this.cryptoScheduler = cryptoScheduler;
+	}
+	
+	private Mono<PersistedStoreAccessToken> toPersistedToken(OAuth2AuthorizedClient authorizedClient, OAuth2AuthenticationToken principal) {
+		return Mono.fromCallable(() -> getTokenAndSalt(authorizedClient))
+					.subscribeOn(cryptoScheduler)
+					.map(encrypted -> persistedAccessTokenUtility.fromAuthenticationObjectsToPersistedStoreAccessToken(authorizedClient, principal, encrypted));
+	}
+	
+	private EncryptedTokenAndSalt getTokenAndSalt(OAuth2AuthorizedClient authorizedClient) {
+		String rawAccessTokenValue = authorizedClient.getAccessToken().getTokenValue();
+		
+		return tokenEncryptor.encrypt(rawAccessTokenValue);
+	}
+
+}
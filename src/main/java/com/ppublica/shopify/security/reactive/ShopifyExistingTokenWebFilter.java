@@ -0,0 +1,125 @@
+package com.ppublica.shopify.security.reactive;
+
+import java.util.Optional;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.security.core.context.ReactiveSecurityContextHolder;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.ReactiveOAuth2AuthorizedClientService;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.web.server.context.ServerSecurityContextRepository;
+import org.springframework.security.web.server.context.WebSessionServerSecurityContextRepository;
+import org.springframework.security.web.server.util.matcher.PathPatternParserServerWebExchangeMatcher;
+import org.springframework.security.web.server.util.matcher.ServerWebExchangeMatcher;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+
+import com.ppublica.shopify.security.authentication.ShopifyOriginToken;
+import com.ppublica.shopify.security.configuration.SecurityBeansConfig;
+import com.ppublica.shopify.security.filters.ShopifyExistingTokenFilter;
+import com.ppublica.shopify.security.service.ShopDomains;
+import com.ppublica.shopify.security.service.ShopifyStore;
+import com.ppublica.shopify.security.service.TokenService;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * The WebFlux equivalent of ShopifyExistingTokenFilter. It allows a user to "automatically" log into an existing 
+ * store without having to go through the OAuth flow again.
+ * 
+ * <p>This filter matches the installation path (/install/shopify) and checks the reactive SecurityContext for a 
+ * ShopifyOriginToken. If one is found, the store is loaded and an OAuth2AuthenticationToken is saved via the 
+ * ServerSecurityContextRepository. Otherwise the ShopifyOriginToken is removed.</p>
+ * 
+ * @author N F
+ * @see ShopifyExistingTokenFilter
+ * @see ShopifyOriginWebFilter
+ */
+public class ShopifyExistingTokenWebFilter implements WebFilter {
+	private final Log logger = LogFactory.getLog(ShopifyExistingTokenWebFilter.class);
+
+	private ReactiveOAuth2AuthorizedClientService clientService;
+	private ServerWebExchangeMatcher requestMatcher;
+	private ServerSecurityContextRepository securityContextRepository = new WebSessionServerSecurityContextRepository();
+	private static final String REGISTRATION_ID = SecurityBeansConfig.SHOPIFY_REGISTRATION_ID;
+	
+	/**
+	 * Construct a ShopifyExistingTokenWebFilter
+	 * 
+	 * @param clientService To obtain the token for the store
+	 * @param loginEndpoint The installation path 
+	 */
+	public ShopifyExistingTokenWebFilter(ReactiveOAuth2AuthorizedClientService clientService, String loginEndpoint) {
+		this.clientService = clientService;
+		this.requestMatcher = new PathPatternParserServerWebExchangeMatcher(loginEndpoint.endsWith(REGISTRATION_ID) ? loginEndpoint : loginEndpoint + "/" + REGISTRATION_ID);
+	}
+
+	@Override
+	public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+		return requestMatcher.matches(exchange)
+				.flatMap(match -> {
+					if(!match.isMatch()) {
+						return chain.filter(exchange);
+					}
+					return ReactiveSecurityContextHolder.getContext()
+							.filter(context -> context.getAuthentication() instanceof ShopifyOriginToken)
+							.map(context -> true)
+							.defaultIfEmpty(false)
+							.flatMap(isShopifyOrigin -> {
+								if(!isShopifyOrigin) {
+									// if there's no ShopifyOriginToken, leave whatever Authentication object is there
+									logger.debug("Authentication is not of type ShopifyOriginToken");
+									return chain.filter(exchange);
+								}
+								return getToken(exchange)
+										.map(Optional::of)
+										.defaultIfEmpty(Optional.empty())
+										.flatMap(oauth2Token -> {
+											if(!oauth2Token.isPresent()) {
+												// the store has not been installed: remove the ShopifyOriginToken
+												return chain.filter(exchange)
+														.subscriberContext(ReactiveSecurityContextHolder.clearContext());
+											}
+											logger.info("Store found! Setting OAuth2AuthenticationToken");
+											SecurityContext context = new SecurityContextImpl(oauth2Token.get());
+											
+											return securityContextRepository.save(exchange, context)
+													.then(chain.filter(exchange)
+															.subscriberContext(ReactiveSecurityContextHolder.withSecurityContext(Mono.just(context))));
+										});
+							});
+				});
+	}
+	
+	public void setSecurityContextRepository(ServerSecurityContextRepository securityContextRepository) {
+		this.securityContextRepository = securityContextRepository;
+	}
+	
+	private Mono<OAuth2AuthenticationToken> getToken(ServerWebExchange exchange) {
+		String shopName = ShopDomains.normalize(exchange.getRequest().getQueryParams().getFirst(TokenService.SHOP_ATTRIBUTE_NAME));
+		
+		if(shopName == null) {
+			logger.debug("Unable to find store. No valid shop name found in request parameters");
+			return Mono.empty();
+		}
+		
+		return clientService.<OAuth2AuthorizedClient>loadAuthorizedClient(REGISTRATION_ID, shopName)
+				.doOnSuccess(client -> {
+					if(client == null) {
+						logger.info("The store " + shopName + " has not been installed.");
+					}
+				})
+				.map(client -> new OAuth2AuthenticationToken(transformAuthorizedClientToUser(client), null, REGISTRATION_ID));
+	}
+	
+	private ShopifyStore transformAuthorizedClientToUser(OAuth2AuthorizedClient client) {
+		String apiKey = client.getClientRegistration().getClientId();
+		
+		return new ShopifyStore(client.getPrincipalName(), client.getAccessToken().getTokenValue(), apiKey, null);
+	}
+
+}
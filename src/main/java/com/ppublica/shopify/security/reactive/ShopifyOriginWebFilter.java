@@ -0,0 +1,167 @@
+package com.ppublica.shopify.security.reactive;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.ReactiveSecurityContextHolder;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.web.server.authorization.HttpStatusServerAccessDeniedHandler;
+import org.springframework.security.web.server.authorization.ServerAccessDeniedHandler;
+import org.springframework.security.web.server.util.matcher.PathPatternParserServerWebExchangeMatcher;
+import org.springframework.security.web.server.util.matcher.ServerWebExchangeMatcher;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import org.springframework.web.server.WebSession;
+
+import com.ppublica.shopify.security.authentication.ShopifyOriginToken;
+import com.ppublica.shopify.security.filters.ShopifyOriginFilter;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * The WebFlux equivalent of ShopifyOriginFilter. It checks the request to see if it came from Shopify, possibly 
+ * adding a ShopifyOriginToken to the reactive SecurityContext. It only checks the paths passed in via the 
+ * constructor.
+ * 
+ * <p>Requests to the authorization path must have a valid HMAC and nonce, or a 403 is returned. For the other 
+ * paths, a ShopifyOriginToken is set if the request came from Shopify and the user is not already authenticated 
+ * with an OAuth2AuthenticationToken. The "SHOPIFY_EMBEDDED_APP" session attribute is added or removed by the same 
+ * rules as in ShopifyOriginFilter, and only if a WebSession has already been started.</p>
+ * 
+ * <p>The registration id whose client secret is used to check the HMAC is the last segment of the request path 
+ * (e.g. "shopify" in /install/shopify).</p>
+ * 
+ * @author N F
+ * @see ShopifyOriginFilter
+ * @see ReactiveShopifyVerificationStrategy
+ */
+public class ShopifyOriginWebFilter implements WebFilter {
+	private final Log logger = LogFactory.getLog(ShopifyOriginWebFilter.class);
+
+	private ServerWebExchangeMatcher mustComeFromShopifyMatcher;
+	private List<ServerWebExchangeMatcher> applicablePaths;
+	private ReactiveShopifyVerificationStrategy shopifyVerificationStrategy;
+	private ServerAccessDeniedHandler accessDeniedHandler = new HttpStatusServerAccessDeniedHandler(HttpStatus.FORBIDDEN);
+	
+	/**
+	 * Construct a ShopifyOriginWebFilter
+	 * 
+	 * @param shopifyVerificationStrategy The strategy used to check the origin of the request
+	 * @param authorizationPath The path that must be from Shopify (authorization path)
+	 * @param maybeUris The paths that will be checked for an HMAC (installation path)
+	 */
+	public ShopifyOriginWebFilter(ReactiveShopifyVerificationStrategy shopifyVerificationStrategy, String authorizationPath, String... maybeUris) {
+		this.mustComeFromShopifyMatcher = new PathPatternParserServerWebExchangeMatcher(authorizationPath);
+		this.shopifyVerificationStrategy = shopifyVerificationStrategy;
+		
+		applicablePaths = new ArrayList<>();
+		applicablePaths.add(mustComeFromShopifyMatcher);
+		Arrays.stream(maybeUris).forEach(i -> applicablePaths.add(new PathPatternParserServerWebExchangeMatcher(i)));
+	}
+
+	@Override
+	public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+		return applyFilter(exchange)
+				.flatMap(apply -> {
+					if(!apply) {
+						return chain.filter(exchange);
+					}
+					logger.debug("ShopifyOriginWebFilter applied");
+					
+					return mustComeFromShopifyMatcher.matches(exchange)
+							.map(ServerWebExchangeMatcher.MatchResult::isMatch)
+							.flatMap(mustBeFromShopify -> mustBeFromShopify ? 
+									filterAuthorizationPath(exchange, chain) : filterInstallPath(exchange, chain));
+				});
+	}
+	
+	public void setAccessDeniedHandler(ServerAccessDeniedHandler handler) {
+		this.accessDeniedHandler = handler;
+	}
+	
+	private Mono<Void> filterAuthorizationPath(ServerWebExchange exchange, WebFilterChain chain) {
+		return shopifyVerificationStrategy.isShopifyRequest(exchange, getRegistrationId(exchange))
+				.flatMap(fromShopify -> fromShopify ? shopifyVerificationStrategy.hasValidNonce(exchange) : Mono.just(false))
+				.flatMap(valid -> {
+					if(valid) {
+						return chain.filter(exchange);
+					}
+					return accessDeniedHandler.handle(exchange, new AccessDeniedException("This request must come from Shopify"));
+				});
+	}
+	
+	private Mono<Void> filterInstallPath(ServerWebExchange exchange, WebFilterChain chain) {
+		Mono<Boolean> isAlreadyAuthenticated = ReactiveSecurityContextHolder.getContext()
+				.filter(context -> context.getAuthentication() instanceof OAuth2AuthenticationToken)
+				.map(context -> true)
+				.defaultIfEmpty(false);
+		
+		return Mono.zip(shopifyVerificationStrategy.isShopifyRequest(exchange, getRegistrationId(exchange)), isAlreadyAuthenticated)
+				.flatMap(result -> {
+					boolean comesFromShopify = result.getT1();
+					boolean authenticated = result.getT2();
+					
+					if(logger.isDebugEnabled()) {
+						logger.debug("Request from Shopify: " + comesFromShopify);
+						logger.debug("Authenticated: " + authenticated);
+					}
+					
+					if(comesFromShopify) {
+						Mono<Void> next = chain.filter(exchange);
+						if(!authenticated) {
+							logger.debug("Setting ShopifyOriginToken");
+							Authentication originToken = new ShopifyOriginToken();
+							next = next.subscriberContext(ReactiveSecurityContextHolder.withAuthentication(originToken));
+						}
+						return setEmbeddedApp(exchange).then(next);
+					}
+					
+					if(!authenticated) {
+						return removeEmbeddedApp(exchange).then(chain.filter(exchange));
+					}
+					
+					return chain.filter(exchange);
+				});
+	}
+	
+	private Mono<Boolean> applyFilter(ServerWebExchange exchange) {
+		return Flux.fromIterable(applicablePaths)
+				.concatMap(matcher -> matcher.matches(exchange))
+				.any(ServerWebExchangeMatcher.MatchResult::isMatch);
+	}
+	
+	private String getRegistrationId(ServerWebExchange exchange) {
+		String path = exchange.getRequest().getPath().pathWithinApplication().value();
+		
+		return path.substring(path.lastIndexOf('/') + 1);
+	}
+	
+	private Mono<Void> setEmbeddedApp(ServerWebExchange exchange) {
+		return exchange.getSession()
+				.filter(WebSession::isStarted)
+				.doOnNext(session -> {
+					logger.debug("Setting embedded app attribute");
+					session.getAttributes().put(ShopifyOriginFilter.SHOPIFY_EMBEDDED_APP, true);
+				})
+				.then();
+	}
+	
+	private Mono<Void> removeEmbeddedApp(ServerWebExchange exchange) {
+		return exchange.getSession()
+				.filter(WebSession::isStarted)
+				.doOnNext(session -> {
+					logger.debug("Removing embedded app attribute");
+					session.getAttributes().remove(ShopifyOriginFilter.SHOPIFY_EMBEDDED_APP);
+				})
+				.then();
+	}
+
+}
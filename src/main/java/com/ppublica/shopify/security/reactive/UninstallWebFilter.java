@@ -0,0 +1,136 @@
+package com.ppublica.shopify.security.reactive;
+
+import java.util.Map;
+import java.util.Optional;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.oauth2.client.ReactiveOAuth2AuthorizedClientService;
+import org.springframework.security.web.server.util.matcher.PathPatternParserServerWebExchangeMatcher;
+import org.springframework.security.web.server.util.matcher.ServerWebExchangeMatcher;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ppublica.shopify.security.configuration.SecurityBeansConfig;
+import com.ppublica.shopify.security.filters.UninstallFilter;
+import com.ppublica.shopify.security.service.ShopDomains;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * The WebFlux equivalent of UninstallFilter. It uninstalls the requested Shopify store for requests matching 
+ * uninstallEndpoint/shopify, after the body has been verified against the X-Shopify-Hmac-SHA256 header.
+ * 
+ * <p>A 200 status code is sent on success, and a 403 on failure.</p>
+ * 
+ * @author N F
+ * @see UninstallFilter
+ * @see ReactiveShopifyVerificationStrategy
+ */
+public class UninstallWebFilter implements WebFilter {
+	private final Log logger = LogFactory.getLog(UninstallWebFilter.class);
+
+	private static final String REGISTRATION_ID = SecurityBeansConfig.SHOPIFY_REGISTRATION_ID;
+	private static final String SHOP_DOMAIN_FIELD = "shop_domain";
+
+	private ServerWebExchangeMatcher matcher;
+	private ReactiveShopifyVerificationStrategy verificationStrategy;
+	private ReactiveOAuth2AuthorizedClientService clientService;
+	private ObjectMapper objectMapper = new ObjectMapper();
+	
+	/**
+	 * Build the UninstallWebFilter. The uninstallEndpoint must end with the registration id as defined in
+	 * SecurityBeansConfig.
+	 * 
+	 * @param uninstallEndpoint To match the uninstall request
+	 * @param verificationStrategy To verify the request
+	 * @param clientService To remove the store
+	 */
+	public UninstallWebFilter(String uninstallEndpoint, ReactiveShopifyVerificationStrategy verificationStrategy, ReactiveOAuth2AuthorizedClientService clientService) {
+		this.matcher = new PathPatternParserServerWebExchangeMatcher(uninstallEndpoint.endsWith(REGISTRATION_ID) ? uninstallEndpoint : uninstallEndpoint + "/" + REGISTRATION_ID);
+		this.verificationStrategy = verificationStrategy;
+		this.clientService = clientService;
+	}
+
+	@Override
+	public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+		return matcher.matches(exchange)
+				.flatMap(match -> {
+					if(!match.isMatch()) {
+						return chain.filter(exchange);
+					}
+					return verificationStrategy.verifyHeaderRequest(exchange, REGISTRATION_ID)
+							.map(Optional::of)
+							.defaultIfEmpty(Optional.empty())
+							.flatMap(body -> {
+								if(!body.isPresent()) {
+									return uninstallFailure(exchange);
+								}
+								logger.info("Store uninstallation request received");
+								return doUninstall(exchange, body.get());
+							});
+				});
+	}
+	
+	public void setObjectMapper(ObjectMapper objectMapper) {
+		this.objectMapper = objectMapper;
+	}
+	
+	/**
+	 * Attempt to uninstall the store specified by the "shop_domain" field of the body.
+	 * 
+	 * @param exchange The ServerWebExchange
+	 * @param body The verified body
+	 * @return A Mono that completes when the response is ready
+	 */
+	protected Mono<Void> doUninstall(ServerWebExchange exchange, byte[] body) {
+		String storeName = ShopDomains.normalize(extractShopDomain(body));
+		
+		if(storeName == null) {
+			logger.debug("No valid shop_domain found in body");
+			return uninstallFailure(exchange);
+		}
+		
+		return clientService.removeAuthorizedClient(REGISTRATION_ID, storeName)
+				.then(Mono.defer(() -> uninstallSuccess(exchange)));
+	}
+	
+	/**
+	 * Send a 200 status code upon successfully uninstalling the store.
+	 * 
+	 * @param exchange The ServerWebExchange
+	 * @return A Mono that completes when the response is ready
+	 */
+	protected Mono<Void> uninstallSuccess(ServerWebExchange exchange) {
+		exchange.getResponse().setStatusCode(HttpStatus.OK);
+		return exchange.getResponse().setComplete();
+	}
+	
+	/**
+	 * Send a 403 status code if the uninstallation fails.
+	 * 
+	 * @param exchange The ServerWebExchange
+	 * @return A Mono that completes when the response is ready
+	 */
+	protected Mono<Void> uninstallFailure(ServerWebExchange exchange) {
+		logger.debug("Store uninstallation request failed");
+		exchange.getResponse().setStatusCode(HttpStatus.FORBIDDEN);
+		return exchange.getResponse().setComplete();
+	}
+	
+	private String extractShopDomain(byte[] body) {
+		try {
+			Map<String, Object> message = objectMapper.readValue(body, new TypeReference<Map<String, Object>>() {});
+			Object shopDomain = message.get(SHOP_DOMAIN_FIELD);
+			
+			return shopDomain == null ? null : shopDomain.toString();
+		} catch(Exception ex) {
+			return null;
+		}
+	}
+
+}
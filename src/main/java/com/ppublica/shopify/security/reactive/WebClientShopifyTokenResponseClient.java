@@ -0,0 +1,130 @@
+package com.ppublica.shopify.security.reactive;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.MediaType;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
+import org.springframework.security.oauth2.client.endpoint.ReactiveOAuth2AccessTokenResponseClient;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
+import org.springframework.security.oauth2.core.OAuth2Error;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AccessTokenResponse;
+import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import com.ppublica.shopify.security.converter.ShopifyOAuth2AccessTokenResponseConverter;
+import com.ppublica.shopify.security.web.ShopifyAuthorizationCodeTokenResponseClient;
+import com.ppublica.shopify.security.web.ShopifyOAuth2AuthorizationRequestResolver;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * The WebFlux equivalent of ShopifyAuthorizationCodeTokenResponseClient. The code is exchanged for a token with a 
+ * non-blocking WebClient instead of a RestTemplate.
+ * 
+ * <p>As in the servlet version, the shop name is read from the additional parameters of the 
+ * OAuth2AuthorizationRequest to build the store-specific token uri, the response is converted by 
+ * ShopifyOAuth2AccessTokenResponseConverter (Shopify doesn't send a token_type), and the shop name is added to 
+ * the additional parameters of the OAuth2AccessTokenResponse.</p>
+ * 
+ * @author N F
+ * @see ShopifyAuthorizationCodeTokenResponseClient
+ */
+public class WebClientShopifyTokenResponseClient implements ReactiveOAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> {
+	private final Log logger = LogFactory.getLog(WebClientShopifyTokenResponseClient.class);
+	
+	private static final String INVALID_TOKEN_RESPONSE_ERROR_CODE = "invalid_token_response";
+	private static final String SHOP_KEY = ShopifyOAuth2AuthorizationRequestResolver.SHOPIFY_SHOP_PARAMETER_KEY_FOR_TOKEN;
+
+	private WebClient webClient;
+	private ShopifyOAuth2AccessTokenResponseConverter responseConverter = new ShopifyOAuth2AccessTokenResponseConverter();
+
+	@Override
+	public Mono<OAuth2AccessTokenResponse> getTokenResponse(OAuth2AuthorizationCodeGrantRequest authorizationGrantRequest) {
+		return Mono.defer(() -> {
+			ClientRegistration registration = authorizationGrantRequest.getClientRegistration();
+			Map<String,Object> additionalParams = authorizationGrantRequest.getAuthorizationExchange().getAuthorizationRequest().getAdditionalParameters();
+			
+			String shopName = (String)additionalParams.get(SHOP_KEY);
+			
+			if(shopName == null) {
+				return Mono.error(new RuntimeException("Shop name not found in the OAuth2AuthorizationRequest"));
+			}
+			
+			Map<String, String> uriVariables = new HashMap<>();
+			uriVariables.put(SHOP_KEY, shopName);
+			String tokenUri = UriComponentsBuilder
+					.fromHttpUrl(registration.getProviderDetails().getTokenUri())
+					.buildAndExpand(uriVariables)
+					.toUriString();
+			
+			logger.debug("Exchanging code for token with Shopify");
+
+			return getWebClient().post()
+					.uri(tokenUri)
+					.contentType(MediaType.APPLICATION_FORM_URLENCODED)
+					.accept(MediaType.APPLICATION_JSON)
+					.body(BodyInserters.fromFormData(OAuth2ParameterNames.CLIENT_ID, registration.getClientId())
+							.with(OAuth2ParameterNames.CLIENT_SECRET, registration.getClientSecret())
+							.with(OAuth2ParameterNames.CODE, authorizationGrantRequest.getAuthorizationExchange().getAuthorizationResponse().getCode()))
+					.exchange()
+					.flatMap(response -> {
+						if(!response.statusCode().is2xxSuccessful()) {
+							return response.releaseBody()
+									.then(Mono.error(invalidTokenResponse("Shopify responded with " + response.rawStatusCode(), null)));
+						}
+						return response.bodyToMono(new ParameterizedTypeReference<Map<String, Object>>() {});
+					})
+					.map(body -> toTokenResponse(body, shopName));
+		});
+	}
+	
+	public void setWebClient(WebClient webClient) {
+		this.webClient = webClient;
+	}
+	
+	/*
+	 * The default WebClient is created on first use, so that an application that sets its own WebClient doesn't 
+	 * need a default ClientHttpConnector (e.g. reactor-netty) on the classpath.
+	 */
+	private WebClient getWebClient() {
+		if(webClient == null) {
+			webClient = WebClient.builder().build();
+		}
+		return webClient;
+	}
+	
+	private OAuth2AccessTokenResponse toTokenResponse(Map<String, Object> body, String shopName) {
+		Map<String, String> parameters = new HashMap<>();
+		body.forEach((key, value) -> parameters.put(key, value == null ? null : value.toString()));
+		
+		OAuth2AccessTokenResponse resp;
+		try {
+			resp = responseConverter.convert(parameters);
+		} catch(RuntimeException ex) {
+			throw invalidTokenResponse("An error occurred parsing the Access Token response: " + ex.getMessage(), ex);
+		}
+		
+		logger.debug("Obtained Shopify response for token");
+		
+		Map<String, Object> newAdditionalParameters = new HashMap<>(resp.getAdditionalParameters());
+		newAdditionalParameters.put(SHOP_KEY, shopName);
+		
+		return OAuth2AccessTokenResponse.withResponse(resp)
+				.additionalParameters(newAdditionalParameters)
+				.build();
+	}
+	
+	private OAuth2AuthorizationException invalidTokenResponse(String description, Throwable cause) {
+		OAuth2Error error = new OAuth2Error(INVALID_TOKEN_RESPONSE_ERROR_CODE, description, null);
+		
+		return cause == null ? new OAuth2AuthorizationException(error) : new OAuth2AuthorizationException(error, cause);
+	}
+
+}
@@ -0,0 +1,5 @@
+/**
+ * Spring WebFlux equivalents of the servlet filters, token storage and token exchange
+ * 
+ */
+package com.ppublica.shopify.security.reactive;
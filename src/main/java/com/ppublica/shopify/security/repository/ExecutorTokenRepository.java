@@ -0,0 +1,85 @@
+package com.ppublica.shopify.security.repository;
+
+import java.util.List;
+import java.util.Map;
+
+import com.ppublica.shopify.security.service.BoundedBlockingExecutor;
+
+/**
+ * A TokenRepository that decorates another TokenRepository (usually ShopifyTokenRepositoryImpl) so that every call
+ * runs on a BoundedBlockingExecutor. This caps the number of concurrent database calls, which keeps the connection
+ * pool from being exhausted during install storms, and lets the JDBC work run on virtual threads where available.
+ * The calling thread still waits for each call to complete.
+ *
+ * @author N F
+ * @see BoundedBlockingExecutor
+ */
+public class ExecutorTokenRepository implements TokenRepository {
+
+	private final TokenRepository delegate;
+	private final BoundedBlockingExecutor executor;
+
+	/**
+	 * Build an ExecutorTokenRepository.
+	 *
+	 * @param delegate The TokenRepository that does the blocking work
+	 * @param executor The executor to run the blocking work on
+	 */
+	public ExecutorTokenRepository(TokenRepository delegate, BoundedBlockingExecutor executor) {
+		this.delegate = delegate;
+		this.executor = executor;
+	}
+
+	@Override
+	public PersistedStoreAccessToken findTokenForStore(String store) {
+		return executor.execute(() -> delegate.findTokenForStore(store));
+	}
+
+	@Override
+	public void saveNewStore(PersistedStoreAccessToken accessToken) {
+		executor.execute(() -> delegate.saveNewStore(accessToken));
+	}
+
+	@Override
+	public void updateStore(PersistedStoreAccessToken token) {
+		executor.execute(() -> delegate.updateStore(token));
+	}
+
+	@Override
+	public void uninstallStore(String storeName) {
+		executor.execute(() -> delegate.uninstallStore(storeName));
+	}
+
+	@Override
+	public List<PersistedStoreAccessToken> findStoresAfter(Long lastId, int limit) {
+		return executor.execute(() -> delegate.findStoresAfter(lastId, limit));
+	}
+
+	@Override
+	public List<PersistedStoreAccessToken> findRecentStores(int limit) {
+		return executor.execute(() -> delegate.findRecentStores(limit));
+	}
+
+	@Override
+	public int updateLastSeen(Map<String, Long> lastSeen) {
+		return executor.execute(() -> delegate.updateLastSeen(lastSeen));
+	}
+
+	@Override
+	public int updateEncryptedTokens(List<ReEncryptedToken> tokens) {
+		return executor.execute(() -> delegate.updateEncryptedTokens(tokens));
+	}
+
+	@Override
+	public int uninstallStoresIfUnchanged(List<PersistedStoreAccessToken> stores) {
+		return executor.execute(() -> delegate.uninstallStoresIfUnchanged(stores));
+	}
+
+	/**
+	 * @return The TokenRepository that does the blocking work
+	 */
+	public TokenRepository getDelegate() {
+		return this.delegate;
+	}
+
+}
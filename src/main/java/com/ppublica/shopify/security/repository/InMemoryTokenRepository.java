@@ -0,0 +1,441 @@
+package com.ppublica.shopify.security.repository;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import com.ppublica.shopify.security.service.EncryptedTokenAndSalt;
+
+/**
+ * An implementation of TokenRepository that keeps the stores in a ConcurrentHashMap. It's meant for tests and for
+ * small deployments that don't want to run a database only for the tokens.
+ *
+ * <p>Each store is kept as an immutable record, and every change replaces the record for a store in a single
+ * atomic map operation, so no locks are taken. A PersistedStoreAccessToken is created for every read, so callers
+ * can't change a stored token by mutating what they passed in or got back.</p>
+ *
+ * <p>If a snapshot file is set, the stores are loaded from it when the repository is created, and
+ * {@link #snapshot()} writes them back. The file is replaced atomically, so a crash while writing leaves the
+ * previous snapshot. {@link #close()} also writes a snapshot, so a clean shutdown keeps every change; changes made
+ * after the last snapshot are lost on a crash.</p>
+ *
+ * @author N F
+ * @see com.ppublica.shopify.security.reactive.InMemoryReactiveTokenRepository
+ */
+public class InMemoryTokenRepository implements TokenRepository {
+
+	private static final int SNAPSHOT_VERSION = 1;
+
+	private final Map<String, StoredToken> stores = new ConcurrentHashMap<>();
+	private final Map<String, Long> lastSeen = new ConcurrentHashMap<>();
+	private final AtomicLong ids = new AtomicLong();
+	private final Path snapshotFile;
+
+	/**
+	 * Create an InMemoryTokenRepository without a snapshot file.
+	 */
+	public InMemoryTokenRepository() {
+		this.snapshotFile = null;
+	}
+
+	/**
+	 * Create an InMemoryTokenRepository, loading the stores from the snapshot file if it exists.
+	 *
+	 * @param snapshotFile The file snapshot() writes to
+	 */
+	public InMemoryTokenRepository(Path snapshotFile) {
+		this.snapshotFile = snapshotFile;
+
+		if(snapshotFile != null && Files.exists(snapshotFile)) {
+			load(snapshotFile);
+		}
+	}
+
+	@Override
+	public PersistedStoreAccessToken findTokenForStore(String store) {
+		StoredToken stored = stores.get(store);
+
+		return stored == null ? null : toPersistedStoreAccessToken(stored);
+	}
+
+	/**
+	 * Save the store. If the store already exists, it is replaced, keeping its id.
+	 *
+	 * @param accessToken The store
+	 */
+	@Override
+	public void saveNewStore(PersistedStoreAccessToken accessToken) {
+		upsert(accessToken);
+	}
+
+	/**
+	 * Replace the store. Does nothing if the store doesn't exist.
+	 *
+	 * @param token The store
+	 */
+	@Override
+	public void updateStore(PersistedStoreAccessToken token) {
+		stores.computeIfPresent(token.getStoreDomain(), (domain, existing) -> new StoredToken(existing.id, token));
+	}
+
+	@Override
+	public void uninstallStore(String storeName) {
+		if(storeName != null) {
+			stores.remove(storeName);
+			lastSeen.remove(storeName);
+		}
+	}
+
+	@Override
+	public List<PersistedStoreAccessToken> findStoresAfter(Long lastId, int limit) {
+		long after = lastId == null ? Long.MIN_VALUE : lastId;
+
+		return stores.values().stream()
+					.filter(stored -> stored.id > after)
+					.sorted(Comparator.comparingLong(stored -> stored.id))
+					.limit(limit)
+					.map(this::toPersistedStoreAccessToken)
+					.collect(Collectors.toList());
+	}
+
+	/**
+	 * Find the stores that were most recently seen, or (for stores that haven't been seen) installed or
+	 * re-authorized.
+	 *
+	 * @param limit The maximum number of stores to return
+	 * @return The stores, most recent first
+	 */
+	@Override
+	public List<PersistedStoreAccessToken> findRecentStores(int limit) {
+		Comparator<StoredToken> byRecency = Comparator.comparingLong(this::recency);
+
+		return stores.values().stream()
+					.sorted(byRecency.thenComparingLong(stored -> stored.id).reversed())
+					.limit(limit)
+					.map(this::toPersistedStoreAccessToken)
+					.collect(Collectors.toList());
+	}
+
+	/**
+	 * Save when the stores were last seen. The times are only kept in memory, and are not part of snapshots.
+	 *
+	 * @param times The time each store was last seen, by full shop domain
+	 * @return The number of stores updated
+	 */
+	@Override
+	public int updateLastSeen(Map<String, Long> times) {
+		int updated = 0;
+
+		for(Map.Entry<String, Long> entry : times.entrySet()) {
+			if(stores.containsKey(entry.getKey())) {
+				lastSeen.merge(entry.getKey(), entry.getValue(), Math::max);
+				updated++;
+			}
+		}
+
+		return updated;
+	}
+
+	/**
+	 * Replace the encrypted tokens. Each store is checked and replaced atomically, so a store whose salt changed
+	 * since it was read is never overwritten.
+	 *
+	 * @param tokens The re-encrypted tokens
+	 * @return The number of stores updated
+	 */
+	@Override
+	public int updateEncryptedTokens(List<ReEncryptedToken> tokens) {
+		int updated = 0;
+
+		for(ReEncryptedToken token : tokens) {
+			StoredToken existing = stores.get(token.getStoreDomain());
+			if(existing == null || existing.tokenAndSalt == null
+					|| !existing.tokenAndSalt.getSalt().equals(token.getPrevious().getSalt())) {
+				continue;
+			}
+			if(stores.replace(token.getStoreDomain(), existing, existing.withTokenAndSalt(token.getCurrent()))) {
+				updated++;
+			}
+		}
+
+		return updated;
+	}
+
+	/**
+	 * Remove the stores whose salt and last-seen time haven't changed since they were read. Each store is checked
+	 * and removed atomically.
+	 *
+	 * @param toRemove The stores, as read from this repository
+	 * @return The number of stores removed
+	 */
+	@Override
+	public int uninstallStoresIfUnchanged(List<PersistedStoreAccessToken> toRemove) {
+		int removed = 0;
+
+		for(PersistedStoreAccessToken token : toRemove) {
+			StoredToken existing = stores.get(token.getStoreDomain());
+			if(existing == null || existing.tokenAndSalt == null || token.getTokenAndSalt() == null
+					|| !Objects.equals(existing.tokenAndSalt.getSalt(), token.getTokenAndSalt().getSalt())
+					|| !Objects.equals(lastSeen.get(token.getStoreDomain()), token.getLastSeen())) {
+				continue;
+			}
+			if(stores.remove(token.getStoreDomain(), existing)) {
+				lastSeen.remove(token.getStoreDomain());
+				removed++;
+			}
+		}
+
+		return removed;
+	}
+
+	/**
+	 * Save the store, or replace it if it exists, in a single atomic operation. A new store is given an id; an
+	 * existing store keeps its id.
+	 *
+	 * @param token The store
+	 */
+	public void upsert(PersistedStoreAccessToken token) {
+		if(token.getStoreDomain() == null) {
+			throw new IllegalArgumentException("A store domain is required");
+		}
+		stores.compute(token.getStoreDomain(), (domain, existing) -> new StoredToken(existing == null ? ids.incrementAndGet() : existing.id, token));
+	}
+
+	/**
+	 * Upsert all the stores.
+	 *
+	 * @param tokens The stores
+	 */
+	public void saveAll(Collection<PersistedStoreAccessToken> tokens) {
+		for(PersistedStoreAccessToken token : tokens) {
+			upsert(token);
+		}
+	}
+
+	/**
+	 * Remove all the stores.
+	 *
+	 * @param storeNames The full shop domains
+	 */
+	public void uninstallAll(Collection<String> storeNames) {
+		for(String storeName : storeNames) {
+			uninstallStore(storeName);
+		}
+	}
+
+	/**
+	 * @return A copy of every store
+	 */
+	public List<PersistedStoreAccessToken> findAll() {
+		List<PersistedStoreAccessToken> all = new ArrayList<>(stores.size());
+		for(StoredToken stored : stores.values()) {
+			all.add(toPersistedStoreAccessToken(stored));
+		}
+		return all;
+	}
+
+	/**
+	 * @return The number of stores
+	 */
+	public int size() {
+		return stores.size();
+	}
+
+	/**
+	 * Remove every store.
+	 */
+	public void clear() {
+		stores.clear();
+		lastSeen.clear();
+	}
+
+	/**
+	 * Write all the stores to the snapshot file. Stores changed while the snapshot is written may or may not be
+	 * included.
+	 *
+	 * @throws IllegalStateException if no snapshot file was set
+	 */
+	public void snapshot() {
+		if(snapshotFile == null) {
+			throw new IllegalStateException("No snapshot file was set");
+		}
+
+		try {
+			Path parent = snapshotFile.toAbsolutePath().getParent();
+			Files.createDirectories(parent);
+			Path temp = Files.createTempFile(parent, snapshotFile.getFileName().toString(), ".tmp");
+
+			try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				List<StoredToken> snapshot = new ArrayList<>(stores.values());
+
+				out.writeInt(SNAPSHOT_VERSION);
+				out.writeLong(ids.get());
+				out.writeInt(snapshot.size());
+				for(StoredToken stored : snapshot) {
+					stored.writeTo(out);
+				}
+			}
+
+			Files.move(temp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException ex) {
+			throw new UncheckedIOException("Unable to write the snapshot " + snapshotFile, ex);
+		}
+	}
+
+	/**
+	 * Write a last snapshot, if a snapshot file was set.
+	 */
+	public void close() {
+		if(snapshotFile != null) {
+			snapshot();
+		}
+	}
+
+	private PersistedStoreAccessToken toPersistedStoreAccessToken(StoredToken stored) {
+		PersistedStoreAccessToken token = stored.toPersistedStoreAccessToken();
+		token.setLastSeen(lastSeen.get(stored.storeDomain));
+
+		return token;
+	}
+
+	private long recency(StoredToken stored) {
+		Long seen = lastSeen.get(stored.storeDomain);
+		if(seen != null) {
+			return seen;
+		}
+
+		return stored.issuedAt == null ? Long.MIN_VALUE : stored.issuedAt;
+	}
+
+	private void load(Path file) {
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			int version = in.readInt();
+			if(version != SNAPSHOT_VERSION) {
+				throw new IllegalStateException("Unsupported snapshot version " + version + " in " + file);
+			}
+			ids.set(in.readLong());
+
+			int count = in.readInt();
+			for(int i = 0; i < count; i++) {
+				StoredToken stored = StoredToken.readFrom(in);
+				stores.put(stored.storeDomain, stored);
+				ids.accumulateAndGet(stored.id, Math::max);
+			}
+		} catch(IOException ex) {
+			throw new UncheckedIOException("Unable to read the snapshot " + file, ex);
+		}
+	}
+
+	/*
+	 * An immutable copy of a PersistedStoreAccessToken.
+	 */
+	private static final class StoredToken {
+		private final long id;
+		private final String storeDomain;
+		private final String tokenType;
+		private final EncryptedTokenAndSalt tokenAndSalt;
+		private final Long issuedAt;
+		private final Long expiresAt;
+		private final Set<String> scopes;
+
+		StoredToken(long id, PersistedStoreAccessToken token) {
+			this(id, token.getStoreDomain(), token.getTokenType(), token.getTokenAndSalt(), token.getIssuedAt(), token.getExpiresAt(),
+					token.getScopes() == null ? null : Collections.unmodifiableSet(new LinkedHashSet<>(token.getScopes())));
+		}
+
+		private StoredToken(long id, String storeDomain, String tokenType, EncryptedTokenAndSalt tokenAndSalt, Long issuedAt, Long expiresAt, Set<String> scopes) {
+			this.id = id;
+			this.storeDomain = storeDomain;
+			this.tokenType = tokenType;
+			this.tokenAndSalt = tokenAndSalt;
+			this.issuedAt = issuedAt;
+			this.expiresAt = expiresAt;
+			this.scopes = scopes;
+		}
+
+		StoredToken withTokenAndSalt(EncryptedTokenAndSalt newTokenAndSalt) {
+			return new StoredToken(id, storeDomain, tokenType, newTokenAndSalt, issuedAt, expiresAt, scopes);
+		}
+
+		PersistedStoreAccessToken toPersistedStoreAccessToken() {
+			PersistedStoreAccessToken token = new PersistedStoreAccessToken();
+			token.setId(id);
+			token.setStoreDomain(storeDomain);
+			token.setTokenType(tokenType);
+			token.setTokenAndSalt(tokenAndSalt);
+			token.setIssuedAt(issuedAt);
+			token.setExpiresAt(expiresAt);
+			token.setScopes(scopes);
+
+			return token;
+		}
+
+		void writeTo(DataOutputStream out) throws IOException {
+			out.writeLong(id);
+			out.writeUTF(storeDomain);
+			writeNullable(out, tokenType);
+			writeNullable(out, tokenAndSalt == null ? null : tokenAndSalt.getEncryptedToken());
+			writeNullable(out, tokenAndSalt == null ? null : tokenAndSalt.getSalt());
+			out.writeLong(issuedAt == null ? Long.MIN_VALUE : issuedAt);
+			out.writeLong(expiresAt == null ? Long.MIN_VALUE : expiresAt);
+			out.writeInt(scopes == null ? -1 : scopes.size());
+			if(scopes != null) {
+				for(String scope : scopes) {
+					out.writeUTF(scope);
+				}
+			}
+		}
+
+		static StoredToken readFrom(DataInputStream in) throws IOException {
+			long id = in.readLong();
+			String storeDomain = in.readUTF();
+			String tokenType = readNullable(in);
+			String tokenValue = readNullable(in);
+			String salt = readNullable(in);
+			long issuedAt = in.readLong();
+			long expiresAt = in.readLong();
+			int scopeCount = in.readInt();
+			Set<String> scopes = null;
+			if(scopeCount >= 0) {
+				scopes = new LinkedHashSet<>();
+				for(int i = 0; i < scopeCount; i++) {
+					scopes.add(in.readUTF());
+				}
+			}
+
+			return new StoredToken(id, storeDomain, tokenType, tokenValue == null && salt == null ? null : new EncryptedTokenAndSalt(tokenValue, salt),
+					issuedAt == Long.MIN_VALUE ? null : issuedAt, expiresAt == Long.MIN_VALUE ? null : expiresAt,
+					scopes == null ? null : Collections.unmodifiableSet(scopes));
+		}
+
+		private static void writeNullable(DataOutputStream out, String value) throws IOException {
+			out.writeBoolean(value != null);
+			if(value != null) {
+				out.writeUTF(value);
+			}
+		}
+
+		private static String readNullable(DataInputStream in) throws IOException {
+			return in.readBoolean() ? in.readUTF() : null;
+		}
+	}
+
+}
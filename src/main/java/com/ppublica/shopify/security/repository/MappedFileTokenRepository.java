@@ -0,0 +1,1171 @@
+package com.ppublica.shopify.security.repository;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.ppublica.shopify.security.service.EncryptedTokenAndSalt;
+
+/**
+ * A TokenRepository that stores the tokens in files in a local directory, for deployments that don't otherwise
+ * need a database.
+ *
+ * <p>Every change is appended to a log file as a record protected by a CRC32. A hash index (open addressing,
+ * linear probing) maps the hash of each store domain to the offset of its latest record, and lives in a second,
+ * memory-mapped file. The log is also memory-mapped, so finding a store is a probe of the index followed by a
+ * read of the record from the page cache, with no system call. The record's fields are then decoded into the
+ * Strings of a new PersistedStoreAccessToken: reads aren't zero-copy, since the rest of the library works with
+ * PersistedStoreAccessToken.</p>
+ *
+ * <p>Durability:</p>
+ * <ul>
+ * 	<li>By default, a write returns once the log has been forced to disk. Concurrent writers share a single
+ * 	force (group commit), serialized with a ReentrantLock rather than a monitor, so a virtual thread waiting on
+ * 	the force isn't pinned. If syncOnWrite is false, the log is forced by the maintenance thread instead.</li>
+ * 	<li>The index only ever points to records that have been forced. Changes that haven't been forced yet are
+ * 	kept in memory, and are visible to reads immediately.</li>
+ * 	<li>The index file records the log offset up to which it is complete. On startup, the index is mapped and
+ * 	only the records after that offset are replayed. A torn record at the end of the log is discarded.</li>
+ * </ul>
+ *
+ * <p>When more than half of the log is made of superseded records, the maintenance thread compacts it into a new
+ * log and index. The switch is made by atomically replacing a CURRENT file that names the active generation,
+ * so a crash during compaction leaves the previous generation in use. Compaction blocks reads and writes while
+ * the live records are copied.</p>
+ *
+ * <p>The log is limited to 2GB. findStoresAfter scans the whole index, and is meant for occasional jobs such as
+ * TokenReEncryptionJob. Only one MappedFileTokenRepository may use a directory at a time: the directory is
+ * locked until close() is called.</p>
+ *
+ * @author N F
+ * @see ShopifyTokenRepositoryImpl
+ */
+public class MappedFileTokenRepository implements TokenRepository {
+	private final Log logger = LogFactory.getLog(MappedFileTokenRepository.class);
+
+	/**
+	 * The default interval between runs of the maintenance thread, in milliseconds: 1000.
+	 */
+	public static final long DEFAULT_MAINTENANCE_INTERVAL = 1000L;
+
+	/**
+	 * The default minimum size of the log, in bytes, before it is compacted: 1MB.
+	 */
+	public static final long DEFAULT_COMPACTION_THRESHOLD = 1024 * 1024;
+
+	private static final String CURRENT_FILE = "CURRENT";
+	private static final String LOCK_FILE = "LOCK";
+	private static final String LOG_SUFFIX = ".log";
+	private static final String INDEX_SUFFIX = ".idx";
+
+	private static final long LOG_MAGIC = 0x5350544b4c4f4731L; // SPTKLOG1
+	private static final int INDEX_MAGIC = 0x5350544b;
+	private static final int INDEX_VERSION = 1;
+	private static final int LOG_HEADER_LENGTH = 8;
+	private static final int INDEX_HEADER_LENGTH = 32;
+	private static final int INDEX_CAPACITY_POSITION = 8;
+	private static final int INDEX_UP_TO_POSITION = 16;
+	private static final int SLOT_LENGTH = 16;
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final double MAX_LOAD = 0.7;
+	private static final int RECORD_HEADER_LENGTH = 8;
+	private static final int MAX_RECORD_LENGTH = 64 * 1024;
+	private static final long LOG_CHUNK = 1024 * 1024;
+
+	private static final byte OP_PUT = 1;
+	private static final byte OP_DELETE = 2;
+	private static final long TOMBSTONE = -1L;
+
+	private final Path directory;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final ReentrantLock syncLock = new ReentrantLock();
+	private final Map<String, PendingWrite> pending = new ConcurrentHashMap<>();
+
+	private FileChannel lockChannel;
+	private long generation;
+	private FileChannel logChannel;
+	private MappedByteBuffer logMap;
+	private FileChannel indexChannel;
+	private MappedByteBuffer indexMap;
+	private int capacity;
+
+	private long logEnd;
+	private long syncedUpTo;
+	private volatile long appliedUpTo;
+	private int liveCount;
+	private int usedSlots;
+	private long liveBytes;
+	private long nextId = 1;
+
+	private boolean syncOnWrite = true;
+	private long compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+	private ScheduledExecutorService maintenance;
+	private boolean closed;
+
+	/**
+	 * Open the repository in the directory, creating it if needed.
+	 *
+	 * @param directory The directory that holds the log and index files
+	 */
+	public MappedFileTokenRepository(Path directory) {
+		this.directory = directory;
+
+		try {
+			Files.createDirectories(directory);
+			lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			FileLock fileLock;
+			try {
+				fileLock = lockChannel.tryLock();
+			} catch(OverlappingFileLockException ex) {
+				fileLock = null;
+			}
+			if(fileLock == null) {
+				lockChannel.close();
+				throw new IllegalStateException("The token files in " + directory + " are already in use");
+			}
+			Path current = directory.resolve(CURRENT_FILE);
+			if(Files.exists(current)) {
+				generation = Long.parseLong(new String(Files.readAllBytes(current), StandardCharsets.US_ASCII).trim());
+			} else {
+				writeCurrent(0);
+			}
+			deleteOtherGenerations();
+			open();
+		} catch(IOException ex) {
+			throw new UncheckedIOException("Unable to open the token files in " + directory, ex);
+		}
+	}
+
+	/**
+	 * Start the daemon thread that forces the log (if syncOnWrite is false), checkpoints the index, and compacts
+	 * the log.
+	 *
+	 * @param interval The interval between runs in milliseconds
+	 */
+	public synchronized void start(long interval) {
+		if(maintenance != null) {
+			return;
+		}
+		maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "shopify-token-file-maintenance");
+			thread.setDaemon(true);
+			return thread;
+		});
+		maintenance.scheduleWithFixedDelay(this::maintain, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Start the maintenance thread with the default interval.
+	 */
+	public void start() {
+		start(DEFAULT_MAINTENANCE_INTERVAL);
+	}
+
+	/**
+	 * Stop the maintenance thread, force the log, checkpoint the index and close the files.
+	 */
+	public void close() {
+		ScheduledExecutorService running;
+		synchronized(this) {
+			running = maintenance;
+			maintenance = null;
+		}
+		// waited for outside of the monitor, so that a virtual thread isn't pinned
+		if(running != null) {
+			running.shutdown();
+			try {
+				running.awaitTermination(5, TimeUnit.SECONDS);
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		sync();
+		checkpoint();
+
+		lock.writeLock().lock();
+		try {
+			closed = true;
+			logChannel.close();
+			indexChannel.close();
+			lockChannel.close();
+		} catch(IOException ex) {
+			throw new UncheckedIOException(ex);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public PersistedStoreAccessToken findTokenForStore(String store) {
+		lock.readLock().lock();
+		try {
+			ensureOpen();
+			long offset = currentOffset(store, domainBytes(store));
+
+			return offset > 0 ? readRecord(offset) : null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Save the store. If the store already exists, it is replaced.
+	 *
+	 * @param accessToken The store
+	 */
+	@Override
+	public void saveNewStore(PersistedStoreAccessToken accessToken) {
+		write(accessToken, true);
+	}
+
+	/**
+	 * Replace the store. Does nothing if the store doesn't exist.
+	 *
+	 * @param token The store
+	 */
+	@Override
+	public void updateStore(PersistedStoreAccessToken token) {
+		write(token, false);
+	}
+
+	@Override
+	public void uninstallStore(String storeName) {
+		byte[] domain = domainBytes(storeName);
+		long end;
+		long writeGeneration;
+
+		lock.writeLock().lock();
+		try {
+			ensureOpen();
+			long previous = currentOffset(storeName, domain);
+			if(previous <= 0) {
+				return;
+			}
+
+			ByteBuffer record = encodeDelete(recordId(previous), domain);
+			long offset = append(record);
+			liveBytes -= recordLength(previous);
+			liveCount--;
+			pending.put(storeName, new PendingWrite(offset, true));
+
+			end = logEnd;
+			writeGeneration = generation;
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		if(syncOnWrite) {
+			sync(writeGeneration, end);
+		}
+	}
+
+	/**
+	 * Stores are listed by scanning the index, keeping the limit smallest ids after lastId.
+	 *
+	 * @param lastId The id of the last store of the previous page, or null for the first page
+	 * @param limit The maximum number of stores to return
+	 * @return The stores, or an empty list if there are no more
+	 */
+	@Override
+	public List<PersistedStoreAccessToken> findStoresAfter(Long lastId, int limit) {
+		sync();
+
+		if(limit < 1) {
+			return Collections.emptyList();
+		}
+
+		lock.readLock().lock();
+		try {
+			ensureOpen();
+			long after = lastId == null ? Long.MIN_VALUE : lastId;
+			PriorityQueue<long[]> smallest = new PriorityQueue<>((a, b) -> Long.compare(b[0], a[0]));
+
+			for(int slot = 0; slot < capacity; slot++) {
+				long offset = slotOffset(slot);
+				if(slotHash(slot) == 0 || offset == TOMBSTONE) {
+					continue;
+				}
+				long id = recordId(offset);
+				if(id <= after) {
+					continue;
+				}
+				if(smallest.size() < limit) {
+					smallest.add(new long[] {id, offset});
+				} else if(id < smallest.peek()[0]) {
+					smallest.poll();
+					smallest.add(new long[] {id, offset});
+				}
+			}
+
+			List<long[]> sorted = new ArrayList<>(smallest);
+			sorted.sort((a, b) -> Long.compare(a[0], b[0]));
+
+			List<PersistedStoreAccessToken> stores = new ArrayList<>(sorted.size());
+			for(long[] entry : sorted) {
+				stores.add(readRecord(entry[1]));
+			}
+			return stores;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Replace the encrypted tokens. Each store is checked and written under the same lock, so a store whose salt
+	 * changed since it was read is never overwritten.
+	 *
+	 * @param tokens The re-encrypted tokens
+	 * @return The number of stores updated
+	 */
+	@Override
+	public int updateEncryptedTokens(List<ReEncryptedToken> tokens) {
+		int updated = 0;
+		long end = 0;
+		long writeGeneration = 0;
+
+		lock.writeLock().lock();
+		try {
+			ensureOpen();
+			for(ReEncryptedToken token : tokens) {
+				long offset = currentOffset(token.getStoreDomain(), domainBytes(token.getStoreDomain()));
+				if(offset <= 0) {
+					continue;
+				}
+				PersistedStoreAccessToken store = readRecord(offset);
+				if(!store.getTokenAndSalt().getSalt().equals(token.getPrevious().getSalt())) {
+					continue;
+				}
+				store.setTokenAndSalt(token.getCurrent());
+				putLocked(store);
+				updated++;
+			}
+			end = logEnd;
+			writeGeneration = generation;
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		if(updated > 0 && syncOnWrite) {
+			sync(writeGeneration, end);
+		}
+		return updated;
+	}
+
+	/**
+	 * Force the log and make the index point to everything written so far.
+	 */
+	public void sync() {
+		long end;
+		long writeGeneration;
+
+		lock.readLock().lock();
+		try {
+			end = logEnd;
+			writeGeneration = generation;
+		} finally {
+			lock.readLock().unlock();
+		}
+		sync(writeGeneration, end);
+	}
+
+	/**
+	 * Persist the index and record the log offset up to which it is complete, so that a restart only replays the
+	 * records written after it.
+	 */
+	public void checkpoint() {
+		lock.readLock().lock();
+		try {
+			if(closed) {
+				return;
+			}
+			long upTo = appliedUpTo;
+			indexMap.force();
+			indexMap.putLong(INDEX_UP_TO_POSITION, upTo);
+			indexMap.force();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Rewrite the log with only the latest record of each store, and rebuild the index.
+	 */
+	public void compact() {
+		syncLock.lock();
+		try {
+			lock.writeLock().lock();
+			try {
+				ensureOpen();
+				compactLocked();
+			} catch(IOException ex) {
+				throw new UncheckedIOException("Unable to compact the token files", ex);
+			} finally {
+				lock.writeLock().unlock();
+			}
+		} finally {
+			syncLock.unlock();
+		}
+	}
+
+	/**
+	 * Whether a write returns only once it's been forced to disk. Defaults to true. If false, writes are forced by
+	 * the maintenance thread, and the latest writes can be lost if the machine crashes.
+	 *
+	 * @param syncOnWrite true to force the log on every write
+	 */
+	public void setSyncOnWrite(boolean syncOnWrite) {
+		this.syncOnWrite = syncOnWrite;
+	}
+
+	/**
+	 * Set the minimum size of the log before the maintenance thread compacts it. Defaults to 1MB.
+	 *
+	 * @param compactionThreshold The size in bytes
+	 */
+	public void setCompactionThreshold(long compactionThreshold) {
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	/**
+	 * @return The number of stores
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return liveCount;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The number of bytes of the log holding superseded records
+	 */
+	public long getGarbageBytes() {
+		lock.readLock().lock();
+		try {
+			return logEnd - LOG_HEADER_LENGTH - liveBytes;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	void maintain() {
+		try {
+			sync();
+			checkpoint();
+
+			boolean compact;
+			lock.readLock().lock();
+			try {
+				compact = !closed && logEnd > compactionThreshold && (logEnd - LOG_HEADER_LENGTH - liveBytes) * 2 > logEnd;
+			} finally {
+				lock.readLock().unlock();
+			}
+			if(compact) {
+				logger.info("Compacting the token log in " + directory);
+				compact();
+			}
+		} catch(RuntimeException ex) {
+			logger.error("Token file maintenance failed", ex);
+		}
+	}
+
+	private void write(PersistedStoreAccessToken token, boolean insert) {
+		long end;
+		long writeGeneration;
+
+		lock.writeLock().lock();
+		try {
+			ensureOpen();
+			if(!insert && currentOffset(token.getStoreDomain(), domainBytes(token.getStoreDomain())) <= 0) {
+				return;
+			}
+			putLocked(token);
+			end = logEnd;
+			writeGeneration = generation;
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		if(syncOnWrite) {
+			sync(writeGeneration, end);
+		}
+	}
+
+	private void putLocked(PersistedStoreAccessToken token) {
+		byte[] domain = domainBytes(token.getStoreDomain());
+		long previous = currentOffset(token.getStoreDomain(), domain);
+
+		long id;
+		if(previous > 0) {
+			id = recordId(previous);
+			liveBytes -= recordLength(previous);
+		} else {
+			id = nextId++;
+			liveCount++;
+		}
+
+		ByteBuffer record = encodePut(id, domain, token);
+		long offset = append(record);
+		liveBytes += record.capacity();
+		pending.put(token.getStoreDomain(), new PendingWrite(offset, false));
+	}
+
+	/*
+	 * Force the log if the write at end in the given generation hasn't been forced, then apply the pending writes
+	 * to the index. A compaction forces everything, so writes from an older generation are already durable.
+	 */
+	private void sync(long writeGeneration, long end) {
+		syncLock.lock();
+		try {
+			Map<String, PendingWrite> batch;
+			long upTo;
+
+			lock.writeLock().lock();
+			try {
+				if(closed || writeGeneration != generation || syncedUpTo >= end) {
+					return;
+				}
+				batch = new HashMap<>(pending);
+				upTo = logEnd;
+			} finally {
+				lock.writeLock().unlock();
+			}
+
+			try {
+				logChannel.force(false);
+			} catch(IOException ex) {
+				throw new UncheckedIOException("Unable to force the token log", ex);
+			}
+
+			lock.writeLock().lock();
+			try {
+				for(Map.Entry<String, PendingWrite> entry : batch.entrySet()) {
+					applyToIndex(domainBytes(entry.getKey()), entry.getValue().offset, entry.getValue().delete);
+					pending.remove(entry.getKey(), entry.getValue());
+				}
+				syncedUpTo = upTo;
+				appliedUpTo = upTo;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		} finally {
+			syncLock.unlock();
+		}
+	}
+
+	/*
+	 * The offset of the store's latest record, from the pending writes or the index. 0 if not found or deleted.
+	 */
+	private long currentOffset(String store, byte[] domain) {
+		PendingWrite write = pending.get(store);
+		if(write != null) {
+			return write.delete ? 0 : write.offset;
+		}
+
+		int slot = findSlot(domain, hash(domain));
+		if(slot < 0) {
+			return 0;
+		}
+		return slotOffset(slot);
+	}
+
+	/*
+	 * Returns the slot of the live entry for the domain, or -1.
+	 */
+	private int findSlot(byte[] domain, long hash) {
+		int mask = capacity - 1;
+		for(int i = 0, slot = (int)hash & mask; i < capacity; i++, slot = (slot + 1) & mask) {
+			long slotHash = slotHash(slot);
+			if(slotHash == 0) {
+				return -1;
+			}
+			long offset = slotOffset(slot);
+			if(slotHash == hash && offset != TOMBSTONE && domainMatches(offset, domain)) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	/*
+	 * Make the index reflect the record at offset, unless it already reflects a later record. Replaying the same
+	 * records twice gives the same index.
+	 */
+	private void applyToIndex(byte[] domain, long offset, boolean delete) {
+		long hash = hash(domain);
+		int slot = findSlot(domain, hash);
+
+		if(slot >= 0) {
+			if(slotOffset(slot) >= offset) {
+				return;
+			}
+			if(delete) {
+				setSlot(slot, hash, TOMBSTONE);
+			} else {
+				setSlot(slot, hash, offset);
+			}
+			return;
+		}
+
+		if(delete) {
+			return;
+		}
+
+		if(usedSlots + 1 > capacity * MAX_LOAD) {
+			resizeIndex();
+		}
+
+		int mask = capacity - 1;
+		for(int s = (int)hash & mask; ; s = (s + 1) & mask) {
+			if(slotHash(s) == 0) {
+				usedSlots++;
+				setSlot(s, hash, offset);
+				return;
+			}
+			if(slotOffset(s) == TOMBSTONE) {
+				setSlot(s, hash, offset);
+				return;
+			}
+		}
+	}
+
+	private long append(ByteBuffer record) {
+		long offset = logEnd;
+		long end = offset + record.capacity();
+
+		try {
+			if(end > logMap.capacity()) {
+				growLog(end);
+			}
+			while(record.hasRemaining()) {
+				logChannel.write(record, offset + record.position());
+			}
+		} catch(IOException ex) {
+			throw new UncheckedIOException("Unable to append to the token log", ex);
+		}
+
+		logEnd = end;
+		return offset;
+	}
+
+	private void growLog(long required) throws IOException {
+		long size = Math.max(logMap.capacity(), LOG_CHUNK);
+		while(size < required) {
+			size += Math.min(size, 64 * LOG_CHUNK);
+		}
+		if(size > Integer.MAX_VALUE) {
+			throw new IllegalStateException("The token log is limited to 2GB");
+		}
+		logChannel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+		logMap = logChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+	}
+
+	private void open() throws IOException {
+		Path logPath = directory.resolve(generation + LOG_SUFFIX);
+		Path indexPath = directory.resolve(generation + INDEX_SUFFIX);
+
+		logChannel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		if(logChannel.size() == 0) {
+			ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_LENGTH).putLong(0, LOG_MAGIC);
+			logChannel.write(header, 0);
+			logChannel.force(true);
+		}
+		logMap = logChannel.map(FileChannel.MapMode.READ_ONLY, 0, logChannel.size());
+		if(logMap.getLong(0) != LOG_MAGIC) {
+			throw new IllegalStateException(logPath + " is not a token log");
+		}
+
+		long indexedUpTo = openIndex(indexPath);
+
+		computeCounts();
+		long end = replay(indexedUpTo);
+
+		logEnd = end;
+		syncedUpTo = end;
+		appliedUpTo = end;
+		checkpoint();
+	}
+
+	/*
+	 * Map the index file, or create an empty one covering nothing if it's missing or invalid.
+	 */
+	private long openIndex(Path indexPath) throws IOException {
+		if(Files.exists(indexPath)) {
+			indexChannel = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			if(indexChannel.size() >= INDEX_HEADER_LENGTH) {
+				indexMap = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexChannel.size());
+				int cap = indexMap.getInt(INDEX_CAPACITY_POSITION);
+				if(indexMap.getInt(0) == INDEX_MAGIC && indexMap.getInt(4) == INDEX_VERSION && Integer.bitCount(cap) == 1
+						&& indexChannel.size() == INDEX_HEADER_LENGTH + (long)cap * SLOT_LENGTH) {
+					capacity = cap;
+					return indexMap.getLong(INDEX_UP_TO_POSITION);
+				}
+			}
+			logger.warn("The token index " + indexPath + " is invalid. Rebuilding it from the log");
+			indexChannel.close();
+		}
+
+		writeIndex(indexPath, new long[0][], INITIAL_CAPACITY, LOG_HEADER_LENGTH);
+		mapIndex(indexPath);
+		return LOG_HEADER_LENGTH;
+	}
+
+	private void mapIndex(Path indexPath) throws IOException {
+		indexChannel = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		indexMap = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexChannel.size());
+		capacity = indexMap.getInt(INDEX_CAPACITY_POSITION);
+	}
+
+	/*
+	 * Recompute the counters from the index, clearing entries that point past the end of the log.
+	 */
+	private void computeCounts() {
+		long size = logMap.capacity();
+		for(int slot = 0; slot < capacity; slot++) {
+			if(slotHash(slot) == 0) {
+				continue;
+			}
+			usedSlots++;
+			long offset = slotOffset(slot);
+			if(offset == TOMBSTONE) {
+				continue;
+			}
+			if(offset < LOG_HEADER_LENGTH || offset + RECORD_HEADER_LENGTH > size || recordLength(offset) > size - offset) {
+				setSlot(slot, slotHash(slot), TOMBSTONE);
+				continue;
+			}
+			liveCount++;
+			liveBytes += recordLength(offset);
+			nextId = Math.max(nextId, recordId(offset) + 1);
+		}
+	}
+
+	/*
+	 * Apply the records written after the index's checkpoint. Stops at the first incomplete or corrupted record,
+	 * and zeroes the log from there.
+	 */
+	private long replay(long from) throws IOException {
+		long offset = Math.max(from, LOG_HEADER_LENGTH);
+		long size = logMap.capacity();
+
+		while(offset + RECORD_HEADER_LENGTH <= size) {
+			int bodyLength = logMap.getInt((int)offset);
+			if(bodyLength <= 0 || bodyLength > MAX_RECORD_LENGTH || offset + RECORD_HEADER_LENGTH + bodyLength > size) {
+				break;
+			}
+			byte[] body = new byte[bodyLength];
+			ByteBuffer view = logMap.duplicate();
+			view.position((int)offset + RECORD_HEADER_LENGTH);
+			view.get(body);
+
+			CRC32 crc = new CRC32();
+			crc.update(body);
+			if((int)crc.getValue() != logMap.getInt((int)offset + 4)) {
+				break;
+			}
+
+			ByteBuffer buffer = ByteBuffer.wrap(body);
+			byte op = buffer.get();
+			long id = buffer.getLong();
+			byte[] domain = new byte[buffer.getShort() & 0xffff];
+			buffer.get(domain);
+			String store = new String(domain, StandardCharsets.UTF_8);
+
+			long previous = currentOffset(store, domain);
+			if(previous < offset) {
+				if(previous > 0) {
+					liveBytes -= recordLength(previous);
+					liveCount--;
+				}
+				if(op == OP_PUT) {
+					liveBytes += RECORD_HEADER_LENGTH + bodyLength;
+					liveCount++;
+				}
+				applyToIndex(domain, offset, op == OP_DELETE);
+			}
+			nextId = Math.max(nextId, id + 1);
+
+			offset += RECORD_HEADER_LENGTH + bodyLength;
+		}
+
+		if(offset + 4 <= size && logMap.getInt((int)offset) != 0) {
+			logger.warn("Discarding an incomplete record at the end of the token log, at offset " + offset);
+			ByteBuffer zeros = ByteBuffer.allocate((int)Math.min(size - offset, LOG_CHUNK));
+			for(long position = offset; position < size; position += zeros.capacity()) {
+				zeros.clear();
+				zeros.limit((int)Math.min(zeros.capacity(), size - position));
+				logChannel.write(zeros, position);
+			}
+			logChannel.force(false);
+		}
+
+		return offset;
+	}
+
+	private void resizeIndex() {
+		try {
+			Path indexPath = directory.resolve(generation + INDEX_SUFFIX);
+			writeIndex(indexPath, liveSlots().toArray(new long[0][]), capacity * 2, appliedUpTo);
+			indexChannel.close();
+			mapIndex(indexPath);
+			usedSlots = countUsedSlots();
+		} catch(IOException ex) {
+			throw new UncheckedIOException("Unable to resize the token index", ex);
+		}
+	}
+
+	private void compactLocked() throws IOException {
+		long newGeneration = generation + 1;
+		Path logPath = directory.resolve(newGeneration + LOG_SUFFIX);
+		Path indexPath = directory.resolve(newGeneration + INDEX_SUFFIX);
+
+		// the current view: the index, overridden by the pending writes
+		Map<String, Long> live = new HashMap<>();
+		for(long[] entry : liveSlots()) {
+			live.put(recordDomain(entry[1]), entry[1]);
+		}
+		for(Map.Entry<String, PendingWrite> entry : pending.entrySet()) {
+			if(entry.getValue().delete) {
+				live.remove(entry.getKey());
+			} else {
+				live.put(entry.getKey(), entry.getValue().offset);
+			}
+		}
+
+		List<long[]> slots = new ArrayList<>(live.size());
+		long newLiveBytes = 0;
+		try(FileChannel newLog = FileChannel.open(logPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			long position = LOG_HEADER_LENGTH;
+			newLog.write(ByteBuffer.allocate(LOG_HEADER_LENGTH).putLong(0, LOG_MAGIC), 0);
+
+			for(Map.Entry<String, Long> entry : live.entrySet()) {
+				int length = recordLength(entry.getValue());
+				ByteBuffer record = logMap.duplicate();
+				record.position(entry.getValue().intValue());
+				record.limit(entry.getValue().intValue() + length);
+
+				slots.add(new long[] {hash(domainBytes(entry.getKey())), position});
+				while(record.hasRemaining()) {
+					position += newLog.write(record, position);
+				}
+				newLiveBytes += length;
+			}
+			newLog.force(true);
+
+			writeIndex(indexPath, slots.toArray(new long[0][]), capacityFor(slots.size()), position);
+		}
+
+		Path oldLog = directory.resolve(generation + LOG_SUFFIX);
+		Path oldIndex = directory.resolve(generation + INDEX_SUFFIX);
+
+		writeCurrent(newGeneration);
+
+		logChannel.close();
+		indexChannel.close();
+
+		pending.clear();
+		liveCount = 0;
+		usedSlots = 0;
+		liveBytes = 0;
+
+		logChannel = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		logMap = logChannel.map(FileChannel.MapMode.READ_ONLY, 0, logChannel.size());
+		mapIndex(indexPath);
+		computeCounts();
+
+		logEnd = logChannel.size();
+		syncedUpTo = logEnd;
+		appliedUpTo = logEnd;
+
+		Files.deleteIfExists(oldLog);
+		Files.deleteIfExists(oldIndex);
+
+		if(logger.isDebugEnabled()) {
+			logger.debug("Compacted the token log to " + logEnd + " bytes, " + liveCount + " stores (" + newLiveBytes + " live bytes)");
+		}
+	}
+
+	private List<long[]> liveSlots() {
+		List<long[]> slots = new ArrayList<>(liveCount);
+		for(int slot = 0; slot < capacity; slot++) {
+			long offset = slotOffset(slot);
+			if(slotHash(slot) != 0 && offset != TOMBSTONE) {
+				slots.add(new long[] {slotHash(slot), offset});
+			}
+		}
+		return slots;
+	}
+
+	/*
+	 * Write a complete index to a temporary file, force it, then move it into place.
+	 */
+	private void writeIndex(Path indexPath, long[][] slots, int indexCapacity, long indexedUpTo) throws IOException {
+		Path temp = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+		ByteBuffer buffer = ByteBuffer.allocate(INDEX_HEADER_LENGTH + indexCapacity * SLOT_LENGTH);
+		buffer.putInt(0, INDEX_MAGIC);
+		buffer.putInt(4, INDEX_VERSION);
+		buffer.putInt(INDEX_CAPACITY_POSITION, indexCapacity);
+		buffer.putLong(INDEX_UP_TO_POSITION, indexedUpTo);
+
+		int mask = indexCapacity - 1;
+		for(long[] entry : slots) {
+			int slot = (int)entry[0] & mask;
+			while(buffer.getLong(INDEX_HEADER_LENGTH + slot * SLOT_LENGTH) != 0) {
+				slot = (slot + 1) & mask;
+			}
+			buffer.putLong(INDEX_HEADER_LENGTH + slot * SLOT_LENGTH, entry[0]);
+			buffer.putLong(INDEX_HEADER_LENGTH + slot * SLOT_LENGTH + 8, entry[1]);
+		}
+
+		try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			while(buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(true);
+		}
+		Files.move(temp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void writeCurrent(long newGeneration) throws IOException {
+		Path temp = directory.resolve(CURRENT_FILE + ".tmp");
+		try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(Long.toString(newGeneration).getBytes(StandardCharsets.US_ASCII)));
+			channel.force(true);
+		}
+		Files.move(temp, directory.resolve(CURRENT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		generation = newGeneration;
+	}
+
+	private void deleteOtherGenerations() throws IOException {
+		String log = generation + LOG_SUFFIX;
+		String index = generation + INDEX_SUFFIX;
+
+		try(Stream<Path> files = Files.list(directory)) {
+			for(Path file : (Iterable<Path>)files::iterator) {
+				String name = file.getFileName().toString();
+				if((name.endsWith(LOG_SUFFIX) || name.endsWith(INDEX_SUFFIX) || name.endsWith(".tmp")) && !name.equals(log) && !name.equals(index)) {
+					Files.deleteIfExists(file);
+				}
+			}
+		}
+	}
+
+	private static int capacityFor(int count) {
+		int size = INITIAL_CAPACITY;
+		while(count > size * MAX_LOAD / 2) {
+			size *= 2;
+		}
+		return size;
+	}
+
+	private int countUsedSlots() {
+		int used = 0;
+		for(int slot = 0; slot < capacity; slot++) {
+			if(slotHash(slot) != 0) {
+				used++;
+			}
+		}
+		return used;
+	}
+
+	private long slotHash(int slot) {
+		return indexMap.getLong(INDEX_HEADER_LENGTH + slot * SLOT_LENGTH);
+	}
+
+	private long slotOffset(int slot) {
+		return indexMap.getLong(INDEX_HEADER_LENGTH + slot * SLOT_LENGTH + 8);
+	}
+
+	private void setSlot(int slot, long hash, long offset) {
+		indexMap.putLong(INDEX_HEADER_LENGTH + slot * SLOT_LENGTH + 8, offset);
+		indexMap.putLong(INDEX_HEADER_LENGTH + slot * SLOT_LENGTH, hash);
+	}
+
+	/*
+	 * Record layout: body length (int), CRC32 of the body (int), then the body: op (byte), id (long), domain, and
+	 * for a put: token type, token value, salt, issuedAt (long), expiresAt (long), scopes. Strings are written as
+	 * an unsigned short length followed by UTF-8 bytes.
+	 */
+	private int recordLength(long offset) {
+		return RECORD_HEADER_LENGTH + logMap.getInt((int)offset);
+	}
+
+	private long recordId(long offset) {
+		return logMap.getLong((int)offset + RECORD_HEADER_LENGTH + 1);
+	}
+
+	private String recordDomain(long offset) {
+		int position = (int)offset + RECORD_HEADER_LENGTH + 9;
+		byte[] domain = new byte[logMap.getShort(position) & 0xffff];
+		ByteBuffer view = logMap.duplicate();
+		view.position(position + 2);
+		view.get(domain);
+
+		return new String(domain, StandardCharsets.UTF_8);
+	}
+
+	private boolean domainMatches(long offset, byte[] domain) {
+		int position = (int)offset + RECORD_HEADER_LENGTH + 9;
+		if((logMap.getShort(position) & 0xffff) != domain.length) {
+			return false;
+		}
+		position += 2;
+		for(int i = 0; i < domain.length; i++) {
+			if(logMap.get(position + i) != domain[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private PersistedStoreAccessToken readRecord(long offset) {
+		ByteBuffer view = logMap.duplicate();
+		view.position((int)offset + RECORD_HEADER_LENGTH);
+
+		view.get(); // op
+		long id = view.getLong();
+		String domain = readString(view);
+		String tokenType = readString(view);
+		String tokenValue = readString(view);
+		String salt = readString(view);
+		long issuedAt = view.getLong();
+		long expiresAt = view.getLong();
+		String scopes = readString(view);
+
+		PersistedStoreAccessToken token = new PersistedStoreAccessToken();
+		token.setId(id);
+		token.setStoreDomain(domain);
+		token.setTokenType(tokenType);
+		token.setTokenAndSalt(new EncryptedTokenAndSalt(tokenValue, salt));
+		token.setIssuedAt(issuedAt == Long.MIN_VALUE ? null : issuedAt);
+		token.setExpiresAt(expiresAt == Long.MIN_VALUE ? null : expiresAt);
+		token.setScopes(ScopeDictionary.getShared().decode(scopes));
+
+		return token;
+	}
+
+	private static String readString(ByteBuffer view) {
+		byte[] value = new byte[view.getShort() & 0xffff];
+		view.get(value);
+
+		return new String(value, StandardCharsets.UTF_8);
+	}
+
+	private static ByteBuffer encodePut(long id, byte[] domain, PersistedStoreAccessToken token) {
+		byte[][] strings = {
+				domain,
+				bytes(token.getTokenType()),
+				bytes(token.getTokenAndSalt().getEncryptedToken()),
+				bytes(token.getTokenAndSalt().getSalt()),
+				bytes(ScopeDictionary.getShared().encode(token.getScopes() == null ? Collections.emptySet() : token.getScopes()))
+		};
+		int bodyLength = 1 + 8 + 8 + 8;
+		for(byte[] string : strings) {
+			bodyLength += 2 + string.length;
+		}
+		if(bodyLength > MAX_RECORD_LENGTH) {
+			throw new IllegalArgumentException("The store " + token.getStoreDomain() + " is too large to be saved");
+		}
+
+		ByteBuffer body = ByteBuffer.allocate(bodyLength);
+		body.put(OP_PUT).putLong(id);
+		putString(body, strings[0]);
+		putString(body, strings[1]);
+		putString(body, strings[2]);
+		putString(body, strings[3]);
+		body.putLong(token.getIssuedAt() == null ? Long.MIN_VALUE : token.getIssuedAt());
+		body.putLong(token.getExpiresAt() == null ? Long.MIN_VALUE : token.getExpiresAt());
+		putString(body, strings[4]);
+
+		return frame(body.array());
+	}
+
+	private static ByteBuffer encodeDelete(long id, byte[] domain) {
+		ByteBuffer body = ByteBuffer.allocate(1 + 8 + 2 + domain.length);
+		body.put(OP_DELETE).putLong(id);
+		putString(body, domain);
+
+		return frame(body.array());
+	}
+
+	private static ByteBuffer frame(byte[] body) {
+		CRC32 crc = new CRC32();
+		crc.update(body);
+
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + body.length);
+		record.putInt(body.length).putInt((int)crc.getValue()).put(body);
+		record.flip();
+
+		return record;
+	}
+
+	private static void putString(ByteBuffer buffer, byte[] value) {
+		if(value.length > 0xffff) {
+			throw new IllegalArgumentException("Value too long to be saved");
+		}
+		buffer.putShort((short)value.length).put(value);
+	}
+
+	private static byte[] bytes(String value) {
+		return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] domainBytes(String store) {
+		if(store == null) {
+			throw new IllegalArgumentException("A store domain is required");
+		}
+		return store.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static long hash(byte[] domain) {
+		long hash = ShardedTokenRepository.hash(domain);
+
+		return hash == 0 ? 1 : hash;
+	}
+
+	private void ensureOpen() {
+		if(closed) {
+			throw new IllegalStateException("The token repository is closed");
+		}
+	}
+
+	private static class PendingWrite {
+		private final long offset;
+		private final boolean delete;
+
+		PendingWrite(long offset, boolean delete) {
+			this.offset = offset;
+			this.delete = delete;
+		}
+	}
+
+}
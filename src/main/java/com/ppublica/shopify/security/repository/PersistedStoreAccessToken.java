@@ -17,6 +17,7 @@ public class PersistedStoreAccessToken {
 	private Long issuedAt;
 	private Long expiresAt;
 	private Set<String> scopes;
+	private Long lastSeen;
 	
 	public void setId(Long id) {
 		this.id = id;
@@ -74,4 +75,17 @@ public class PersistedStoreAccessToken {
 		return this.scopes;
 	}
 
+	/**
+	 * Set when the store was last seen. Only filled in by repositories that track it.
+	 * 
+	 * @param lastSeen The time in milliseconds since the epoch, or null if unknown
+	 */
+	public void setLastSeen(Long lastSeen) {
+		this.lastSeen = lastSeen;
+	}
+	
+	public Long getLastSeen() {
+		return this.lastSeen;
+	}
+	
 }
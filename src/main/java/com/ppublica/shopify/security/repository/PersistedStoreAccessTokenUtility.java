@@ -25,6 +25,9 @@ public class PersistedStoreAccessTokenUtility {
 	 * Create a PersistedStoreAccessToken from OAuth2AuthorizedClient, OAuth2AuthenticationToken, and 
 	 * EncryptedTokenAndSalt.
 	 * 
+	 * <p>The issuedAt and expiresAt columns are required, so a token without an issue time is considered issued now, 
+	 * and one without an expiry time expires a second after it was issued, as OAuth2AccessTokenResponse does.</p>
+	 * 
 	 * @param authorizedClient The OAuth2AuthorizedClient with a ClientRegistration, principalName, and OAuth2AccessToken
 	 * @param principal The OAuth2AuthenticationToken with a OAuth2User, authorities, and registrationId from ClientRegistation
 	 * @param encryptedToken The encrypted token
@@ -36,11 +39,11 @@ public class PersistedStoreAccessTokenUtility {
 		
 		OAuth2AccessToken oauth2AccessToken = authorizedClient.getAccessToken();
 		
-		Instant expiresAt = oauth2AccessToken.getExpiresAt();
-		Long expires = expiresAt != null ? expiresAt.truncatedTo(ChronoUnit.SECONDS).getEpochSecond() : null;
-		
 		Instant issuedAt = oauth2AccessToken.getIssuedAt();
-		Long issued = issuedAt != null ? issuedAt.truncatedTo(ChronoUnit.SECONDS).getEpochSecond() : null;
+		Long issued = issuedAt != null ? issuedAt.truncatedTo(ChronoUnit.SECONDS).getEpochSecond() : Instant.now().getEpochSecond();
+		
+		Instant expiresAt = oauth2AccessToken.getExpiresAt();
+		Long expires = expiresAt != null ? expiresAt.truncatedTo(ChronoUnit.SECONDS).getEpochSecond() : issued + 1;
 
 
 		PersistedStoreAccessToken persistedToken = new PersistedStoreAccessToken();
@@ -0,0 +1,35 @@
+package com.ppublica.shopify.security.repository;
+
+import com.ppublica.shopify.security.service.EncryptedTokenAndSalt;
+
+/**
+ * A store's access token that was re-encrypted with a new key. The previous encrypted token and salt are kept so 
+ * that the repository only replaces the token if it hasn't changed since it was read.
+ * 
+ * @author N F
+ * @see TokenRepository#updateEncryptedTokens(java.util.List)
+ */
+public class ReEncryptedToken {
+	private final String storeDomain;
+	private final EncryptedTokenAndSalt previous;
+	private final EncryptedTokenAndSalt current;
+	
+	public ReEncryptedToken(String storeDomain, EncryptedTokenAndSalt previous, EncryptedTokenAndSalt current) {
+		this.storeDomain = storeDomain;
+		this.previous = previous;
+		this.current = current;
+	}
+	
+	public String getStoreDomain() {
+		return this.storeDomain;
+	}
+	
+	public EncryptedTokenAndSalt getPrevious() {
+		return this.previous;
+	}
+	
+	public EncryptedTokenAndSalt getCurrent() {
+		return this.current;
+	}
+
+}
@@ -0,0 +1,182 @@
+package com.ppublica.shopify.security.repository;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Converts between the comma-separated scopes stored in StoreAccessTokens and the Set of scopes in a
+ * PersistedStoreAccessToken, sharing one immutable Set per distinct combination of scopes.
+ *
+ * <p>Every scope is given an ordinal the first time it's seen, and a combination of scopes is identified by the
+ * BitSet of its ordinals, so "read_products,write_orders" and "write_orders, read_products" decode to the same Set
+ * instance. Since most stores of an app have been granted the same few combinations, reading a store usually
+ * allocates nothing for its scopes.</p>
+ *
+ * <p>The scopes are written in alphabetical order, so identical Sets are always stored as the same string. The
+ * ordinals are never stored: they only live as long as the dictionary.</p>
+ *
+ * <p>To keep memory bounded if the column holds unexpected values, at most maxCombinations combinations and
+ * MAX_SCOPES scopes are remembered. Beyond that, Sets are decoded without being shared.</p>
+ *
+ * @author N F
+ * @see ShopifyTokenRepositoryImpl
+ */
+public class ScopeDictionary {
+
+	/**
+	 * The maximum number of distinct scopes given an ordinal: 512.
+	 */
+	public static final int MAX_SCOPES = 512;
+
+	/**
+	 * The default maximum number of distinct scope combinations remembered: 1024.
+	 */
+	public static final int DEFAULT_MAX_COMBINATIONS = 1024;
+
+	private static final ScopeDictionary shared = new ScopeDictionary();
+
+	private final Map<String, Integer> ordinals = new ConcurrentHashMap<>();
+	private final List<String> scopes = new ArrayList<>();
+	private final Map<BitSet, Set<String>> combinations = new ConcurrentHashMap<>();
+	private final Map<String, Set<String>> decoded = new ConcurrentHashMap<>();
+	private final Map<Set<String>, String> encoded = new ConcurrentHashMap<>();
+	private final int maxCombinations;
+
+	public ScopeDictionary() {
+		this(DEFAULT_MAX_COMBINATIONS);
+	}
+
+	/**
+	 * Create a ScopeDictionary.
+	 *
+	 * @param maxCombinations The maximum number of distinct scope combinations to remember
+	 */
+	public ScopeDictionary(int maxCombinations) {
+		this.maxCombinations = maxCombinations;
+	}
+
+	/**
+	 * @return The ScopeDictionary shared by the repositories in this JVM
+	 */
+	public static ScopeDictionary getShared() {
+		return shared;
+	}
+
+	/**
+	 * Decode the scopes as stored in the database. Empty scopes, such as after a trailing comma, are skipped.
+	 *
+	 * @param scopesString The comma-separated scopes
+	 * @return An unmodifiable Set of the scopes, shared with other stores that have the same scopes
+	 */
+	public Set<String> decode(String scopesString) {
+		if(scopesString == null) {
+			return Collections.emptySet();
+		}
+
+		Set<String> result = decoded.get(scopesString);
+		if(result != null) {
+			return result;
+		}
+
+		BitSet key = new BitSet();
+		Set<String> parsed = new LinkedHashSet<>();
+		boolean shareable = true;
+
+		int start = 0;
+		while(start <= scopesString.length()) {
+			int end = scopesString.indexOf(',', start);
+			if(end < 0) {
+				end = scopesString.length();
+			}
+			String scope = scopesString.substring(start, end).trim();
+			start = end + 1;
+
+			if(scope.isEmpty()) {
+				// a trailing or doubled comma
+				continue;
+			}
+
+			parsed.add(scope);
+			int ordinal = ordinalOf(scope);
+			if(ordinal < 0) {
+				shareable = false;
+			} else {
+				key.set(ordinal);
+			}
+		}
+
+		if(!shareable) {
+			return Collections.unmodifiableSet(parsed);
+		}
+
+		result = combinations.get(key);
+		if(result == null) {
+			if(combinations.size() >= maxCombinations) {
+				return Collections.unmodifiableSet(parsed);
+			}
+			result = combinations.computeIfAbsent(key, k -> Collections.unmodifiableSet(sorted(parsed)));
+		}
+
+		if(decoded.size() < maxCombinations) {
+			decoded.put(scopesString, result);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Encode the scopes to be stored in the database.
+	 *
+	 * @param scopeSet The scopes
+	 * @return The scopes in alphabetical order, separated by commas
+	 */
+	public String encode(Set<String> scopeSet) {
+		String result = encoded.get(scopeSet);
+		if(result != null) {
+			return result;
+		}
+
+		result = String.join(",", sorted(scopeSet));
+
+		if(encoded.size() < maxCombinations) {
+			encoded.put(Collections.unmodifiableSet(new LinkedHashSet<>(scopeSet)), result);
+		}
+
+		return result;
+	}
+
+	private int ordinalOf(String scope) {
+		Integer ordinal = ordinals.get(scope);
+		if(ordinal != null) {
+			return ordinal;
+		}
+
+		synchronized(scopes) {
+			ordinal = ordinals.get(scope);
+			if(ordinal != null) {
+				return ordinal;
+			}
+			if(scopes.size() >= MAX_SCOPES) {
+				return -1;
+			}
+			scopes.add(scope);
+			ordinals.put(scope, scopes.size() - 1);
+
+			return scopes.size() - 1;
+		}
+	}
+
+	private static Set<String> sorted(Set<String> scopeSet) {
+		List<String> list = new ArrayList<>(scopeSet);
+		Collections.sort(list);
+
+		return new LinkedHashSet<>(list);
+	}
+
+}
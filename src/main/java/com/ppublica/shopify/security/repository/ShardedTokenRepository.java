@@ -0,0 +1,477 @@
+package com.ppublica.shopify.security.repository;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A TokenRepository that spreads the stores across several TokenRepositories (usually one
+ * ShopifyTokenRepositoryImpl per database), choosing the shard of a store by a consistent hash of its domain.
+ *
+ * <p>Each shard is placed on a hash ring at several points (virtual nodes), so adding a shard only moves about
+ * 1/N of the stores. To re-shard without downtime, build the new ShardedTokenRepository with the new shards and
+ * pass the old ones to {@link #setPreviousShards(Map)}. While previous shards are set:</p>
+ *
+ * <ul>
+ * 	<li>findTokenForStore reads the new shard, then the previous shard if the store isn't there yet</li>
+ * 	<li>saveNewStore and updateStore write to the new shard and remove the store from the previous shard</li>
+ * 	<li>uninstallStore removes the store from both shards</li>
+ * </ul>
+ *
+ * <p>Once every store has been moved (by being written, or by copying the tables), call
+ * setPreviousShards(null).</p>
+ *
+ * <p>The latency of the calls to each shard is recorded, and can be read with {@link #getShardStats()}.</p>
+ *
+ * <p>Batch updates (updateEncryptedTokens, updateLastSeen, uninstallStoresIfUnchanged) are grouped by shard, and
+ * reads across all the stores (findRecentStores, findStoresAfter) merge the results of every shard. Since ids are
+ * only unique within a shard, a page of findStoresAfter includes every store with the page's last id, so it can
+ * have up to one store per extra shard more than the limit.</p>
+ *
+ * @author N F
+ * @see ShopifyTokenRepositoryImpl
+ */
+public class ShardedTokenRepository implements TokenRepository {
+	private final Log logger = LogFactory.getLog(ShardedTokenRepository.class);
+
+	/**
+	 * The default number of points each shard has on the hash ring: 128.
+	 */
+	public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final Map<String, TokenRepository> shards;
+	private final TreeMap<Long, String> ring;
+	private final int virtualNodes;
+	private final Map<String, ShardStats> stats = new ConcurrentHashMap<>();
+
+	private volatile Map<String, TokenRepository> previousShards;
+	private volatile TreeMap<Long, String> previousRing;
+
+	/**
+	 * Build a ShardedTokenRepository with the default number of virtual nodes.
+	 *
+	 * @param shards The TokenRepository of each shard, by shard name
+	 */
+	public ShardedTokenRepository(Map<String, TokenRepository> shards) {
+		this(shards, DEFAULT_VIRTUAL_NODES);
+	}
+
+	/**
+	 * Build a ShardedTokenRepository.
+	 *
+	 * <p>The position of a shard on the ring depends only on its name, so a shard must keep its name when
+	 * shards are added or removed.</p>
+	 *
+	 * @param shards The TokenRepository of each shard, by shard name
+	 * @param virtualNodes The number of points each shard has on the hash ring
+	 */
+	public ShardedTokenRepository(Map<String, TokenRepository> shards, int virtualNodes) {
+		if(shards == null || shards.isEmpty()) {
+			throw new IllegalArgumentException("At least one shard is required");
+		}
+		if(virtualNodes < 1) {
+			throw new IllegalArgumentException("The number of virtual nodes must be at least 1");
+		}
+		this.virtualNodes = virtualNodes;
+		this.shards = Collections.unmodifiableMap(new LinkedHashMap<>(shards));
+		this.ring = buildRing(this.shards, virtualNodes);
+
+		for(String shard : this.shards.keySet()) {
+			stats.put(shard, new ShardStats());
+		}
+	}
+
+	/**
+	 * Set the shards the stores were on before re-sharding. Reads fall back to them, and writes move stores off
+	 * them. Set to null when the migration is complete.
+	 *
+	 * @param previousShards The TokenRepository of each previous shard, by shard name, or null
+	 */
+	public void setPreviousShards(Map<String, TokenRepository> previousShards) {
+		if(previousShards == null || previousShards.isEmpty()) {
+			this.previousRing = null;
+			this.previousShards = null;
+			return;
+		}
+		Map<String, TokenRepository> copy = Collections.unmodifiableMap(new LinkedHashMap<>(previousShards));
+
+		for(String shard : copy.keySet()) {
+			stats.putIfAbsent(shard, new ShardStats());
+		}
+		this.previousRing = buildRing(copy, virtualNodes);
+		this.previousShards = copy;
+	}
+
+	@Override
+	public PersistedStoreAccessToken findTokenForStore(String store) {
+		String shard = shardFor(store);
+		PersistedStoreAccessToken token = timed(shard, () -> shards.get(shard).findTokenForStore(store));
+
+		if(token != null) {
+			return token;
+		}
+
+		String previous = previousShardFor(store);
+		Map<String, TokenRepository> previousRepos = previousShards;
+		if(previous == null || previousRepos == null) {
+			return null;
+		}
+
+		return timed(previous, () -> previousRepos.get(previous).findTokenForStore(store));
+	}
+
+	@Override
+	public void saveNewStore(PersistedStoreAccessToken accessToken) {
+		String shard = shardFor(accessToken.getStoreDomain());
+		timed(shard, () -> {
+			shards.get(shard).saveNewStore(accessToken);
+			return null;
+		});
+
+		removeFromPreviousShard(accessToken.getStoreDomain());
+	}
+
+	/**
+	 * Update the store in its shard. During a migration, a store that is still on its previous shard is saved to
+	 * its new shard and removed from the previous one.
+	 *
+	 * @param token The store
+	 */
+	@Override
+	public void updateStore(PersistedStoreAccessToken token) {
+		String shard = shardFor(token.getStoreDomain());
+		TokenRepository repo = shards.get(shard);
+
+		if(previousShardFor(token.getStoreDomain()) != null
+				&& timed(shard, () -> repo.findTokenForStore(token.getStoreDomain())) == null) {
+			logger.debug("Moving store " + token.getStoreDomain() + " to shard " + shard);
+			saveNewStore(token);
+			return;
+		}
+
+		timed(shard, () -> {
+			repo.updateStore(token);
+			return null;
+		});
+	}
+
+	@Override
+	public void uninstallStore(String storeName) {
+		String shard = shardFor(storeName);
+		timed(shard, () -> {
+			shards.get(shard).uninstallStore(storeName);
+			return null;
+		});
+
+		removeFromPreviousShard(storeName);
+	}
+
+	/**
+	 * Update the encrypted tokens, grouped by shard. During a migration, only the new shards are updated.
+	 *
+	 * @param tokens The re-encrypted tokens
+	 * @return The number of stores updated
+	 */
+	@Override
+	public int updateEncryptedTokens(List<ReEncryptedToken> tokens) {
+		Map<String, List<ReEncryptedToken>> byShard = new LinkedHashMap<>();
+		for(ReEncryptedToken token : tokens) {
+			byShard.computeIfAbsent(shardFor(token.getStoreDomain()), s -> new ArrayList<>()).add(token);
+		}
+
+		int updated = 0;
+		for(Map.Entry<String, List<ReEncryptedToken>> entry : byShard.entrySet()) {
+			updated += timed(entry.getKey(), () -> shards.get(entry.getKey()).updateEncryptedTokens(entry.getValue()));
+		}
+
+		return updated;
+	}
+
+	/**
+	 * Save when the stores were last seen, grouped by shard. During a migration, a store that may still be on its
+	 * previous shard is updated there too.
+	 *
+	 * @param lastSeen The time each store was last seen, by full shop domain
+	 * @return The number of stores updated
+	 */
+	@Override
+	public int updateLastSeen(Map<String, Long> lastSeen) {
+		Map<String, Map<String, Long>> byShard = new LinkedHashMap<>();
+		Map<String, Map<String, Long>> byPreviousShard = new LinkedHashMap<>();
+		for(Map.Entry<String, Long> entry : lastSeen.entrySet()) {
+			byShard.computeIfAbsent(shardFor(entry.getKey()), s -> new HashMap<>()).put(entry.getKey(), entry.getValue());
+
+			String previous = previousShardFor(entry.getKey());
+			if(previous != null) {
+				byPreviousShard.computeIfAbsent(previous, s -> new HashMap<>()).put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		int updated = 0;
+		for(Map.Entry<String, Map<String, Long>> entry : byShard.entrySet()) {
+			updated += timed(entry.getKey(), () -> shards.get(entry.getKey()).updateLastSeen(entry.getValue()));
+		}
+
+		Map<String, TokenRepository> previousRepos = previousShards;
+		if(previousRepos != null) {
+			for(Map.Entry<String, Map<String, Long>> entry : byPreviousShard.entrySet()) {
+				updated += timed(entry.getKey(), () -> previousRepos.get(entry.getKey()).updateLastSeen(entry.getValue()));
+			}
+		}
+
+		return updated;
+	}
+
+	/**
+	 * Uninstall the stores that are unchanged, grouped by shard. The stores are expected to have been read with
+	 * findStoresAfter, which only reads the new shards.
+	 *
+	 * @param stores The stores, as read from this TokenRepository
+	 * @return The number of stores uninstalled
+	 */
+	@Override
+	public int uninstallStoresIfUnchanged(List<PersistedStoreAccessToken> stores) {
+		Map<String, List<PersistedStoreAccessToken>> byShard = new LinkedHashMap<>();
+		for(PersistedStoreAccessToken store : stores) {
+			byShard.computeIfAbsent(shardFor(store.getStoreDomain()), s -> new ArrayList<>()).add(store);
+		}
+
+		int uninstalled = 0;
+		for(Map.Entry<String, List<PersistedStoreAccessToken>> entry : byShard.entrySet()) {
+			uninstalled += timed(entry.getKey(), () -> shards.get(entry.getKey()).uninstallStoresIfUnchanged(entry.getValue()));
+		}
+
+		return uninstalled;
+	}
+
+	/**
+	 * Find the most recent stores of every shard and merge them, most recently seen (or, if a shard doesn't track
+	 * it, issued) first. During a migration, only the new shards are read.
+	 *
+	 * @param limit The maximum number of stores to return
+	 * @return The stores, most recent first
+	 */
+	@Override
+	public List<PersistedStoreAccessToken> findRecentStores(int limit) {
+		List<PersistedStoreAccessToken> merged = new ArrayList<>();
+		for(String shard : shards.keySet()) {
+			merged.addAll(timed(shard, () -> shards.get(shard).findRecentStores(limit)));
+		}
+
+		// stable, so ties keep each shard's order
+		merged.sort(Comparator.comparingLong(ShardedTokenRepository::recency).reversed());
+
+		return merged.size() > limit ? new ArrayList<>(merged.subList(0, limit)) : merged;
+	}
+
+	/**
+	 * Find the stores after lastId in every shard and merge them by id. Since ids are only unique within a shard,
+	 * the page ends with every store whose id is the page's last id, so it can have more than limit stores (at
+	 * most one per extra shard). During a migration, only the new shards are read.
+	 *
+	 * @param lastId The id of the last store of the previous page, or null for the first page
+	 * @param limit The maximum number of stores to return, unless ids tie across shards
+	 * @return The stores, ordered by id, or an empty list if there are no more
+	 */
+	@Override
+	public List<PersistedStoreAccessToken> findStoresAfter(Long lastId, int limit) {
+		List<PersistedStoreAccessToken> merged = new ArrayList<>();
+		for(String shard : shards.keySet()) {
+			merged.addAll(timed(shard, () -> shards.get(shard).findStoresAfter(lastId, limit)));
+		}
+
+		merged.sort(Comparator.comparing(PersistedStoreAccessToken::getId));
+		if(merged.size() <= limit) {
+			return merged;
+		}
+
+		// a shard that returned limit stores has none left below its last id, so each shard is complete up to here
+		Long pageEnd = merged.get(limit - 1).getId();
+		int end = limit;
+		while(end < merged.size() && merged.get(end).getId().equals(pageEnd)) {
+			end++;
+		}
+
+		return new ArrayList<>(merged.subList(0, end));
+	}
+
+	/**
+	 * Find the name of the shard the store belongs to.
+	 *
+	 * @param store The full shop domain
+	 * @return The shard name
+	 */
+	public String shardFor(String store) {
+		return locate(ring, store);
+	}
+
+	/**
+	 * @return The TokenRepository of each shard, by shard name
+	 */
+	public Map<String, TokenRepository> getShards() {
+		return this.shards;
+	}
+
+	/**
+	 * @return The latency statistics of each shard (including previous shards), by shard name
+	 */
+	public Map<String, ShardStats> getShardStats() {
+		return Collections.unmodifiableMap(stats);
+	}
+
+	/*
+	 * Returns the previous shard of the store, or null if there's no migration or it hasn't moved.
+	 */
+	private String previousShardFor(String store) {
+		TreeMap<Long, String> previous = previousRing;
+		if(previous == null) {
+			return null;
+		}
+		String previousShard = locate(previous, store);
+		String shard = shardFor(store);
+
+		// a shard that kept its name is the same database
+		return previousShard.equals(shard) ? null : previousShard;
+	}
+
+	private void removeFromPreviousShard(String store) {
+		String previous = previousShardFor(store);
+		if(previous == null) {
+			return;
+		}
+		Map<String, TokenRepository> previousRepos = previousShards;
+		if(previousRepos == null) {
+			return;
+		}
+
+		try {
+			timed(previous, () -> {
+				previousRepos.get(previous).uninstallStore(store);
+				return null;
+			});
+		} catch(RuntimeException ex) {
+			// the new shard has the store: a leftover copy is only read if the new shard loses it
+			logger.warn("Unable to remove store " + store + " from previous shard " + previous, ex);
+		}
+	}
+
+	private static long recency(PersistedStoreAccessToken store) {
+		if(store.getLastSeen() != null) {
+			return store.getLastSeen();
+		}
+		return store.getIssuedAt() == null ? Long.MIN_VALUE : store.getIssuedAt();
+	}
+
+	private <T> T timed(String shard, Supplier<T> call) {
+		ShardStats shardStats = stats.get(shard);
+		long start = System.nanoTime();
+
+		try {
+			return call.get();
+		} catch(RuntimeException ex) {
+			shardStats.errors.increment();
+			throw ex;
+		} finally {
+			shardStats.record(System.nanoTime() - start);
+		}
+	}
+
+	private static String locate(TreeMap<Long, String> ring, String store) {
+		Map.Entry<Long, String> entry = ring.ceilingEntry(hash(store));
+
+		return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+	}
+
+	private static TreeMap<Long, String> buildRing(Map<String, TokenRepository> shards, int virtualNodes) {
+		TreeMap<Long, String> ring = new TreeMap<>();
+		for(String shard : shards.keySet()) {
+			for(int i = 0; i < virtualNodes; i++) {
+				ring.put(hash(shard + "#" + i), shard);
+			}
+		}
+		return ring;
+	}
+
+	/*
+	 * 64-bit FNV-1a, followed by a finalizer so that similar domains land far apart on the ring.
+	 */
+	static long hash(String value) {
+		return hash(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	static long hash(byte[] value) {
+		long hash = FNV_OFFSET_BASIS;
+		for(byte b : value) {
+			hash ^= (b & 0xff);
+			hash *= FNV_PRIME;
+		}
+
+		hash ^= (hash >>> 33);
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= (hash >>> 33);
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= (hash >>> 33);
+
+		return hash;
+	}
+
+	/**
+	 * The number of calls made to a shard, their total and maximum latency, and the number that failed.
+	 *
+	 * @author N F
+	 */
+	public static class ShardStats {
+		private final LongAdder calls = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final AtomicLong maxNanos = new AtomicLong();
+		private final LongAdder errors = new LongAdder();
+
+		void record(long nanos) {
+			calls.increment();
+			totalNanos.add(nanos);
+			maxNanos.accumulateAndGet(nanos, Math::max);
+		}
+
+		public long getCallCount() {
+			return calls.sum();
+		}
+
+		public long getErrorCount() {
+			return errors.sum();
+		}
+
+		public long getTotalLatencyNanos() {
+			return totalNanos.sum();
+		}
+
+		public long getMaxLatencyNanos() {
+			return maxNanos.get();
+		}
+
+		/**
+		 * @return The average latency in nanoseconds, or 0 if there have been no calls
+		 */
+		public long getAverageLatencyNanos() {
+			long count = calls.sum();
+
+			return count == 0 ? 0 : totalNanos.sum() / count;
+		}
+	}
+
+}
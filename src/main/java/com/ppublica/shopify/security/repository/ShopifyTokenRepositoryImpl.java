@@ -1,12 +1,18 @@
 package com.ppublica.shopify.security.repository;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Arrays;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 
@@ -14,6 +20,12 @@ import com.ppublica.shopify.security.service.EncryptedTokenAndSalt;
 
 /**
  * An implementation of TokenRepository that persists to a SQL database.
+ * 
+ * <p>Reads can be sent to a separate JdbcTemplate (for example, one backed by a pool of connections to read 
+ * replicas) by calling {@link #setReadJdbc(JdbcTemplate)}. Writes always go to the JdbcTemplate set with 
+ * {@link #setJdbc(JdbcTemplate)}. Since replicas may lag, a store that was saved, updated or uninstalled is read 
+ * from the primary for the read-after-write window that follows.</p>
+ * 
  * @author N F
  *
  */
@@ -23,11 +35,79 @@ public class ShopifyTokenRepositoryImpl implements TokenRepository {
 	private static final String SAVE_ACCESS_TOKEN = "INSERT INTO StoreAccessTokens(storeDomain,tokenType,tokenValue,salt,issuedAt,expiresAt,scopes) VALUES(?,?,?,?,?,?,?)";
 	private static final String UPDATE_TOKEN_FOR_STORE = "UPDATE StoreAccessTokens SET tokenType=?, tokenValue=?, salt=?, issuedAt=?, expiresAt=?, scopes=? WHERE storeDomain=?";
 	private static final String REMOVE_STORE = "DELETE FROM StoreAccessTokens WHERE storeDomain=?";
+	private static final String SELECT_FIRST_STORES = "SELECT id, storeDomain, tokenType, tokenValue, salt, issuedAt, expiresAt, scopes FROM StoreAccessTokens ORDER BY id";
+	private static final String SELECT_STORES_AFTER = "SELECT id, storeDomain, tokenType, tokenValue, salt, issuedAt, expiresAt, scopes FROM StoreAccessTokens WHERE id>? ORDER BY id";
+	private static final String SELECT_FIRST_STORES_WITH_LAST_SEEN = "SELECT id, storeDomain, tokenType, tokenValue, salt, issuedAt, expiresAt, scopes, lastSeen FROM StoreAccessTokens ORDER BY id";
+	private static final String SELECT_STORES_AFTER_WITH_LAST_SEEN = "SELECT id, storeDomain, tokenType, tokenValue, salt, issuedAt, expiresAt, scopes, lastSeen FROM StoreAccessTokens WHERE id>? ORDER BY id";
+	private static final String SELECT_RECENT_STORES = "SELECT id, storeDomain, tokenType, tokenValue, salt, issuedAt, expiresAt, scopes FROM StoreAccessTokens ORDER BY issuedAt DESC, id DESC";
+	private static final String SELECT_RECENTLY_SEEN_STORES = "SELECT id, storeDomain, tokenType, tokenValue, salt, issuedAt, expiresAt, scopes, lastSeen FROM StoreAccessTokens ORDER BY COALESCE(lastSeen, issuedAt) DESC, id DESC";
+	private static final String UPDATE_LAST_SEEN = "UPDATE StoreAccessTokens SET lastSeen=? WHERE storeDomain=? AND (lastSeen IS NULL OR lastSeen<?)";
+	private static final String UPDATE_ENCRYPTED_TOKEN = "UPDATE StoreAccessTokens SET tokenValue=?, salt=? WHERE storeDomain=? AND salt=?";
+	private static final String REMOVE_UNCHANGED_STORE = "DELETE FROM StoreAccessTokens WHERE storeDomain=? AND salt=?";
+	private static final String REMOVE_UNCHANGED_AND_UNSEEN_STORE = "DELETE FROM StoreAccessTokens WHERE storeDomain=? AND salt=? AND COALESCE(lastSeen, 0)<=?";
+	
+	/**
+	 * The default time, in milliseconds, a store is read from the primary after it's written: 5000.
+	 */
+	public static final long DEFAULT_READ_AFTER_WRITE_WINDOW = 5000L;
+	
+	private static final int MAX_RECENT_WRITES = 10000;
+	private static final int RECENT_STORES_FETCH_SIZE = 500;
+	
 	private JdbcTemplate jdbc;
+	private JdbcTemplate readJdbc;
+	private long readAfterWriteWindow = DEFAULT_READ_AFTER_WRITE_WINDOW;
+	private final Map<String, Long> recentWrites = new ConcurrentHashMap<>();
+	private boolean lastSeenColumn;
+	private ScopeDictionary scopeDictionary = ScopeDictionary.getShared();
+	private PersistedStoreAccessTokenMapper mapper = new PersistedStoreAccessTokenMapper(scopeDictionary);
+	private PersistedStoreAccessTokenMapper lastSeenMapper = new PersistedStoreAccessTokenMapper(scopeDictionary, true);
 	
 	public void setJdbc(JdbcTemplate jdbc) {
 		this.jdbc = jdbc;
 	}
+	
+	/**
+	 * Set the JdbcTemplate that findTokenForStore and findStoresAfter use. If not set, all queries use the 
+	 * JdbcTemplate set with setJdbc.
+	 * 
+	 * @param readJdbc The JdbcTemplate for reads, usually connected to a replica
+	 */
+	public void setReadJdbc(JdbcTemplate readJdbc) {
+		this.readJdbc = readJdbc;
+	}
+	
+	/**
+	 * Set how long a store is read from the primary after it's written, so that a replica that hasn't caught up 
+	 * isn't read. Defaults to 5000ms.
+	 * 
+	 * @param readAfterWriteWindow The window in milliseconds
+	 */
+	public void setReadAfterWriteWindow(long readAfterWriteWindow) {
+		this.readAfterWriteWindow = readAfterWriteWindow;
+	}
+	
+	/**
+	 * Set whether the StoreAccessTokens table has a lastSeen column (added by version 2 of StoreAccessTokensSchema). 
+	 * If it does, findRecentStores orders stores by when they were last seen, findStoresAfter reads the lastSeen 
+	 * column, and uninstallStoresIfUnchanged keeps stores seen since they were read. Defaults to false.
+	 * 
+	 * @param lastSeenColumn true if the table has a lastSeen column
+	 */
+	public void setLastSeenColumn(boolean lastSeenColumn) {
+		this.lastSeenColumn = lastSeenColumn;
+	}
+	
+	/**
+	 * Set the ScopeDictionary used to read and write the scopes column. Defaults to ScopeDictionary.getShared().
+	 * 
+	 * @param scopeDictionary The ScopeDictionary
+	 */
+	public void setScopeDictionary(ScopeDictionary scopeDictionary) {
+		this.scopeDictionary = scopeDictionary;
+		this.mapper = new PersistedStoreAccessTokenMapper(scopeDictionary);
+		this.lastSeenMapper = new PersistedStoreAccessTokenMapper(scopeDictionary, true);
+	}
 
 	@Override
 	public PersistedStoreAccessToken findTokenForStore(String store) {
@@ -35,7 +115,7 @@ public class ShopifyTokenRepositoryImpl implements TokenRepository {
 		PersistedStoreAccessToken token = null;
 		
 		try {
-			token = jdbc.queryForObject(SELECT_INFO_FOR_SHOP, new PersistedStoreAccessTokenMapper(), store);
+			token = readJdbcFor(store).queryForObject(SELECT_INFO_FOR_SHOP, mapper, store);
 		} catch(EmptyResultDataAccessException ex) {
 			token = null;
 
@@ -48,35 +128,44 @@ public class ShopifyTokenRepositoryImpl implements TokenRepository {
 	 * An implementation of RowMapper that instantiates a PersistedStoreAccessToken from the data returned from
 	 * a database call for a store's OAuth token.
 	 * 
+	 * <p>Columns are read by index, so the query must select id, storeDomain, tokenType, tokenValue, salt, issuedAt, 
+	 * expiresAt, scopes in that order, followed by lastSeen if the mapper reads it.</p>
+	 * 
 	 * @author N F
 	 *
 	 */
 	static class PersistedStoreAccessTokenMapper implements RowMapper<PersistedStoreAccessToken> {
+		
+		private final ScopeDictionary scopeDictionary;
+		private final boolean withLastSeen;
+		
+		PersistedStoreAccessTokenMapper() {
+			this(ScopeDictionary.getShared());
+		}
+		
+		PersistedStoreAccessTokenMapper(ScopeDictionary scopeDictionary) {
+			this(scopeDictionary, false);
+		}
+		
+		PersistedStoreAccessTokenMapper(ScopeDictionary scopeDictionary, boolean withLastSeen) {
+			this.scopeDictionary = scopeDictionary;
+			this.withLastSeen = withLastSeen;
+		}
 
 		@Override
 		public PersistedStoreAccessToken mapRow(ResultSet rs, int arg) throws SQLException {
-			Long id = rs.getLong("id");
-			String storeDomain = rs.getString("storeDomain");
-			String tokenType = rs.getString("tokenType");
-			String tokenValue = rs.getString("tokenValue");
-			String salt = rs.getString("salt");
-			Long issuedAt = rs.getLong("issuedAt");
-			Long expiresAt = rs.getLong("expiresAt");
-			String scopesString = rs.getString("scopes");
-			
-			Set<String> scopes = Arrays.asList(scopesString.split(","))
-										.stream()
-											.map(i -> i.trim())
-											.collect(Collectors.toSet());
-			
 			PersistedStoreAccessToken token = new PersistedStoreAccessToken();
-			token.setId(id);
-			token.setStoreDomain(storeDomain);
-			token.setTokenType(tokenType);
-			token.setIssuedAt(issuedAt);
-			token.setExpiresAt(expiresAt);
-			token.setScopes(scopes);
-			token.setTokenAndSalt(new EncryptedTokenAndSalt(tokenValue, salt));
+			token.setId(rs.getLong(1));
+			token.setStoreDomain(rs.getString(2));
+			token.setTokenType(rs.getString(3));
+			token.setTokenAndSalt(new EncryptedTokenAndSalt(rs.getString(4), rs.getString(5)));
+			token.setIssuedAt(rs.getLong(6));
+			token.setExpiresAt(rs.getLong(7));
+			token.setScopes(scopeDictionary.decode(rs.getString(8)));
+			if(withLastSeen) {
+				long lastSeen = rs.getLong(9);
+				token.setLastSeen(rs.wasNull() ? null : lastSeen);
+			}
 			
 			return token;
 			
@@ -92,6 +181,8 @@ public class ShopifyTokenRepositoryImpl implements TokenRepository {
 		jdbc.update(SAVE_ACCESS_TOKEN, accessToken.getStoreDomain(), accessToken.getTokenType(), 
 					accessToken.getTokenAndSalt().getEncryptedToken(), accessToken.getTokenAndSalt().getSalt(), 
 					accessToken.getIssuedAt(), accessToken.getExpiresAt(), getScopeString(accessToken.getScopes()));
+		
+		markWritten(accessToken.getStoreDomain());
 
 	}
 
@@ -104,6 +195,8 @@ public class ShopifyTokenRepositoryImpl implements TokenRepository {
 				accessToken.getStoreDomain());	
 		} catch(EmptyResultDataAccessException ex) {
 			return;
+		} finally {
+			markWritten(accessToken.getStoreDomain());
 		}
 	}
 
@@ -113,12 +206,207 @@ public class ShopifyTokenRepositoryImpl implements TokenRepository {
 			jdbc.update(REMOVE_STORE, storeName);
 		} catch(EmptyResultDataAccessException ex) {
 			return;
+		} finally {
+			markWritten(storeName);
+		}
+	}
+	
+	/**
+	 * Find the next page of stores. The page size is applied with Statement.setMaxRows (and used as the fetch size)
+	 * rather than with a LIMIT clause, so the query is the same for every database. The stores are read with the 
+	 * read JdbcTemplate, if set, and include when they were last seen if the table has a lastSeen column.
+	 * 
+	 * @param lastId The id of the last store of the previous page, or null for the first page
+	 * @param limit The maximum number of stores to return
+	 * @return The stores, or an empty list if there are no more
+	 */
+	@Override
+	public List<PersistedStoreAccessToken> findStoresAfter(Long lastId, int limit) {
+		return (readJdbc == null ? jdbc : readJdbc).query(con -> {
+			PreparedStatement ps = con.prepareStatement(lastSeenColumn ? (lastId == null ? SELECT_FIRST_STORES_WITH_LAST_SEEN : SELECT_STORES_AFTER_WITH_LAST_SEEN)
+					: (lastId == null ? SELECT_FIRST_STORES : SELECT_STORES_AFTER));
+			ps.setMaxRows(limit);
+			ps.setFetchSize(limit);
+			if(lastId != null) {
+				ps.setLong(1, lastId);
+			}
+			return ps;
+		}, lastSeenColumn ? lastSeenMapper : mapper);
+	}
+
+	/**
+	 * Find the stores that were most recently seen (if the table has a lastSeen column, which is then read too) or 
+	 * otherwise installed or re-authorized. At most limit rows are read (with Statement.setMaxRows), and they're 
+	 * fetched from the database in pages of up to 500. The stores are read with the read JdbcTemplate, if set.
+	 * 
+	 * @param limit The maximum number of stores to return
+	 * @return The stores, most recent first
+	 */
+	@Override
+	public List<PersistedStoreAccessToken> findRecentStores(int limit) {
+		return (readJdbc == null ? jdbc : readJdbc).query(con -> {
+			PreparedStatement ps = con.prepareStatement(lastSeenColumn ? SELECT_RECENTLY_SEEN_STORES : SELECT_RECENT_STORES);
+			ps.setMaxRows(limit);
+			ps.setFetchSize(Math.min(limit, RECENT_STORES_FETCH_SIZE));
+			return ps;
+		}, lastSeenColumn ? lastSeenMapper : mapper);
+	}
+
+	/**
+	 * Save when the stores were last seen in a single batch. A store's time is only replaced by a later one, so 
+	 * several instances of the application can flush in any order. Requires a lastSeen column.
+	 * 
+	 * @param lastSeen The time each store was last seen, by full shop domain
+	 * @return The number of stores updated
+	 */
+	@Override
+	public int updateLastSeen(Map<String, Long> lastSeen) {
+		if(lastSeen.isEmpty()) {
+			return 0;
+		}
+		List<Map.Entry<String, Long>> entries = new ArrayList<>(lastSeen.entrySet());
+		
+		int[] counts = jdbc.batchUpdate(UPDATE_LAST_SEEN, new BatchPreparedStatementSetter() {
+
+			@Override
+			public void setValues(PreparedStatement ps, int i) throws SQLException {
+				Map.Entry<String, Long> entry = entries.get(i);
+				ps.setLong(1, entry.getValue());
+				ps.setString(2, entry.getKey());
+				ps.setLong(3, entry.getValue());
+			}
+
+			@Override
+			public int getBatchSize() {
+				return entries.size();
+			}
+			
+		});
+		
+		return countUpdated(counts);
+	}
+
+	/**
+	 * Replace the encrypted tokens in a single batch. A store is only updated if its salt hasn't changed since the
+	 * token was read. Like a saved or updated store, each store is then read from the primary for the 
+	 * read-after-write window, so a lagging replica doesn't return the previous token.
+	 * 
+	 * @param tokens The re-encrypted tokens
+	 * @return The number of stores updated
+	 */
+	@Override
+	public int updateEncryptedTokens(List<ReEncryptedToken> tokens) {
+		if(tokens.isEmpty()) {
+			return 0;
+		}
+		
+		int[] counts = jdbc.batchUpdate(UPDATE_ENCRYPTED_TOKEN, new BatchPreparedStatementSetter() {
+
+			@Override
+			public void setValues(PreparedStatement ps, int i) throws SQLException {
+				ReEncryptedToken token = tokens.get(i);
+				ps.setString(1, token.getCurrent().getEncryptedToken());
+				ps.setString(2, token.getCurrent().getSalt());
+				ps.setString(3, token.getStoreDomain());
+				ps.setString(4, token.getPrevious().getSalt());
+			}
+
+			@Override
+			public int getBatchSize() {
+				return tokens.size();
+			}
+			
+		});
+		
+		for(ReEncryptedToken token : tokens) {
+			markWritten(token.getStoreDomain());
+		}
+		
+		return countUpdated(counts);
+	}
+	
+	/**
+	 * Uninstall the stores in a single batch. A store is only deleted if its salt hasn't changed since it was read 
+	 * and, if the table has a lastSeen column, it hasn't been seen since.
+	 * 
+	 * @param stores The stores, as read with findStoresAfter
+	 * @return The number of stores uninstalled
+	 */
+	@Override
+	public int uninstallStoresIfUnchanged(List<PersistedStoreAccessToken> stores) {
+		if(stores.isEmpty()) {
+			return 0;
+		}
+		
+		int[] counts = jdbc.batchUpdate(lastSeenColumn ? REMOVE_UNCHANGED_AND_UNSEEN_STORE : REMOVE_UNCHANGED_STORE, new BatchPreparedStatementSetter() {
+
+			@Override
+			public void setValues(PreparedStatement ps, int i) throws SQLException {
+				PersistedStoreAccessToken store = stores.get(i);
+				ps.setString(1, store.getStoreDomain());
+				ps.setString(2, store.getTokenAndSalt() == null ? null : store.getTokenAndSalt().getSalt());
+				if(lastSeenColumn) {
+					ps.setLong(3, store.getLastSeen() == null ? 0L : store.getLastSeen());
+				}
+			}
+
+			@Override
+			public int getBatchSize() {
+				return stores.size();
+			}
+			
+		});
+		
+		for(PersistedStoreAccessToken store : stores) {
+			markWritten(store.getStoreDomain());
+		}
+		
+		return countUpdated(counts);
+	}
+	
+	private static int countUpdated(int[] counts) {
+		int updated = 0;
+		for(int count : counts) {
+			updated += (count == Statement.SUCCESS_NO_INFO) ? 1 : Math.max(count, 0);
+		}
+		
+		return updated;
+	}
+	
+	/*
+	 * Use the primary if there's no read JdbcTemplate or if the store was written within the window.
+	 */
+	private JdbcTemplate readJdbcFor(String store) {
+		if(readJdbc == null) {
+			return jdbc;
+		}
+		
+		Long writtenAt = recentWrites.get(store);
+		if(writtenAt != null) {
+			if(System.nanoTime() - writtenAt < TimeUnit.MILLISECONDS.toNanos(readAfterWriteWindow)) {
+				return jdbc;
+			}
+			recentWrites.remove(store, writtenAt);
+		}
+		
+		return readJdbc;
+	}
+	
+	private void markWritten(String store) {
+		if(readJdbc == null || readAfterWriteWindow <= 0 || store == null) {
+			return;
+		}
+		
+		long now = System.nanoTime();
+		if(recentWrites.size() >= MAX_RECENT_WRITES) {
+			long window = TimeUnit.MILLISECONDS.toNanos(readAfterWriteWindow);
+			recentWrites.values().removeIf(writtenAt -> now - writtenAt >= window);
 		}
+		recentWrites.put(store, now);
 	}
 	
 	private String getScopeString(Set<String> scopes) {
-		return scopes.stream()
-				.collect(Collectors.joining(","));
+		return scopeDictionary.encode(scopes);
 	}
 	
 	
@@ -0,0 +1,288 @@
+package com.ppublica.shopify.security.repository;
+
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Creates and checks the StoreAccessTokens table that ShopifyTokenRepositoryImpl reads and writes.
+ *
+ * <p>{@link #initialize()} brings the schema up to {@link #CURRENT_VERSION}, recording the version it reached in
+ * the StoreAccessTokensSchema table. Every step checks the database's metadata before changing anything, so it
+ * can be run against a table that was created by hand: only what's missing is added. The DDL is adapted to the
+ * database (HSQLDB, H2, PostgreSQL, MySQL/MariaDB, SQL Server, or standard SQL for anything else).</p>
+ *
+ * <ul>
+ * 	<li>Version 1: the StoreAccessTokens table, and a unique index on storeDomain (and an index on registrationId,
+ * 	if the table has that column)</li>
+ * 	<li>Version 2: a lastSeen column, and an index on it, for StoreLastSeenTracker</li>
+ * 	<li>Version 3: an index on issuedAt, for finding the most recently installed stores</li>
+ * </ul>
+ *
+ * <p>Without the unique index, every lookup, update and uninstall by store domain scans the whole table.
+ * {@link #checkIndexes()} only reads the metadata, and logs a warning if the index is missing.</p>
+ *
+ * @author N F
+ * @see ShopifyTokenRepositoryImpl
+ */
+public class StoreAccessTokensSchema {
+	private final Log logger = LogFactory.getLog(StoreAccessTokensSchema.class);
+
+	/**
+	 * The schema version initialize() brings the database to: 3.
+	 */
+	public static final int CURRENT_VERSION = 3;
+
+	static final String TABLE = "StoreAccessTokens";
+	static final String VERSION_TABLE = "StoreAccessTokensSchema";
+	static final String STORE_DOMAIN_INDEX = "StoreAccessTokens_storeDomain";
+	static final String REGISTRATION_ID_INDEX = "StoreAccessTokens_registrationId";
+	static final String LAST_SEEN_INDEX = "StoreAccessTokens_lastSeen";
+	static final String ISSUED_AT_INDEX = "StoreAccessTokens_issuedAt";
+
+	private final JdbcTemplate jdbc;
+
+	public StoreAccessTokensSchema(JdbcTemplate jdbc) {
+		this.jdbc = jdbc;
+	}
+
+	/**
+	 * Create whatever is missing from the schema, and record the version.
+	 *
+	 * @throws IllegalStateException if the unique index can't be created (for example, because a store appears twice)
+	 */
+	public synchronized void initialize() {
+		int version = getVersion();
+
+		if(version >= CURRENT_VERSION) {
+			logger.debug("The StoreAccessTokens schema is at version " + version);
+			return;
+		}
+
+		Dialect dialect = getDialect();
+		logger.info("Initializing the StoreAccessTokens schema from version " + version + " to " + CURRENT_VERSION + " (" + dialect + ")");
+
+		if(!tableExists(TABLE)) {
+			jdbc.execute(dialect.createTable());
+		}
+
+		if(!hasUniqueIndexOn("storeDomain")) {
+			try {
+				jdbc.execute("CREATE UNIQUE INDEX " + STORE_DOMAIN_INDEX + " ON " + TABLE + "(storeDomain)");
+			} catch(DataAccessException ex) {
+				throw new IllegalStateException("Unable to create a unique index on StoreAccessTokens.storeDomain. Remove any store that appears more than once and try again.", ex);
+			}
+		}
+
+		if(columnExists("registrationId") && !hasIndexOn("registrationId", false)) {
+			jdbc.execute("CREATE INDEX " + REGISTRATION_ID_INDEX + " ON " + TABLE + "(registrationId)");
+		}
+
+		if(!columnExists("lastSeen")) {
+			jdbc.execute(dialect.addColumn("lastSeen BIGINT"));
+		}
+		if(!hasIndexOn("lastSeen", false)) {
+			jdbc.execute("CREATE INDEX " + LAST_SEEN_INDEX + " ON " + TABLE + "(lastSeen)");
+		}
+
+		if(!hasIndexOn("issuedAt", false)) {
+			jdbc.execute("CREATE INDEX " + ISSUED_AT_INDEX + " ON " + TABLE + "(issuedAt)");
+		}
+
+		if(!tableExists(VERSION_TABLE)) {
+			jdbc.execute("CREATE TABLE " + VERSION_TABLE + "(version INT NOT NULL)");
+		}
+		jdbc.update("DELETE FROM " + VERSION_TABLE);
+		jdbc.update("INSERT INTO " + VERSION_TABLE + "(version) VALUES(?)", CURRENT_VERSION);
+	}
+
+	/**
+	 * Check that StoreAccessTokens has a unique index on storeDomain, logging a warning if it doesn't.
+	 *
+	 * @return true if the table has the index, false if it's missing or the table doesn't exist
+	 */
+	public boolean checkIndexes() {
+		if(!tableExists(TABLE)) {
+			logger.warn("The StoreAccessTokens table does not exist. Set ppublica.shopify.security.schema.initialize=true to create it.");
+			return false;
+		}
+		if(!hasUniqueIndexOn("storeDomain")) {
+			logger.warn("StoreAccessTokens has no unique index on storeDomain, so every lookup scans the table. "
+					+ "Set ppublica.shopify.security.schema.initialize=true to create it.");
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return true if StoreAccessTokens has the lastSeen column that StoreLastSeenTracker writes to
+	 */
+	public boolean hasLastSeenColumn() {
+		return columnExists("lastSeen");
+	}
+
+	/**
+	 * @return The version recorded by initialize(), or 0 if the schema was never initialized
+	 */
+	public int getVersion() {
+		if(!tableExists(VERSION_TABLE)) {
+			return 0;
+		}
+		Integer version = jdbc.queryForObject("SELECT MAX(version) FROM " + VERSION_TABLE, Integer.class);
+
+		return version == null ? 0 : version;
+	}
+
+	Dialect getDialect() {
+		return jdbc.execute((ConnectionCallback<Dialect>) con -> Dialect.of(con.getMetaData().getDatabaseProductName()));
+	}
+
+	boolean tableExists(String table) {
+		return jdbc.execute((ConnectionCallback<Boolean>) con -> {
+			DatabaseMetaData metaData = con.getMetaData();
+
+			for(String name : candidateNames(table)) {
+				try(ResultSet rs = metaData.getTables(null, null, name, new String[] {"TABLE"})) {
+					if(rs.next()) {
+						return true;
+					}
+				}
+			}
+			return false;
+		});
+	}
+
+	boolean columnExists(String column) {
+		return jdbc.execute((ConnectionCallback<Boolean>) con -> {
+			DatabaseMetaData metaData = con.getMetaData();
+
+			for(String name : candidateNames(TABLE)) {
+				try(ResultSet rs = metaData.getColumns(null, null, name, null)) {
+					while(rs.next()) {
+						if(column.equalsIgnoreCase(rs.getString("COLUMN_NAME"))) {
+							return true;
+						}
+					}
+				}
+			}
+			return false;
+		});
+	}
+
+	boolean hasUniqueIndexOn(String column) {
+		return hasIndexOn(column, true);
+	}
+
+	/*
+	 * True if an index (unique, if required) has exactly this one column. A composite index that only starts
+	 * with the column would allow duplicate store domains, so it's not counted as unique.
+	 */
+	boolean hasIndexOn(String column, boolean unique) {
+		return jdbc.execute((ConnectionCallback<Boolean>) con -> {
+			DatabaseMetaData metaData = con.getMetaData();
+
+			for(String name : candidateNames(TABLE)) {
+				Map<String, List<String>> columnsByIndex = indexColumns(metaData, name, unique);
+
+				for(List<String> columns : columnsByIndex.values()) {
+					if(unique ? columns.size() == 1 && column.equalsIgnoreCase(columns.get(0))
+							: !columns.isEmpty() && column.equalsIgnoreCase(columns.get(0))) {
+						return true;
+					}
+				}
+			}
+			return false;
+		});
+	}
+
+	private static Map<String, List<String>> indexColumns(DatabaseMetaData metaData, String table, boolean unique) throws SQLException {
+		Map<String, List<String>> columnsByIndex = new LinkedHashMap<>();
+
+		try(ResultSet rs = metaData.getIndexInfo(null, null, table, unique, true)) {
+			while(rs.next()) {
+				String index = rs.getString("INDEX_NAME");
+				String column = rs.getString("COLUMN_NAME");
+				if(index == null || column == null) {
+					continue;
+				}
+				List<String> columns = columnsByIndex.computeIfAbsent(index, i -> new ArrayList<>());
+				int position = rs.getShort("ORDINAL_POSITION");
+				while(columns.size() < position) {
+					columns.add(null);
+				}
+				columns.set(Math.max(position - 1, 0), column);
+			}
+		}
+
+		return columnsByIndex;
+	}
+
+	/*
+	 * Unquoted names are stored in upper case by some databases and lower case by others.
+	 */
+	private static String[] candidateNames(String name) {
+		return new String[] {name.toUpperCase(Locale.ROOT), name.toLowerCase(Locale.ROOT), name};
+	}
+
+	/**
+	 * The DDL differences between the supported databases: only the auto-incrementing id differs.
+	 */
+	enum Dialect {
+		HSQLDB("id BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY"),
+		H2("id BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY"),
+		POSTGRESQL("id BIGSERIAL PRIMARY KEY"),
+		MYSQL("id BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY"),
+		SQLSERVER("id BIGINT IDENTITY(1,1) PRIMARY KEY"),
+		STANDARD("id BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY");
+
+		private final String idColumn;
+
+		Dialect(String idColumn) {
+			this.idColumn = idColumn;
+		}
+
+		String createTable() {
+			return "CREATE TABLE " + TABLE + "(" + idColumn + ", storeDomain VARCHAR(255) NOT NULL, tokenType VARCHAR(50) NOT NULL, "
+					+ "tokenValue VARCHAR(1024) NOT NULL, salt VARCHAR(255) NOT NULL, issuedAt BIGINT NOT NULL, expiresAt BIGINT NOT NULL, "
+					+ "scopes VARCHAR(1024) NOT NULL)";
+		}
+
+		String addColumn(String column) {
+			return "ALTER TABLE " + TABLE + (this == SQLSERVER ? " ADD " : " ADD COLUMN ") + column;
+		}
+
+		static Dialect of(String productName) {
+			String name = productName == null ? "" : productName.toLowerCase(Locale.ROOT);
+
+			if(name.contains("hsql")) {
+				return HSQLDB;
+			}
+			if(name.equals("h2")) {
+				return H2;
+			}
+			if(name.contains("postgres")) {
+				return POSTGRESQL;
+			}
+			if(name.contains("mysql") || name.contains("mariadb")) {
+				return MYSQL;
+			}
+			if(name.contains("sql server")) {
+				return SQLSERVER;
+			}
+			return STANDARD;
+		}
+	}
+
+}
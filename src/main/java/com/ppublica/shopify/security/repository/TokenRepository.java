@@ -1,5 +1,9 @@
 package com.ppublica.shopify.security.repository;
 
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
 /**
  * Provides methods for directly interacting with the repository that contains the OAuth tokens.
  * @author N F
@@ -36,5 +40,95 @@ public interface TokenRepository {
 	 */
 	void uninstallStore(String storeName);
 	
+	/**
+	 * Find up to limit stores whose id is greater than lastId, ordered by id. Used to page through all the stores 
+	 * without holding a cursor open.
+	 * 
+	 * <p>The default implementation throws an UnsupportedOperationException.</p>
+	 * 
+	 * @param lastId The id of the last store of the previous page, or null for the first page
+	 * @param limit The maximum number of stores to return
+	 * @return The stores, or an empty list if there are no more
+	 */
+	default List<PersistedStoreAccessToken> findStoresAfter(Long lastId, int limit) {
+		throw new UnsupportedOperationException("This TokenRepository does not support paging through stores");
+	}
+	
+	/**
+	 * Find up to limit stores, most recently active first. Used to warm the StoreCache.
+	 * 
+	 * <p>The default implementation throws an UnsupportedOperationException.</p>
+	 * 
+	 * @param limit The maximum number of stores to return
+	 * @return The stores
+	 */
+	default List<PersistedStoreAccessToken> findRecentStores(int limit) {
+		throw new UnsupportedOperationException("This TokenRepository does not support finding recent stores");
+	}
+	
+	/**
+	 * Save when each store was last seen. A store's time is only replaced by a later one.
+	 * 
+	 * <p>The default implementation throws an UnsupportedOperationException.</p>
+	 * 
+	 * @param lastSeen The time each store was last seen, in milliseconds since the epoch, by full shop domain
+	 * @return The number of stores updated
+	 */
+	default int updateLastSeen(Map<String, Long> lastSeen) {
+		throw new UnsupportedOperationException("This TokenRepository does not support saving when stores were last seen");
+	}
+	
+	/**
+	 * Replace the encrypted tokens of the given stores, but only for stores whose encrypted token and salt are 
+	 * still the previous ones.
+	 * 
+	 * <p>The default implementation updates the stores one by one.</p>
+	 * 
+	 * @param tokens The re-encrypted tokens
+	 * @return The number of stores updated
+	 */
+	default int updateEncryptedTokens(List<ReEncryptedToken> tokens) {
+		int updated = 0;
+		
+		for(ReEncryptedToken reEncrypted : tokens) {
+			PersistedStoreAccessToken token = findTokenForStore(reEncrypted.getStoreDomain());
+			
+			if(token == null || token.getTokenAndSalt() == null
+					|| !reEncrypted.getPrevious().getSalt().equals(token.getTokenAndSalt().getSalt())) {
+				continue;
+			}
+			token.setTokenAndSalt(reEncrypted.getCurrent());
+			updateStore(token);
+			updated++;
+		}
+		
+		return updated;
+	}
+	
+	/**
+	 * Uninstall the given stores, but only those whose salt (and, if tracked, last-seen time) are still the ones 
+	 * that were read. A store that was reinstalled or seen since it was read is kept.
+	 * 
+	 * <p>The default implementation uninstalls the stores one by one, comparing only the salt.</p>
+	 * 
+	 * @param stores The stores, as read from this TokenRepository
+	 * @return The number of stores uninstalled
+	 */
+	default int uninstallStoresIfUnchanged(List<PersistedStoreAccessToken> stores) {
+		int uninstalled = 0;
+		
+		for(PersistedStoreAccessToken store : stores) {
+			PersistedStoreAccessToken token = findTokenForStore(store.getStoreDomain());
+			
+			if(token == null || token.getTokenAndSalt() == null || store.getTokenAndSalt() == null
+					|| !Objects.equals(store.getTokenAndSalt().getSalt(), token.getTokenAndSalt().getSalt())) {
+				continue;
+			}
+			uninstallStore(store.getStoreDomain());
+			uninstalled++;
+		}
+		
+		return uninstalled;
+	}
 	
 }
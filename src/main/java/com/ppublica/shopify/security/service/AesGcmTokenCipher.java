@@ -0,0 +1,130 @@
+package com.ppublica.shopify.security.service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.springframework.security.crypto.codec.Hex;
+
+import com.ppublica.shopify.security.authentication.CipherPassword;
+
+/**
+ * A TokenCipher that uses AES-256 in GCM mode.
+ * 
+ * <p>The AES key is derived from the CipherPassword once, when the cipher is created (PBKDF2 with HMAC-SHA256). 
+ * Each token is then encrypted with a random 96-bit nonce, which is stored in the salt column as "gcm:" followed 
+ * by the nonce in hexadecimal. The encrypted token, including the authentication tag, is stored in Base64. Since 
+ * no key derivation happens per token, and the JDK uses the CPU's AES instructions where available, encrypting or 
+ * decrypting a token takes microseconds.</p>
+ * 
+ * <p>The same password and key id always derive the same key, so tokens can be decrypted after a restart.</p>
+ * 
+ * @author N F
+ * @see QueryableTextTokenCipher
+ */
+public class AesGcmTokenCipher implements TokenCipher {
+	
+	/**
+	 * The prefix of every salt written by this cipher.
+	 */
+	public static final String SALT_PREFIX = "gcm:";
+	
+	/**
+	 * The number of PBKDF2 iterations used to derive the key: 100000.
+	 */
+	public static final int KEY_DERIVATION_ITERATIONS = 100000;
+	
+	private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+	private static final String KEY_DERIVATION_SALT = "ppublica.shopify.security.token-key:";
+	private static final int KEY_LENGTH = 256;
+	private static final int NONCE_LENGTH = 12;
+	private static final int TAG_LENGTH = 128;
+	
+	private static final SecureRandom random = new SecureRandom();
+	
+	private final String keyId;
+	private final SecretKey key;
+	
+	/**
+	 * Create an AesGcmTokenCipher, deriving its key from the password.
+	 * 
+	 * @param cipherPassword The CipherPassword
+	 */
+	public AesGcmTokenCipher(CipherPassword cipherPassword) {
+		if(cipherPassword == null || cipherPassword.getPassword() == null) {
+			throw new IllegalArgumentException("A CipherPassword is required");
+		}
+		this.keyId = cipherPassword.getKeyId();
+		this.key = deriveKey(cipherPassword);
+	}
+
+	@Override
+	public String getKeyId() {
+		return this.keyId;
+	}
+
+	@Override
+	public EncryptedTokenAndSalt encrypt(String rawToken) {
+		byte[] nonce = new byte[NONCE_LENGTH];
+		random.nextBytes(nonce);
+		
+		try {
+			Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+			cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, nonce));
+			byte[] encrypted = cipher.doFinal(rawToken.getBytes(StandardCharsets.UTF_8));
+			
+			return new EncryptedTokenAndSalt(Base64.getEncoder().encodeToString(encrypted), SALT_PREFIX + new String(Hex.encode(nonce)));
+		} catch(GeneralSecurityException e) {
+			throw new IllegalStateException("Unable to encrypt the token", e);
+		}
+	}
+
+	@Override
+	public String decrypt(String encryptedToken, String salt) {
+		if(!supports(salt)) {
+			throw new IllegalStateException("Not an AES-GCM salt");
+		}
+		
+		try {
+			byte[] nonce = Hex.decode(salt.substring(SALT_PREFIX.length()));
+			
+			Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+			cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, nonce));
+			byte[] decrypted = cipher.doFinal(Base64.getDecoder().decode(encryptedToken));
+			
+			return new String(decrypted, StandardCharsets.UTF_8);
+		} catch(GeneralSecurityException | IllegalArgumentException e) {
+			throw new IllegalStateException("Unable to decrypt the token", e);
+		}
+	}
+
+	@Override
+	public boolean supports(String salt) {
+		return salt != null && salt.startsWith(SALT_PREFIX) && salt.length() == SALT_PREFIX.length() + NONCE_LENGTH * 2;
+	}
+	
+	private static SecretKey deriveKey(CipherPassword cipherPassword) {
+		String derivationSalt = KEY_DERIVATION_SALT + (cipherPassword.getKeyId() == null ? "" : cipherPassword.getKeyId());
+		PBEKeySpec spec = new PBEKeySpec(cipherPassword.getPassword().toCharArray(), derivationSalt.getBytes(StandardCharsets.UTF_8),
+				KEY_DERIVATION_ITERATIONS, KEY_LENGTH);
+		
+		try {
+			byte[] derived = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+			
+			return new SecretKeySpec(derived, "AES");
+		} catch(GeneralSecurityException e) {
+			throw new IllegalStateException("Unable to derive the token key", e);
+		} finally {
+			spec.clearPassword();
+		}
+	}
+
+}
@@ -0,0 +1,173 @@
+package com.ppublica.shopify.security.service;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Limits the concurrency of blocking work (JDBC calls, the HTTP token exchange): each task runs on a dedicated
+ * ExecutorService, and a Semaphore caps the number of tasks in flight.
+ *
+ * <p>This is a concurrency limiter, not an asynchronous hand-off. The calling thread waits for a permit and then for
+ * the result, so a servlet thread is never freed while the task runs; what's bounded is how many tasks hit the
+ * database or Shopify at once, so that an install storm can't exhaust the connection pool.</p>
+ *
+ * <p>The limit is enforced with a fair Semaphore rather than a synchronized block, so a virtual thread waiting for
+ * a permit unmounts from its carrier instead of pinning it.</p>
+ *
+ * <p>When created via {@link #newDefault(int)}, a virtual-thread-per-task executor is used if the JDK provides one
+ * (JDK 21+). On older JDKs, a cached pool of daemon platform threads is used instead.</p>
+ *
+ * @author N F
+ * @see com.ppublica.shopify.security.repository.ExecutorTokenRepository
+ * @see com.ppublica.shopify.security.web.ShopifyAuthorizationCodeTokenResponseClient
+ */
+public class BoundedBlockingExecutor {
+	private static final Log logger = LogFactory.getLog(BoundedBlockingExecutor.class);
+
+	private final ExecutorService executor;
+	private final Semaphore permits;
+	private final int maxConcurrency;
+
+	/**
+	 * Build a BoundedBlockingExecutor.
+	 *
+	 * @param executor The ExecutorService that runs the blocking tasks
+	 * @param maxConcurrency The maximum number of tasks allowed to run at the same time
+	 */
+	public BoundedBlockingExecutor(ExecutorService executor, int maxConcurrency) {
+		if(executor == null) {
+			throw new IllegalArgumentException("An ExecutorService is required");
+		}
+		if(maxConcurrency < 1) {
+			throw new IllegalArgumentException("The maximum concurrency must be at least 1");
+		}
+		this.executor = executor;
+		this.maxConcurrency = maxConcurrency;
+		this.permits = new Semaphore(maxConcurrency, true);
+	}
+
+	/**
+	 * Create a BoundedBlockingExecutor backed by virtual threads if available, or by platform threads otherwise.
+	 *
+	 * @param maxConcurrency The maximum number of tasks allowed to run at the same time
+	 * @return The BoundedBlockingExecutor
+	 */
+	public static BoundedBlockingExecutor newDefault(int maxConcurrency) {
+		return new BoundedBlockingExecutor(newVirtualThreadExecutorOrFallback(), maxConcurrency);
+	}
+
+	/**
+	 * Run the task on the executor and wait for its result. Unchecked exceptions thrown by the task are rethrown
+	 * as-is; checked exceptions are wrapped in a RuntimeException.
+	 *
+	 * @param task The blocking task
+	 * @param <T> The result type
+	 * @return The result of the task
+	 * @throws IllegalStateException if interrupted while waiting for a permit or for the result
+	 */
+	public <T> T execute(Callable<T> task) {
+		try {
+			permits.acquire();
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting to run a blocking task", ex);
+		}
+
+		try {
+			CompletableFuture<T> future = CompletableFuture.supplyAsync(() -> {
+				try {
+					return task.call();
+				} catch(RuntimeException ex) {
+					throw ex;
+				} catch(Exception ex) {
+					throw new CompletionException(ex);
+				}
+			}, executor);
+
+			return future.get();
+
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for a blocking task", ex);
+		} catch(ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if(cause instanceof CompletionException && cause.getCause() != null) {
+				cause = cause.getCause();
+			}
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			if(cause instanceof Error) {
+				throw (Error)cause;
+			}
+			throw new RuntimeException(cause);
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Run a task that has no result.
+	 *
+	 * @param task The blocking task
+	 */
+	public void execute(Runnable task) {
+		execute(() -> {
+			task.run();
+			return null;
+		});
+	}
+
+	/**
+	 * @return The maximum number of tasks allowed to run at the same time
+	 */
+	public int getMaxConcurrency() {
+		return this.maxConcurrency;
+	}
+
+	/**
+	 * @return The number of tasks that are currently running or waiting for a result
+	 */
+	public int getActiveCount() {
+		return this.maxConcurrency - this.permits.availablePermits();
+	}
+
+	/**
+	 * Stop accepting new tasks. Tasks already submitted are allowed to complete.
+	 */
+	public void shutdown() {
+		this.executor.shutdown();
+	}
+
+	/*
+	 * Executors.newVirtualThreadPerTaskExecutor() is looked up reflectively so that the library still runs on
+	 * Java 8.
+	 */
+	static ExecutorService newVirtualThreadExecutorOrFallback() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			ExecutorService virtualThreadExecutor = (ExecutorService)factory.invoke(null);
+			logger.debug("Using a virtual-thread-per-task executor for blocking tasks");
+
+			return virtualThreadExecutor;
+		} catch(ReflectiveOperationException ex) {
+			logger.debug("Virtual threads unavailable. Using platform threads for blocking tasks");
+		}
+
+		return Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "shopify-blocking");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+}
@@ -0,0 +1,235 @@
+package com.ppublica.shopify.security.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import com.ppublica.shopify.security.authentication.CipherPassword;
+
+/**
+ * Holds the TokenCipher for the current CipherPassword and the TokenCiphers for any previous ones, and uses them to 
+ * encrypt and decrypt access tokens.
+ * 
+ * <p>Tokens are always encrypted with the current cipher. If it has a key id, the key id is stored as a prefix 
+ * of the salt, in the form "{keyId}salt", so that the salt column of StoreAccessTokens records which password 
+ * encrypted the token. A salt without a prefix belongs to the legacy password (the one without a key id).</p>
+ * 
+ * <p>When created from CipherPasswords, new tokens are encrypted in the queryable text format unless AES-GCM is 
+ * chosen, and every password can decrypt both formats, so switching the algorithm leaves existing tokens readable. 
+ * Tokens in the other format are re-encrypted like tokens encrypted with a previous password.</p>
+ * 
+ * @author N F
+ * @see TokenService
+ * @see TokenReEncryptionJob
+ * @see TokenCipher
+ */
+public class CipherKeyRing {
+	
+	/**
+	 * The algorithm of AesGcmTokenCipher.
+	 */
+	public static final String ALGORITHM_AES_GCM = "aes-gcm";
+	
+	/**
+	 * The algorithm of QueryableTextTokenCipher.
+	 */
+	public static final String ALGORITHM_QUERYABLE_TEXT = "queryable-text";
+	
+	/**
+	 * The algorithm new tokens are encrypted with unless another one is chosen: queryable text, which earlier 
+	 * versions can read.
+	 */
+	public static final String DEFAULT_ALGORITHM = ALGORITHM_QUERYABLE_TEXT;
+	
+	private static final char KEY_ID_START = '{';
+	private static final char KEY_ID_END = '}';
+	
+	private final TokenCipher current;
+	private final List<TokenCipher> ciphers;
+	
+	/**
+	 * Create a CipherKeyRing with only the current password, encrypting with the default algorithm.
+	 * 
+	 * @param current The password new tokens are encrypted with
+	 */
+	public CipherKeyRing(CipherPassword current) {
+		this(current, Collections.emptyList());
+	}
+	
+	/**
+	 * Create a CipherKeyRing that encrypts with the default algorithm.
+	 * 
+	 * @param current The password new tokens are encrypted with
+	 * @param previous Passwords that are only used to decrypt existing tokens
+	 */
+	public CipherKeyRing(CipherPassword current, List<CipherPassword> previous) {
+		this(current, previous, DEFAULT_ALGORITHM);
+	}
+	
+	/**
+	 * Create a CipherKeyRing.
+	 * 
+	 * @param current The password new tokens are encrypted with
+	 * @param previous Passwords that are only used to decrypt existing tokens
+	 * @param algorithm The algorithm new tokens are encrypted with: "aes-gcm" or "queryable-text"
+	 */
+	public CipherKeyRing(CipherPassword current, List<CipherPassword> previous, String algorithm) {
+		if(current == null) {
+			throw new IllegalArgumentException("A current CipherPassword is required");
+		}
+		
+		Set<String> keyIds = new HashSet<>();
+		keyIds.add(current.getKeyId());
+		
+		List<CipherPassword> passwords = new ArrayList<>();
+		passwords.add(current);
+		if(previous != null) {
+			for(CipherPassword password : previous) {
+				if(!keyIds.add(password.getKeyId())) {
+					throw new IllegalArgumentException("Duplicate key id: " + password.getKeyId());
+				}
+				passwords.add(password);
+			}
+		}
+		
+		this.current = newCipher(current, algorithm);
+		
+		List<TokenCipher> all = new ArrayList<>();
+		for(CipherPassword password : passwords) {
+			all.add(password == current && this.current instanceof AesGcmTokenCipher ? this.current : new AesGcmTokenCipher(password));
+			all.add(password == current && this.current instanceof QueryableTextTokenCipher ? this.current : new QueryableTextTokenCipher(password));
+		}
+		this.ciphers = Collections.unmodifiableList(all);
+	}
+	
+	/**
+	 * Create a CipherKeyRing from custom TokenCiphers.
+	 * 
+	 * @param current The cipher new tokens are encrypted with
+	 * @param previous Ciphers that are only used to decrypt existing tokens
+	 */
+	public CipherKeyRing(TokenCipher current, List<TokenCipher> previous) {
+		if(current == null) {
+			throw new IllegalArgumentException("A current TokenCipher is required");
+		}
+		this.current = current;
+		
+		List<TokenCipher> all = new ArrayList<>();
+		all.add(current);
+		if(previous != null) {
+			all.addAll(previous);
+		}
+		this.ciphers = Collections.unmodifiableList(all);
+	}
+	
+	/**
+	 * Create the TokenCipher for the algorithm.
+	 * 
+	 * @param cipherPassword The CipherPassword
+	 * @param algorithm "aes-gcm" or "queryable-text"
+	 * @return The TokenCipher
+	 * @throws IllegalArgumentException if the algorithm is not supported
+	 */
+	public static TokenCipher newCipher(CipherPassword cipherPassword, String algorithm) {
+		if(ALGORITHM_AES_GCM.equals(algorithm)) {
+			return new AesGcmTokenCipher(cipherPassword);
+		}
+		if(ALGORITHM_QUERYABLE_TEXT.equals(algorithm)) {
+			return new QueryableTextTokenCipher(cipherPassword);
+		}
+		throw new IllegalArgumentException("Unsupported cipher algorithm: " + algorithm);
+	}
+	
+	/**
+	 * Encrypt the token with the current cipher.
+	 * 
+	 * @param rawToken The raw token
+	 * @return The encrypted token and the salt, prefixed with the key id if the current password has one
+	 */
+	public EncryptedTokenAndSalt encrypt(String rawToken) {
+		EncryptedTokenAndSalt encrypted = current.encrypt(rawToken);
+		
+		return new EncryptedTokenAndSalt(encrypted.getEncryptedToken(), toStoredSalt(current.getKeyId(), encrypted.getSalt()));
+	}
+	
+	/**
+	 * Decrypt the token with the cipher it was encrypted with.
+	 * 
+	 * @param encryptedTokenAndSalt The encrypted token and stored salt
+	 * @return The raw token, or null if the password is unknown or the token can't be decrypted
+	 */
+	public String decrypt(EncryptedTokenAndSalt encryptedTokenAndSalt) {
+		String storedSalt = encryptedTokenAndSalt.getSalt();
+		TokenCipher cipher = findCipher(getKeyId(storedSalt), getSalt(storedSalt));
+		
+		if(cipher == null) {
+			return null;
+		}
+		
+		try {
+			return cipher.decrypt(encryptedTokenAndSalt.getEncryptedToken(), getSalt(storedSalt));
+		} catch(Exception e) {
+			// the cipher password changed...
+			return null;
+		}
+	}
+	
+	/**
+	 * @param encryptedTokenAndSalt The encrypted token and stored salt
+	 * @return true if the token was encrypted with the current cipher
+	 */
+	public boolean isCurrent(EncryptedTokenAndSalt encryptedTokenAndSalt) {
+		String storedSalt = encryptedTokenAndSalt.getSalt();
+		
+		return Objects.equals(getKeyId(storedSalt), current.getKeyId()) && current.supports(getSalt(storedSalt));
+	}
+	
+	public TokenCipher getCurrent() {
+		return this.current;
+	}
+	
+	/**
+	 * Extract the key id from a stored salt.
+	 * 
+	 * @param storedSalt The salt as stored in the database
+	 * @return The key id, or null if the salt belongs to the legacy password
+	 */
+	public static String getKeyId(String storedSalt) {
+		if(storedSalt == null || storedSalt.isEmpty() || storedSalt.charAt(0) != KEY_ID_START) {
+			return null;
+		}
+		int end = storedSalt.indexOf(KEY_ID_END);
+		
+		return end < 0 ? null : storedSalt.substring(1, end);
+	}
+	
+	/**
+	 * Remove the key id from a stored salt.
+	 * 
+	 * @param storedSalt The salt as stored in the database
+	 * @return The salt used by the cipher
+	 */
+	public static String getSalt(String storedSalt) {
+		if(getKeyId(storedSalt) == null) {
+			return storedSalt;
+		}
+		return storedSalt.substring(storedSalt.indexOf(KEY_ID_END) + 1);
+	}
+	
+	private TokenCipher findCipher(String keyId, String salt) {
+		for(TokenCipher cipher : ciphers) {
+			if(Objects.equals(keyId, cipher.getKeyId()) && cipher.supports(salt)) {
+				return cipher;
+			}
+		}
+		return null;
+	}
+	
+	private static String toStoredSalt(String keyId, String salt) {
+		return keyId == null ? salt : KEY_ID_START + keyId + KEY_ID_END + salt;
+	}
+
+}
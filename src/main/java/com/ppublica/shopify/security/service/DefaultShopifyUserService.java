@@ -1,11 +1,8 @@
 package com.ppublica.shopify.security.service;
 
 import java.util.Collection;
-import java.util.Set;
-import java.util.stream.Collectors;
 
 import org.springframework.security.core.GrantedAuthority;
-import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.oauth2.client.userinfo.OAuth2UserRequest;
 import org.springframework.security.oauth2.client.userinfo.OAuth2UserService;
 import org.springframework.security.oauth2.core.OAuth2AuthenticationException;
@@ -26,12 +23,25 @@ import com.ppublica.shopify.security.web.ShopifyOAuth2AuthorizationRequestResolv
  * 	<li>the the access token as an additional attribute</li>
  * </ol>
  * 
+ * <p>If shopOnlyInSession is set, the ShopifyStore is kept in the session without its access token.</p>
+ * 
  * @author N F
  * @see org.springframework.security.oauth2.client.authentication.OAuth2LoginAuthenticationProvider
  * 
  */
 public class DefaultShopifyUserService implements OAuth2UserService<OAuth2UserRequest, OAuth2User> {
 	
+	private boolean shopOnlyInSession;
+	
+	/**
+	 * Set whether the ShopifyStore is kept in the session with its shop only. Defaults to false.
+	 * 
+	 * @param shopOnlyInSession true to leave the access token out of the session
+	 * @see ShopifyStoreRehydrator
+	 */
+	public void setShopOnlyInSession(boolean shopOnlyInSession) {
+		this.shopOnlyInSession = shopOnlyInSession;
+	}
 	
 	/**
 	 * Build a ShopifyStore using the given OAuth2UserRequest. It expects the OAuth2UserRequest to have the full
@@ -46,15 +56,10 @@ public class DefaultShopifyUserService implements OAuth2UserService<OAuth2UserRe
 		Object shopName = userRequest.getAdditionalParameters().get(ShopifyOAuth2AuthorizationRequestResolver.SHOPIFY_SHOP_PARAMETER_KEY_FOR_TOKEN);
 		String apiKey = userRequest.getClientRegistration().getClientId();
 		
-		Set<String> scopes = userRequest.getAccessToken().getScopes();
-		Collection<GrantedAuthority> authorities = null;
-		if(scopes != null) {
-			authorities = scopes.stream()
-									.map(scope -> new SimpleGrantedAuthority(scope))
-									.collect(Collectors.toList());
-		}
+		// stores with the same scopes share their authorities
+		Collection<GrantedAuthority> authorities = ScopeAuthorities.forScopes(userRequest.getAccessToken().getScopes());
 		
-		return new ShopifyStore((String)shopName, userRequest.getAccessToken().getTokenValue(), apiKey, authorities);
+		return new ShopifyStore((String)shopName, userRequest.getAccessToken().getTokenValue(), apiKey, authorities, shopOnlyInSession);
 	}
 	
 }
@@ -0,0 +1,65 @@
+package com.ppublica.shopify.security.service;
+
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+import org.springframework.security.crypto.keygen.KeyGenerators;
+
+import com.ppublica.shopify.security.authentication.CipherPassword;
+
+/**
+ * The original TokenCipher: Spring Security's Encryptors.queryableText with a random salt per token. The key is 
+ * derived from the password and the salt on every call, which makes each encryption and decryption take 
+ * milliseconds.
+ * 
+ * <p>Its salts are the 16 hexadecimal characters produced by KeyGenerators.string().</p>
+ * 
+ * @author N F
+ * @see AesGcmTokenCipher
+ */
+public class QueryableTextTokenCipher implements TokenCipher {
+	
+	private final CipherPassword cipherPassword;
+	
+	public QueryableTextTokenCipher(CipherPassword cipherPassword) {
+		this.cipherPassword = cipherPassword;
+	}
+
+	@Override
+	public String getKeyId() {
+		return cipherPassword.getKeyId();
+	}
+
+	@Override
+	public EncryptedTokenAndSalt encrypt(String rawToken) {
+		String genSalt = KeyGenerators.string().generateKey();
+		
+		TextEncryptor encryptor = Encryptors.queryableText(cipherPassword.getPassword(), genSalt);
+		
+		return new EncryptedTokenAndSalt(encryptor.encrypt(rawToken), genSalt);
+	}
+
+	@Override
+	public String decrypt(String encryptedToken, String salt) {
+		TextEncryptor textEncryptor = Encryptors.queryableText(cipherPassword.getPassword(), salt);
+		
+		try {
+			return textEncryptor.decrypt(encryptedToken);
+		} catch(RuntimeException e) {
+			throw new IllegalStateException("Unable to decrypt the token", e);
+		}
+	}
+
+	@Override
+	public boolean supports(String salt) {
+		if(salt == null || salt.isEmpty() || salt.length() % 2 != 0) {
+			return false;
+		}
+		for(int i = 0; i < salt.length(); i++) {
+			if(Character.digit(salt.charAt(i), 16) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,126 @@
+package com.ppublica.shopify.security.service;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+
+/**
+ * Interns the authorities of each scope set. An app has a handful of scope sets at most, so every ShopifyStore
+ * built for the same scopes shares one immutable list of SimpleGrantedAuthority instead of building its own.
+ *
+ * <p>At most MAX_SCOPE_SETS scope sets are interned; the authorities of any other scope set are built each time.</p>
+ *
+ * @author N F
+ * @see ShopifyStore
+ */
+final class ScopeAuthorities extends AbstractList<GrantedAuthority> implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	static final int MAX_SCOPE_SETS = 256;
+
+	private static final Map<Set<String>, ScopeAuthorities> INTERNED = new ConcurrentHashMap<>();
+
+	private static final ScopeAuthorities NONE = new ScopeAuthorities(new GrantedAuthority[0]);
+
+	private final GrantedAuthority[] authorities;
+
+	private ScopeAuthorities(GrantedAuthority[] authorities) {
+		this.authorities = authorities;
+	}
+
+	/**
+	 * Get the shared authorities of the scopes, one SimpleGrantedAuthority per scope, in alphabetical order.
+	 *
+	 * @param scopes The scopes
+	 * @return An immutable list of authorities
+	 */
+	static List<GrantedAuthority> forScopes(Collection<String> scopes) {
+		if(scopes == null || scopes.isEmpty()) {
+			return NONE;
+		}
+
+		ScopeAuthorities interned = scopes instanceof Set ? INTERNED.get(scopes) : null;
+		if(interned != null) {
+			return interned;
+		}
+
+		Set<String> key = Collections.unmodifiableSet(new HashSet<>(scopes));
+		interned = INTERNED.get(key);
+		if(interned != null) {
+			return interned;
+		}
+
+		String[] sorted = key.toArray(new String[0]);
+		Arrays.sort(sorted);
+		GrantedAuthority[] authorities = new GrantedAuthority[sorted.length];
+		for(int i = 0; i < sorted.length; i++) {
+			authorities[i] = new SimpleGrantedAuthority(sorted[i]);
+		}
+		ScopeAuthorities built = new ScopeAuthorities(authorities);
+
+		if(INTERNED.size() >= MAX_SCOPE_SETS) {
+			return built;
+		}
+		ScopeAuthorities existing = INTERNED.putIfAbsent(key, built);
+
+		return existing != null ? existing : built;
+	}
+
+	/**
+	 * Get immutable authorities in the order they were given: the collection itself if it's already shared, the
+	 * interned authorities if they're all SimpleGrantedAuthority in the same order (alphabetical, without
+	 * duplicates), or an unmodifiable copy otherwise.
+	 *
+	 * @param authorities The authorities, or null
+	 * @return An immutable list of authorities
+	 */
+	static List<? extends GrantedAuthority> of(Collection<? extends GrantedAuthority> authorities) {
+		if(authorities == null || authorities.isEmpty()) {
+			return NONE;
+		}
+		if(authorities instanceof ScopeAuthorities) {
+			return (ScopeAuthorities) authorities;
+		}
+
+		GrantedAuthority[] copy = authorities.toArray(new GrantedAuthority[0]);
+		String previous = null;
+		for(GrantedAuthority authority : copy) {
+			if(authority.getClass() != SimpleGrantedAuthority.class
+					|| (previous != null && previous.compareTo(authority.getAuthority()) >= 0)) {
+				return Collections.unmodifiableList(Arrays.asList(copy));
+			}
+			previous = authority.getAuthority();
+		}
+
+		Set<String> scopes = new HashSet<>();
+		for(GrantedAuthority authority : copy) {
+			scopes.add(authority.getAuthority());
+		}
+		return forScopes(scopes);
+	}
+
+	private Object readResolve() {
+		return of(Arrays.asList(authorities));
+	}
+
+	@Override
+	public GrantedAuthority get(int index) {
+		return authorities[index];
+	}
+
+	@Override
+	public int size() {
+		return authorities.length;
+	}
+
+}
@@ -0,0 +1,135 @@
+package com.ppublica.shopify.security.service;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Validates and normalizes shop domains, the "shop" parameter Shopify sends and the key stores are saved under.
+ *
+ * <p>A valid shop domain is a handle of letters, digits and hyphens (not starting with a hyphen, at most 63
+ * characters) followed by ".myshopify.com", in any case. Validation is a single pass over the characters, so junk
+ * parameters are rejected before any HMAC, cache or database work.</p>
+ *
+ * <p>A normalized shop domain is lower case. A domain that's already lower case is normalized without allocating.
+ * Since the shop parameter is normalized before its request is verified, normalizing never adds a domain to the
+ * interned domains: only {@link #intern(String)} does, and it's called once a store has been found for the
+ * domain. After that, every request for the shop gets the same String. At most MAX_INTERNED domains are interned;
+ * after that, domains are still normalized but not interned.</p>
+ *
+ * @author N F
+ */
+public final class ShopDomains {
+
+	/**
+	 * The suffix every shop domain ends with.
+	 */
+	public static final String SUFFIX = ".myshopify.com";
+
+	/**
+	 * The maximum length of the handle before the suffix.
+	 */
+	public static final int MAX_HANDLE_LENGTH = 63;
+
+	static final int MAX_INTERNED = 100000;
+
+	private static final int INVALID = -1;
+	private static final int LOWER_CASE = 0;
+	private static final int MIXED_CASE = 1;
+
+	private static final Map<String, String> INTERNED = new ConcurrentHashMap<>();
+
+	private ShopDomains() {
+	}
+
+	/**
+	 * @param shop A shop domain
+	 * @return true if shop is a valid shop domain, in any case
+	 */
+	public static boolean isValid(String shop) {
+		return check(shop) != INVALID;
+	}
+
+	/**
+	 * Validate the shop domain and return its canonical form.
+	 *
+	 * @param shop A shop domain, possibly null
+	 * @return The lower case domain (the interned instance, if the domain was interned), or null if the domain is
+	 * 			not valid
+	 */
+	public static String normalize(String shop) {
+		int result = check(shop);
+		if(result == INVALID) {
+			return null;
+		}
+
+		String interned = INTERNED.get(shop);
+		if(interned != null) {
+			return interned;
+		}
+
+		if(result == MIXED_CASE) {
+			String canonical = shop.toLowerCase(Locale.ROOT);
+			interned = INTERNED.get(canonical);
+
+			return interned != null ? interned : canonical;
+		}
+
+		return shop;
+	}
+
+	/**
+	 * Intern a normalized shop domain, so that later requests for the shop share its String. Only call this for
+	 * the domain of a store that exists.
+	 *
+	 * @param shop A normalized shop domain
+	 * @return The interned domain, or shop itself if MAX_INTERNED domains are already interned
+	 */
+	public static String intern(String shop) {
+		if(shop == null) {
+			return null;
+		}
+
+		String interned = INTERNED.get(shop);
+		if(interned != null) {
+			return interned;
+		}
+
+		if(INTERNED.size() >= MAX_INTERNED) {
+			return shop;
+		}
+		interned = INTERNED.putIfAbsent(shop, shop);
+
+		return interned != null ? interned : shop;
+	}
+
+	private static int check(String shop) {
+		if(shop == null) {
+			return INVALID;
+		}
+		int handleLength = shop.length() - SUFFIX.length();
+		if(handleLength < 1 || handleLength > MAX_HANDLE_LENGTH || !shop.regionMatches(true, handleLength, SUFFIX, 0, SUFFIX.length())) {
+			return INVALID;
+		}
+
+		int result = LOWER_CASE;
+		for(int i = 0; i < shop.length(); i++) {
+			char c = shop.charAt(i);
+
+			if((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+				continue;
+			}
+			if(c >= 'A' && c <= 'Z') {
+				result = MIXED_CASE;
+			} else if(i >= handleLength) {
+				// the '.' of the suffix
+				continue;
+			} else if(c != '-' || i == 0) {
+				return INVALID;
+			}
+		}
+
+		return result;
+	}
+
+}
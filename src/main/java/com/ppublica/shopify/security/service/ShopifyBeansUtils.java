@@ -18,11 +18,15 @@ import org.springframework.security.oauth2.client.web.OAuth2AuthorizationRequest
 import org.springframework.security.oauth2.core.user.OAuth2User;
 import org.springframework.security.web.authentication.AuthenticationSuccessHandler;
 
+import com.ppublica.shopify.security.authentication.ShopifyClientSecrets;
+import com.ppublica.shopify.security.authentication.ShopifyQueryVerificationCache;
+import com.ppublica.shopify.security.authentication.ShopifySessionTokenVerifier;
 import com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy;
 import com.ppublica.shopify.security.configuration.ShopifyPaths;
 import com.ppublica.shopify.security.configurer.delegates.HttpSecurityBuilderConfigurerDelegate;
 import com.ppublica.shopify.security.web.NoRedirectSuccessHandler;
 import com.ppublica.shopify.security.web.ShopifyAuthorizationCodeTokenResponseClient;
+import com.ppublica.shopify.security.web.ShopifyCookieOAuth2AuthorizationRequestRepository;
 import com.ppublica.shopify.security.web.ShopifyOAuth2AuthorizationRequestResolver;
 
 /**
@@ -34,11 +38,13 @@ import com.ppublica.shopify.security.web.ShopifyOAuth2AuthorizationRequestResolv
  * 	<li>DefaultShopifyUserService</li>
  * 	<li>NoRedirectSuccessHandler</li>
  * 	<li>ShopifyVerificationStrategy</li>
- * 	<li>ShopifyOAuth2AuthorizedClientService</li>
+ * 	<li>OAuth2AuthorizedClientService</li>
  * 	<li>MappingJackson2HttpMessageConverter</li>
  * 	<li>ShopifyPaths</li>
  * 	<li>Multiple HttpSecurityBuilderConfigurerDelegate</li>
  * </ul>
+ * 
+ * <p>StoreLastSeenTracker, ShopifySessionTokenVerifier and ShopifyStoreRehydrator are optional.</p>
  * @author N F
  * @see com.ppublica.shopify.security.configurer.ShopifySecurityConfigurer
  */
@@ -95,10 +101,10 @@ public class ShopifyBeansUtils {
 	}
 
 	public static OAuth2AuthorizedClientService getAuthorizedClientService(HttpSecurityBuilder<?> http) {
-		OAuth2AuthorizedClientService authorizedClientService = http.getSharedObject(ApplicationContext.class).getBean(ShopifyOAuth2AuthorizedClientService.class);
+		OAuth2AuthorizedClientService authorizedClientService = http.getSharedObject(ApplicationContext.class).getBean(OAuth2AuthorizedClientService.class);
 
 		if(authorizedClientService == null) {
-			throw new RuntimeException("No ShopifyOAuth2AuthorizedClientService bean found");
+			throw new RuntimeException("No OAuth2AuthorizedClientService bean found");
 		}
 
 		return authorizedClientService;
@@ -160,4 +166,74 @@ public class ShopifyBeansUtils {
 
 		return password;
 	}
+
+	/**
+	 * Get the StoreLastSeenTracker, if last-seen tracking is enabled.
+	 *
+	 * @param http The HttpSecurityBuilder
+	 * @return The StoreLastSeenTracker, or null
+	 */
+	public static StoreLastSeenTracker getStoreLastSeenTracker(HttpSecurityBuilder<?> http) {
+		return http.getSharedObject(ApplicationContext.class).getBeanProvider(StoreLastSeenTracker.class).getIfAvailable();
+	}
+
+	/**
+	 * Get the ShopifyClientSecrets of the ClientRegistration.
+	 *
+	 * @param http The HttpSecurityBuilder
+	 * @return The ShopifyClientSecrets, or null
+	 */
+	public static ShopifyClientSecrets getClientSecrets(HttpSecurityBuilder<?> http) {
+		return http.getSharedObject(ApplicationContext.class).getBeanProvider(ShopifyClientSecrets.class).getIfAvailable();
+	}
+
+	/**
+	 * Get the ShopifySessionTokenVerifier, if session token authentication is enabled.
+	 *
+	 * @param http The HttpSecurityBuilder
+	 * @return The ShopifySessionTokenVerifier, or null
+	 */
+	public static ShopifySessionTokenVerifier getSessionTokenVerifier(HttpSecurityBuilder<?> http) {
+		return http.getSharedObject(ApplicationContext.class).getBeanProvider(ShopifySessionTokenVerifier.class).getIfAvailable();
+	}
+
+	/**
+	 * Get the ShopifyStoreRehydrator, if stores are kept in the session with their shop only.
+	 *
+	 * @param http The HttpSecurityBuilder
+	 * @return The ShopifyStoreRehydrator, or null
+	 */
+	public static ShopifyStoreRehydrator getStoreRehydrator(HttpSecurityBuilder<?> http) {
+		return http.getSharedObject(ApplicationContext.class).getBeanProvider(ShopifyStoreRehydrator.class).getIfAvailable();
+	}
+
+	/**
+	 * Get the ShopifyRateLimiter, if rate limiting is enabled.
+	 *
+	 * @param http The HttpSecurityBuilder
+	 * @return The ShopifyRateLimiter, or null
+	 */
+	public static ShopifyRateLimiter getRateLimiter(HttpSecurityBuilder<?> http) {
+		return http.getSharedObject(ApplicationContext.class).getBeanProvider(ShopifyRateLimiter.class).getIfAvailable();
+	}
+
+	/**
+	 * Get the ShopifyQueryVerificationCache, unless the replay window is disabled.
+	 *
+	 * @param http The HttpSecurityBuilder
+	 * @return The ShopifyQueryVerificationCache, or null
+	 */
+	public static ShopifyQueryVerificationCache getQueryVerificationCache(HttpSecurityBuilder<?> http) {
+		return http.getSharedObject(ApplicationContext.class).getBeanProvider(ShopifyQueryVerificationCache.class).getIfAvailable();
+	}
+
+	/**
+	 * Get the ShopifyCookieOAuth2AuthorizationRequestRepository, if authorization requests are kept in a cookie.
+	 *
+	 * @param http The HttpSecurityBuilder
+	 * @return The ShopifyCookieOAuth2AuthorizationRequestRepository, or null
+	 */
+	public static ShopifyCookieOAuth2AuthorizationRequestRepository getCookieAuthorizationRequestRepository(HttpSecurityBuilder<?> http) {
+		return http.getSharedObject(ApplicationContext.class).getBeanProvider(ShopifyCookieOAuth2AuthorizationRequestRepository.class).getIfAvailable();
+	}
 }
@@ -0,0 +1,249 @@
+package com.ppublica.shopify.security.service;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Limits the install and authorization redirect requests per client address and per shop domain, with a token
+ * bucket per key.
+ *
+ * <p>Each bucket is a single AtomicLong holding the time at which it will be full again, so a request costs one map
+ * read and one compare-and-set, and a rejected request writes nothing. A bucket holds burst requests and refills at
+ * the configured requests per minute.</p>
+ *
+ * <p>At most maxKeys buckets are kept for addresses, and as many for shops. When that's reached, the buckets that
+ * are full again (which behave like a new bucket) are removed. If that's not enough, the least recently used
+ * buckets (those that will be full again the soonest) are removed, an eighth of maxKeys at a time, so a new key is
+ * never rejected only because the limiter is full.</p>
+ *
+ * @author N F
+ * @see com.ppublica.shopify.security.filters.ShopifyRateLimitFilter
+ */
+public class ShopifyRateLimiter {
+	private final Log logger = LogFactory.getLog(ShopifyRateLimiter.class);
+
+	/**
+	 * The default number of requests per minute from one address: 30.
+	 */
+	public static final int DEFAULT_ADDRESS_REQUESTS_PER_MINUTE = 30;
+
+	/**
+	 * The default number of requests per minute for one shop: 10.
+	 */
+	public static final int DEFAULT_SHOP_REQUESTS_PER_MINUTE = 10;
+
+	/**
+	 * The default number of requests allowed at once: 10.
+	 */
+	public static final int DEFAULT_BURST = 10;
+
+	/**
+	 * The default maximum number of buckets kept for addresses, and for shops: 100000.
+	 */
+	public static final int DEFAULT_MAX_KEYS = 100000;
+
+	private final Buckets addresses = new Buckets();
+	private final Buckets shops = new Buckets();
+	private final LongAdder rejected = new LongAdder();
+
+	public ShopifyRateLimiter() {
+		setAddressRequestsPerMinute(DEFAULT_ADDRESS_REQUESTS_PER_MINUTE);
+		setShopRequestsPerMinute(DEFAULT_SHOP_REQUESTS_PER_MINUTE);
+		setBurst(DEFAULT_BURST);
+		setMaxKeys(DEFAULT_MAX_KEYS);
+	}
+
+	public void setAddressRequestsPerMinute(int requestsPerMinute) {
+		addresses.interval = interval(requestsPerMinute);
+	}
+
+	public void setShopRequestsPerMinute(int requestsPerMinute) {
+		shops.interval = interval(requestsPerMinute);
+	}
+
+	/**
+	 * Set the number of requests allowed at once, before they're limited to the requests per minute.
+	 *
+	 * @param burst The burst, at least 1
+	 */
+	public void setBurst(int burst) {
+		if(burst < 1) {
+			throw new IllegalArgumentException("The burst must be at least 1");
+		}
+		addresses.burst = burst;
+		shops.burst = burst;
+	}
+
+	public void setMaxKeys(int maxKeys) {
+		if(maxKeys < 1) {
+			throw new IllegalArgumentException("The max keys must be at least 1");
+		}
+		addresses.maxKeys = maxKeys;
+		shops.maxKeys = maxKeys;
+	}
+
+	/**
+	 * Take a request from the bucket of the client address.
+	 *
+	 * @param address The client address
+	 * @return true if the request is allowed, false if it should be rejected
+	 */
+	public boolean tryAcquireForAddress(String address) {
+		return tryAcquireForAddress(address, System.nanoTime());
+	}
+
+	/**
+	 * Take a request from the bucket of the shop.
+	 *
+	 * @param shopDomain The normalized shop domain
+	 * @return true if the request is allowed, false if it should be rejected
+	 */
+	public boolean tryAcquireForShop(String shopDomain) {
+		return tryAcquireForShop(shopDomain, System.nanoTime());
+	}
+
+	/**
+	 * @return The number of requests rejected since this limiter was created
+	 */
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
+
+	/**
+	 * @return The number of seconds a rejected client should wait before trying again
+	 */
+	public long getRetryAfterSeconds() {
+		return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(Math.max(addresses.interval, shops.interval)));
+	}
+
+	boolean tryAcquireForAddress(String address, long now) {
+		return count(addresses.tryAcquire(address, now));
+	}
+
+	boolean tryAcquireForShop(String shopDomain, long now) {
+		return count(shops.tryAcquire(shopDomain, now));
+	}
+
+	private boolean count(boolean allowed) {
+		if(!allowed) {
+			rejected.increment();
+		}
+		return allowed;
+	}
+
+	private static long interval(int requestsPerMinute) {
+		if(requestsPerMinute < 1) {
+			throw new IllegalArgumentException("The requests per minute must be at least 1");
+		}
+		return TimeUnit.MINUTES.toNanos(1) / requestsPerMinute;
+	}
+
+	/*
+	 * The buckets of one kind of key. Each holds the time at which the bucket is full again: a request is allowed if
+	 * that time, plus the interval it takes, is no more than burst intervals from now.
+	 */
+	private final class Buckets {
+		private final Map<String, AtomicLong> fullAt = new ConcurrentHashMap<>();
+		private final AtomicBoolean evicting = new AtomicBoolean();
+
+		private long interval;
+		private int burst;
+		private int maxKeys;
+
+		boolean tryAcquire(String key, long now) {
+			if(key == null) {
+				return true;
+			}
+			long interval = this.interval;
+			long limit = interval * burst;
+
+			AtomicLong bucket = fullAt.get(key);
+			if(bucket == null) {
+				if(fullAt.size() >= maxKeys) {
+					evict(now);
+				}
+				bucket = fullAt.putIfAbsent(key, new AtomicLong(now + interval));
+				if(bucket == null) {
+					return true;
+				}
+			}
+
+			while(true) {
+				long current = bucket.get();
+				long next = (current - now > 0 ? current : now) + interval;
+				if(next - now > limit) {
+					return false;
+				}
+				if(bucket.compareAndSet(current, next)) {
+					return true;
+				}
+			}
+		}
+
+		/*
+		 * Remove the buckets that are full again, then, if there's still no room, the least recently used ones. Only
+		 * one thread evicts at a time; the others add their key anyway, so the map can briefly hold a few more than
+		 * maxKeys buckets.
+		 */
+		private void evict(long now) {
+			if(!evicting.compareAndSet(false, true)) {
+				return;
+			}
+			try {
+				Iterator<AtomicLong> buckets = fullAt.values().iterator();
+				while(buckets.hasNext()) {
+					if(buckets.next().get() - now <= 0) {
+						buckets.remove();
+					}
+				}
+
+				int excess = fullAt.size() - maxKeys + 1;
+				if(excess > 0) {
+					evictLeastRecentlyUsed(Math.max(excess, maxKeys / 8));
+				}
+			} finally {
+				evicting.set(false);
+			}
+		}
+
+		/*
+		 * A bucket is full again at the time of its last request plus what it took from the bucket, so the buckets
+		 * that will be full the soonest are the least recently used.
+		 */
+		private void evictLeastRecentlyUsed(int count) {
+			long[] times = new long[fullAt.size()];
+			int size = 0;
+			for(AtomicLong bucket : fullAt.values()) {
+				if(size == times.length) {
+					break;
+				}
+				times[size++] = bucket.get();
+			}
+			if(size == 0) {
+				return;
+			}
+			Arrays.sort(times, 0, size);
+			long threshold = times[Math.min(count, size) - 1];
+
+			Iterator<AtomicLong> buckets = fullAt.values().iterator();
+			while(buckets.hasNext()) {
+				if(buckets.next().get() - threshold <= 0) {
+					buckets.remove();
+				}
+			}
+			if(logger.isDebugEnabled()) {
+				logger.debug("Rate limiter is full: evicted the least recently used buckets, " + fullAt.size() + " left");
+			}
+		}
+	}
+
+}
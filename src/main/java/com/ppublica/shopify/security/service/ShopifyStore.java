@@ -1,25 +1,57 @@
 package com.ppublica.shopify.security.service;
 
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectStreamException;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.oauth2.core.user.OAuth2User;
 
 /**
  * A representation of a Shopify store - a "user". This object is the Principal in the OAuth2AuthenticationToken,
- * the Authentication. The api key and raw access token are saved as attributes.
- * 
- * @author N F
+ * the Authentication. The api key and raw access token are exposed as attributes.
+ *
+ * <p>A ShopifyStore can be cached and shared across threads. Its name, api key, authorities and attributes never
+ * change; the attribute map is an unmodifiable view built the first time it's asked for. Authorities are kept in
+ * the order they were given, and authorities that are all SimpleGrantedAuthority in alphabetical order are shared
+ * by every store with the same scopes.</p>
+ *
+ * <p>The access token is the exception. Since the Authentication is kept in the session, a ShopifyStore is
+ * serialized as a compact binary record rather than as a HashMap of attributes, and a store can be kept there with
+ * only its shop domain, api key and authorities. After it's read back, it has no access token until
+ * ShopifyStoreRehydrator sets it, once, on the store itself, so that the Authentication and the session aren't
+ * replaced. A store that has a token keeps it.</p>
  *
+ * @author N F
+ * @see ShopifyStoreRehydrator
  */
 public class ShopifyStore  implements OAuth2User, Serializable {
 
 	private static final long serialVersionUID = -912952033860273123L;
 
+	/*
+	 * The fields ShopifyStore was serialized with before it had a serialized form, so sessions saved then can still
+	 * be read.
+	 */
+	private static final ObjectStreamField[] serialPersistentFields = {
+			new ObjectStreamField("name", String.class),
+			new ObjectStreamField("authorities", Collection.class),
+			new ObjectStreamField("attributes", Map.class)
+	};
+
 	/**
 	 * The attribute key that holds the access token value.
 	 */
@@ -31,31 +63,62 @@ public class ShopifyStore  implements OAuth2User, Serializable {
 	public static final String API_KEY = "shopify_client_api_key";
 
 	private final String name;
-	private final Collection<? extends GrantedAuthority> authorities;
-	private final Map<String, Object> attributes;
-	
+	private final String apiKey;
+	private final List<? extends GrantedAuthority> authorities;
+	private final Map<String, Object> otherAttributes;
+	private final boolean shopOnlyInSession;
+
+	private volatile String accessToken;
+	private transient volatile Map<String, Object> attributes;
+	private transient ShopifyStore legacy;
+
 	/**
 	 * Create a new ShopifyStore.
-	 * 
+	 *
 	 * @param name The full domain name
 	 * @param accessToken The raw OAuth token
 	 * @param apiKey The api key of this app
 	 * @param authorities The authorities granted to the app
 	 */
-	public ShopifyStore(String name, String accessToken, String apiKey, Collection<? extends GrantedAuthority> authorities) {			
-		this.name = name;
-		this.attributes = new HashMap<>();
-		this.attributes.put(ACCESS_TOKEN_KEY, accessToken);
-		this.attributes.put(API_KEY, apiKey);
-		
-		this.authorities = authorities == null ? new ArrayList<>() : authorities;
-		
-	}
-	
+	public ShopifyStore(String name, String accessToken, String apiKey, Collection<? extends GrantedAuthority> authorities) {
+		this(name, accessToken, apiKey, authorities, false);
+
+	}
+
+	/**
+	 * Create a new ShopifyStore.
+	 *
+	 * @param name The full domain name
+	 * @param accessToken The raw OAuth token
+	 * @param apiKey The api key of this app
+	 * @param authorities The authorities granted to the app
+	 * @param shopOnlyInSession true if the access token should be left out when the store is serialized
+	 */
+	public ShopifyStore(String name, String accessToken, String apiKey, Collection<? extends GrantedAuthority> authorities, boolean shopOnlyInSession) {
+		this(name, accessToken, apiKey, ScopeAuthorities.of(authorities), Collections.emptyMap(), shopOnlyInSession);
+	}
+
+	/**
+	 * Create a new ShopifyStore. The access token and api key are taken from the attributes; the attributes are
+	 * copied.
+	 *
+	 * @param name The full domain name
+	 * @param authorities The authorities granted to the app
+	 * @param attributes The attributes
+	 */
 	public ShopifyStore(String name, Collection<? extends GrantedAuthority> authorities, Map<String, Object> attributes) {
+		this(name, stringAttribute(attributes, ACCESS_TOKEN_KEY), stringAttribute(attributes, API_KEY), ScopeAuthorities.of(authorities),
+				otherAttributes(attributes), false);
+	}
+
+	private ShopifyStore(String name, String accessToken, String apiKey, List<? extends GrantedAuthority> authorities,
+			Map<String, Object> otherAttributes, boolean shopOnlyInSession) {
 		this.name = name;
-		this.authorities = authorities != null ? authorities : new ArrayList<>();
-		this.attributes =  attributes != null ? attributes : new HashMap<>();
+		this.accessToken = accessToken;
+		this.apiKey = apiKey;
+		this.authorities = authorities;
+		this.otherAttributes = otherAttributes;
+		this.shopOnlyInSession = shopOnlyInSession;
 	}
 
 	@Override
@@ -68,10 +131,184 @@ public class ShopifyStore  implements OAuth2User, Serializable {
 		return this.authorities;
 	}
 
+	/**
+	 * @return An unmodifiable map of the access token and api key, and any other attribute the store was created
+	 * 			with
+	 */
 	@Override
 	public Map<String, Object> getAttributes() {
-		return this.attributes;
+		String accessToken = this.accessToken;
+		Map<String, Object> attributes = this.attributes;
+		// rebuilt if the store was rehydrated while the view was being built
+		if(attributes == null || attributes.get(ACCESS_TOKEN_KEY) != accessToken) {
+			Map<String, Object> built = new HashMap<>(otherAttributes.size() + 3);
+			built.putAll(otherAttributes);
+			built.put(ACCESS_TOKEN_KEY, accessToken);
+			built.put(API_KEY, apiKey);
+
+			attributes = Collections.unmodifiableMap(built);
+			this.attributes = attributes;
+		}
+		return attributes;
+	}
+
+	/**
+	 * @return The raw OAuth token, or null if the store was read from the session without it
+	 */
+	public String getAccessToken() {
+		return this.accessToken;
+	}
+
+	public String getApiKey() {
+		return this.apiKey;
+	}
+
+	/**
+	 * @return true if the access token is left out when this store is serialized
+	 */
+	public boolean isShopOnlyInSession() {
+		return this.shopOnlyInSession;
+	}
+
+	/*
+	 * Set the access token of a store read from the session without it. A store that has a token keeps it.
+	 */
+	synchronized void rehydrate(String accessToken) {
+		if(this.accessToken == null) {
+			this.accessToken = accessToken;
+			this.attributes = null;
+		}
+	}
+
+	private static String stringAttribute(Map<String, Object> attributes, String key) {
+		Object value = attributes == null ? null : attributes.get(key);
+		return value == null ? null : value.toString();
+	}
+
+	private static Map<String, Object> otherAttributes(Map<String, Object> attributes) {
+		if(attributes == null || attributes.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		Map<String, Object> others = new HashMap<>(attributes);
+		others.remove(ACCESS_TOKEN_KEY);
+		others.remove(API_KEY);
+
+		return others.isEmpty() ? Collections.emptyMap() : others;
+	}
+
+	private Object writeReplace() throws ObjectStreamException {
+		return new SerializedForm(this);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		this.legacy = new ShopifyStore((String) fields.get("name", null),
+				(Collection<? extends GrantedAuthority>) fields.get("authorities", null),
+				(Map<String, Object>) fields.get("attributes", null));
+	}
+
+	private Object readResolve() throws ObjectStreamException {
+		if(legacy == null) {
+			throw new InvalidObjectException("A ShopifyStore is read through its serialized form");
+		}
+		return legacy;
+	}
+
+	/*
+	 * The serialized form of a ShopifyStore: a version, the name, a flags byte, the access token (unless the store
+	 * is kept with its shop only) and api key, the authorities, and any other attribute. SimpleGrantedAuthority and
+	 * String attributes are written as UTF; anything else is written as an object.
+	 */
+	private static final class SerializedForm implements Externalizable {
+		private static final long serialVersionUID = 1L;
+
+		private static final int VERSION = 1;
+		private static final int SHOP_ONLY = 1;
+		private static final int HAS_ACCESS_TOKEN = 2;
+		private static final int HAS_API_KEY = 4;
+
+		private ShopifyStore store;
+
+		public SerializedForm() {
+		}
+
+		SerializedForm(ShopifyStore store) {
+			this.store = store;
+		}
+
+		@Override
+		public void writeExternal(ObjectOutput out) throws IOException {
+			String accessToken = store.shopOnlyInSession ? null : store.accessToken;
+
+			int flags = (store.shopOnlyInSession ? SHOP_ONLY : 0)
+					| (accessToken != null ? HAS_ACCESS_TOKEN : 0)
+					| (store.apiKey != null ? HAS_API_KEY : 0);
+
+			out.writeByte(VERSION);
+			out.writeUTF(store.name);
+			out.writeByte(flags);
+			if(accessToken != null) {
+				out.writeUTF(accessToken);
+			}
+			if(store.apiKey != null) {
+				out.writeUTF(store.apiKey);
+			}
+
+			out.writeShort(store.authorities.size());
+			for(GrantedAuthority authority : store.authorities) {
+				if(authority.getClass() == SimpleGrantedAuthority.class) {
+					out.writeBoolean(true);
+					out.writeUTF(authority.getAuthority());
+				} else {
+					out.writeBoolean(false);
+					out.writeObject(authority);
+				}
+			}
+
+			out.writeShort(store.otherAttributes.size());
+			for(Map.Entry<String, Object> attribute : store.otherAttributes.entrySet()) {
+				out.writeUTF(attribute.getKey());
+				if(attribute.getValue() instanceof String) {
+					out.writeBoolean(true);
+					out.writeUTF((String)attribute.getValue());
+				} else {
+					out.writeBoolean(false);
+					out.writeObject(attribute.getValue());
+				}
+			}
+		}
+
+		@Override
+		public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+			int version = in.readByte();
+			if(version != VERSION) {
+				throw new InvalidObjectException("Unknown ShopifyStore version " + version);
+			}
+			String name = in.readUTF();
+			int flags = in.readByte();
+			String accessToken = (flags & HAS_ACCESS_TOKEN) != 0 ? in.readUTF() : null;
+			String apiKey = (flags & HAS_API_KEY) != 0 ? in.readUTF() : null;
+
+			int authorityCount = in.readUnsignedShort();
+			List<GrantedAuthority> authorities = new ArrayList<>(authorityCount);
+			for(int i = 0; i < authorityCount; i++) {
+				authorities.add(in.readBoolean() ? new SimpleGrantedAuthority(in.readUTF()) : (GrantedAuthority)in.readObject());
+			}
+
+			int attributeCount = in.readUnsignedShort();
+			Map<String, Object> otherAttributes = attributeCount == 0 ? Collections.emptyMap() : new HashMap<>();
+			for(int i = 0; i < attributeCount; i++) {
+				String key = in.readUTF();
+				otherAttributes.put(key, in.readBoolean() ? in.readUTF() : in.readObject());
+			}
+
+			this.store = new ShopifyStore(name, accessToken, apiKey, ScopeAuthorities.of(authorities), otherAttributes, (flags & SHOP_ONLY) != 0);
+		}
+
+		private Object readResolve() throws ObjectStreamException {
+			return store;
+		}
 	}
-	
 
 }
@@ -0,0 +1,51 @@
+package com.ppublica.shopify.security.service;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
+
+/**
+ * Puts the access token back into a ShopifyStore that was kept in the session with its shop only. The token is
+ * loaded with the OAuth2AuthorizedClientService, so with the StoreCache enabled this is usually a map lookup.
+ *
+ * <p>The token is set on the store itself, so the Authentication in the session isn't replaced and the session
+ * isn't written again.</p>
+ *
+ * @author N F
+ * @see ShopifyStore
+ * @see com.ppublica.shopify.security.filters.ShopifyStoreRehydrationFilter
+ */
+public class ShopifyStoreRehydrator {
+	private final Log logger = LogFactory.getLog(ShopifyStoreRehydrator.class);
+
+	private final OAuth2AuthorizedClientService clientService;
+
+	public ShopifyStoreRehydrator(OAuth2AuthorizedClientService clientService) {
+		this.clientService = clientService;
+	}
+
+	/**
+	 * Load the access token of the store, if it has none.
+	 *
+	 * @param registrationId The registration id of the client
+	 * @param store The ShopifyStore
+	 * @return false if the store has no token and none was found (the store was uninstalled), true otherwise
+	 */
+	public boolean rehydrate(String registrationId, ShopifyStore store) {
+		if(store.getAccessToken() != null) {
+			return true;
+		}
+
+		OAuth2AuthorizedClient client = clientService.loadAuthorizedClient(registrationId, store.getName());
+		if(client == null) {
+			logger.info("No token found to rehydrate the store " + store.getName());
+			return false;
+		}
+
+		store.rehydrate(client.getAccessToken().getTokenValue());
+
+		return true;
+	}
+
+}
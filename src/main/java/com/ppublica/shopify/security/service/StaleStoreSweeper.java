@@ -0,0 +1,331 @@
+package com.ppublica.shopify.security.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.ppublica.shopify.security.repository.PersistedStoreAccessToken;
+import com.ppublica.shopify.security.repository.TokenRepository;
+
+/**
+ * Removes stores that will never be used again: stores that haven't been seen for maxAge (usually because their
+ * uninstall webhook was lost), and stores whose token can't be decrypted with any of the CipherPasswords.
+ *
+ * <p>Like TokenReEncryptionJob, the sweeper reads the stores in pages of batchSize ordered by id, and sleeps
+ * between batches. Each page's stale stores are deleted in a single batch with
+ * {@link TokenRepository#uninstallStoresIfUnchanged(List)}, so a store that was reinstalled or seen since it was
+ * read is kept. Only stores with a last-seen time (see StoreLastSeenTracker) can be stale because of their age: a
+ * store that was never seen is kept. Stores are seen when a filter authenticates them, and when TokenService.getStore
+ * loads them if the TokenService has the StoreLastSeenTracker, so stores only used by background jobs aren't
+ * stale.</p>
+ *
+ * <p>A store whose token can't be decrypted usually means the CipherPassword is wrong, not that the store is dead.
+ * So each sweep first reads all the stores without deleting any, and if more than half of them can't be decrypted,
+ * it stops there and deletes nothing. Otherwise the stores are read again, and the stale ones deleted.</p>
+ *
+ * <p>In dry-run mode, stale stores are counted and logged but not deleted. {@link #start()} sweeps on a daemon
+ * thread every interval until {@link #stop()} is called.</p>
+ *
+ * @author N F
+ * @see TokenReEncryptionJob
+ * @see StoreLastSeenTracker
+ */
+public class StaleStoreSweeper {
+	private final Log logger = LogFactory.getLog(StaleStoreSweeper.class);
+
+	/**
+	 * The default time a store can go unseen before it's stale, in milliseconds: 90 days.
+	 */
+	public static final long DEFAULT_MAX_AGE = 90L * 24 * 60 * 60 * 1000;
+
+	/**
+	 * The default number of stores read and deleted per batch: 500.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 500;
+
+	/**
+	 * The default pause between batches, in milliseconds: 1000.
+	 */
+	public static final long DEFAULT_PAUSE = 1000L;
+
+	/**
+	 * The default time between sweeps, in milliseconds: 24 hours.
+	 */
+	public static final long DEFAULT_INTERVAL = 24L * 60 * 60 * 1000;
+
+	private final TokenService tokenService;
+	private final TokenRepository tokenRepository;
+
+	private long maxAge = DEFAULT_MAX_AGE;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private long pauseBetweenBatches = DEFAULT_PAUSE;
+	private long interval = DEFAULT_INTERVAL;
+	private boolean dryRun;
+
+	private final AtomicLong processedCount = new AtomicLong();
+	private final AtomicLong unseenCount = new AtomicLong();
+	private final AtomicLong undecryptableCount = new AtomicLong();
+	private final AtomicLong deletedCount = new AtomicLong();
+
+	private volatile Thread worker;
+	private volatile boolean stopped;
+
+	/**
+	 * Build a StaleStoreSweeper.
+	 *
+	 * @param tokenService The TokenService used to decrypt the tokens
+	 * @param tokenRepository The TokenRepository to page through
+	 */
+	public StaleStoreSweeper(TokenService tokenService, TokenRepository tokenRepository) {
+		this.tokenService = tokenService;
+		this.tokenRepository = tokenRepository;
+	}
+
+	/**
+	 * Start sweeping every interval on a new daemon thread. Does nothing if the sweeper is already running.
+	 */
+	public synchronized void start() {
+		if(worker != null) {
+			return;
+		}
+		stopped = false;
+
+		Thread thread = new Thread(this::sweepEveryInterval, "shopify-stale-store-sweeper");
+		thread.setDaemon(true);
+		worker = thread;
+		thread.start();
+	}
+
+	/**
+	 * Ask the sweeper to stop after the current batch.
+	 */
+	public synchronized void stop() {
+		stopped = true;
+
+		Thread thread = worker;
+		if(thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * Page through all the stores and delete the stale ones, on the calling thread. The stores are read once without
+	 * deleting anything, to check that most of them can be decrypted, and then again to delete the stale ones. The
+	 * counts are reset at the start of each pass.
+	 *
+	 * @return The number of stores deleted (or, in dry-run mode, that would have been)
+	 * @throws InterruptedException if interrupted while pausing between batches
+	 */
+	public long sweep() throws InterruptedException {
+		long seenAfter = System.currentTimeMillis() - maxAge;
+		logger.info("Starting " + (dryRun ? "a dry run of the " : "the ") + "stale store sweep");
+
+		if(!scan(seenAfter, false)) {
+			deletedCount.set(0);
+			return 0;
+		}
+
+		if(undecryptableCount.get() * 2 > processedCount.get()) {
+			logger.error("Stopping the stale store sweep without deleting any store: " + undecryptableCount.get() + " of the "
+					+ processedCount.get() + " stores read could not be decrypted. Check the CipherPasswords.");
+			deletedCount.set(0);
+			return 0;
+		}
+
+		if(dryRun) {
+			// the first pass already found what would be deleted
+			logger.info("Stale store sweep finished (dry run): " + processedCount.get() + " processed, " + unseenCount.get()
+					+ " unseen, " + undecryptableCount.get() + " undecryptable, " + deletedCount.get() + " would be deleted");
+			return deletedCount.get();
+		}
+
+		scan(seenAfter, true);
+
+		logger.info("Stale store sweep finished: " + processedCount.get() + " processed, " + unseenCount.get() + " unseen, "
+				+ undecryptableCount.get() + " undecryptable, " + deletedCount.get() + " deleted");
+
+		return deletedCount.get();
+	}
+
+	public boolean isRunning() {
+		return worker != null;
+	}
+
+	/**
+	 * @return The number of stores read in the current or last sweep
+	 */
+	public long getProcessedCount() {
+		return processedCount.get();
+	}
+
+	/**
+	 * @return The number of stores not seen for maxAge in the current or last sweep
+	 */
+	public long getUnseenCount() {
+		return unseenCount.get();
+	}
+
+	/**
+	 * @return The number of stores whose token could not be decrypted in the current or last sweep
+	 */
+	public long getUndecryptableCount() {
+		return undecryptableCount.get();
+	}
+
+	/**
+	 * @return The number of stores deleted (or, in dry-run mode, that would have been) in the current or last sweep
+	 */
+	public long getDeletedCount() {
+		return deletedCount.get();
+	}
+
+	/**
+	 * Set how long a store can go unseen before it's stale.
+	 *
+	 * @param maxAge The time in milliseconds
+	 */
+	public void setMaxAge(long maxAge) {
+		if(maxAge < 1) {
+			throw new IllegalArgumentException("The maximum age must be at least 1ms");
+		}
+		this.maxAge = maxAge;
+	}
+
+	public void setBatchSize(int batchSize) {
+		if(batchSize < 1) {
+			throw new IllegalArgumentException("The batch size must be at least 1");
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Set how long to sleep between batches.
+	 *
+	 * @param pauseBetweenBatches The pause in milliseconds
+	 */
+	public void setPauseBetweenBatches(long pauseBetweenBatches) {
+		this.pauseBetweenBatches = pauseBetweenBatches;
+	}
+
+	/**
+	 * Set the time between the end of one sweep and the start of the next. Takes effect the next time the sweeper
+	 * is started.
+	 *
+	 * @param interval The interval in milliseconds
+	 */
+	public void setInterval(long interval) {
+		if(interval < 1) {
+			throw new IllegalArgumentException("The interval must be at least 1ms");
+		}
+		this.interval = interval;
+	}
+
+	/**
+	 * Set whether stale stores are only counted and logged, not deleted. Defaults to false.
+	 *
+	 * @param dryRun true to delete nothing
+	 */
+	public void setDryRun(boolean dryRun) {
+		this.dryRun = dryRun;
+	}
+
+	/*
+	 * Read all the stores, counting the stale ones. If delete is false, the stale stores are only counted (and
+	 * logged in dry-run mode). Returns false if the sweeper was stopped before the last page.
+	 */
+	private boolean scan(long seenAfter, boolean delete) throws InterruptedException {
+		processedCount.set(0);
+		unseenCount.set(0);
+		undecryptableCount.set(0);
+		deletedCount.set(0);
+
+		Long lastId = null;
+		List<PersistedStoreAccessToken> page;
+
+		do {
+			page = tokenRepository.findStoresAfter(lastId, batchSize);
+
+			if(page.isEmpty()) {
+				return true;
+			}
+
+			List<PersistedStoreAccessToken> stale = new ArrayList<>();
+
+			for(PersistedStoreAccessToken token : page) {
+				processedCount.incrementAndGet();
+
+				if(token.getLastSeen() != null && token.getLastSeen() < seenAfter) {
+					unseenCount.incrementAndGet();
+					stale.add(token);
+				} else if(!tokenService.canDecrypt(token)) {
+					undecryptableCount.incrementAndGet();
+					stale.add(token);
+				}
+			}
+
+			if(!stale.isEmpty()) {
+				if(delete) {
+					delete(stale);
+				} else {
+					count(stale);
+				}
+			}
+
+			lastId = page.get(page.size() - 1).getId();
+
+			if(logger.isDebugEnabled()) {
+				logger.debug("Stale store sweep progress" + (delete ? "" : " (checking)") + ": " + processedCount.get() + " processed, "
+						+ unseenCount.get() + " unseen, " + undecryptableCount.get() + " undecryptable, " + deletedCount.get() + " stale");
+			}
+
+			if(page.size() == batchSize && pauseBetweenBatches > 0) {
+				Thread.sleep(pauseBetweenBatches);
+			}
+
+		} while(page.size() == batchSize && !stopped);
+
+		return page.size() < batchSize;
+	}
+
+	private void count(List<PersistedStoreAccessToken> stale) {
+		if(dryRun && logger.isInfoEnabled()) {
+			for(PersistedStoreAccessToken token : stale) {
+				logger.info("Dry run: would delete the stale store " + token.getStoreDomain());
+			}
+		}
+		deletedCount.addAndGet(stale.size());
+	}
+
+	private void delete(List<PersistedStoreAccessToken> stale) {
+		deletedCount.addAndGet(tokenRepository.uninstallStoresIfUnchanged(stale));
+
+		StoreCache storeCache = tokenService.getStoreCache();
+		if(storeCache != null) {
+			for(PersistedStoreAccessToken token : stale) {
+				storeCache.invalidate(token.getStoreDomain());
+			}
+		}
+	}
+
+	private void sweepEveryInterval() {
+		try {
+			while(!stopped) {
+				try {
+					sweep();
+				} catch(RuntimeException ex) {
+					logger.error("The stale store sweep failed after " + processedCount.get() + " stores", ex);
+				}
+				Thread.sleep(interval);
+			}
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			logger.info("The stale store sweeper was interrupted");
+		} finally {
+			worker = null;
+		}
+	}
+
+}
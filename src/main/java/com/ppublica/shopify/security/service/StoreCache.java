@@ -0,0 +1,214 @@
+package com.ppublica.shopify.security.service;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+
+/**
+ * Keeps the OAuth2AuthorizedClient of recently loaded stores in memory, so that TokenService doesn't read and
+ * decrypt the store on every request.
+ *
+ * <p>Entries expire after the time-to-live. Once the cache is full, expired entries are evicted, then a tenth
+ * of the entries (in no particular order). TokenService removes a store from the cache whenever it saves,
+ * updates or uninstalls it.</p>
+ *
+ * <p>A store read from the repository can be stale by the time it's put in the cache, if it was changed in the
+ * meantime. To avoid caching it, take a {@link #stamp()} before reading, and pass it to
+ * {@link #put(String, OAuth2AuthorizedClient, long)}: the store isn't cached if it was invalidated since. The
+ * stamps of the last maxSize invalidated stores are remembered; when older ones are forgotten, stamps taken
+ * before then are rejected for every store.</p>
+ *
+ * @author N F
+ * @see TokenService
+ * @see StoreCacheWarmer
+ */
+public class StoreCache {
+
+	/**
+	 * The default maximum number of stores cached: 10000.
+	 */
+	public static final int DEFAULT_MAX_SIZE = 10000;
+
+	/**
+	 * The default time-to-live of a cached store, in milliseconds: 300000 (5 minutes).
+	 */
+	public static final long DEFAULT_TIME_TO_LIVE = 300000L;
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private final AtomicLong invalidations = new AtomicLong();
+	private final Map<String, Long> invalidatedAt = new ConcurrentHashMap<>();
+	private volatile long oldestValidStamp;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final int maxSize;
+	private final long timeToLiveNanos;
+
+	public StoreCache() {
+		this(DEFAULT_MAX_SIZE, DEFAULT_TIME_TO_LIVE);
+	}
+
+	/**
+	 * Create a StoreCache.
+	 *
+	 * @param maxSize The maximum number of stores cached
+	 * @param timeToLive How long a store stays cached, in milliseconds
+	 */
+	public StoreCache(int maxSize, long timeToLive) {
+		if(maxSize < 1) {
+			throw new IllegalArgumentException("The maximum size must be at least 1");
+		}
+		this.maxSize = maxSize;
+		this.timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(timeToLive);
+	}
+
+	/**
+	 * Get a cached store.
+	 *
+	 * @param shopDomain The full shop domain
+	 * @return The OAuth2AuthorizedClient, or null if the store isn't cached or has expired
+	 */
+	public OAuth2AuthorizedClient get(String shopDomain) {
+		Entry entry = entries.get(shopDomain);
+
+		if(entry == null) {
+			misses.increment();
+			return null;
+		}
+		if(System.nanoTime() - entry.cachedAt > timeToLiveNanos) {
+			entries.remove(shopDomain, entry);
+			misses.increment();
+			return null;
+		}
+
+		hits.increment();
+		return entry.client;
+	}
+
+	/**
+	 * @return A stamp to pass to {@link #put(String, OAuth2AuthorizedClient, long)}
+	 */
+	public long stamp() {
+		return invalidations.get();
+	}
+
+	/**
+	 * Cache the store, unless it was invalidated since the stamp was taken.
+	 *
+	 * @param shopDomain The full shop domain
+	 * @param client The store
+	 * @param stamp The stamp taken before the store was read
+	 * @return true if the store was cached
+	 */
+	public boolean put(String shopDomain, OAuth2AuthorizedClient client, long stamp) {
+		if(isInvalidatedSince(shopDomain, stamp)) {
+			return false;
+		}
+
+		Entry entry = new Entry(client, System.nanoTime());
+		entries.put(shopDomain, entry);
+
+		// an invalidation may have run between the check and the put
+		if(isInvalidatedSince(shopDomain, stamp)) {
+			entries.remove(shopDomain, entry);
+			return false;
+		}
+
+		evictIfFull();
+		return true;
+	}
+
+	/**
+	 * Remove the store from the cache.
+	 *
+	 * @param shopDomain The full shop domain
+	 */
+	public void invalidate(String shopDomain) {
+		long stamp = invalidations.incrementAndGet();
+		invalidatedAt.merge(shopDomain, stamp, Math::max);
+		entries.remove(shopDomain);
+
+		if(invalidatedAt.size() > maxSize) {
+			forgetInvalidationsUpTo(stamp);
+		}
+	}
+
+	/**
+	 * Remove every store from the cache.
+	 */
+	public void clear() {
+		long stamp = invalidations.incrementAndGet();
+		forgetInvalidationsUpTo(stamp);
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	private boolean isInvalidatedSince(String shopDomain, long stamp) {
+		if(stamp < oldestValidStamp) {
+			return true;
+		}
+		Long invalidated = invalidatedAt.get(shopDomain);
+
+		return invalidated != null && invalidated > stamp;
+	}
+
+	/*
+	 * Stamps older than the forgotten invalidations are rejected first, so no stale store can be cached while 
+	 * they're removed.
+	 */
+	private synchronized void forgetInvalidationsUpTo(long stamp) {
+		if(oldestValidStamp < stamp) {
+			oldestValidStamp = stamp;
+		}
+		invalidatedAt.values().removeIf(invalidated -> invalidated <= stamp);
+	}
+
+	/*
+	 * Expired stores are removed first. If that isn't enough, a tenth of the stores are removed, so that a full
+	 * cache doesn't scan its entries on every put.
+	 */
+	private void evictIfFull() {
+		if(entries.size() <= maxSize) {
+			return;
+		}
+		long now = System.nanoTime();
+		entries.entrySet().removeIf(e -> now - e.getValue().cachedAt > timeToLiveNanos);
+
+		int target = maxSize - maxSize / 10;
+		Iterator<String> domains = entries.keySet().iterator();
+		while(entries.size() > target && domains.hasNext()) {
+			domains.next();
+			domains.remove();
+		}
+	}
+
+	private static final class Entry {
+		private final OAuth2AuthorizedClient client;
+		private final long cachedAt;
+
+		Entry(OAuth2AuthorizedClient client, long cachedAt) {
+			this.client = client;
+			this.cachedAt = cachedAt;
+		}
+	}
+
+}
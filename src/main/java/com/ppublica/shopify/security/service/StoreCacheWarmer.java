@@ -0,0 +1,172 @@
+package com.ppublica.shopify.security.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+
+import com.ppublica.shopify.security.repository.PersistedStoreAccessToken;
+import com.ppublica.shopify.security.repository.TokenRepository;
+
+/**
+ * Fills the StoreCache with the most recently active stores, so that the first requests after a deploy don't all
+ * go to the database.
+ *
+ * <p>{@link #warm()} reads up to maxStores stores with TokenRepository.findRecentStores, and decrypts them in
+ * batches on a ForkJoinPool of the given parallelism, which is shut down when it's done. It runs on the calling
+ * thread, so when it's the init method of a bean, the application doesn't accept traffic until the cache is warm.
+ * To keep a slow database from holding up startup, warm() returns once the time budget is spent, leaving the
+ * remaining stores to be loaded on demand.</p>
+ *
+ * <p>A store that is saved, updated or uninstalled during warm-up is not cached.</p>
+ *
+ * @author N F
+ * @see StoreCache
+ * @see TokenService
+ */
+public class StoreCacheWarmer {
+	private final Log logger = LogFactory.getLog(StoreCacheWarmer.class);
+
+	/**
+	 * The default time budget of warm(), in milliseconds: 30000.
+	 */
+	public static final long DEFAULT_TIME_BUDGET = 30000L;
+
+	/**
+	 * The default number of stores decrypted per task: 100.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	private final TokenService tokenService;
+	private final TokenRepository tokenRepository;
+	private final StoreCache storeCache;
+
+	private int maxStores;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private long timeBudget = DEFAULT_TIME_BUDGET;
+
+	/**
+	 * Build a StoreCacheWarmer that warms up to the cache's maximum size.
+	 *
+	 * @param tokenService The TokenService that decrypts the stores
+	 * @param tokenRepository The TokenRepository to read the stores from
+	 * @param storeCache The StoreCache to fill
+	 */
+	public StoreCacheWarmer(TokenService tokenService, TokenRepository tokenRepository, StoreCache storeCache) {
+		this.tokenService = tokenService;
+		this.tokenRepository = tokenRepository;
+		this.storeCache = storeCache;
+		this.maxStores = storeCache.getMaxSize();
+	}
+
+	/**
+	 * Load the most recently active stores into the cache, on the calling thread.
+	 *
+	 * @return The number of stores cached
+	 */
+	public int warm() {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeBudget);
+		long stamp = storeCache.stamp();
+
+		List<PersistedStoreAccessToken> stores;
+		try {
+			stores = tokenRepository.findRecentStores(maxStores);
+		} catch(UnsupportedOperationException ex) {
+			logger.info("Not warming the store cache: " + ex.getMessage());
+			return 0;
+		} catch(RuntimeException ex) {
+			logger.warn("Unable to read the stores to warm the store cache", ex);
+			return 0;
+		}
+
+		AtomicInteger cached = new AtomicInteger();
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+		try {
+			List<Future<?>> batches = new ArrayList<>();
+			for(int start = 0; start < stores.size(); start += batchSize) {
+				List<PersistedStoreAccessToken> batch = stores.subList(start, Math.min(start + batchSize, stores.size()));
+				batches.add(pool.submit(() -> cacheBatch(batch, stamp, deadline, cached)));
+			}
+
+			for(Future<?> batch : batches) {
+				long remaining = deadline - System.nanoTime();
+				if(remaining <= 0) {
+					logger.info("The store cache warm-up ran out of time");
+					break;
+				}
+				try {
+					batch.get(remaining, TimeUnit.NANOSECONDS);
+				} catch(TimeoutException ex) {
+					logger.info("The store cache warm-up ran out of time");
+					break;
+				} catch(ExecutionException ex) {
+					logger.warn("Unable to warm part of the store cache", ex.getCause());
+				}
+			}
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} finally {
+			pool.shutdownNow();
+		}
+
+		logger.info("Warmed the store cache with " + cached.get() + " of " + stores.size() + " stores");
+
+		return cached.get();
+	}
+
+	public void setMaxStores(int maxStores) {
+		this.maxStores = maxStores;
+	}
+
+	/**
+	 * Set how many stores are decrypted at the same time. Defaults to the number of processors.
+	 *
+	 * @param parallelism The parallelism of the ForkJoinPool
+	 */
+	public void setParallelism(int parallelism) {
+		if(parallelism < 1) {
+			throw new IllegalArgumentException("The parallelism must be at least 1");
+		}
+		this.parallelism = parallelism;
+	}
+
+	public void setBatchSize(int batchSize) {
+		if(batchSize < 1) {
+			throw new IllegalArgumentException("The batch size must be at least 1");
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Set how long warm() may take.
+	 *
+	 * @param timeBudget The time budget in milliseconds
+	 */
+	public void setTimeBudget(long timeBudget) {
+		this.timeBudget = timeBudget;
+	}
+
+	private void cacheBatch(List<PersistedStoreAccessToken> batch, long stamp, long deadline, AtomicInteger cached) {
+		for(PersistedStoreAccessToken token : batch) {
+			if(System.nanoTime() - deadline > 0 || Thread.currentThread().isInterrupted()) {
+				return;
+			}
+
+			OAuth2AuthorizedClient client = tokenService.decryptStore(token);
+			if(client != null && storeCache.put(token.getStoreDomain(), client, stamp)) {
+				cached.incrementAndGet();
+			}
+		}
+	}
+
+}
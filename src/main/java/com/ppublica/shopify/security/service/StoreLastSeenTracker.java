@@ -0,0 +1,202 @@
+package com.ppublica.shopify.security.service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.ppublica.shopify.security.repository.TokenRepository;
+
+/**
+ * Records when each store was last seen, and saves the times with TokenRepository.updateLastSeen in a single batch
+ * every flush interval instead of on every request.
+ *
+ * <p>The pending times are kept in a ConcurrentHashMap, whose per-bin locking keeps requests for different stores
+ * from contending. A store seen again within a second of its pending time isn't written to at all, so a busy store
+ * costs one map read per request. Between flushes, at most maxPending stores are remembered: stores seen for the
+ * first time after that are dropped (and counted) until the next flush.</p>
+ *
+ * <p>If a flush fails, its times are put back to be retried with the next one. {@link #stop()} flushes whatever is
+ * pending.</p>
+ *
+ * @author N F
+ * @see com.ppublica.shopify.security.filters.ShopifyExistingTokenFilter
+ */
+public class StoreLastSeenTracker {
+	private final Log logger = LogFactory.getLog(StoreLastSeenTracker.class);
+
+	/**
+	 * The default time between flushes, in milliseconds: 60000.
+	 */
+	public static final long DEFAULT_FLUSH_INTERVAL = 60000L;
+
+	/**
+	 * The default maximum number of stores waiting to be flushed: 100000.
+	 */
+	public static final int DEFAULT_MAX_PENDING = 100000;
+
+	private static final long RESOLUTION = 1000L;
+
+	private final TokenRepository tokenRepository;
+	private final Map<String, Long> pending = new ConcurrentHashMap<>();
+	private final LongAdder dropped = new LongAdder();
+
+	private long flushInterval = DEFAULT_FLUSH_INTERVAL;
+	private int maxPending = DEFAULT_MAX_PENDING;
+	private ScheduledExecutorService scheduler;
+
+	public StoreLastSeenTracker(TokenRepository tokenRepository) {
+		this.tokenRepository = tokenRepository;
+	}
+
+	/**
+	 * Record that the store was seen now.
+	 *
+	 * @param shopDomain The full shop domain
+	 */
+	public void recordAccess(String shopDomain) {
+		recordAccess(shopDomain, System.currentTimeMillis());
+	}
+
+	/**
+	 * Record that the store was seen at the given time.
+	 *
+	 * @param shopDomain The full shop domain
+	 * @param seenAt The time in milliseconds since the epoch
+	 */
+	public void recordAccess(String shopDomain, long seenAt) {
+		if(shopDomain == null || shopDomain.isEmpty()) {
+			return;
+		}
+
+		Long previous = pending.get(shopDomain);
+		if(previous != null) {
+			if(seenAt - previous >= RESOLUTION) {
+				pending.merge(shopDomain, seenAt, Math::max);
+			}
+			return;
+		}
+
+		if(pending.size() >= maxPending) {
+			dropped.increment();
+			return;
+		}
+		pending.merge(shopDomain, seenAt, Math::max);
+	}
+
+	/**
+	 * Save the pending times, on the calling thread.
+	 *
+	 * @return The number of stores updated
+	 */
+	public synchronized int flush() {
+		if(pending.isEmpty()) {
+			return 0;
+		}
+
+		Map<String, Long> batch = new HashMap<>();
+		for(Map.Entry<String, Long> entry : pending.entrySet()) {
+			// a store seen again since the copy keeps its newer time for the next flush
+			if(pending.remove(entry.getKey(), entry.getValue())) {
+				batch.put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		try {
+			int updated = tokenRepository.updateLastSeen(batch);
+
+			if(logger.isDebugEnabled()) {
+				logger.debug("Flushed the last-seen time of " + batch.size() + " stores (" + updated + " updated)");
+			}
+			return updated;
+		} catch(RuntimeException ex) {
+			logger.warn("Unable to save the last-seen time of " + batch.size() + " stores. Retrying with the next flush.", ex);
+			for(Map.Entry<String, Long> entry : batch.entrySet()) {
+				if(pending.size() < maxPending || pending.containsKey(entry.getKey())) {
+					pending.merge(entry.getKey(), entry.getValue(), Math::max);
+				} else {
+					dropped.increment();
+				}
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * Start flushing every flush interval on a daemon thread. Does nothing if already started.
+	 */
+	public synchronized void start() {
+		if(scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "shopify-last-seen-flush");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop flushing in the background, and flush what's pending.
+	 */
+	public void stop() {
+		ScheduledExecutorService current;
+		synchronized(this) {
+			current = scheduler;
+			scheduler = null;
+		}
+		if(current != null) {
+			current.shutdownNow();
+		}
+		flushQuietly();
+	}
+
+	/**
+	 * @return The number of stores waiting to be flushed
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * @return The number of times a store wasn't recorded because maxPending stores were already waiting
+	 */
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Set the time between flushes. Takes effect the next time the tracker is started.
+	 *
+	 * @param flushInterval The interval in milliseconds
+	 */
+	public void setFlushInterval(long flushInterval) {
+		if(flushInterval < 1) {
+			throw new IllegalArgumentException("The flush interval must be at least 1ms");
+		}
+		this.flushInterval = flushInterval;
+	}
+
+	public void setMaxPending(int maxPending) {
+		if(maxPending < 1) {
+			throw new IllegalArgumentException("The maximum number of pending stores must be at least 1");
+		}
+		this.maxPending = maxPending;
+	}
+
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch(RuntimeException ex) {
+			logger.warn("Unable to flush the last-seen times", ex);
+		}
+	}
+
+}
@@ -0,0 +1,47 @@
+package com.ppublica.shopify.security.service;
+
+/**
+ * Encrypts and decrypts access tokens with a single key.
+ * 
+ * <p>A TokenCipher writes whatever it needs to decrypt the token later (a salt, a nonce) to the salt column of 
+ * StoreAccessTokens. CipherKeyRing prefixes it with the key id, so a TokenCipher never sees the key id in a salt.</p>
+ * 
+ * @author N F
+ * @see CipherKeyRing
+ * @see AesGcmTokenCipher
+ * @see QueryableTextTokenCipher
+ */
+public interface TokenCipher {
+	
+	/**
+	 * @return The key id of the CipherPassword this cipher was created from, or null for the legacy key
+	 */
+	String getKeyId();
+	
+	/**
+	 * Encrypt the token.
+	 * 
+	 * @param rawToken The raw token
+	 * @return The encrypted token and the salt to store with it
+	 */
+	EncryptedTokenAndSalt encrypt(String rawToken);
+	
+	/**
+	 * Decrypt the token.
+	 * 
+	 * @param encryptedToken The encrypted token
+	 * @param salt The salt that was stored with it
+	 * @return The raw token
+	 * @throws IllegalStateException if the token can't be decrypted with this cipher's key
+	 */
+	String decrypt(String encryptedToken, String salt);
+	
+	/**
+	 * Determine whether the salt was written by this kind of cipher.
+	 * 
+	 * @param salt The salt, without the key id
+	 * @return true if this cipher should be used to decrypt the token
+	 */
+	boolean supports(String salt);
+
+}
@@ -0,0 +1,163 @@
+package com.ppublica.shopify.security.service;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.ppublica.shopify.security.authentication.CipherPassword;
+import com.ppublica.shopify.security.repository.PersistedStoreAccessToken;
+import com.ppublica.shopify.security.repository.ReEncryptedToken;
+
+/**
+ * Encrypts and decrypts the access tokens of stores with a CipherKeyRing. It doesn't block or touch the repository,
+ * so TokenService and ReactiveTokenService both delegate to it.
+ *
+ * <p>Building the CipherKeyRing derives a key from each CipherPassword, so it's built once: by {@link #init()}, or
+ * when a token is first encrypted or decrypted. Setting the passwords or the algorithm only records them.</p>
+ *
+ * <p>New tokens are encrypted in the queryable text format by default, so that they can still be read after rolling
+ * back to a version without AES-GCM. AES-GCM is enabled with {@link #setCipherAlgorithm(String)}. Tokens in either
+ * format can always be decrypted.</p>
+ *
+ * @author N F
+ * @see TokenService
+ * @see com.ppublica.shopify.security.reactive.ReactiveTokenService
+ * @see CipherKeyRing
+ */
+public class TokenEncryptor {
+
+	private final CipherPassword cipherPassword;
+	private List<CipherPassword> previousCipherPasswords = Collections.emptyList();
+	private String cipherAlgorithm = CipherKeyRing.DEFAULT_ALGORITHM;
+	private volatile CipherKeyRing keyRing;
+
+	/**
+	 * Create a TokenEncryptor that encrypts with the CipherPassword.
+	 *
+	 * @param cipherPassword The CipherPassword
+	 */
+	public TokenEncryptor(CipherPassword cipherPassword) {
+		if(cipherPassword == null) {
+			throw new IllegalArgumentException("A current CipherPassword is required");
+		}
+		this.cipherPassword = cipherPassword;
+	}
+
+	/**
+	 * Build the CipherKeyRing now rather than on first use, so that a misconfigured password fails at startup.
+	 */
+	public void init() {
+		getCipherKeyRing();
+	}
+
+	/**
+	 * Encrypt a raw token with the current CipherPassword.
+	 *
+	 * @param rawToken The raw token
+	 * @return The encrypted token and salt
+	 */
+	public EncryptedTokenAndSalt encrypt(String rawToken) {
+		return getCipherKeyRing().encrypt(rawToken);
+	}
+
+	/**
+	 * Decrypt the store's token.
+	 *
+	 * @param storeAccessToken The store
+	 * @return The raw token and salt, or null if there is an inconsistency in the salts or passwords
+	 */
+	public DecryptedTokenAndSalt decrypt(PersistedStoreAccessToken storeAccessToken) {
+		EncryptedTokenAndSalt etS = storeAccessToken.getTokenAndSalt();
+		if(etS == null) {
+			return null;
+		}
+
+		String salt = etS.getSalt();
+		if(salt == null || salt.isEmpty()) {
+			return null;
+		}
+
+		String encToken = etS.getEncryptedToken();
+		if(encToken == null || encToken.isEmpty()) {
+			return null;
+		}
+
+		String decryptedToken = getCipherKeyRing().decrypt(etS);
+
+		if(decryptedToken == null) {
+			return null;
+		}
+
+		return new DecryptedTokenAndSalt(decryptedToken, salt);
+	}
+
+	/**
+	 * @param storeAccessToken The store
+	 * @return true if the store's token was encrypted with the current CipherPassword
+	 */
+	public boolean isCurrent(PersistedStoreAccessToken storeAccessToken) {
+		return storeAccessToken.getTokenAndSalt() != null && getCipherKeyRing().isCurrent(storeAccessToken.getTokenAndSalt());
+	}
+
+	/**
+	 * Encrypt an already decrypted token with the current CipherPassword.
+	 *
+	 * @param storeAccessToken The store, as read from the repository
+	 * @param rawToken The decrypted token
+	 * @return The re-encrypted token
+	 */
+	public ReEncryptedToken reEncrypt(PersistedStoreAccessToken storeAccessToken, String rawToken) {
+		return new ReEncryptedToken(storeAccessToken.getStoreDomain(), storeAccessToken.getTokenAndSalt(), getCipherKeyRing().encrypt(rawToken));
+	}
+
+	/**
+	 * Set the passwords that were previously used to encrypt tokens. They are only used for decryption.
+	 *
+	 * @param previousCipherPasswords The previous CipherPasswords, each with a different key id
+	 */
+	public synchronized void setPreviousCipherPasswords(List<CipherPassword> previousCipherPasswords) {
+		this.previousCipherPasswords = previousCipherPasswords;
+		this.keyRing = null;
+	}
+
+	/**
+	 * Set the algorithm new tokens are encrypted with: "queryable-text" (the default) or "aes-gcm". Tokens
+	 * encrypted with either algorithm can always be decrypted.
+	 *
+	 * @param cipherAlgorithm The algorithm
+	 * @throws IllegalArgumentException if the algorithm is not supported
+	 */
+	public synchronized void setCipherAlgorithm(String cipherAlgorithm) {
+		if(!CipherKeyRing.ALGORITHM_AES_GCM.equals(cipherAlgorithm) && !CipherKeyRing.ALGORITHM_QUERYABLE_TEXT.equals(cipherAlgorithm)) {
+			throw new IllegalArgumentException("Unsupported cipher algorithm: " + cipherAlgorithm);
+		}
+		this.cipherAlgorithm = cipherAlgorithm;
+		this.keyRing = null;
+	}
+
+	/**
+	 * Replace the CipherKeyRing, for example to use a custom TokenCipher.
+	 *
+	 * @param keyRing The CipherKeyRing
+	 */
+	public synchronized void setCipherKeyRing(CipherKeyRing keyRing) {
+		this.keyRing = keyRing;
+	}
+
+	/**
+	 * @return The CipherKeyRing, built from the passwords and algorithm if it hasn't been yet
+	 */
+	public CipherKeyRing getCipherKeyRing() {
+		CipherKeyRing ring = this.keyRing;
+		if(ring != null) {
+			return ring;
+		}
+
+		synchronized(this) {
+			if(this.keyRing == null) {
+				this.keyRing = new CipherKeyRing(cipherPassword, previousCipherPasswords, cipherAlgorithm);
+			}
+			return this.keyRing;
+		}
+	}
+
+}
@@ -0,0 +1,218 @@
+package com.ppublica.shopify.security.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.ppublica.shopify.security.repository.PersistedStoreAccessToken;
+import com.ppublica.shopify.security.repository.ReEncryptedToken;
+import com.ppublica.shopify.security.repository.TokenRepository;
+
+/**
+ * Re-encrypts every stored token that was not encrypted with the current CipherPassword, so that a previous
+ * password can eventually be retired.
+ *
+ * <p>The stores are read in pages of batchSize (ordered by id, so no cursor is held open between pages), and
+ * each page's re-encrypted tokens are written in a single batch. The job sleeps between batches so that neither
+ * the database nor the CPU (key derivation is expensive) is saturated. A token is only replaced if it hasn't
+ * changed since it was read, so a merchant reinstalling during the job is not overwritten.</p>
+ *
+ * <p>The job runs once, on its own daemon thread, when {@link #start()} is called.</p>
+ *
+ * @author N F
+ * @see TokenService
+ * @see CipherKeyRing
+ */
+public class TokenReEncryptionJob {
+	private final Log logger = LogFactory.getLog(TokenReEncryptionJob.class);
+
+	/**
+	 * The default number of stores read and written per batch: 500.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 500;
+
+	/**
+	 * The default pause between batches, in milliseconds: 1000.
+	 */
+	public static final long DEFAULT_PAUSE = 1000L;
+
+	private final TokenService tokenService;
+	private final TokenRepository tokenRepository;
+
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private long pauseBetweenBatches = DEFAULT_PAUSE;
+
+	private final AtomicLong processedCount = new AtomicLong();
+	private final AtomicLong reEncryptedCount = new AtomicLong();
+	private final AtomicLong undecryptableCount = new AtomicLong();
+
+	private final AtomicInteger activeRuns = new AtomicInteger();
+
+	private volatile Thread worker;
+	private volatile boolean stopped;
+
+	/**
+	 * Build a TokenReEncryptionJob.
+	 *
+	 * @param tokenService The TokenService that holds the CipherPasswords
+	 * @param tokenRepository The TokenRepository to page through
+	 */
+	public TokenReEncryptionJob(TokenService tokenService, TokenRepository tokenRepository) {
+		this.tokenService = tokenService;
+		this.tokenRepository = tokenRepository;
+	}
+
+	/**
+	 * Start the job on a new daemon thread. Does nothing if the job is already running.
+	 */
+	public synchronized void start() {
+		if(isRunning()) {
+			return;
+		}
+		stopped = false;
+
+		Thread thread = new Thread(this::run, "shopify-token-re-encryption");
+		thread.setDaemon(true);
+		worker = thread;
+		thread.start();
+	}
+
+	/**
+	 * Ask the job to stop after the current batch.
+	 */
+	public synchronized void stop() {
+		stopped = true;
+
+		Thread thread = worker;
+		if(thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * Page through all the stores and re-encrypt the tokens that need it, on the calling thread.
+	 */
+	public void run() {
+		logger.info("Starting re-encryption of stored tokens");
+		activeRuns.incrementAndGet();
+
+		Long lastId = null;
+		List<PersistedStoreAccessToken> page;
+
+		try {
+			do {
+				page = tokenRepository.findStoresAfter(lastId, batchSize);
+
+				if(page.isEmpty()) {
+					break;
+				}
+
+				List<ReEncryptedToken> batch = new ArrayList<>();
+
+				for(PersistedStoreAccessToken token : page) {
+					processedCount.incrementAndGet();
+
+					if(tokenService.isEncryptedWithCurrentKey(token)) {
+						continue;
+					}
+
+					ReEncryptedToken reEncrypted = tokenService.reEncrypt(token);
+
+					if(reEncrypted == null) {
+						undecryptableCount.incrementAndGet();
+						continue;
+					}
+					batch.add(reEncrypted);
+				}
+
+				if(!batch.isEmpty()) {
+					reEncryptedCount.addAndGet(tokenRepository.updateEncryptedTokens(batch));
+				}
+
+				lastId = page.get(page.size() - 1).getId();
+
+				if(logger.isDebugEnabled()) {
+					logger.debug("Re-encryption progress: " + processedCount.get() + " processed, " + reEncryptedCount.get()
+							+ " re-encrypted, " + undecryptableCount.get() + " undecryptable");
+				}
+
+				if(page.size() == batchSize && pauseBetweenBatches > 0) {
+					Thread.sleep(pauseBetweenBatches);
+				}
+
+			} while(page.size() == batchSize && !stopped);
+
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			logger.info("Re-encryption of stored tokens interrupted");
+			return;
+		} catch(RuntimeException ex) {
+			logger.error("Re-encryption of stored tokens failed after " + processedCount.get() + " stores", ex);
+			return;
+		} finally {
+			activeRuns.decrementAndGet();
+			clearWorker();
+		}
+
+		logger.info("Re-encryption of stored tokens finished: " + processedCount.get() + " processed, " + reEncryptedCount.get()
+				+ " re-encrypted, " + undecryptableCount.get() + " undecryptable");
+	}
+
+	/**
+	 * @return true if the job is running, on its own thread or on a thread that called {@link #run()}
+	 */
+	public boolean isRunning() {
+		return worker != null || activeRuns.get() > 0;
+	}
+
+	/**
+	 * @return The number of stores read so far
+	 */
+	public long getProcessedCount() {
+		return processedCount.get();
+	}
+
+	/**
+	 * @return The number of stores whose token was re-encrypted so far
+	 */
+	public long getReEncryptedCount() {
+		return reEncryptedCount.get();
+	}
+
+	/**
+	 * @return The number of stores whose token could not be decrypted with any of the CipherPasswords
+	 */
+	public long getUndecryptableCount() {
+		return undecryptableCount.get();
+	}
+
+	public void setBatchSize(int batchSize) {
+		if(batchSize < 1) {
+			throw new IllegalArgumentException("The batch size must be at least 1");
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Set how long to sleep between batches.
+	 *
+	 * @param pauseBetweenBatches The pause in milliseconds
+	 */
+	public void setPauseBetweenBatches(long pauseBetweenBatches) {
+		this.pauseBetweenBatches = pauseBetweenBatches;
+	}
+
+	/*
+	 * Only the job's own thread clears the worker: a direct call to run() mustn't clear a worker started since.
+	 */
+	private synchronized void clearWorker() {
+		if(worker == Thread.currentThread()) {
+			worker = null;
+		}
+	}
+
+}
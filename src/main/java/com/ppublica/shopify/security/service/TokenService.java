@@ -1,10 +1,10 @@
 package com.ppublica.shopify.security.service;
 
+import java.util.Collections;
+import java.util.List;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.springframework.security.crypto.encrypt.Encryptors;
-import org.springframework.security.crypto.encrypt.TextEncryptor;
-import org.springframework.security.crypto.keygen.KeyGenerators;
 import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
 import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
 import org.springframework.security.oauth2.client.registration.ClientRegistration;
@@ -14,11 +14,14 @@ import com.ppublica.shopify.security.authentication.CipherPassword;
 import com.ppublica.shopify.security.configuration.SecurityBeansConfig;
 import com.ppublica.shopify.security.repository.PersistedStoreAccessToken;
 import com.ppublica.shopify.security.repository.PersistedStoreAccessTokenUtility;
+import com.ppublica.shopify.security.repository.ReEncryptedToken;
 import com.ppublica.shopify.security.repository.TokenRepository;
 
 /**
  * Provides methods to interact with the TokenRepository to get, save, update, or delete a store.
  * 
+ * <p>Tokens are encrypted and decrypted by a TokenEncryptor, which ReactiveTokenService shares.</p>
+ * 
  * @see ShopifyOAuth2AuthorizedClientService
  */
 public class TokenService {
@@ -30,9 +33,12 @@ public class TokenService {
 	public static final String SHOP_ATTRIBUTE_NAME = "shop";
 	
 	private TokenRepository tokenRepository;
-	private CipherPassword cipherPassword;
+	private TokenEncryptor tokenEncryptor;
 	private ClientRegistrationRepository clientRepository;
 	private PersistedStoreAccessTokenUtility persistedAccessTokenUtility = new PersistedStoreAccessTokenUtility();
+	private boolean reEncryptOnRead = true;
+	private StoreCache storeCache;
+	private StoreLastSeenTracker lastSeenTracker;
 	
 	/**
 	 * Build a new TokenService.
@@ -43,7 +49,7 @@ public class TokenService {
 	 */
 	public TokenService(TokenRepository tokenRepository, CipherPassword cipherPassword, ClientRegistrationRepository clientRepository) {
 		this.tokenRepository = tokenRepository;
-		this.cipherPassword = cipherPassword;
+		this.tokenEncryptor = new TokenEncryptor(cipherPassword);
 		this.clientRepository = clientRepository;
 
 	}
@@ -62,6 +68,7 @@ public class TokenService {
 		PersistedStoreAccessToken token = persistedAccessTokenUtility.fromAuthenticationObjectsToPersistedStoreAccessToken(authorizedClient, principal, encryptedTokenAndSalt);
 				
 		this.tokenRepository.saveNewStore(token);
+		invalidateCachedStore(token);
 		
 	}
 	
@@ -87,11 +94,29 @@ public class TokenService {
 	 * Returns a OAuth2AuthorizedClient if and only if it finds a store that matches the shopDomain.
 	 * If there's a problem decrypting the token for the store, null is returned.
 	 * 
+	 * <p>If the token was encrypted with a previous CipherPassword, it is re-encrypted with the current one.</p>
+	 * 
+	 * <p>If a StoreCache is set, the store is read from it, and cached when it has to be read from the 
+	 * TokenRepository.</p>
+	 * 
+	 * <p>If a StoreLastSeenTracker is set, the store is recorded as seen whenever it's found, so that a store only
+	 * used outside of a request (by a background job, for example) isn't swept as stale.</p>
+	 * 
 	 * @param shopDomain The full shop domain
 	 * @return The OAuth2AuthorizedClient representing the store, or null
 	 */
 	public OAuth2AuthorizedClient getStore(String shopDomain) {
 		
+		long stamp = 0;
+		if(storeCache != null) {
+			OAuth2AuthorizedClient cached = storeCache.get(shopDomain);
+			if(cached != null) {
+				recordAccess(shopDomain);
+				return cached;
+			}
+			stamp = storeCache.stamp();
+		}
+		
 		PersistedStoreAccessToken ets = this.tokenRepository.findTokenForStore(shopDomain);
 		
 		if(ets == null) {
@@ -99,26 +124,48 @@ public class TokenService {
 		}
 		
 		// obtain a representation of the raw token
-		DecryptedTokenAndSalt decryptedTokenAndSalt = getRawToken(ets);
+		DecryptedTokenAndSalt decryptedTokenAndSalt = tokenEncryptor.decrypt(ets);
 		
 		if(decryptedTokenAndSalt == null) {
 			logger.info("The salt and encrypted passwords are out of date/corrupted");
 			return null;
 		}
 		
-		ClientRegistration cr = clientRepository.findByRegistrationId(SecurityBeansConfig.SHOPIFY_REGISTRATION_ID);
-		
-		if(cr == null) {
-			throw new RuntimeException("An error occurred retrieving the ClientRegistration for " + SecurityBeansConfig.SHOPIFY_REGISTRATION_ID);
+		if(reEncryptOnRead && !tokenEncryptor.isCurrent(ets)) {
+			reEncryptOnRead(ets, decryptedTokenAndSalt.getDecryptedToken());
 		}
 		
-		OAuth2AuthorizedClient client = persistedAccessTokenUtility.fromPersistedStoreAccessTokenToOAuth2AuthorizedClient(ets, decryptedTokenAndSalt, cr);
+		OAuth2AuthorizedClient client = toAuthorizedClient(ets, decryptedTokenAndSalt);
+		
+		// the store exists, so its domain can be shared by the requests for it
+		shopDomain = ShopDomains.intern(shopDomain);
+		if(storeCache != null) {
+			storeCache.put(shopDomain, client, stamp);
+		}
+		recordAccess(shopDomain);
 
 		return client;
 	
 		
 	}
 	
+	/**
+	 * Decrypt the store's token and build the OAuth2AuthorizedClient that getStore would return. Nothing is saved,
+	 * and the token is not re-encrypted.
+	 * 
+	 * @param token The store, as read from the TokenRepository
+	 * @return The OAuth2AuthorizedClient, or null if the token could not be decrypted
+	 */
+	public OAuth2AuthorizedClient decryptStore(PersistedStoreAccessToken token) {
+		DecryptedTokenAndSalt decryptedTokenAndSalt = tokenEncryptor.decrypt(token);
+		
+		if(decryptedTokenAndSalt == null) {
+			return null;
+		}
+		
+		return toAuthorizedClient(token, decryptedTokenAndSalt);
+	}
+	
 	
 	/**
 	 * Updates the store info for an an existing store. 
@@ -134,6 +181,7 @@ public class TokenService {
 
 		
 		this.tokenRepository.updateStore(token);
+		invalidateCachedStore(token);
 
 	}
 	
@@ -145,71 +193,173 @@ public class TokenService {
 	public void uninstallStore(String shopDomain) {
 		if(shopDomain != null && !shopDomain.isEmpty()) {
 			this.tokenRepository.uninstallStore(shopDomain);
+			invalidateCachedStore(shopDomain);
 		}
 	}
 	
 	
-	public void setPersistedStoreAccessTokenUtility(PersistedStoreAccessTokenUtility customPersistedAccessTokenUtility) {
-		this.persistedAccessTokenUtility = customPersistedAccessTokenUtility;
+	/**
+	 * Determine whether the store's token was encrypted with the current CipherPassword.
+	 * 
+	 * @param token The store
+	 * @return true if the token doesn't need to be re-encrypted
+	 */
+	public boolean isEncryptedWithCurrentKey(PersistedStoreAccessToken token) {
+		return tokenEncryptor.isCurrent(token);
 	}
 	
+	/**
+	 * Determine whether the store's token can be decrypted with the current or a previous CipherPassword.
+	 * 
+	 * @param token The store
+	 * @return true if the token can be decrypted
+	 */
+	public boolean canDecrypt(PersistedStoreAccessToken token) {
+		return tokenEncryptor.decrypt(token) != null;
+	}
 	
-	/*
-	 * Returns null if there is an inconsistency in the salts or passwords
+	/**
+	 * Decrypt the store's token and encrypt it with the current CipherPassword. Nothing is saved.
+	 * 
+	 * @param token The store
+	 * @return The re-encrypted token, or null if the token could not be decrypted
 	 */
-	private DecryptedTokenAndSalt getRawToken(PersistedStoreAccessToken storeAccessToken) {
+	public ReEncryptedToken reEncrypt(PersistedStoreAccessToken token) {
+		DecryptedTokenAndSalt decryptedTokenAndSalt = tokenEncryptor.decrypt(token);
 		
-		EncryptedTokenAndSalt etS = storeAccessToken.getTokenAndSalt();
-		if(etS == null) {
+		if(decryptedTokenAndSalt == null) {
 			return null;
 		}
 		
-		String salt = etS.getSalt();
-		if(salt == null || salt.isEmpty()) {
-			return null;
-		}
+		return tokenEncryptor.reEncrypt(token, decryptedTokenAndSalt.getDecryptedToken());
+	}
+	
+	/**
+	 * Set the passwords that were previously used to encrypt tokens. They are only used for decryption.
+	 * 
+	 * @param previousCipherPasswords The previous CipherPasswords, each with a different key id
+	 */
+	public void setPreviousCipherPasswords(List<CipherPassword> previousCipherPasswords) {
+		tokenEncryptor.setPreviousCipherPasswords(previousCipherPasswords);
+	}
+	
+	/**
+	 * Set the algorithm new tokens are encrypted with: "queryable-text" (the default) or "aes-gcm". Tokens 
+	 * encrypted with either algorithm can always be decrypted.
+	 * 
+	 * @param cipherAlgorithm The algorithm
+	 * @throws IllegalArgumentException if the algorithm is not supported
+	 */
+	public void setCipherAlgorithm(String cipherAlgorithm) {
+		tokenEncryptor.setCipherAlgorithm(cipherAlgorithm);
+	}
+	
+	/**
+	 * Build the CipherKeyRing from the passwords and algorithm that were set. Otherwise, it's built when a token is 
+	 * first encrypted or decrypted.
+	 */
+	public void init() {
+		tokenEncryptor.init();
+	}
+	
+	/**
+	 * Replace the CipherKeyRing, for example to use a custom TokenCipher. 
+	 * 
+	 * @param keyRing The CipherKeyRing
+	 */
+	public void setCipherKeyRing(CipherKeyRing keyRing) {
+		tokenEncryptor.setCipherKeyRing(keyRing);
+	}
+	
+	public TokenEncryptor getTokenEncryptor() {
+		return this.tokenEncryptor;
+	}
+	
+	/**
+	 * Whether a token encrypted with a previous CipherPassword should be re-encrypted when the store is read.
+	 * Defaults to true.
+	 * 
+	 * @param reEncryptOnRead true to re-encrypt on read
+	 */
+	public void setReEncryptOnRead(boolean reEncryptOnRead) {
+		this.reEncryptOnRead = reEncryptOnRead;
+	}
+	
+	/**
+	 * Set the StoreCache getStore reads from. By default, stores are not cached.
+	 * 
+	 * @param storeCache The StoreCache, or null
+	 */
+	public void setStoreCache(StoreCache storeCache) {
+		this.storeCache = storeCache;
+	}
+	
+	public StoreCache getStoreCache() {
+		return this.storeCache;
+	}
+	
+	/**
+	 * Set the StoreLastSeenTracker that records each store getStore finds. By default, no store is recorded.
+	 * 
+	 * @param lastSeenTracker The StoreLastSeenTracker, or null
+	 */
+	public void setLastSeenTracker(StoreLastSeenTracker lastSeenTracker) {
+		this.lastSeenTracker = lastSeenTracker;
+	}
+	
+	public void setPersistedStoreAccessTokenUtility(PersistedStoreAccessTokenUtility customPersistedAccessTokenUtility) {
+		this.persistedAccessTokenUtility = customPersistedAccessTokenUtility;
+	}
+	
+	
+	private OAuth2AuthorizedClient toAuthorizedClient(PersistedStoreAccessToken ets, DecryptedTokenAndSalt decryptedTokenAndSalt) {
+		ClientRegistration cr = clientRepository.findByRegistrationId(SecurityBeansConfig.SHOPIFY_REGISTRATION_ID);
 		
-		String encToken = etS.getEncryptedToken();
-		if(encToken == null || encToken.isEmpty()) {
-			return null;
+		if(cr == null) {
+			throw new RuntimeException("An error occurred retrieving the ClientRegistration for " + SecurityBeansConfig.SHOPIFY_REGISTRATION_ID);
 		}
 		
-		String decryptedToken = decryptToken(etS);
-		
-		if(decryptedToken == null) {
-			return null;
+		return persistedAccessTokenUtility.fromPersistedStoreAccessTokenToOAuth2AuthorizedClient(ets, decryptedTokenAndSalt, cr);
+	}
+	
+	private void recordAccess(String shopDomain) {
+		if(lastSeenTracker != null) {
+			lastSeenTracker.recordAccess(shopDomain);
+		}
+	}
+	
+	private void invalidateCachedStore(PersistedStoreAccessToken token) {
+		if(storeCache != null && token != null) {
+			storeCache.invalidate(token.getStoreDomain());
+		}
+	}
+	
+	private void invalidateCachedStore(String shopDomain) {
+		if(storeCache != null) {
+			storeCache.invalidate(shopDomain);
 		}
-		
-		return new DecryptedTokenAndSalt(decryptedToken, salt);
-		
 	}
 	
 	private EncryptedTokenAndSalt getTokenAndSalt(OAuth2AuthorizedClient authorizedClient) {
 		
 		String rawAccessTokenValue = authorizedClient.getAccessToken().getTokenValue();
 		
-		String genSalt = KeyGenerators.string().generateKey();
-		
-		TextEncryptor encryptor = Encryptors.queryableText(cipherPassword.getPassword(), genSalt);
-		
-		return new EncryptedTokenAndSalt(encryptor.encrypt(rawAccessTokenValue), genSalt);
+		return tokenEncryptor.encrypt(rawAccessTokenValue);
 		
 	}
 	
-	
-	private String decryptToken(EncryptedTokenAndSalt enC) {
-		TextEncryptor textEncryptor = Encryptors.queryableText(cipherPassword.getPassword(), enC.getSalt());
+	/*
+	 * A failure to save the re-encrypted token doesn't fail the read: it'll be retried on the next read.
+	 */
+	private void reEncryptOnRead(PersistedStoreAccessToken ets, String rawToken) {
+		ReEncryptedToken reEncrypted = tokenEncryptor.reEncrypt(ets, rawToken);
 		
-		String decryptedToken = null;
 		try {
-			decryptedToken = textEncryptor.decrypt(enC.getEncryptedToken());
-		} catch(Exception e) {
-			// the cipher password changed...
-			
+			tokenRepository.updateEncryptedTokens(Collections.singletonList(reEncrypted));
+			logger.debug("Re-encrypted the token for " + ets.getStoreDomain() + " with the current key");
+		} catch(RuntimeException ex) {
+			logger.warn("Unable to re-encrypt the token for " + ets.getStoreDomain(), ex);
 		}
-		return decryptedToken;
-		
-		
 	}
 	
 
@@ -0,0 +1,287 @@
+package com.ppublica.shopify.security.service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
+
+/**
+ * An OAuth2AuthorizedClientService that decorates another OAuth2AuthorizedClientService (usually
+ * ShopifyOAuth2AuthorizedClientService) so that saving a store happens in the background.
+ *
+ * <p>When OAuth2LoginAuthenticationFilter saves the OAuth2AuthorizedClient after the authorization redirect,
+ * the client is put in a write-behind buffer and the request continues immediately, so the merchant doesn't wait
+ * for the token to be encrypted and stored. The buffer is flushed on an executor. A failed save is retried with
+ * an exponential backoff, up to a maximum number of attempts.</p>
+ *
+ * <p>Reads see pending writes: loadAuthorizedClient returns the buffered OAuth2AuthorizedClient if the store
+ * has not been persisted yet. removeAuthorizedClient cancels a pending write before removing the store.</p>
+ *
+ * <p>If the buffer is full, the store is saved on the calling thread.</p>
+ *
+ * <p>Each buffered store is saved at most once: a write is claimed before it's saved, whether by the executor,
+ * by a caller after the executor was shut down, or by shutdown. Once the executor is shut down, a failed save
+ * isn't retried. A store that can't be saved after its last attempt is logged as an error and counted.</p>
+ *
+ * @author N F
+ * @see ShopifyOAuth2AuthorizedClientService
+ */
+public class WriteBehindOAuth2AuthorizedClientService implements OAuth2AuthorizedClientService {
+	private final Log logger = LogFactory.getLog(WriteBehindOAuth2AuthorizedClientService.class);
+
+	/**
+	 * The default maximum number of stores waiting to be saved: 1000.
+	 */
+	public static final int DEFAULT_MAX_PENDING = 1000;
+
+	/**
+	 * The default number of times a save is attempted: 5.
+	 */
+	public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+	/**
+	 * The default delay before the first retry, in milliseconds: 500. It doubles after each failed attempt.
+	 */
+	public static final long DEFAULT_RETRY_DELAY = 500L;
+
+	private final OAuth2AuthorizedClientService delegate;
+	private final ScheduledExecutorService executor;
+	private final Map<String, PendingWrite> pending = new ConcurrentHashMap<>();
+	private final AtomicLong failedCount = new AtomicLong();
+
+	private int maxPending = DEFAULT_MAX_PENDING;
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private long retryDelay = DEFAULT_RETRY_DELAY;
+
+	/**
+	 * Build a WriteBehindOAuth2AuthorizedClientService that flushes on a single daemon thread.
+	 *
+	 * @param delegate The OAuth2AuthorizedClientService that persists the stores
+	 */
+	public WriteBehindOAuth2AuthorizedClientService(OAuth2AuthorizedClientService delegate) {
+		this(delegate, Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "shopify-write-behind");
+			thread.setDaemon(true);
+			return thread;
+		}));
+	}
+
+	/**
+	 * Build a WriteBehindOAuth2AuthorizedClientService.
+	 *
+	 * @param delegate The OAuth2AuthorizedClientService that persists the stores
+	 * @param executor The executor that flushes the buffer
+	 */
+	public WriteBehindOAuth2AuthorizedClientService(OAuth2AuthorizedClientService delegate, ScheduledExecutorService executor) {
+		if(delegate == null) {
+			throw new IllegalArgumentException("An OAuth2AuthorizedClientService is required");
+		}
+		if(executor == null) {
+			throw new IllegalArgumentException("A ScheduledExecutorService is required");
+		}
+		this.delegate = delegate;
+		this.executor = executor;
+	}
+
+	/**
+	 * Return the pending OAuth2AuthorizedClient for the store if it has not been persisted yet. Otherwise, load
+	 * it from the delegate.
+	 *
+	 * @param clientRegistrationId The registration id (e.g. "shopify")
+	 * @param principalName The full Shopify shop domain
+	 * @return The OAuth2AuthorizedClient or null if store not found
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T extends OAuth2AuthorizedClient> T loadAuthorizedClient(String clientRegistrationId, String principalName) {
+		PendingWrite write = pending.get(key(clientRegistrationId, principalName));
+
+		if(write != null) {
+			logger.debug("Returning pending store " + principalName);
+			return (T) write.client;
+		}
+
+		return delegate.loadAuthorizedClient(clientRegistrationId, principalName);
+	}
+
+	/**
+	 * Buffer the store and schedule it to be saved by the delegate. A newer save for the same store replaces an
+	 * older one that hasn't been flushed yet. If the buffer is full, the store is saved immediately.
+	 *
+	 * @param authorizedClient The authenticated OAuth2AuthorizedClient
+	 * @param principal The OAuth2AuthenticationToken
+	 */
+	@Override
+	public void saveAuthorizedClient(OAuth2AuthorizedClient authorizedClient, Authentication principal) {
+		String key = key(authorizedClient.getClientRegistration().getRegistrationId(), principal.getName());
+
+		if(pending.size() >= maxPending && !pending.containsKey(key)) {
+			logger.warn("Write-behind buffer is full. Saving store " + principal.getName() + " on the calling thread");
+			delegate.saveAuthorizedClient(authorizedClient, principal);
+			return;
+		}
+
+		PendingWrite write = new PendingWrite(authorizedClient, principal);
+		PendingWrite replaced = pending.put(key, write);
+
+		if(replaced != null) {
+			replaced.cancelled = true;
+		}
+
+		schedule(key, write, 0L);
+	}
+
+	/**
+	 * Cancel any pending write for the store, then remove it via the delegate.
+	 *
+	 * @param clientRegistrationId The registration id (e.g. "shopify")
+	 * @param principalName The full shop domain
+	 */
+	@Override
+	public void removeAuthorizedClient(String clientRegistrationId, String principalName) {
+		PendingWrite write = pending.remove(key(clientRegistrationId, principalName));
+
+		if(write != null) {
+			write.cancelled = true;
+		}
+
+		delegate.removeAuthorizedClient(clientRegistrationId, principalName);
+	}
+
+	/**
+	 * Stop the executor, dropping the scheduled retries, then save whatever is left in the buffer on the calling
+	 * thread. A save still running on the executor is left to finish; it isn't saved again.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+		try {
+			if(!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+				logger.warn("Write-behind executor did not terminate. Stores it is saving won't be saved again");
+			}
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+
+		for(Map.Entry<String, PendingWrite> entry : pending.entrySet()) {
+			flush(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * @return The number of stores waiting to be saved
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * @return The number of stores that could not be saved after all attempts
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	public void setMaxPending(int maxPending) {
+		this.maxPending = maxPending;
+	}
+
+	public void setMaxAttempts(int maxAttempts) {
+		if(maxAttempts < 1) {
+			throw new IllegalArgumentException("The maximum number of attempts must be at least 1");
+		}
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Set the delay before the first retry. It doubles after each failed attempt.
+	 *
+	 * @param retryDelay The delay in milliseconds
+	 */
+	public void setRetryDelay(long retryDelay) {
+		this.retryDelay = retryDelay;
+	}
+
+	private void schedule(String key, PendingWrite write, long delay) {
+		try {
+			executor.schedule(() -> flush(key, write), delay, TimeUnit.MILLISECONDS);
+		} catch(RejectedExecutionException ex) {
+			// shutting down: save on the calling thread
+			flush(key, write);
+		}
+	}
+
+	/*
+	 * Only the thread that claims the write saves it. A write that will be retried is released again; one that was
+	 * saved or failed for the last time is done.
+	 */
+	private void flush(String key, PendingWrite write) {
+		if(write.cancelled || !write.state.compareAndSet(PendingWrite.WAITING, PendingWrite.SAVING)) {
+			return;
+		}
+
+		try {
+			delegate.saveAuthorizedClient(write.client, write.principal);
+
+		} catch(RuntimeException ex) {
+			write.attempts++;
+
+			if(write.attempts < maxAttempts && !write.cancelled && !executor.isShutdown()) {
+				long delay = retryDelay << Math.min(write.attempts - 1, 16);
+				logger.warn("Unable to save store " + write.principal.getName() + ". Retrying in " + delay + "ms", ex);
+				write.state.set(PendingWrite.WAITING);
+				schedule(key, write, delay);
+
+				return;
+			}
+
+			write.state.set(PendingWrite.DONE);
+			pending.remove(key, write);
+
+			if(!write.cancelled) {
+				failedCount.incrementAndGet();
+				logger.error("Unable to save store " + write.principal.getName() + " after " + write.attempts + " attempts", ex);
+			}
+			return;
+		}
+
+		write.state.set(PendingWrite.DONE);
+		pending.remove(key, write);
+
+		if(write.cancelled && !pending.containsKey(key)) {
+			// the store was uninstalled while it was being saved
+			delegate.removeAuthorizedClient(write.client.getClientRegistration().getRegistrationId(), write.principal.getName());
+		}
+	}
+
+	private static String key(String clientRegistrationId, String principalName) {
+		return clientRegistrationId + ":" + principalName;
+	}
+
+	private static class PendingWrite {
+		private static final int WAITING = 0;
+		private static final int SAVING = 1;
+		private static final int DONE = 2;
+
+		private final OAuth2AuthorizedClient client;
+		private final Authentication principal;
+		private final AtomicInteger state = new AtomicInteger(WAITING);
+		private int attempts;
+		private volatile boolean cancelled;
+
+		PendingWrite(OAuth2AuthorizedClient client, Authentication principal) {
+			this.client = client;
+			this.principal = principal;
+		}
+	}
+
+}
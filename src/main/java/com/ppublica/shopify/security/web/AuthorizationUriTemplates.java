@@ -0,0 +1,208 @@
+package com.ppublica.shopify.security.web;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
+import org.springframework.web.util.UriUtils;
+
+/**
+ * The URI templates of a ClientRegistration, compiled once so that the install page can build its URIs with a few
+ * appends instead of parsing the templates with UriComponentsBuilder on every request.
+ *
+ * <p>The redirect uri template may use {baseUrl} and {registrationId}; the registration id is filled in when the
+ * template is compiled. The authorization uri template may use {shop}. The client id and scopes are concatenated
+ * into the query string once.</p>
+ *
+ * <p>The query parameters are added the way UriComponentsBuilder adds them: before the fragment, if any, and after
+ * the uri's own query. As with UriComponentsBuilder.encode(), only the characters that aren't allowed in a query are
+ * encoded in the values, so the usual redirect uris and states are added as they are.</p>
+ *
+ * @author N F
+ * @see ShopifyOAuth2AuthorizationRequestResolver
+ * @see ShopifyRedirectStrategy
+ */
+final class AuthorizationUriTemplates {
+
+	static final String BASE_URL_VARIABLE = "baseUrl";
+	static final String REGISTRATION_ID_VARIABLE = "registrationId";
+
+	private final ClientRegistration clientRegistration;
+	private final Template redirectUri;
+	private final Template authorizationUri;
+	private final String paramsBeforeRedirectUri;
+	private final String paramsBeforeState;
+
+	private AuthorizationUriTemplates(ClientRegistration clientRegistration) {
+		this.clientRegistration = clientRegistration;
+
+		this.redirectUri = Template.parse(clientRegistration.getRedirectUriTemplate())
+				.fill(REGISTRATION_ID_VARIABLE, clientRegistration.getRegistrationId())
+				.requireOnly(BASE_URL_VARIABLE);
+
+		String authorizationUriTemplate = clientRegistration.getProviderDetails().getAuthorizationUri();
+		String lowerCase = authorizationUriTemplate == null ? "" : authorizationUriTemplate.toLowerCase(Locale.ROOT);
+		if(!lowerCase.startsWith("http://") && !lowerCase.startsWith("https://")) {
+			throw new IllegalArgumentException("[" + authorizationUriTemplate + "] is not a valid HTTP URL");
+		}
+		this.authorizationUri = Template.parse(authorizationUriTemplate)
+				.requireOnly(ShopifyOAuth2AuthorizationRequestResolver.SHOPIFY_SHOP_PARAMETER_KEY_FOR_TOKEN);
+
+		this.paramsBeforeRedirectUri = OAuth2ParameterNames.CLIENT_ID + "=" + encode(clientRegistration.getClientId())
+				+ "&" + OAuth2ParameterNames.REDIRECT_URI + "=";
+		this.paramsBeforeState = "&" + OAuth2ParameterNames.SCOPE + "="
+				+ encode(ShopifyRedirectStrategy.concatenateListIntoCommaString(new ArrayList<>(clientRegistration.getScopes())))
+				+ "&" + OAuth2ParameterNames.STATE + "=";
+	}
+
+	/**
+	 * Compile the templates of the ClientRegistration.
+	 *
+	 * @param clientRegistration The ClientRegistration
+	 * @return The compiled templates
+	 * @throws IllegalArgumentException if a template uses an unsupported variable, or the authorization uri isn't
+	 * 			an HTTP URL
+	 */
+	static AuthorizationUriTemplates compile(ClientRegistration clientRegistration) {
+		return new AuthorizationUriTemplates(clientRegistration);
+	}
+
+	/**
+	 * @param clientRegistration A ClientRegistration
+	 * @return true if these templates were compiled from that very ClientRegistration
+	 */
+	boolean isFor(ClientRegistration clientRegistration) {
+		return this.clientRegistration == clientRegistration;
+	}
+
+	String expandRedirectUri(String baseUrl) {
+		return redirectUri.expand(baseUrl);
+	}
+
+	String expandAuthorizationUri(String shop) {
+		return authorizationUri.expand(shop);
+	}
+
+	/**
+	 * Add the client_id, redirect_uri, scope and state query parameters to the uri, after its query and before its
+	 * fragment.
+	 *
+	 * @param uri The uri
+	 * @param redirectUri The expanded redirect uri
+	 * @param state The state
+	 * @return The uri with the query parameters
+	 */
+	String addRedirectParams(String uri, String redirectUri, String state) {
+		int fragmentIndex = uri.indexOf('#');
+		int end = fragmentIndex < 0 ? uri.length() : fragmentIndex;
+		int queryIndex = uri.indexOf('?');
+
+		redirectUri = encode(redirectUri);
+		state = encode(state);
+
+		StringBuilder builder = new StringBuilder(uri.length() + paramsBeforeRedirectUri.length() + redirectUri.length() + paramsBeforeState.length() + state.length() + 1)
+				.append(uri, 0, end);
+
+		if(queryIndex < 0 || queryIndex > end) {
+			builder.append('?');
+		} else if(queryIndex < end - 1 && uri.charAt(end - 1) != '&') {
+			builder.append('&');
+		}
+
+		return builder.append(paramsBeforeRedirectUri)
+				.append(redirectUri)
+				.append(paramsBeforeState)
+				.append(state)
+				.append(uri, end, uri.length())
+				.toString();
+	}
+
+	private static String encode(String value) {
+		return UriUtils.encodeQuery(value, StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * A template split into literal parts and {variable} parts: literals has one more element than variables.
+	 */
+	static final class Template {
+		private final String[] literals;
+		private final String[] variables;
+
+		private Template(String[] literals, String[] variables) {
+			this.literals = literals;
+			this.variables = variables;
+		}
+
+		static Template parse(String template) {
+			if(template == null) {
+				throw new IllegalArgumentException("The uri template is required");
+			}
+			List<String> literals = new ArrayList<>();
+			List<String> variables = new ArrayList<>();
+
+			int start = 0;
+			int open;
+			while((open = template.indexOf('{', start)) >= 0) {
+				int close = template.indexOf('}', open);
+				if(close < 0) {
+					throw new IllegalArgumentException("Unclosed variable in the uri template " + template);
+				}
+				literals.add(template.substring(start, open));
+				variables.add(template.substring(open + 1, close));
+				start = close + 1;
+			}
+			literals.add(template.substring(start));
+
+			return new Template(literals.toArray(new String[0]), variables.toArray(new String[0]));
+		}
+
+		/*
+		 * Replace every occurrence of the variable with a constant value.
+		 */
+		Template fill(String variable, String value) {
+			List<String> newLiterals = new ArrayList<>();
+			List<String> newVariables = new ArrayList<>();
+
+			StringBuilder literal = new StringBuilder(literals[0]);
+			for(int i = 0; i < variables.length; i++) {
+				if(variables[i].equals(variable)) {
+					literal.append(value).append(literals[i + 1]);
+				} else {
+					newLiterals.add(literal.toString());
+					newVariables.add(variables[i]);
+					literal = new StringBuilder(literals[i + 1]);
+				}
+			}
+			newLiterals.add(literal.toString());
+
+			return new Template(newLiterals.toArray(new String[0]), newVariables.toArray(new String[0]));
+		}
+
+		Template requireOnly(String variable) {
+			for(String name : variables) {
+				if(!name.equals(variable)) {
+					throw new IllegalArgumentException("Unsupported variable {" + name + "} in the uri template");
+				}
+			}
+			return this;
+		}
+
+		/*
+		 * Every variable left is the same one, so they all get the same value.
+		 */
+		String expand(String value) {
+			if(variables.length == 0) {
+				return literals[0];
+			}
+			StringBuilder builder = new StringBuilder(literals[0]);
+			for(int i = 0; i < variables.length; i++) {
+				builder.append(value).append(literals[i + 1]);
+			}
+			return builder.toString();
+		}
+	}
+
+}
@@ -0,0 +1,163 @@
+package com.ppublica.shopify.security.web;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.NotSerializableException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.ObjectStreamException;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+
+/**
+ * The Map&lt;String, OAuth2AuthorizationRequest&gt; kept in the HttpSession, keyed by state. It's still a HashMap,
+ * so that HttpSessionOAuth2AuthorizationRequestRepository can read and update it, but it's serialized as a compact
+ * binary record instead of a HashMap of OAuth2AuthorizationRequests and their enums and unmodifiable collections.
+ *
+ * <p>Each request is written as its strings and its additional parameters and attributes. String values are
+ * written as UTF; anything else is written as an object.</p>
+ *
+ * @author N F
+ * @see ShopifyHttpSessionOAuth2AuthorizationRequestRepository
+ */
+final class SessionAuthorizationRequests extends HashMap<String, OAuth2AuthorizationRequest> {
+	private static final long serialVersionUID = 1L;
+
+	SessionAuthorizationRequests() {
+	}
+
+	SessionAuthorizationRequests(Map<String, OAuth2AuthorizationRequest> authorizationRequests) {
+		super(authorizationRequests);
+	}
+
+	private Object writeReplace() throws ObjectStreamException {
+		return new SerializedForm(this);
+	}
+
+	private static final class SerializedForm implements Externalizable {
+		private static final long serialVersionUID = 1L;
+
+		private static final int VERSION = 1;
+
+		private SessionAuthorizationRequests authorizationRequests;
+
+		public SerializedForm() {
+		}
+
+		SerializedForm(SessionAuthorizationRequests authorizationRequests) {
+			this.authorizationRequests = authorizationRequests;
+		}
+
+		@Override
+		public void writeExternal(ObjectOutput out) throws IOException {
+			out.writeByte(VERSION);
+			out.writeShort(authorizationRequests.size());
+
+			for(Map.Entry<String, OAuth2AuthorizationRequest> entry : authorizationRequests.entrySet()) {
+				OAuth2AuthorizationRequest request = entry.getValue();
+
+				if(AuthorizationGrantType.AUTHORIZATION_CODE.equals(request.getGrantType())) {
+					out.writeBoolean(true);
+				} else if(AuthorizationGrantType.IMPLICIT.equals(request.getGrantType())) {
+					out.writeBoolean(false);
+				} else {
+					throw new NotSerializableException("Unsupported grant type " + request.getGrantType().getValue());
+				}
+
+				out.writeUTF(entry.getKey());
+				out.writeUTF(request.getAuthorizationUri());
+				out.writeUTF(request.getClientId());
+				writeNullableUTF(out, request.getRedirectUri());
+				writeNullableUTF(out, request.getState());
+				writeNullableUTF(out, request.getAuthorizationRequestUri());
+
+				out.writeShort(request.getScopes().size());
+				for(String scope : request.getScopes()) {
+					out.writeUTF(scope);
+				}
+
+				writeMap(out, request.getAdditionalParameters());
+				writeMap(out, request.getAttributes());
+			}
+		}
+
+		@Override
+		public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+			int version = in.readByte();
+			if(version != VERSION) {
+				throw new InvalidObjectException("Unknown authorization requests version " + version);
+			}
+
+			int size = in.readUnsignedShort();
+			authorizationRequests = new SessionAuthorizationRequests();
+
+			for(int i = 0; i < size; i++) {
+				OAuth2AuthorizationRequest.Builder builder = in.readBoolean() ? OAuth2AuthorizationRequest.authorizationCode() : OAuth2AuthorizationRequest.implicit();
+
+				String key = in.readUTF();
+				builder.authorizationUri(in.readUTF())
+						.clientId(in.readUTF())
+						.redirectUri(readNullableUTF(in))
+						.state(readNullableUTF(in))
+						.authorizationRequestUri(readNullableUTF(in));
+
+				int scopeCount = in.readUnsignedShort();
+				Set<String> scopes = new LinkedHashSet<>();
+				for(int j = 0; j < scopeCount; j++) {
+					scopes.add(in.readUTF());
+				}
+
+				authorizationRequests.put(key, builder.scopes(scopes)
+						.additionalParameters(readMap(in))
+						.attributes(readMap(in))
+						.build());
+			}
+		}
+
+		private Object readResolve() throws ObjectStreamException {
+			return authorizationRequests;
+		}
+
+		private static void writeNullableUTF(ObjectOutput out, String value) throws IOException {
+			out.writeBoolean(value != null);
+			if(value != null) {
+				out.writeUTF(value);
+			}
+		}
+
+		private static String readNullableUTF(ObjectInput in) throws IOException {
+			return in.readBoolean() ? in.readUTF() : null;
+		}
+
+		private static void writeMap(ObjectOutput out, Map<String, Object> map) throws IOException {
+			out.writeShort(map.size());
+			for(Map.Entry<String, Object> entry : map.entrySet()) {
+				out.writeUTF(entry.getKey());
+				if(entry.getValue() instanceof String) {
+					out.writeBoolean(true);
+					out.writeUTF((String)entry.getValue());
+				} else {
+					out.writeBoolean(false);
+					out.writeObject(entry.getValue());
+				}
+			}
+		}
+
+		private static Map<String, Object> readMap(ObjectInput in) throws IOException, ClassNotFoundException {
+			int size = in.readUnsignedShort();
+			Map<String, Object> map = new HashMap<>();
+			for(int i = 0; i < size; i++) {
+				String key = in.readUTF();
+				map.put(key, in.readBoolean() ? in.readUTF() : in.readObject());
+			}
+			return map;
+		}
+	}
+
+}
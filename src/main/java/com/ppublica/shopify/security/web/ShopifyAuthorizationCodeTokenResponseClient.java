@@ -20,6 +20,7 @@ import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
 
 import com.ppublica.shopify.security.converter.ShopifyOAuth2AccessTokenResponseConverter;
+import com.ppublica.shopify.security.service.BoundedBlockingExecutor;
 
 /**
  * An implementation of OAuth2AccessTokenResponseClient that decorates DefaultAuthorizationCodeTokenResponseClient.
@@ -47,6 +48,9 @@ import com.ppublica.shopify.security.converter.ShopifyOAuth2AccessTokenResponseC
  * (OAuth2UserService needs it).</li>
  * </ul>
  * 
+ * <p>Optionally, the HTTP call to Shopify can be run on a BoundedBlockingExecutor (see 
+ * {@link #setBlockingExecutor(BoundedBlockingExecutor)}), which limits how many exchanges are in flight at once.</p>
+ * 
  * @see DefaultAuthorizationCodeTokenResponseClient
  * @see org.springframework.security.oauth2.client.authentication.OAuth2LoginAuthenticationProvider
  * 
@@ -55,6 +59,7 @@ public class ShopifyAuthorizationCodeTokenResponseClient implements OAuth2Access
 	private final Log logger = LogFactory.getLog(ShopifyAuthorizationCodeTokenResponseClient.class);
 
 	private DefaultAuthorizationCodeTokenResponseClient oAuth2AccessTokenResponseClient;
+	private BoundedBlockingExecutor blockingExecutor;
 	
 	
 	
@@ -113,7 +118,7 @@ public class ShopifyAuthorizationCodeTokenResponseClient implements OAuth2Access
 
 		logger.debug("Exchanging code for token with Shopify");
 
-		OAuth2AccessTokenResponse resp = oAuth2AccessTokenResponseClient.getTokenResponse(newGrantReq);
+		OAuth2AccessTokenResponse resp = exchange(newGrantReq);
 		
 		logger.debug("Obtained Shopify response for token");
 
@@ -140,6 +145,23 @@ public class ShopifyAuthorizationCodeTokenResponseClient implements OAuth2Access
 		oAuth2AccessTokenResponseClient.setRestOperations(restOperations);
 	}
 	
+	/**
+	 * Run the token exchange on the given executor instead of on the calling thread.
+	 * 
+	 * @param blockingExecutor The BoundedBlockingExecutor, or null to exchange on the calling thread
+	 */
+	public void setBlockingExecutor(BoundedBlockingExecutor blockingExecutor) {
+		this.blockingExecutor = blockingExecutor;
+	}
+	
+	private OAuth2AccessTokenResponse exchange(OAuth2AuthorizationCodeGrantRequest grantRequest) {
+		if(blockingExecutor == null) {
+			return oAuth2AccessTokenResponseClient.getTokenResponse(grantRequest);
+		}
+		
+		return blockingExecutor.execute(() -> oAuth2AccessTokenResponseClient.getTokenResponse(grantRequest));
+	}
+	
 	private OAuth2AccessTokenResponse responseWithModAddParams(OAuth2AccessTokenResponse response, Map<String, Object> params) {
 		
 		OAuth2AccessTokenResponse.Builder builder = OAuth2AccessTokenResponse.withResponse(response);
@@ -0,0 +1,288 @@
+package com.ppublica.shopify.security.web;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseCookie;
+import org.springframework.security.oauth2.client.web.AuthorizationRequestRepository;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
+
+import com.ppublica.shopify.security.service.EncryptedTokenAndSalt;
+import com.ppublica.shopify.security.service.TokenCipher;
+
+/**
+ * Keeps the OAuth2AuthorizationRequest in an encrypted cookie instead of the HttpSession, so that starting the
+ * OAuth flow never creates a session. The session is only created once the store is authenticated.
+ *
+ * <p>Each OAuth2AuthorizationRequest gets its own cookie, named after its state, so flows started at the same time
+ * (in two tabs, for example) don't replace each other. The cookie holds the request, serialized like the session's
+ * and encrypted with AES-GCM, with the time it expires. A cookie that can't be decrypted, or that has expired, is
+ * ignored; the browser drops it after maxAge anyway.</p>
+ *
+ * <p>The cookies are HttpOnly. On a secure request they're also Secure and SameSite=None, since the flow runs in the
+ * Shopify admin's iframe. Browsers reject SameSite=None without Secure, so on a plain http request (local
+ * development) they're SameSite=Lax instead. Behind a proxy that terminates TLS, a ForwardedHeaderFilter should make
+ * the request secure.</p>
+ *
+ * <p>Besides replacing ShopifyHttpSessionOAuth2AuthorizationRequestRepository for the resolver and
+ * ShopifyVerificationStrategy, this class is the AuthorizationRequestRepository of OAuth2LoginAuthenticationFilter,
+ * which removes the cookie when the authorization code is received. Since the resolver has no
+ * HttpServletResponse, ShopifyAuthorizationRequestCookieFilter must expose it on the request first.</p>
+ *
+ * @author N F
+ * @see com.ppublica.shopify.security.filters.ShopifyAuthorizationRequestCookieFilter
+ */
+public class ShopifyCookieOAuth2AuthorizationRequestRepository extends ShopifyHttpSessionOAuth2AuthorizationRequestRepository
+		implements AuthorizationRequestRepository<OAuth2AuthorizationRequest> {
+	private final Log logger = LogFactory.getLog(ShopifyCookieOAuth2AuthorizationRequestRepository.class);
+
+	/**
+	 * The prefix of the cookie names: each cookie is named COOKIE_NAME, an underscore and its state.
+	 */
+	public static final String COOKIE_NAME = "SHOPIFY_AUTHORIZATION_REQUEST";
+
+	private static final String COOKIE_NAME_PREFIX = COOKIE_NAME + "_";
+	private static final int MAX_STATE_LENGTH = 64;
+
+	/**
+	 * The request attribute that holds the HttpServletResponse.
+	 */
+	public static final String RESPONSE_ATTRIBUTE = ShopifyCookieOAuth2AuthorizationRequestRepository.class.getName() + ".RESPONSE";
+
+	/**
+	 * The default time the cookie is kept, in seconds: 600.
+	 */
+	public static final long DEFAULT_MAX_AGE = 600L;
+
+	private static final String LOADED_ATTRIBUTE = ShopifyCookieOAuth2AuthorizationRequestRepository.class.getName() + ".LOADED";
+	private static final char SEPARATOR = '.';
+
+	private final TokenCipher cipher;
+	private long maxAge = DEFAULT_MAX_AGE;
+
+	/**
+	 * Construct a ShopifyCookieOAuth2AuthorizationRequestRepository
+	 *
+	 * @param installPath The install path
+	 * @param cipher The cipher the cookie is encrypted with
+	 */
+	public ShopifyCookieOAuth2AuthorizationRequestRepository(String installPath, TokenCipher cipher) {
+		super(installPath);
+		this.cipher = cipher;
+	}
+
+	/**
+	 * Set the time the cookie is kept. An authorization request older than that is ignored.
+	 *
+	 * @param maxAge The time, in seconds
+	 */
+	public void setMaxAge(long maxAge) {
+		if(maxAge < 1) {
+			throw new IllegalArgumentException("The max age must be at least 1 second");
+		}
+		this.maxAge = maxAge;
+	}
+
+	/**
+	 * Save the OAuth2AuthorizationRequest in the cookie, using the HttpServletResponse exposed by
+	 * ShopifyAuthorizationRequestCookieFilter.
+	 *
+	 * @param authorizationRequest the OAuth2AuthorizationRequest to be persisted
+	 * @param request the HttpServletRequest
+	 * @throws IllegalStateException if the response wasn't exposed on the request
+	 */
+	@Override
+	public void saveAuthorizationRequest(OAuth2AuthorizationRequest authorizationRequest, HttpServletRequest request) {
+		Object response = request.getAttribute(RESPONSE_ATTRIBUTE);
+
+		if(!(response instanceof HttpServletResponse)) {
+			throw new IllegalStateException("No HttpServletResponse found in the request to save the authorization request cookie");
+		}
+
+		saveAuthorizationRequest(authorizationRequest, request, (HttpServletResponse) response);
+	}
+
+	@Override
+	public void saveAuthorizationRequest(OAuth2AuthorizationRequest authorizationRequest, HttpServletRequest request,
+			HttpServletResponse response) {
+		if(authorizationRequest == null) {
+			removeCookies(request, response);
+			return;
+		}
+
+		String state = authorizationRequest.getState();
+		Map<String, OAuth2AuthorizationRequest> saved = Collections.singletonMap(state, authorizationRequest);
+
+		response.addHeader(HttpHeaders.SET_COOKIE, cookie(request, cookieName(state), encode(saved), maxAge));
+
+		Map<String, OAuth2AuthorizationRequest> authorizationRequests = new HashMap<>(getAuthorizationRequests(request));
+		authorizationRequests.put(state, authorizationRequest);
+		request.setAttribute(LOADED_ATTRIBUTE, authorizationRequests);
+
+		logger.debug("OAuth2AuthorizationRequest saved in a cookie");
+	}
+
+	/**
+	 * Read the OAuth2AuthorizationRequests in the cookies. The cookies are only decrypted once per request.
+	 *
+	 * @param request the current HttpSevletRequest
+	 * @return a Map of the OAuth2AuthorizationRequests with their state, or an empty Map
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public Map<String, OAuth2AuthorizationRequest> getAuthorizationRequests(HttpServletRequest request) {
+		Map<String, OAuth2AuthorizationRequest> authorizationRequests = (Map<String, OAuth2AuthorizationRequest>) request.getAttribute(LOADED_ATTRIBUTE);
+
+		if(authorizationRequests == null) {
+			authorizationRequests = new HashMap<>();
+			Cookie[] cookies = request.getCookies();
+			if(cookies != null) {
+				for(Cookie cookie : cookies) {
+					if(cookie.getName().startsWith(COOKIE_NAME_PREFIX)) {
+						authorizationRequests.putAll(decode(cookie.getValue()));
+					}
+				}
+			}
+			request.setAttribute(LOADED_ATTRIBUTE, authorizationRequests);
+		}
+
+		return authorizationRequests;
+	}
+
+	@Override
+	public OAuth2AuthorizationRequest loadAuthorizationRequest(HttpServletRequest request) {
+		String state = request.getParameter(OAuth2ParameterNames.STATE);
+
+		return state == null ? null : getAuthorizationRequests(request).get(state);
+	}
+
+	/**
+	 * Load the OAuth2AuthorizationRequest. The cookie can only be removed with the response.
+	 *
+	 * @param request the current HttpServletRequest
+	 * @return the OAuth2AuthorizationRequest, or null
+	 */
+	@Override
+	@Deprecated
+	public OAuth2AuthorizationRequest removeAuthorizationRequest(HttpServletRequest request) {
+		return loadAuthorizationRequest(request);
+	}
+
+	@Override
+	public OAuth2AuthorizationRequest removeAuthorizationRequest(HttpServletRequest request, HttpServletResponse response) {
+		OAuth2AuthorizationRequest authorizationRequest = loadAuthorizationRequest(request);
+
+		if(authorizationRequest != null) {
+			String state = authorizationRequest.getState();
+			response.addHeader(HttpHeaders.SET_COOKIE, cookie(request, cookieName(state), "", 0));
+
+			Map<String, OAuth2AuthorizationRequest> authorizationRequests = new HashMap<>(getAuthorizationRequests(request));
+			authorizationRequests.remove(state);
+			request.setAttribute(LOADED_ATTRIBUTE, authorizationRequests);
+		}
+
+		return authorizationRequest;
+	}
+
+	private void removeCookies(HttpServletRequest request, HttpServletResponse response) {
+		Cookie[] cookies = request.getCookies();
+		if(cookies != null) {
+			for(Cookie cookie : cookies) {
+				if(cookie.getName().startsWith(COOKIE_NAME_PREFIX)) {
+					response.addHeader(HttpHeaders.SET_COOKIE, cookie(request, cookie.getName(), "", 0));
+				}
+			}
+		}
+		request.setAttribute(LOADED_ATTRIBUTE, Collections.emptyMap());
+	}
+
+	private String cookie(HttpServletRequest request, String name, String value, long maxAge) {
+		String contextPath = request.getContextPath();
+		boolean secure = request.isSecure();
+
+		return ResponseCookie.from(name, value)
+				.path(contextPath == null || contextPath.isEmpty() ? "/" : contextPath)
+				.maxAge(Duration.ofSeconds(maxAge))
+				.httpOnly(true)
+				.secure(secure)
+				.sameSite(secure ? "None" : "Lax")
+				.build()
+				.toString();
+	}
+
+	/*
+	 * The state, without the characters a cookie name can't have (such as the '=' of Base64 padding). Two states
+	 * that only differ in those characters share a cookie, the most recent replacing the other.
+	 */
+	private static String cookieName(String state) {
+		StringBuilder name = new StringBuilder(COOKIE_NAME_PREFIX.length() + Math.min(state.length(), MAX_STATE_LENGTH))
+				.append(COOKIE_NAME_PREFIX);
+		for(int i = 0; i < state.length() && name.length() < COOKIE_NAME_PREFIX.length() + MAX_STATE_LENGTH; i++) {
+			char c = state.charAt(i);
+			if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_') {
+				name.append(c);
+			}
+		}
+		return name.toString();
+	}
+
+	/*
+	 * The cookie value is the salt and the encryption of "<expiry in millis>.<Base64 serialized requests>".
+	 */
+	private String encode(Map<String, OAuth2AuthorizationRequest> authorizationRequests) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+		try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(new SessionAuthorizationRequests(authorizationRequests));
+		} catch(IOException e) {
+			throw new IllegalStateException("Unable to serialize the authorization request", e);
+		}
+
+		long expiresAt = System.currentTimeMillis() + maxAge * 1000;
+		EncryptedTokenAndSalt encrypted = cipher.encrypt(expiresAt + "" + SEPARATOR + Base64.getEncoder().encodeToString(bytes.toByteArray()));
+
+		return encrypted.getSalt() + SEPARATOR + encrypted.getEncryptedToken();
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, OAuth2AuthorizationRequest> decode(String value) {
+		int separator = value == null ? -1 : value.indexOf(SEPARATOR);
+		if(separator < 0) {
+			return new HashMap<>();
+		}
+
+		try {
+			String decrypted = cipher.decrypt(value.substring(separator + 1), value.substring(0, separator));
+			int expirySeparator = decrypted.indexOf(SEPARATOR);
+
+			if(Long.parseLong(decrypted.substring(0, expirySeparator)) < System.currentTimeMillis()) {
+				logger.debug("The authorization request cookie has expired");
+				return new HashMap<>();
+			}
+
+			byte[] serialized = Base64.getDecoder().decode(decrypted.substring(expirySeparator + 1));
+			try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+				return (Map<String, OAuth2AuthorizationRequest>) in.readObject();
+			}
+		} catch(RuntimeException | IOException | ClassNotFoundException e) {
+			logger.debug("Unable to read the authorization request cookie", e);
+			return new HashMap<>();
+		}
+	}
+
+}
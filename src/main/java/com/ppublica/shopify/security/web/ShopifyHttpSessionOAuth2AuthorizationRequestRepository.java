@@ -27,7 +27,8 @@ import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
  * 
  * <p>In ShopifyOAuth2AuthorizationRequestResolver, when we call the saveAuthorizationRequest() method, we don't
  * have an HttpServletResponse. This class is functionally identical to the default, but with a different method
- * signature. The OAuth2AuthorizationRequest is saved in the session as a Map&lt;String, OAuth2AuthorizationRequest&gt;.</p>
+ * signature. The OAuth2AuthorizationRequest is saved in the session as a Map&lt;String, OAuth2AuthorizationRequest&gt;.
+ * The map is a SessionAuthorizationRequests, which is serialized compactly for sessions kept outside the JVM.</p>
  * 
  * <p>In ShopifyVerificationStrategy, obtaining the client secret requires obtaining the saved OAuth2AuthorizationRequest,
  * or sometimes might require extracting the registration id from the request path to search for the ClientRegistration
@@ -65,8 +66,11 @@ public class ShopifyHttpSessionOAuth2AuthorizationRequestRepository {
 				(Map<String, OAuth2AuthorizationRequest>) session.getAttribute(DEFAULT_AUTHORIZATION_REQUEST_ATTR_NAME);
 		
 		if (authorizationRequests == null) {
-			authorizationRequests =  new HashMap<>();
-		}		
+			authorizationRequests =  new SessionAuthorizationRequests();
+		} else if (!(authorizationRequests instanceof SessionAuthorizationRequests)) {
+			// saved before compact serialization, or by HttpSessionOAuth2AuthorizationRequestRepository
+			authorizationRequests = new SessionAuthorizationRequests(authorizationRequests);
+		}
 		
 		authorizationRequests.put(state, authorizationRequest);
 		
@@ -127,13 +131,7 @@ public class ShopifyHttpSessionOAuth2AuthorizationRequestRepository {
 	 * @return the registration id
 	 */
 	public String extractRegistrationId(HttpServletRequest request) {
-		String registrationId;
-		
-		if (this.installPathRequestMatcher.matches(request)) {
-			registrationId = this.installPathRequestMatcher.matcher(request).getVariables().get(REGISTRATION_ID_URI_VARIABLE_NAME);
-		} else {
-			registrationId = null;
-		}
+		String registrationId = ShopifyRequestContext.get(request).match(installPathRequestMatcher).getVariables().get(REGISTRATION_ID_URI_VARIABLE_NAME);
 		
 		if(logger.isDebugEnabled()) {
 			logger.debug("Extracted registration id: " + registrationId);
@@ -2,7 +2,9 @@ package com.ppublica.shopify.security.web;
 
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -18,11 +20,8 @@ import org.springframework.security.oauth2.client.web.OAuth2AuthorizationRequest
 import org.springframework.security.oauth2.core.AuthorizationGrantType;
 import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
 import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
-import org.springframework.security.web.util.UrlUtils;
 import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
-import org.springframework.web.util.UriComponentsBuilder;
-
-import com.ppublica.shopify.security.service.TokenService;
+import org.springframework.security.web.util.matcher.RequestMatcher.MatchResult;
 
 /**
  * ShopifyOAuth2AuthorizationRequestResolver is similar to DefaultOAuth2AuthorizationRequestResolver.
@@ -32,6 +31,12 @@ import com.ppublica.shopify.security.service.TokenService;
  * <p>Unlike DefaultOAuth2AuthorizationRequestResolver, we don't want to redirect when the user isn't authenticated.
  * We want the redirection to happen in a page returned to the browser. This implementation of 
  * OAuth2AuthorizationRequestResolver accounts for that use case. </p>
+ * 
+ * <p>The redirect and authorization uri templates of each ClientRegistration are compiled the first time it's 
+ * used, so the uris for the install page are built without parsing the templates again.</p>
+ * 
+ * <p>The install path match and the shop are read from the request's ShopifyRequestContext, so they're shared with
+ * the filters that already looked at them.</p>
  *     
  * @see org.springframework.security.oauth2.client.web.DefaultOAuth2AuthorizationRequestResolver
  * 
@@ -57,6 +62,7 @@ public class ShopifyOAuth2AuthorizationRequestResolver implements OAuth2Authoriz
 	private final ShopifyRedirectStrategy authorizationRedirectStrategy = new ShopifyRedirectStrategy();
 	private final ShopifyHttpSessionOAuth2AuthorizationRequestRepository customAuthorizationRequestRepository;
 	private final String loginUri;
+	private final Map<String, AuthorizationUriTemplates> compiledTemplates = new ConcurrentHashMap<>();
 
 	
 	/**
@@ -122,10 +128,10 @@ public class ShopifyOAuth2AuthorizationRequestResolver implements OAuth2Authoriz
 		}
 		// extract the registrationId (ex: "shopify")
 		String registrationId;
+		MatchResult installPathMatch = ShopifyRequestContext.get(request).match(this.installPathRequestMatcher);
 		
-		if(this.installPathRequestMatcher.matches(request)) {
-			registrationId = this.installPathRequestMatcher
-					.matcher(request).getVariables().get(REGISTRATION_ID_URI_VARIABLE_NAME);
+		if(installPathMatch.isMatch()) {
+			registrationId = installPathMatch.getVariables().get(REGISTRATION_ID_URI_VARIABLE_NAME);
 
 			if(registrationId == null || registrationId.isEmpty()) {
 				throw new IllegalArgumentException("Registration id is required");
@@ -166,7 +172,9 @@ public class ShopifyOAuth2AuthorizationRequestResolver implements OAuth2Authoriz
 					") for Client Registration: " + clientRegistration.getRegistrationId());
 		}
 		
-		String redirectUriStr = this.expandRedirectUri(request, clientRegistration);
+		AuthorizationUriTemplates templates = getTemplates(clientRegistration);
+		
+		String redirectUriStr = templates.expandRedirectUri(baseUrl(request));
 		
 		if(logger.isDebugEnabled()) {
 			logger.debug("Constructed the redirect uri string: " + redirectUriStr);
@@ -177,7 +185,7 @@ public class ShopifyOAuth2AuthorizationRequestResolver implements OAuth2Authoriz
 		
 		OAuth2AuthorizationRequest authorizationRequest = builder
 				.clientId(clientRegistration.getClientId())
-				.authorizationUri(this.generateAuthorizationUri(request, clientRegistration.getProviderDetails().getAuthorizationUri()))
+				.authorizationUri(this.generateAuthorizationUri(shopName, templates))
 				.redirectUri(redirectUriStr)
 				.scopes(clientRegistration.getScopes())
 				.state(this.stateGenerator.generateKey())
@@ -190,7 +198,7 @@ public class ShopifyOAuth2AuthorizationRequestResolver implements OAuth2Authoriz
 		customAuthorizationRequestRepository.saveAuthorizationRequest(authorizationRequest, request);
 
 		// DO NOT redirect, build redirecturi: DefaultRedirectStrategy		
-		authorizationRedirectStrategy.saveRedirectAuthenticationUris(request, authorizationRequest);
+		authorizationRedirectStrategy.saveRedirectAuthenticationUris(request, authorizationRequest, templates);
 		
 		return null;
 	}
@@ -211,35 +219,47 @@ public class ShopifyOAuth2AuthorizationRequestResolver implements OAuth2Authoriz
 	}
  
 	
-	private String expandRedirectUri(HttpServletRequest request, ClientRegistration clientRegistration) {
-		// Supported URI variables -> baseUrl, registrationId
-		// EX: "{baseUrl}/oauth2/code/{registrationId}"
-		Map<String, String> uriVariables = new HashMap<>();
-		uriVariables.put("registrationId", clientRegistration.getRegistrationId());
-		String baseUrl = UriComponentsBuilder.fromHttpUrl(UrlUtils.buildFullRequestUrl(request))
-				.replaceQuery(null)
-				.replacePath(request.getContextPath())
-				.build()
-				.toUriString();
-		uriVariables.put("baseUrl", baseUrl);
-
-		return UriComponentsBuilder.fromUriString(clientRegistration.getRedirectUriTemplate())
-				.buildAndExpand(uriVariables)
-				.toUriString();
+	/*
+	 * The compiled templates are replaced if the repository returns a different ClientRegistration for the id.
+	 */
+	private AuthorizationUriTemplates getTemplates(ClientRegistration clientRegistration) {
+		AuthorizationUriTemplates templates = compiledTemplates.get(clientRegistration.getRegistrationId());
+		
+		if(templates == null || !templates.isFor(clientRegistration)) {
+			templates = AuthorizationUriTemplates.compile(clientRegistration);
+			compiledTemplates.put(clientRegistration.getRegistrationId(), templates);
+		}
+		
+		return templates;
 	}
 	
-
-	// Expects a shop request parameter to generate the authorization uri
-	private String generateAuthorizationUri(HttpServletRequest request, String authorizationUriTemplate) {
-		String shopName = this.getShopName(request);
+	/*
+	 * The scheme, host, port (unless it's the default for the scheme) and context path of the request, as
+	 * UrlUtils.buildFullRequestUrl would build them. Supported as {baseUrl} in the redirect uri template.
+	 */
+	private String baseUrl(HttpServletRequest request) {
+		String scheme = request.getScheme().toLowerCase(Locale.ROOT);
+		int port = request.getServerPort();
 		
-		Map<String, String> uriVariables = new HashMap<>();
-		uriVariables.put(SHOPIFY_SHOP_PARAMETER_KEY_FOR_TOKEN, shopName);
+		StringBuilder baseUrl = new StringBuilder(64)
+				.append(scheme)
+				.append("://")
+				.append(request.getServerName());
 		
-		String authorizationUri = UriComponentsBuilder
-							.fromHttpUrl(authorizationUriTemplate)
-							.buildAndExpand(uriVariables)
-							.toUriString();
+		if(("http".equals(scheme) && port != 80) || ("https".equals(scheme) && port != 443)) {
+			baseUrl.append(':').append(port);
+		}
+		String contextPath = request.getContextPath();
+		if(contextPath != null) {
+			baseUrl.append(contextPath);
+		}
+		
+		return baseUrl.toString();
+	}
+	
+
+	private String generateAuthorizationUri(String shopName, AuthorizationUriTemplates templates) {
+		String authorizationUri = templates.expandAuthorizationUri(shopName);
 
 		if(logger.isDebugEnabled()) {
 			logger.debug("Generated authorization uri: " + authorizationUri);
@@ -248,16 +268,13 @@ public class ShopifyOAuth2AuthorizationRequestResolver implements OAuth2Authoriz
 	}
 	
 	private String getShopName(HttpServletRequest request) {
-		String shopName = request.getParameter(TokenService.SHOP_ATTRIBUTE_NAME);
+		// null if missing or not a valid shop domain
+		String shopName = ShopifyRequestContext.get(request).getShop();
 		
 		if(logger.isDebugEnabled()) {
 			logger.debug("Resolved shop name from request: " + shopName);
 		}
 		
-		if(shopName == null || shopName.isEmpty()) {
-			return null;
-		}
-		
 		return shopName;
 	}
 	
@@ -59,6 +59,31 @@ public class ShopifyRedirectStrategy extends DefaultRedirectStrategy {
 
 	}
 	
+	/**
+	 * Same as {@link #saveRedirectAuthenticationUris(HttpServletRequest, OAuth2AuthorizationRequest)}, but the query 
+	 * parameters are appended with the precompiled templates of the ClientRegistration.
+	 * 
+	 * @param request the HttpServletRequest where the uris will be saved
+	 * @param authorizationRequest the OAuth2AuthorizationRequest that contains the authorizationUri
+	 * @param templates the compiled templates of the ClientRegistration the request was built from
+	 */
+	void saveRedirectAuthenticationUris(HttpServletRequest request, OAuth2AuthorizationRequest authorizationRequest, AuthorizationUriTemplates templates) {
+		String authorizationUri = authorizationRequest.getAuthorizationUri();
+		
+		String parentFrameRedirectUrl = super.calculateRedirectUrl(request.getContextPath(), authorizationUri);
+		
+		if(logger.isDebugEnabled()) {
+			logger.debug("Generated redirect authorization uri: " + authorizationUri);
+			logger.debug("... and from parent: " + parentFrameRedirectUrl);
+		}
+		
+		String redirectUri = authorizationRequest.getRedirectUri();
+		String state = authorizationRequest.getState();
+		
+		request.setAttribute(I_FRAME_AUTHENTICATION_URI_KEY, templates.addRedirectParams(I_FRAME_REDIRECT_URI, redirectUri, state));
+		request.setAttribute(PARENT_AUTHENTICATION_URI_KEY, templates.addRedirectParams(parentFrameRedirectUrl, redirectUri, state));
+	}
+	
 	
 	/*
 	 * Adds the following query parameters to the string:
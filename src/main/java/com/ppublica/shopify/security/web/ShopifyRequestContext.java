@@ -0,0 +1,185 @@
+package com.ppublica.shopify.security.web;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+import org.springframework.security.web.util.matcher.RequestMatcher.MatchResult;
+
+import com.ppublica.shopify.security.filters.ShopifyOriginFilter;
+import com.ppublica.shopify.security.service.ShopDomains;
+import com.ppublica.shopify.security.service.TokenService;
+
+/**
+ * What the Shopify filters need to know about a request, computed the first time it's asked for and kept in a
+ * request attribute, so that the shop parameter, the path and the path matches aren't parsed again by every filter
+ * in the chain.
+ *
+ * <p>It holds:</p>
+ * <ul>
+ * 	<li>the shop: the normalized shop parameter, or null if it's missing or not a valid shop domain</li>
+ * 	<li>the path: the request uri without its path parameters and context path</li>
+ * 	<li>the match of each AntPathRequestMatcher, with its uri variables (such as the registration id). Matchers
+ * 		with the same pattern share their match, so the install path matched by one filter isn't matched again by
+ * 		the next</li>
+ * 	<li>whether the request came from Shopify, once ShopifyVerificationStrategy has checked it</li>
+ * 	<li>whether the session was started from an embedded app, as ShopifyOriginFilter last set it</li>
+ * </ul>
+ *
+ * <p>The Authentication isn't kept, since the filters replace it as the request goes through the chain. A forwarded
+ * request gets a new ShopifyRequestContext.</p>
+ *
+ * @author N F
+ * @see ShopifyOriginFilter
+ * @see com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy
+ */
+public class ShopifyRequestContext {
+
+	/**
+	 * The request attribute that holds the ShopifyRequestContext.
+	 */
+	public static final String REQUEST_ATTRIBUTE = ShopifyRequestContext.class.getName();
+
+	private final HttpServletRequest request;
+	private final String requestUri;
+	private final DispatcherType dispatcherType;
+	private final Map<AntPathRequestMatcher, MatchResult> matches = new HashMap<>(4);
+
+	private boolean shopResolved;
+	private String shop;
+	private boolean pathResolved;
+	private String path;
+	private Boolean fromShopify;
+	private Boolean embeddedApp;
+
+	private ShopifyRequestContext(HttpServletRequest request) {
+		this.request = request;
+		this.requestUri = request.getRequestURI();
+		this.dispatcherType = request.getDispatcherType();
+	}
+
+	/**
+	 * Get the ShopifyRequestContext of the request, creating it if it's the first time.
+	 *
+	 * @param request The HttpServletRequest
+	 * @return The ShopifyRequestContext
+	 */
+	public static ShopifyRequestContext get(HttpServletRequest request) {
+		Object context = request.getAttribute(REQUEST_ATTRIBUTE);
+
+		if(context instanceof ShopifyRequestContext && ((ShopifyRequestContext) context).isFor(request)) {
+			return (ShopifyRequestContext) context;
+		}
+
+		ShopifyRequestContext created = new ShopifyRequestContext(request);
+		request.setAttribute(REQUEST_ATTRIBUTE, created);
+
+		return created;
+	}
+
+	/**
+	 * @return The normalized shop domain in the shop parameter, or null if missing or invalid
+	 */
+	public String getShop() {
+		if(!shopResolved) {
+			shop = ShopDomains.normalize(request.getParameter(TokenService.SHOP_ATTRIBUTE_NAME));
+			shopResolved = true;
+		}
+		return shop;
+	}
+
+	/**
+	 * @return The request uri without path parameters or the context path, or null if the uri isn't in the
+	 * context path
+	 */
+	public String getPath() {
+		if(!pathResolved) {
+			path = path(request);
+			pathResolved = true;
+		}
+		return path;
+	}
+
+	/**
+	 * @param matcher The AntPathRequestMatcher
+	 * @return true if the request matches
+	 */
+	public boolean matches(AntPathRequestMatcher matcher) {
+		return match(matcher).isMatch();
+	}
+
+	/**
+	 * @param matcher The AntPathRequestMatcher
+	 * @return The MatchResult of the request, with the uri variables if it matches
+	 */
+	public MatchResult match(AntPathRequestMatcher matcher) {
+		MatchResult result = matches.get(matcher);
+
+		if(result == null) {
+			result = matcher.matcher(request);
+			matches.put(matcher, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @return true or false once the request's HMAC has been checked, null before
+	 */
+	public Boolean getFromShopify() {
+		return fromShopify;
+	}
+
+	public void setFromShopify(boolean fromShopify) {
+		this.fromShopify = fromShopify;
+	}
+
+	/**
+	 * @return true if the session has the "SHOPIFY_EMBEDDED_APP" attribute
+	 */
+	public boolean isEmbeddedApp() {
+		if(embeddedApp == null) {
+			HttpSession session = request.getSession(false);
+			embeddedApp = session != null && session.getAttribute(ShopifyOriginFilter.SHOPIFY_EMBEDDED_APP) != null;
+		}
+		return embeddedApp;
+	}
+
+	/**
+	 * Record that ShopifyOriginFilter added or removed the "SHOPIFY_EMBEDDED_APP" session attribute.
+	 *
+	 * @param embeddedApp Whether the attribute is in the session
+	 */
+	public void setEmbeddedApp(boolean embeddedApp) {
+		this.embeddedApp = embeddedApp;
+	}
+
+	private boolean isFor(HttpServletRequest request) {
+		return dispatcherType == request.getDispatcherType() && Objects.equals(requestUri, request.getRequestURI());
+	}
+
+	private static String path(HttpServletRequest request) {
+		String uri = request.getRequestURI();
+		if(uri == null) {
+			return null;
+		}
+
+		int pathParamIndex = uri.indexOf(';');
+		if(pathParamIndex > 0) {
+			// strip everything after the first semi-colon
+			uri = uri.substring(0, pathParamIndex);
+		}
+
+		String contextPath = request.getContextPath();
+		if(contextPath == null || contextPath.isEmpty()) {
+			return uri;
+		}
+
+		return uri.startsWith(contextPath) ? uri.substring(contextPath.length()) : null;
+	}
+
+}
@@ -0,0 +1,123 @@
+package com.ppublica.shopify.security.authentication;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ShopifyClientSecretsTests {
+
+	@Test
+	public void signThenSameAsHash() {
+		ShopifyClientSecrets secrets = new ShopifyClientSecrets("new-secret", Arrays.asList("old-secret"));
+
+		Assert.assertEquals(ShopifyVerificationStrategy.hash("new-secret", "message"), Hex.encodeHexString(secrets.sign(0, "message")));
+		Assert.assertEquals(ShopifyVerificationStrategy.hash("old-secret", "message"), Hex.encodeHexString(secrets.sign(1, "message")));
+	}
+
+	@Test
+	public void newMacThenIndependentOfOtherSignatures() throws Exception {
+		ShopifyClientSecrets secrets = new ShopifyClientSecrets("new-secret");
+
+		Mac partial = secrets.newMac(0);
+		partial.update("unfinished".getBytes(StandardCharsets.UTF_8));
+
+		Assert.assertNotSame(partial, secrets.newMac(0));
+		Assert.assertEquals(ShopifyVerificationStrategy.hash("new-secret", "message"), Hex.encodeHexString(secrets.sign(0, "message")));
+		Assert.assertEquals(ShopifyVerificationStrategy.hash("new-secret", "unfinished"), Hex.encodeHexString(partial.doFinal()));
+	}
+
+	@Test
+	public void whenPreviousSecretsEmptyOrSameAsCurrentThenIgnored() {
+		ShopifyClientSecrets secrets = new ShopifyClientSecrets("new-secret", Arrays.asList("", "new-secret", "old-secret"));
+
+		Assert.assertEquals(2, secrets.size());
+		Assert.assertEquals("new-secret", secrets.getClientSecret());
+	}
+
+	@Test
+	public void matchWhenSignedWithPreviousSecretThenIndexAndCounted() {
+		ShopifyClientSecrets secrets = new ShopifyClientSecrets("new-secret", Arrays.asList("older-secret", "old-secret"));
+		String hmac = ShopifyVerificationStrategy.hash("old-secret", "message");
+
+		Assert.assertEquals(2, secrets.match(i -> Hex.encodeHexString(secrets.sign(i, "message")).equals(hmac)));
+		Assert.assertEquals(1, secrets.getMatchCount(2));
+		Assert.assertEquals(0, secrets.getMatchCount(0));
+	}
+
+	@Test
+	public void matchWhenNoSecretMatchesThenEachTriedOnce() {
+		ShopifyClientSecrets secrets = new ShopifyClientSecrets("new-secret", Arrays.asList("old-secret"));
+		int[] tried = new int[2];
+
+		Assert.assertEquals(-1, secrets.match(i -> ++tried[i] < 0));
+		Assert.assertArrayEquals(new int[] {1, 1}, tried);
+	}
+
+	@Test
+	public void matchThenLastMatchedTriedFirst() {
+		ShopifyClientSecrets secrets = new ShopifyClientSecrets("new-secret", Arrays.asList("old-secret"));
+		secrets.match(i -> i == 1);
+
+		int[] tried = new int[2];
+		Assert.assertEquals(1, secrets.match(i -> ++tried[i] > 0 && i == 1));
+		Assert.assertArrayEquals(new int[] {0, 1}, tried);
+	}
+
+	@Test
+	public void isValidQueryWhenSignedWithPreviousSecretThenTrue() {
+		ShopifyClientSecrets secrets = new ShopifyClientSecrets("new-secret", Arrays.asList("old-secret"));
+		String hmac = ShopifyVerificationStrategy.hash("old-secret", "shop=example.myshopify.com&timestamp=1337178173");
+
+		Assert.assertTrue(secrets.isValidQuery("hmac=" + hmac + "&shop=example.myshopify.com&timestamp=1337178173", hmac));
+		Assert.assertTrue(secrets.isValidQuery("shop=example.myshopify.com&timestamp=1337178173&hmac=" + hmac, hmac));
+	}
+
+	@Test
+	public void isValidQueryWhenEncodedThenDecodedAndTrue() {
+		ShopifyClientSecrets secrets = new ShopifyClientSecrets("new-secret");
+		String hmac = ShopifyVerificationStrategy.hash("new-secret", "path=/a b&shop=example.myshopify.com");
+
+		Assert.assertTrue(secrets.isValidQuery("hmac=" + hmac + "&path=%2Fa%20b&shop=example.myshopify.com", hmac));
+	}
+
+	@Test
+	public void isValidQueryWhenHmacNotInQueryOrWrongThenFalse() {
+		ShopifyClientSecrets secrets = new ShopifyClientSecrets("new-secret");
+		String hmac = ShopifyVerificationStrategy.hash("other-secret", "shop=example.myshopify.com");
+
+		Assert.assertFalse(secrets.isValidQuery("shop=example.myshopify.com", hmac));
+		Assert.assertFalse(secrets.isValidQuery("hmac=" + hmac + "&shop=example.myshopify.com", hmac));
+	}
+
+	@Test
+	public void matchesWebhookHmacWhenBase64OfRawDigestThenTrue() {
+		ShopifyClientSecrets secrets = new ShopifyClientSecrets("new-secret", Arrays.asList("6a031b0bd6af4eb"));
+		byte[] body = "{\"shop_id\":954889,\"shop_domain\":\"snowdevil.myshopify.com\"}".getBytes(StandardCharsets.UTF_8);
+
+		Assert.assertTrue(secrets.matchesWebhookHmac(body, "lEQahZUAxThra0Uqw5H8O1wVijgr2Ub4xM8XvAFV8qI="));
+		Assert.assertEquals(1, secrets.getMatchCount(1));
+	}
+
+	@Test
+	public void matchesWebhookHmacWhenBase64OfHexDigestOrMissingThenFalse() {
+		ShopifyClientSecrets secrets = new ShopifyClientSecrets("new-secret");
+		byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+		String hexHmac = Base64.getEncoder().encodeToString(ShopifyVerificationStrategy.hash("new-secret", "{}").getBytes(StandardCharsets.UTF_8));
+
+		Assert.assertFalse(secrets.matchesWebhookHmac(body, hexHmac));
+		Assert.assertFalse(secrets.matchesWebhookHmac(body, null));
+		Assert.assertFalse(secrets.matchesWebhookHmac(null, hexHmac));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void whenNoClientSecretThenException() {
+		new ShopifyClientSecrets(null);
+	}
+
+}
@@ -0,0 +1,87 @@
+package com.ppublica.shopify.security.authentication;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ShopifyQueryVerificationCacheTests {
+
+	private static final long NOW = 1600000000000L;
+	private static final String TIMESTAMP = "1600000000";
+
+	@Test
+	public void isFreshWhenWithinMaxAgeThenTrue() {
+		ShopifyQueryVerificationCache cache = new ShopifyQueryVerificationCache();
+		cache.setMaxAge(60);
+
+		Assert.assertTrue(cache.isFresh(TIMESTAMP, NOW));
+		Assert.assertTrue(cache.isFresh(TIMESTAMP, NOW + 60000));
+		Assert.assertTrue(cache.isFresh(TIMESTAMP, NOW - 60000));
+	}
+
+	@Test
+	public void isFreshWhenOutsideMaxAgeOrInvalidThenFalse() {
+		ShopifyQueryVerificationCache cache = new ShopifyQueryVerificationCache();
+		cache.setMaxAge(60);
+
+		Assert.assertFalse(cache.isFresh(TIMESTAMP, NOW + 61000));
+		Assert.assertFalse(cache.isFresh(TIMESTAMP, NOW - 61000));
+		Assert.assertFalse(cache.isFresh(null, NOW));
+		Assert.assertFalse(cache.isFresh("dsd", NOW));
+	}
+
+	@Test
+	public void isFreshWhenRejectedThenCountsByReason() {
+		ShopifyQueryVerificationCache cache = new ShopifyQueryVerificationCache();
+		cache.setMaxAge(60);
+
+		cache.isFresh(null, NOW);
+		cache.isFresh("", NOW);
+		cache.isFresh("16000000a0", NOW);
+		cache.isFresh("1600000000000", NOW);
+		cache.isFresh(TIMESTAMP, NOW + 61000);
+		cache.isFresh(TIMESTAMP, NOW);
+
+		Assert.assertEquals(4, cache.getMissingTimestampCount());
+		Assert.assertEquals(1, cache.getStaleTimestampCount());
+	}
+
+	@Test
+	public void isVerifiedUntilStale() {
+		ShopifyQueryVerificationCache cache = new ShopifyQueryVerificationCache();
+		cache.setMaxAge(60);
+
+		cache.putVerified("query", TIMESTAMP, NOW);
+
+		Assert.assertTrue(cache.isVerified("query", NOW + 60000));
+		Assert.assertFalse(cache.isVerified("other", NOW));
+		Assert.assertFalse(cache.isVerified("query", NOW + 61000));
+		Assert.assertEquals(0, cache.getCacheSize());
+		Assert.assertEquals(1, cache.getHitCount());
+	}
+
+	@Test
+	public void putVerifiedWhenFullThenRemovesStale() {
+		ShopifyQueryVerificationCache cache = new ShopifyQueryVerificationCache();
+		cache.setMaxAge(60);
+		cache.setMaxCacheSize(1);
+
+		cache.putVerified("query1", TIMESTAMP, NOW);
+		cache.putVerified("query2", TIMESTAMP, NOW);
+		Assert.assertFalse(cache.isVerified("query2", NOW));
+
+		cache.putVerified("query3", "1600000100", NOW + 100000);
+		Assert.assertTrue(cache.isVerified("query3", NOW + 100000));
+		Assert.assertEquals(1, cache.getCacheSize());
+	}
+
+	@Test
+	public void putVerifiedWhenCacheDisabledThenNotCached() {
+		ShopifyQueryVerificationCache cache = new ShopifyQueryVerificationCache();
+		cache.setMaxCacheSize(0);
+
+		cache.putVerified("query", TIMESTAMP, NOW);
+
+		Assert.assertFalse(cache.isVerified("query", NOW));
+	}
+
+}
@@ -0,0 +1,124 @@
+package com.ppublica.shopify.security.authentication;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.ClientAuthenticationMethod;
+
+public class ShopifySessionTokenVerifierTests {
+
+	ClientRegistration clientRegistration;
+	ShopifySessionTokenVerifier verifier;
+	long now;
+
+	@Before
+	public void setup() {
+		clientRegistration = ClientRegistration.withRegistrationId("shopify")
+				.clientId("client-id")
+				.clientSecret("client-secret")
+				.clientAuthenticationMethod(ClientAuthenticationMethod.POST)
+				.authorizationGrantType(AuthorizationGrantType.AUTHORIZATION_CODE)
+				.redirectUriTemplate("{baseUrl}/login/app/oauth2/code/{registrationId}")
+				.scope("read_products", "write_products")
+				.authorizationUri("https://{shop}/admin/oauth/authorize")
+				.tokenUri("https://{shop}/admin/oauth/access_token")
+				.clientName("Shopify")
+				.build();
+		verifier = new ShopifySessionTokenVerifier(clientRegistration);
+		now = System.currentTimeMillis() / 1000;
+	}
+
+	@Test
+	public void verifyWhenValidThenReturnsShop() {
+		String token = sessionToken("client-secret", claims("client-id", now + 60));
+
+		Assert.assertEquals("test-store.myshopify.com", verifier.verify(token));
+	}
+
+	@Test
+	public void verifyWhenVerifiedBeforeThenFromCache() {
+		String token = sessionToken("client-secret", claims("client-id", now + 60));
+
+		verifier.verify(token);
+		Assert.assertEquals("test-store.myshopify.com", verifier.verify(token));
+
+		Assert.assertEquals(1, verifier.getCacheHitCount());
+		Assert.assertEquals(1, verifier.getCacheSize());
+	}
+
+	@Test
+	public void verifyWhenSignedWithOtherSecretThenNull() {
+		Assert.assertNull(verifier.verify(sessionToken("other-secret", claims("client-id", now + 60))));
+	}
+
+	@Test
+	public void verifyWhenSignedWithPreviousSecretThenReturnsShop() {
+		ShopifyClientSecrets secrets = new ShopifyClientSecrets("client-secret", Arrays.asList("old-secret"));
+		verifier = new ShopifySessionTokenVerifier(clientRegistration, secrets);
+
+		Assert.assertEquals("test-store.myshopify.com", verifier.verify(sessionToken("old-secret", claims("client-id", now + 60))));
+		Assert.assertNull(verifier.verify(sessionToken("other-secret", claims("client-id", now + 60))));
+		Assert.assertEquals(1, secrets.getMatchCount(1));
+	}
+
+	@Test
+	public void verifyWhenExpiredThenNull() {
+		Assert.assertNull(verifier.verify(sessionToken("client-secret", claims("client-id", now - 60))));
+	}
+
+	@Test
+	public void verifyWhenOtherAudienceThenNull() {
+		Assert.assertNull(verifier.verify(sessionToken("client-secret", claims("other-client", now + 60))));
+	}
+
+	@Test
+	public void verifyWhenIssuerIsOtherShopThenNull() {
+		String claims = "{\"iss\":\"https://other-store.myshopify.com/admin\",\"dest\":\"https://test-store.myshopify.com\",\"aud\":\"client-id\",\"exp\":" + (now + 60) + "}";
+
+		Assert.assertNull(verifier.verify(sessionToken("client-secret", claims)));
+	}
+
+	@Test
+	public void verifyWhenNotYetValidThenNull() {
+		String claims = "{\"iss\":\"https://test-store.myshopify.com/admin\",\"dest\":\"https://test-store.myshopify.com\",\"aud\":\"client-id\",\"exp\":" + (now + 600) + ",\"nbf\":" + (now + 300) + "}";
+
+		Assert.assertNull(verifier.verify(sessionToken("client-secret", claims)));
+	}
+
+	@Test
+	public void verifyWhenNotJwtThenNull() {
+		Assert.assertNull(verifier.verify("not-a-jwt"));
+		Assert.assertNull(verifier.verify("a.b.c"));
+		Assert.assertNull(verifier.verify(null));
+	}
+
+	private String claims(String audience, long exp) {
+		return "{\"iss\":\"https://test-store.myshopify.com/admin\",\"dest\":\"https://test-store.myshopify.com\",\"aud\":\"" + audience
+				+ "\",\"sub\":\"42\",\"exp\":" + exp + ",\"nbf\":" + (now - 10) + ",\"iat\":" + (now - 10) + ",\"jti\":\"abc\",\"sid\":\"def\"}";
+	}
+
+	static String sessionToken(String secret, String claims) {
+		try {
+			Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+			String signed = encoder.encodeToString("{\"alg\":\"HS256\",\"typ\":\"JWT\"}".getBytes(StandardCharsets.UTF_8))
+					+ "." + encoder.encodeToString(claims.getBytes(StandardCharsets.UTF_8));
+
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+
+			return signed + "." + encoder.encodeToString(mac.doFinal(signed.getBytes(StandardCharsets.US_ASCII)));
+		} catch(Exception ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+}
@@ -1,9 +1,12 @@
 package com.ppublica.shopify.security.authentication;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import javax.servlet.http.HttpServletRequest;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.security.oauth2.client.registration.ClientRegistration;
 import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
 import org.springframework.security.oauth2.client.registration.InMemoryClientRegistrationRepository;
@@ -13,10 +16,13 @@ import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequ
 import org.springframework.web.util.UriUtils;
 
 import com.ppublica.shopify.security.web.ShopifyHttpSessionOAuth2AuthorizationRequestRepository;
+import com.ppublica.shopify.security.web.ShopifyRequestContext;
 
 import org.junit.Assert;
 
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -24,6 +30,7 @@ import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.doReturn;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
@@ -237,6 +244,162 @@ public class ShopifyVerificationStrategyTests {
 	}
 	
 	
+	/*
+	 * Given: HttpServletRequest
+	 * 			- query with a valid HMAC and a current timestamp
+	 * 			- a ShopifyQueryVerificationCache
+	 * 
+	 * Expect: isShopifyRequest(req) returns true twice, but the HMAC is only verified once
+	 * 
+	 */
+	@Test
+	public void givenVerificationCache_thenRepeatedRequestIsNotVerifiedAgain() {
+		
+		ShopifyVerificationStrategy strategy = spy(new ShopifyVerificationStrategy(null,null));
+		strategy.setVerificationCache(new ShopifyQueryVerificationCache());
+		
+		String timestamp = Long.toString(System.currentTimeMillis() / 1000);
+		String query = "code=fsv&shop=some-shop.myshopify.com&timestamp=" + timestamp;
+		String hmac = ShopifyVerificationStrategy.hash(secret, query);
+		
+		Map<String, String[]> paramMap = new HashMap<>();
+		paramMap.put(ShopifyVerificationStrategy.HMAC_PARAMETER, new String[] {hmac});
+		paramMap.put(ShopifyVerificationStrategy.TIMESTAMP_PARAMETER, new String[] {timestamp});
+		
+		HttpServletRequest req = mock(HttpServletRequest.class);
+
+		when(req.getQueryString()).thenReturn(query + "&" + ShopifyVerificationStrategy.HMAC_PARAMETER + "=" + hmac);
+		when(req.getParameterMap()).thenReturn(paramMap);
+
+		doReturn(secret).when(strategy).getClientSecret(any());
+
+		Assert.assertTrue(strategy.isShopifyRequest(req));
+		Assert.assertTrue(strategy.isShopifyRequest(req));
+		verify(strategy, times(1)).getClientSecret(any());
+		
+	}
+	
+	
+	/*
+	 * Given: HttpServletRequest
+	 * 			- query with a valid HMAC, but an old timestamp
+	 * 			- a ShopifyQueryVerificationCache
+	 * 
+	 * Expect: isShopifyRequest(req) returns false
+	 * 
+	 */
+	@Test
+	public void givenVerificationCacheAndOldTimestamp_thenIsShopifyRequest_returnsFalse() {
+		
+		ShopifyVerificationStrategy strategy = spy(new ShopifyVerificationStrategy(null,null));
+		strategy.setVerificationCache(new ShopifyQueryVerificationCache());
+		
+		Map<String, String[]> paramMap = new HashMap<>();
+		paramMap.put(ShopifyVerificationStrategy.HMAC_PARAMETER, new String[] {hmacValue});
+		paramMap.put(ShopifyVerificationStrategy.TIMESTAMP_PARAMETER, new String[] {"1337178173"});
+		
+		HttpServletRequest req = mock(HttpServletRequest.class);
+
+		when(req.getQueryString()).thenReturn(piece1 + "&" + hmacPiece + "&" + piece2);
+		when(req.getParameterMap()).thenReturn(paramMap);
+
+		doReturn(secret).when(strategy).getClientSecret(any());
+
+		Assert.assertFalse(strategy.isShopifyRequest(req));
+		verify(strategy, never()).getClientSecret(any());
+		
+	}
+	
+	
+	/*
+	 * Given: HttpServletRequest
+	 * 			- query with a valid HMAC
+	 * 			- a shop request parameter that isn't a shop domain
+	 * 
+	 * Expect: isShopifyRequest(req) returns false without looking up the client secret
+	 * 
+	 */
+	@Test
+	public void givenInvalidShop_thenIsShopifyRequest_returnsFalseBeforeHMAC() {
+		
+		ShopifyVerificationStrategy strategy = spy(new ShopifyVerificationStrategy(null,null));
+		
+		Map<String, String[]> paramMap = new HashMap<>();
+		paramMap.put(ShopifyVerificationStrategy.HMAC_PARAMETER, new String[] {hmacValue});
+		paramMap.put("shop", new String[] {"some-shop.example.com"});
+		
+		HttpServletRequest req = mock(HttpServletRequest.class);
+
+		when(req.getQueryString()).thenReturn(piece1 + "&" + hmacPiece + "&" + piece2);
+		when(req.getParameterMap()).thenReturn(paramMap);
+
+		Assert.assertFalse(strategy.isShopifyRequest(req));
+		verify(strategy, never()).getClientSecret(any());
+		
+	}
+	
+	
+	/*
+	 * Given: HttpServletRequest
+	 * 			- query with an HMAC made with a previous client secret
+	 * 			- ShopifyClientSecrets with the previous secret
+	 * 
+	 * Expect: isShopifyRequest(req) returns true, and false without the previous secret
+	 * 
+	 */
+	@Test
+	public void givenPreviousClientSecret_thenIsShopifyRequest_returnsTrue() {
+		
+		ShopifyVerificationStrategy strategy = spy(new ShopifyVerificationStrategy(null,null));
+		
+		String oldHmacValue = ShopifyVerificationStrategy.hash("old-secret", stringNoHMAC);
+		
+		Map<String, String[]> paramMap = new HashMap<>();
+		paramMap.put(ShopifyVerificationStrategy.HMAC_PARAMETER, new String[] {oldHmacValue});
+		
+		HttpServletRequest req = mock(HttpServletRequest.class);
+
+		when(req.getQueryString()).thenReturn(piece1 + "&" + ShopifyVerificationStrategy.HMAC_PARAMETER + "=" + oldHmacValue + "&" + piece2);
+		when(req.getParameterMap()).thenReturn(paramMap);
+
+		doReturn(secret).when(strategy).getClientSecret(any());
+		
+		Assert.assertFalse(strategy.isShopifyRequest(req));
+		
+		strategy.setClientSecrets(new ShopifyClientSecrets(secret, Arrays.asList("old-secret")));
+		
+		Assert.assertTrue(strategy.isShopifyRequest(req));
+		
+	}
+	
+	
+	/*
+	 * Given: HttpServletRequest
+	 * 			- query with a valid HMAC
+	 * 			- isShopifyRequest already called for the request
+	 * 
+	 * Expect: the result is read from the ShopifyRequestContext
+	 * 
+	 */
+	@Test
+	public void givenCheckedRequest_thenIsShopifyRequest_readsRequestContext() {
+		
+		ShopifyVerificationStrategy strategy = spy(new ShopifyVerificationStrategy(null,null));
+		
+		MockHttpServletRequest req = new MockHttpServletRequest("GET", "/install/shopify");
+		req.setQueryString(piece1 + "&" + hmacPiece + "&" + piece2);
+		req.setParameter(ShopifyVerificationStrategy.HMAC_PARAMETER, hmacValue);
+
+		doReturn(secret).when(strategy).getClientSecret(any());
+		
+		Assert.assertTrue(strategy.isShopifyRequest(req));
+		Assert.assertTrue(strategy.isShopifyRequest(req));
+		Assert.assertTrue(ShopifyRequestContext.get(req).getFromShopify());
+		verify(strategy, times(1)).getClientSecret(any());
+		
+	}
+	
+	
 	/*
 	 * Given: HttpServletRequest
 	 * 			- query with multiple (correct) HMAC parameters
@@ -287,7 +450,7 @@ public class ShopifyVerificationStrategyTests {
 		
 		String body = "{\"id\":689034}";
 		
-		String hmac = Base64.getEncoder().encodeToString(ShopifyVerificationStrategy.hash(this.secret, body).getBytes());
+		String hmac = webhookHmac(this.secret, body);
 
 		Assert.assertFalse(strategy.isShopifyHeaderRequest(body + "ds", hmac, secret));
 		
@@ -307,12 +470,30 @@ public class ShopifyVerificationStrategyTests {
 		
 		String body = "{\"id\":689034}";
 		
-		String hmac = Base64.getEncoder().encodeToString(ShopifyVerificationStrategy.hash(this.secret, body).getBytes());
+		String hmac = webhookHmac(this.secret, body);
 
 		Assert.assertTrue(strategy.isShopifyHeaderRequest(body, hmac, this.secret));
 	}
 	
 	
+	/*
+	 * Given:
+	 * 		- the webhook body and X-Shopify-Hmac-SHA256 header that ReactiveShopifyVerificationStrategyTests uses
+	 * 
+	 * Expect: isShopifyHeaderRequest returns true, as verifyHeaderRequest does
+	 */
+	@Test
+	public void givenSharedWebhookVector_thenIsHeaderShopifyRequest_returnsTrue() {
+		ShopifyVerificationStrategy strategy = new ShopifyVerificationStrategy(null, null);
+		
+		String body = "{\"shop_id\":954889,\"shop_domain\":\"snowdevil.myshopify.com\"}";
+		
+		Assert.assertTrue(strategy.isShopifyHeaderRequest(body, "lEQahZUAxThra0Uqw5H8O1wVijgr2Ub4xM8XvAFV8qI=", this.secret));
+		Assert.assertFalse(strategy.isShopifyHeaderRequest(body, 
+				Base64.getEncoder().encodeToString(ShopifyVerificationStrategy.hash(this.secret, body).getBytes()), this.secret));
+	}
+	
+	
 	/*
 	 * Given: HttpServletRequest
 	 * 			- valid Hmac header
@@ -330,7 +511,7 @@ public class ShopifyVerificationStrategyTests {
 		String body = "{\"id\":689034}";
 		String secret = "dfdfbjhew";
 		
-		String hmac = Base64.getEncoder().encodeToString(ShopifyVerificationStrategy.hash(secret, body).getBytes());
+		String hmac = webhookHmac(secret, body);
 		
 		HttpServletRequest request = mock(HttpServletRequest.class);
 		
@@ -361,7 +542,7 @@ public class ShopifyVerificationStrategyTests {
 		String body = "{\"id\":689034}";
 		String secret = "dfdfbjhew";
 		
-		String hmac = Base64.getEncoder().encodeToString(ShopifyVerificationStrategy.hash(secret, body).getBytes());
+		String hmac = webhookHmac(secret, body);
 		
 		HttpServletRequest request = mock(HttpServletRequest.class);
 		
@@ -631,4 +812,15 @@ public class ShopifyVerificationStrategyTests {
 	
 	
 	
+	private String webhookHmac(String secret, String body) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+			
+			return Base64.getEncoder().encodeToString(mac.doFinal(body.getBytes(StandardCharsets.UTF_8)));
+		} catch(Exception ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
 }
@@ -0,0 +1,27 @@
+package com.ppublica.shopify.security.filters;
+
+import javax.servlet.FilterChain;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import com.ppublica.shopify.security.web.ShopifyCookieOAuth2AuthorizationRequestRepository;
+
+public class ShopifyAuthorizationRequestCookieFilterTests {
+
+	@Test
+	public void doFilterExposesResponseDuringChain() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		Object[] exposed = new Object[1];
+		FilterChain chain = (req, resp) -> exposed[0] = req.getAttribute(ShopifyCookieOAuth2AuthorizationRequestRepository.RESPONSE_ATTRIBUTE);
+
+		new ShopifyAuthorizationRequestCookieFilter().doFilter(request, response, chain);
+
+		Assert.assertSame(response, exposed[0]);
+		Assert.assertNull(request.getAttribute(ShopifyCookieOAuth2AuthorizationRequestRepository.RESPONSE_ATTRIBUTE));
+	}
+
+}
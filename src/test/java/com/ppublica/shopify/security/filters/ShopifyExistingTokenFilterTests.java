@@ -33,6 +33,7 @@ import org.springframework.security.oauth2.core.ClientAuthenticationMethod;
 import org.springframework.security.oauth2.core.OAuth2AccessToken;
 
 import com.ppublica.shopify.security.authentication.ShopifyOriginToken;
+import com.ppublica.shopify.security.service.StoreLastSeenTracker;
 
 public class ShopifyExistingTokenFilterTests {
 	
@@ -69,8 +70,8 @@ public class ShopifyExistingTokenFilterTests {
 		when(token.getTokenValue()).thenReturn("test-token");
 		when(client.getAccessToken()).thenReturn(token);
 		when(client.getClientRegistration()).thenReturn(clientRegistration);
-		when(client.getPrincipalName()).thenReturn("test-store");
-		doReturn(client).when(clientService).loadAuthorizedClient("shopify", "test-store");
+		when(client.getPrincipalName()).thenReturn("test-store.myshopify.com");
+		doReturn(client).when(clientService).loadAuthorizedClient("shopify", "test-store.myshopify.com");
 		loginEndpoint = "/install/shopify";
 	}
 	
@@ -127,7 +128,7 @@ public class ShopifyExistingTokenFilterTests {
 		
 		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/install/shopify");
 		request.setServletPath("/install/shopify");
-		request.addParameter("shop", "test-store");
+		request.addParameter("shop", "test-store.myshopify.com");
 		MockHttpServletResponse response = new MockHttpServletResponse();
 		
 		ShopifyOriginToken auth = mock(ShopifyOriginToken.class);
@@ -145,6 +146,24 @@ public class ShopifyExistingTokenFilterTests {
 	
 	}
 	
+	// if a StoreLastSeenTracker is set, the store found is recorded as seen
+	@Test
+	public void doFilterWhenStoreExistsAndTrackerSetThenRecordAccess() throws Exception {
+		ShopifyExistingTokenFilter filter = new ShopifyExistingTokenFilter(clientService, loginEndpoint);
+		StoreLastSeenTracker tracker = mock(StoreLastSeenTracker.class);
+		filter.setLastSeenTracker(tracker);
+		
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/install/shopify");
+		request.setServletPath("/install/shopify");
+		request.addParameter("shop", "test-store.myshopify.com");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		
+		SecurityContextHolder.getContext().setAuthentication(mock(ShopifyOriginToken.class));
+		filter.doFilter(request, response, mock(FilterChain.class));
+		
+		verify(tracker).recordAccess("test-store.myshopify.com");
+	}
+	
 	// if Authentication is ShopifyOriginToken, and if there's a shop param in req, but store doesn't exist, clear authentication, continue
 	@Test
 	public void doFilterWhenAuthenticationCorrectTypeAndStoreDoesntExistThenClearAuthAndContinue() throws Exception {
@@ -152,7 +171,7 @@ public class ShopifyExistingTokenFilterTests {
 		
 		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/install/shopify");
 		request.setServletPath("/install/shopify");
-		request.addParameter("shop", "new-store");
+		request.addParameter("shop", "new-store.myshopify.com");
 		MockHttpServletResponse response = new MockHttpServletResponse();
 		
 		ShopifyOriginToken auth = mock(ShopifyOriginToken.class);
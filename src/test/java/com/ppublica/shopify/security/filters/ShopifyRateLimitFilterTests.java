@@ -0,0 +1,123 @@
+package com.ppublica.shopify.security.filters;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy;
+import com.ppublica.shopify.security.service.ShopifyRateLimiter;
+
+public class ShopifyRateLimitFilterTests {
+
+	private ShopifyRateLimiter rateLimiter;
+	private ShopifyRateLimitFilter filter;
+
+	@Before
+	public void setup() {
+		rateLimiter = new ShopifyRateLimiter();
+		rateLimiter.setBurst(1);
+		filter = new ShopifyRateLimitFilter(rateLimiter, "/install/**", "/login/app/oauth2/code/**");
+	}
+
+	@Test
+	public void doFilterWhenUnderLimitThenContinue() throws Exception {
+		FilterChain chain = mock(FilterChain.class);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doFilter(request("/install/shopify", "1.2.3.4", "lmdev.myshopify.com"), response, chain);
+
+		verify(chain).doFilter(any(HttpServletRequest.class), any(HttpServletResponse.class));
+		Assert.assertEquals(200, response.getStatus());
+	}
+
+	@Test
+	public void doFilterWhenAddressOverLimitThenTooManyRequests() throws Exception {
+		filter.doFilter(request("/install/shopify", "1.2.3.4", null), new MockHttpServletResponse(), mock(FilterChain.class));
+
+		FilterChain chain = mock(FilterChain.class);
+		MockHttpServletRequest request = request("/login/app/oauth2/code/shopify", "1.2.3.4", null);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		filter.doFilter(request, response, chain);
+
+		verify(chain, never()).doFilter(any(HttpServletRequest.class), any(HttpServletResponse.class));
+		Assert.assertEquals(429, response.getStatus());
+		Assert.assertNotNull(response.getHeader("Retry-After"));
+		Assert.assertNull(request.getSession(false));
+	}
+
+	@Test
+	public void doFilterWhenShopOverLimitFromOtherAddressThenTooManyRequests() throws Exception {
+		filter.doFilter(request("/install/shopify", "1.2.3.4", "lmdev.myshopify.com"), new MockHttpServletResponse(), mock(FilterChain.class));
+
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		filter.doFilter(request("/install/shopify", "5.6.7.8", "LMDEV.myshopify.com"), response, mock(FilterChain.class));
+
+		Assert.assertEquals(429, response.getStatus());
+	}
+
+	@Test
+	public void doFilterWhenShopOverLimitAndRequestSignedThenContinue() throws Exception {
+		ShopifyVerificationStrategy verificationStrategy = mock(ShopifyVerificationStrategy.class);
+		filter.setVerificationStrategy(verificationStrategy);
+		// unsigned requests for the shop use up its limit
+		filter.doFilter(request("/install/shopify", "1.2.3.4", "lmdev.myshopify.com"), new MockHttpServletResponse(), mock(FilterChain.class));
+
+		MockHttpServletRequest signed = request("/install/shopify", "5.6.7.8", "lmdev.myshopify.com");
+		signed.addParameter("hmac", "abc");
+		when(verificationStrategy.isShopifyRequest(signed)).thenReturn(true);
+		FilterChain chain = mock(FilterChain.class);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		filter.doFilter(signed, response, chain);
+
+		verify(chain).doFilter(any(HttpServletRequest.class), any(HttpServletResponse.class));
+		Assert.assertEquals(200, response.getStatus());
+	}
+
+	@Test
+	public void doFilterWhenShopOverLimitAndHmacInvalidThenTooManyRequests() throws Exception {
+		ShopifyVerificationStrategy verificationStrategy = mock(ShopifyVerificationStrategy.class);
+		filter.setVerificationStrategy(verificationStrategy);
+		filter.doFilter(request("/install/shopify", "1.2.3.4", "lmdev.myshopify.com"), new MockHttpServletResponse(), mock(FilterChain.class));
+
+		MockHttpServletRequest forged = request("/install/shopify", "5.6.7.8", "lmdev.myshopify.com");
+		forged.addParameter("hmac", "abc");
+		when(verificationStrategy.isShopifyRequest(forged)).thenReturn(false);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		filter.doFilter(forged, response, mock(FilterChain.class));
+
+		Assert.assertEquals(429, response.getStatus());
+	}
+
+	@Test
+	public void doFilterWhenOtherPathThenNotLimited() throws Exception {
+		filter.doFilter(request("/products", "1.2.3.4", null), new MockHttpServletResponse(), mock(FilterChain.class));
+
+		FilterChain chain = mock(FilterChain.class);
+		filter.doFilter(request("/products", "1.2.3.4", null), new MockHttpServletResponse(), chain);
+
+		verify(chain).doFilter(any(HttpServletRequest.class), any(HttpServletResponse.class));
+	}
+
+	private MockHttpServletRequest request(String path, String address, String shop) {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", path);
+		request.setServletPath(path);
+		request.setRemoteAddr(address);
+		if(shop != null) {
+			request.addParameter("shop", shop);
+		}
+		return request;
+	}
+
+}
@@ -0,0 +1,169 @@
+package com.ppublica.shopify.security.filters;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.servlet.FilterChain;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.ClientAuthenticationMethod;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+import org.springframework.security.web.context.HttpSessionSecurityContextRepository;
+import org.springframework.security.web.context.HttpRequestResponseHolder;
+
+import com.ppublica.shopify.security.authentication.ShopifySessionTokenAuthentication;
+import com.ppublica.shopify.security.authentication.ShopifySessionTokenVerifier;
+import com.ppublica.shopify.security.service.ShopifyStore;
+import com.ppublica.shopify.security.service.StoreLastSeenTracker;
+
+public class ShopifySessionTokenFilterTests {
+
+	ShopifySessionTokenVerifier verifier;
+	OAuth2AuthorizedClientService clientService;
+
+	@Before
+	public void setup() {
+		ClientRegistration clientRegistration = ClientRegistration.withRegistrationId("shopify")
+				.clientId("client-id")
+				.clientSecret("client-secret")
+				.clientAuthenticationMethod(ClientAuthenticationMethod.POST)
+				.authorizationGrantType(AuthorizationGrantType.AUTHORIZATION_CODE)
+				.redirectUriTemplate("{baseUrl}/login/app/oauth2/code/{registrationId}")
+				.scope("read_products", "write_products")
+				.authorizationUri("https://{shop}/admin/oauth/authorize")
+				.tokenUri("https://{shop}/admin/oauth/access_token")
+				.clientName("Shopify")
+				.build();
+
+		verifier = mock(ShopifySessionTokenVerifier.class);
+		when(verifier.verify("valid-token")).thenReturn("test-store.myshopify.com");
+		when(verifier.verify("uninstalled-token")).thenReturn("other-store.myshopify.com");
+
+		clientService = mock(OAuth2AuthorizedClientService.class);
+		OAuth2AuthorizedClient client = mock(OAuth2AuthorizedClient.class);
+		OAuth2AccessToken token = mock(OAuth2AccessToken.class);
+		when(token.getTokenValue()).thenReturn("test-token");
+		when(client.getAccessToken()).thenReturn(token);
+		when(client.getClientRegistration()).thenReturn(clientRegistration);
+		when(client.getPrincipalName()).thenReturn("test-store.myshopify.com");
+		doReturn(client).when(clientService).loadAuthorizedClient("shopify", "test-store.myshopify.com");
+	}
+
+	@After
+	public void cleanup() {
+		SecurityContextHolder.clearContext();
+	}
+
+	@Test
+	public void doFilterWhenValidTokenThenAuthenticated() throws Exception {
+		ShopifySessionTokenFilter filter = new ShopifySessionTokenFilter(verifier, clientService);
+		StoreLastSeenTracker tracker = mock(StoreLastSeenTracker.class);
+		filter.setLastSeenTracker(tracker);
+		FilterChain chain = mock(FilterChain.class);
+
+		filter.doFilter(request("Bearer valid-token"), new MockHttpServletResponse(), chain);
+
+		Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+		Assert.assertTrue(auth instanceof ShopifySessionTokenAuthentication);
+		Assert.assertEquals("test-store.myshopify.com", auth.getName());
+		Assert.assertEquals("test-token", ((OAuth2AuthenticationToken) auth).getPrincipal().getAttributes().get(ShopifyStore.ACCESS_TOKEN_KEY));
+		verify(tracker).recordAccess("test-store.myshopify.com");
+		verify(chain).doFilter(any(), any());
+	}
+
+	@Test
+	public void doFilterWhenAnonymousThenAuthenticated() throws Exception {
+		SecurityContextHolder.getContext().setAuthentication(new AnonymousAuthenticationToken("key", "anonymous", AuthorityUtils.createAuthorityList("ROLE_ANONYMOUS")));
+		ShopifySessionTokenFilter filter = new ShopifySessionTokenFilter(verifier, clientService);
+
+		filter.doFilter(request("bearer valid-token"), new MockHttpServletResponse(), mock(FilterChain.class));
+
+		Assert.assertTrue(SecurityContextHolder.getContext().getAuthentication() instanceof ShopifySessionTokenAuthentication);
+	}
+
+	@Test
+	public void doFilterWhenInvalidTokenThenNotAuthenticated() throws Exception {
+		ShopifySessionTokenFilter filter = new ShopifySessionTokenFilter(verifier, clientService);
+		FilterChain chain = mock(FilterChain.class);
+
+		filter.doFilter(request("Bearer invalid-token"), new MockHttpServletResponse(), chain);
+
+		Assert.assertNull(SecurityContextHolder.getContext().getAuthentication());
+		verify(clientService, never()).loadAuthorizedClient(anyString(), anyString());
+		verify(chain).doFilter(any(), any());
+	}
+
+	@Test
+	public void doFilterWhenStoreNotInstalledThenNotAuthenticated() throws Exception {
+		ShopifySessionTokenFilter filter = new ShopifySessionTokenFilter(verifier, clientService);
+
+		filter.doFilter(request("Bearer uninstalled-token"), new MockHttpServletResponse(), mock(FilterChain.class));
+
+		Assert.assertNull(SecurityContextHolder.getContext().getAuthentication());
+	}
+
+	@Test
+	public void doFilterWhenNoBearerTokenThenVerifierNotCalled() throws Exception {
+		ShopifySessionTokenFilter filter = new ShopifySessionTokenFilter(verifier, clientService);
+
+		filter.doFilter(request(null), new MockHttpServletResponse(), mock(FilterChain.class));
+		filter.doFilter(request("Basic abc"), new MockHttpServletResponse(), mock(FilterChain.class));
+
+		verify(verifier, never()).verify(anyString());
+	}
+
+	@Test
+	public void doFilterWhenAlreadyAuthenticatedThenKeepsAuthentication() throws Exception {
+		OAuth2AuthenticationToken existing = mock(OAuth2AuthenticationToken.class);
+		SecurityContextHolder.getContext().setAuthentication(existing);
+		ShopifySessionTokenFilter filter = new ShopifySessionTokenFilter(verifier, clientService);
+
+		filter.doFilter(request("Bearer valid-token"), new MockHttpServletResponse(), mock(FilterChain.class));
+
+		Assert.assertSame(existing, SecurityContextHolder.getContext().getAuthentication());
+	}
+
+	@Test
+	public void sessionTokenAuthenticationIsNotSavedInSession() throws Exception {
+		ShopifySessionTokenFilter filter = new ShopifySessionTokenFilter(verifier, clientService);
+		MockHttpServletRequest request = request("Bearer valid-token");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		HttpSessionSecurityContextRepository repository = new HttpSessionSecurityContextRepository();
+		HttpRequestResponseHolder holder = new HttpRequestResponseHolder(request, response);
+		SecurityContextHolder.setContext(repository.loadContext(holder));
+
+		filter.doFilter(request, response, mock(FilterChain.class));
+		repository.saveContext(SecurityContextHolder.getContext(), holder.getRequest(), holder.getResponse());
+
+		Assert.assertNull(request.getSession(false));
+	}
+
+	private MockHttpServletRequest request(String authorization) {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/products");
+		if(authorization != null) {
+			request.addHeader("Authorization", authorization);
+		}
+		return request;
+	}
+
+}
@@ -0,0 +1,61 @@
+package com.ppublica.shopify.security.filters;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.servlet.FilterChain;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+
+import com.ppublica.shopify.security.service.ShopifyStore;
+import com.ppublica.shopify.security.service.ShopifyStoreRehydrator;
+
+public class ShopifyStoreRehydrationFilterTests {
+
+	ShopifyStoreRehydrator rehydrator;
+	ShopifyStore store;
+
+	@Before
+	public void setup() {
+		rehydrator = mock(ShopifyStoreRehydrator.class);
+		store = new ShopifyStore("lmdev.myshopify.com", null, "api-key", null, true);
+		SecurityContextHolder.getContext().setAuthentication(new OAuth2AuthenticationToken(store, null, "shopify"));
+	}
+
+	@After
+	public void cleanup() {
+		SecurityContextHolder.clearContext();
+	}
+
+	@Test
+	public void doFilterWhenStoreRehydratedKeepsAuthentication() throws Exception {
+		when(rehydrator.rehydrate("shopify", store)).thenReturn(true);
+		FilterChain chain = mock(FilterChain.class);
+
+		new ShopifyStoreRehydrationFilter(rehydrator).doFilter(new MockHttpServletRequest(), new MockHttpServletResponse(), chain);
+
+		Assert.assertSame(store, SecurityContextHolder.getContext().getAuthentication().getPrincipal());
+		verify(chain).doFilter(any(), any());
+	}
+
+	@Test
+	public void doFilterWhenStoreUninstalledRemovesAuthentication() throws Exception {
+		when(rehydrator.rehydrate("shopify", store)).thenReturn(false);
+		FilterChain chain = mock(FilterChain.class);
+
+		new ShopifyStoreRehydrationFilter(rehydrator).doFilter(new MockHttpServletRequest(), new MockHttpServletResponse(), chain);
+
+		Assert.assertNull(SecurityContextHolder.getContext().getAuthentication());
+		verify(chain).doFilter(any(), any());
+	}
+
+}
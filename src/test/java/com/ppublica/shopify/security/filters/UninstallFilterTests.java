@@ -193,7 +193,7 @@ public class UninstallFilterTests {
 	public void doUninstallWhenValidBodyThenRemovesStoreAndCallsUninstallSuccess() throws Exception {
 		String validBody = "{\n" +
 				"	\"shop_id\": \"1234\",\n" +
-				"	\"shop_domain\": \"domain\"\n" +
+				"	\"shop_domain\": \"domain.myshopify.com\"\n" +
 				"}\n";
 		
 		
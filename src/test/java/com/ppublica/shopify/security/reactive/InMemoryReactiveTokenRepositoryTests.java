@@ -0,0 +1,90 @@
+package com.ppublica.shopify.security.reactive;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ppublica.shopify.security.repository.PersistedStoreAccessToken;
+import com.ppublica.shopify.security.service.EncryptedTokenAndSalt;
+
+import reactor.test.StepVerifier;
+
+public class InMemoryReactiveTokenRepositoryTests {
+	
+	InMemoryReactiveTokenRepository repo;
+	
+	@Before
+	public void setup() {
+		repo = new InMemoryReactiveTokenRepository();
+	}
+	
+	@Test
+	public void findTokenForStoreWhenNotSavedThenEmpty() {
+		StepVerifier.create(repo.findTokenForStore("lmdev.myshopify.com"))
+			.verifyComplete();
+	}
+	
+	@Test
+	public void saveNewStoreThenFindReturnsCopyWithId() {
+		PersistedStoreAccessToken token = token("lmdev.myshopify.com", "token-1");
+		
+		StepVerifier.create(repo.saveNewStore(token)).verifyComplete();
+		
+		// mutating the original must not affect what was saved
+		token.getScopes().add("write_orders");
+		
+		StepVerifier.create(repo.findTokenForStore("lmdev.myshopify.com"))
+			.assertNext(found -> {
+				Assert.assertNotNull(found.getId());
+				Assert.assertEquals("token-1", found.getTokenAndSalt().getEncryptedToken());
+				Assert.assertEquals(new HashSet<>(Arrays.asList("read_products")), found.getScopes());
+			})
+			.verifyComplete();
+	}
+	
+	@Test
+	public void updateStoreKeepsIdAndReplacesToken() {
+		repo.saveNewStore(token("lmdev.myshopify.com", "token-1")).block();
+		Long id = repo.findTokenForStore("lmdev.myshopify.com").block().getId();
+		
+		StepVerifier.create(repo.updateStore(token("lmdev.myshopify.com", "token-2"))).verifyComplete();
+		
+		PersistedStoreAccessToken found = repo.findTokenForStore("lmdev.myshopify.com").block();
+		Assert.assertEquals(id, found.getId());
+		Assert.assertEquals("token-2", found.getTokenAndSalt().getEncryptedToken());
+	}
+	
+	@Test
+	public void updateStoreWhenNotSavedThenNotAdded() {
+		repo.updateStore(token("lmdev.myshopify.com", "token-2")).block();
+		
+		StepVerifier.create(repo.findTokenForStore("lmdev.myshopify.com"))
+			.verifyComplete();
+	}
+	
+	@Test
+	public void uninstallStoreRemovesStore() {
+		repo.saveNewStore(token("lmdev.myshopify.com", "token-1")).block();
+		
+		StepVerifier.create(repo.uninstallStore("lmdev.myshopify.com")).verifyComplete();
+
+		StepVerifier.create(repo.findTokenForStore("lmdev.myshopify.com"))
+			.verifyComplete();
+	}
+	
+	private PersistedStoreAccessToken token(String store, String encryptedToken) {
+		PersistedStoreAccessToken token = new PersistedStoreAccessToken();
+		token.setStoreDomain(store);
+		token.setTokenType("BEARER");
+		token.setTokenAndSalt(new EncryptedTokenAndSalt(encryptedToken, "salt"));
+		token.setIssuedAt(1000L);
+		token.setExpiresAt(2000L);
+		token.setScopes(new HashSet<>(Arrays.asList("read_products")));
+		
+		return token;
+	}
+
+}
@@ -0,0 +1,242 @@
+package com.ppublica.shopify.security.reactive;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.registration.InMemoryReactiveClientRegistrationRepository;
+import org.springframework.security.oauth2.client.web.server.ServerAuthorizationRequestRepository;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.ClientAuthenticationMethod;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.web.server.ServerWebExchange;
+
+import com.ppublica.shopify.security.authentication.ShopifyClientSecrets;
+import com.ppublica.shopify.security.authentication.ShopifyQueryVerificationCache;
+import com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy;
+
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+public class ReactiveShopifyVerificationStrategyTests {
+	
+	private final String secret = "6a031b0bd6af4eb";
+	private final String query = "code=fsv&shop=some-shop.myshopify.com&state=0.6784241404160823&timestamp=1337178173";
+	
+	ServerAuthorizationRequestRepository<OAuth2AuthorizationRequest> authReqRepo;
+	ReactiveShopifyVerificationStrategy strategy;
+	
+	@SuppressWarnings("unchecked")
+	@Before
+	public void setup() {
+		ClientRegistration registration = ClientRegistration.withRegistrationId("shopify")
+		        .clientId("testId")
+		        .clientSecret(secret)
+		        .clientAuthenticationMethod(ClientAuthenticationMethod.POST)
+		        .authorizationGrantType(AuthorizationGrantType.AUTHORIZATION_CODE)
+		        .redirectUriTemplate("{baseUrl}/login/app/oauth2/code/{registrationId}")
+		        .scope("read_products")
+		        .authorizationUri("https://{shop}/admin/oauth/authorize")
+		        .tokenUri("https://{shop}/admin/oauth/access_token")
+		        .clientName("Shopify")
+		        .build();
+		
+		authReqRepo = mock(ServerAuthorizationRequestRepository.class);
+		strategy = new ReactiveShopifyVerificationStrategy(new InMemoryReactiveClientRegistrationRepository(registration), authReqRepo);
+	}
+	
+	@Test
+	public void isShopifyRequestWhenValidHmacFirstThenTrue() {
+		String hmac = ShopifyVerificationStrategy.hash(secret, query);
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/install/shopify?hmac=" + hmac + "&" + query));
+		
+		StepVerifier.create(strategy.isShopifyRequest(exchange, "shopify"))
+			.expectNext(true)
+			.verifyComplete();
+	}
+	
+	@Test
+	public void isShopifyRequestWhenValidHmacLastThenTrue() {
+		String hmac = ShopifyVerificationStrategy.hash(secret, query);
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/install/shopify?" + query + "&hmac=" + hmac));
+		
+		StepVerifier.create(strategy.isShopifyRequest(exchange, "shopify"))
+			.expectNext(true)
+			.verifyComplete();
+	}
+	
+	@Test
+	public void isShopifyRequestWhenInvalidHmacThenFalse() {
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/install/shopify?hmac=abc&" + query));
+		
+		StepVerifier.create(strategy.isShopifyRequest(exchange, "shopify"))
+			.expectNext(false)
+			.verifyComplete();
+	}
+	
+	@Test
+	public void isShopifyRequestWhenNoHmacThenFalse() {
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/install/shopify?" + query));
+		
+		StepVerifier.create(strategy.isShopifyRequest(exchange, "shopify"))
+			.expectNext(false)
+			.verifyComplete();
+	}
+	
+	@Test
+	public void isShopifyRequestWhenStaleTimestampThenFalseBeforeHmac() {
+		ShopifyQueryVerificationCache cache = new ShopifyQueryVerificationCache();
+		strategy.setVerificationCache(cache);
+		String hmac = ShopifyVerificationStrategy.hash(secret, query);
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/install/other?hmac=" + hmac + "&" + query));
+		
+		// an unknown registration would error if the HMAC were computed
+		StepVerifier.create(strategy.isShopifyRequest(exchange, "other"))
+			.expectNext(false)
+			.verifyComplete();
+		Assert.assertEquals(1, cache.getStaleTimestampCount());
+	}
+	
+	@Test
+	public void isShopifyRequestWhenUnknownRegistrationThenError() {
+		String hmac = ShopifyVerificationStrategy.hash(secret, query);
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/install/other?hmac=" + hmac + "&" + query));
+		
+		StepVerifier.create(strategy.isShopifyRequest(exchange, "other"))
+			.expectError()
+			.verify();
+	}
+	
+	@Test
+	public void hasValidNonceWhenMatchingAuthorizationRequestThenTrue() {
+		OAuth2AuthorizationRequest authReq = OAuth2AuthorizationRequest.authorizationCode()
+				.clientId("testId")
+				.authorizationUri("https://some-shop.myshopify.com/admin/oauth/authorize")
+				.redirectUri("https://ppublica.com/login/app/oauth2/code/shopify")
+				.state("0.6784241404160823")
+				.build();
+		when(authReqRepo.loadAuthorizationRequest(any())).thenReturn(Mono.just(authReq));
+		
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/login/app/oauth2/code/shopify?" + query));
+		
+		StepVerifier.create(strategy.hasValidNonce(exchange))
+			.expectNext(true)
+			.verifyComplete();
+	}
+	
+	@Test
+	public void hasValidNonceWhenNoAuthorizationRequestThenFalse() {
+		when(authReqRepo.loadAuthorizationRequest(any())).thenReturn(Mono.empty());
+		
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/login/app/oauth2/code/shopify?" + query));
+		
+		StepVerifier.create(strategy.hasValidNonce(exchange))
+			.expectNext(false)
+			.verifyComplete();
+	}
+	
+	@Test
+	public void verifyHeaderRequestWhenValidHmacThenBody() throws Exception {
+		String body = "{\"shop_id\":954889,\"shop_domain\":\"snowdevil.myshopify.com\"}";
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.post("/store/uninstall/shopify")
+				.header(ShopifyVerificationStrategy.HMAC_HEADER, bodyHmac(body))
+				.body(body));
+		
+		StepVerifier.create(strategy.verifyHeaderRequest(exchange, "shopify"))
+			.assertNext(verified -> Assert.assertEquals(body, new String(verified, StandardCharsets.UTF_8)))
+			.verifyComplete();
+	}
+	
+	@Test
+	public void verifyHeaderRequestWhenSharedWebhookVectorThenBody() {
+		// the same vector as ShopifyVerificationStrategyTests
+		String body = "{\"shop_id\":954889,\"shop_domain\":\"snowdevil.myshopify.com\"}";
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.post("/store/uninstall/shopify")
+				.header(ShopifyVerificationStrategy.HMAC_HEADER, "lEQahZUAxThra0Uqw5H8O1wVijgr2Ub4xM8XvAFV8qI=")
+				.body(body));
+		
+		StepVerifier.create(strategy.verifyHeaderRequest(exchange, "shopify"))
+			.assertNext(verified -> Assert.assertEquals(body, new String(verified, StandardCharsets.UTF_8)))
+			.verifyComplete();
+	}
+	
+	@Test
+	public void verifyHeaderRequestWhenEmptyBodyThenEmpty() throws Exception {
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.post("/store/uninstall/shopify")
+				.header(ShopifyVerificationStrategy.HMAC_HEADER, bodyHmac("x")));
+		
+		StepVerifier.create(strategy.verifyHeaderRequest(exchange, "shopify"))
+			.verifyComplete();
+	}
+	
+	@Test
+	public void verifyHeaderRequestWhenSignedWithPreviousSecretThenBody() throws Exception {
+		String body = "{\"shop_id\":954889,\"shop_domain\":\"snowdevil.myshopify.com\"}";
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec("old-secret".getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.post("/store/uninstall/shopify")
+				.header(ShopifyVerificationStrategy.HMAC_HEADER, Base64.getEncoder().encodeToString(mac.doFinal(body.getBytes(StandardCharsets.UTF_8))))
+				.body(body));
+		
+		ShopifyClientSecrets secrets = new ShopifyClientSecrets(secret, Arrays.asList("old-secret"));
+		strategy.setClientSecrets(secrets);
+		
+		StepVerifier.create(strategy.verifyHeaderRequest(exchange, "shopify"))
+			.assertNext(verified -> Assert.assertEquals(body, new String(verified, StandardCharsets.UTF_8)))
+			.verifyComplete();
+		Assert.assertEquals(1, secrets.getMatchCount(1));
+	}
+	
+	@Test
+	public void verifyHeaderRequestWhenInvalidHmacThenEmpty() throws Exception {
+		String body = "{\"shop_id\":954889,\"shop_domain\":\"snowdevil.myshopify.com\"}";
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.post("/store/uninstall/shopify")
+				.header(ShopifyVerificationStrategy.HMAC_HEADER, bodyHmac(body + " "))
+				.body(body));
+		
+		StepVerifier.create(strategy.verifyHeaderRequest(exchange, "shopify"))
+			.verifyComplete();
+	}
+	
+	@Test
+	public void verifyHeaderRequestWhenBodyTooLargeThenEmpty() throws Exception {
+		strategy.setMaxBodySize(10);
+		String body = "{\"shop_id\":954889,\"shop_domain\":\"snowdevil.myshopify.com\"}";
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.post("/store/uninstall/shopify")
+				.header(ShopifyVerificationStrategy.HMAC_HEADER, bodyHmac(body))
+				.body(body));
+		
+		StepVerifier.create(strategy.verifyHeaderRequest(exchange, "shopify"))
+			.verifyComplete();
+	}
+	
+	@Test
+	public void verifyHeaderRequestWhenNoHeaderThenEmpty() {
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.post("/store/uninstall/shopify")
+				.body("{}"));
+		
+		StepVerifier.create(strategy.verifyHeaderRequest(exchange, "shopify"))
+			.verifyComplete();
+	}
+	
+	private String bodyHmac(String body) throws Exception {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+		
+		return Base64.getEncoder().encodeToString(mac.doFinal(body.getBytes(StandardCharsets.UTF_8)));
+	}
+
+}
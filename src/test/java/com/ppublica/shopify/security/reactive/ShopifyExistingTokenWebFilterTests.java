@@ -0,0 +1,111 @@
+package com.ppublica.shopify.security.reactive;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.ReactiveSecurityContextHolder;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.ReactiveOAuth2AuthorizedClientService;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.ClientAuthenticationMethod;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+import org.springframework.security.web.server.context.ServerSecurityContextRepository;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilterChain;
+
+import com.ppublica.shopify.security.authentication.ShopifyOriginToken;
+
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+public class ShopifyExistingTokenWebFilterTests {
+	
+	ReactiveOAuth2AuthorizedClientService clientService;
+	ServerSecurityContextRepository contextRepository;
+	ShopifyExistingTokenWebFilter filter;
+	AtomicReference<Authentication> seenAuthentication;
+	WebFilterChain chain;
+	
+	@Before
+	public void setup() {
+		clientService = mock(ReactiveOAuth2AuthorizedClientService.class);
+		contextRepository = mock(ServerSecurityContextRepository.class);
+		when(contextRepository.save(any(), any())).thenReturn(Mono.empty());
+		
+		filter = new ShopifyExistingTokenWebFilter(clientService, "/install");
+		filter.setSecurityContextRepository(contextRepository);
+		
+		seenAuthentication = new AtomicReference<>();
+		chain = exchange -> ReactiveSecurityContextHolder.getContext()
+				.map(SecurityContext::getAuthentication)
+				.doOnNext(seenAuthentication::set)
+				.then();
+	}
+	
+	@Test
+	public void filterWhenStoreExistsThenOAuth2AuthenticationToken() {
+		ClientRegistration registration = ClientRegistration.withRegistrationId("shopify")
+		        .clientId("testId")
+		        .clientSecret("secret")
+		        .clientAuthenticationMethod(ClientAuthenticationMethod.POST)
+		        .authorizationGrantType(AuthorizationGrantType.AUTHORIZATION_CODE)
+		        .redirectUriTemplate("{baseUrl}/login/app/oauth2/code/{registrationId}")
+		        .scope("read_products")
+		        .authorizationUri("https://{shop}/admin/oauth/authorize")
+		        .tokenUri("https://{shop}/admin/oauth/access_token")
+		        .clientName("Shopify")
+		        .build();
+		OAuth2AccessToken accessToken = new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "token-value", null, null);
+		OAuth2AuthorizedClient client = new OAuth2AuthorizedClient(registration, "lmdev.myshopify.com", accessToken);
+		when(clientService.loadAuthorizedClient("shopify", "lmdev.myshopify.com")).thenReturn(Mono.just(client));
+		
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/install/shopify?shop=lmdev.myshopify.com"));
+		
+		StepVerifier.create(filter.filter(exchange, chain)
+				.subscriberContext(ReactiveSecurityContextHolder.withAuthentication(new ShopifyOriginToken())))
+			.verifyComplete();
+		
+		Assert.assertTrue(seenAuthentication.get() instanceof OAuth2AuthenticationToken);
+		Assert.assertEquals("lmdev.myshopify.com", seenAuthentication.get().getName());
+		verify(contextRepository).save(any(), any());
+	}
+	
+	@Test
+	public void filterWhenStoreNotInstalledThenShopifyOriginTokenRemoved() {
+		when(clientService.loadAuthorizedClient("shopify", "lmdev.myshopify.com")).thenReturn(Mono.empty());
+		
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/install/shopify?shop=lmdev.myshopify.com"));
+		
+		StepVerifier.create(filter.filter(exchange, chain)
+				.subscriberContext(ReactiveSecurityContextHolder.withAuthentication(new ShopifyOriginToken())))
+			.verifyComplete();
+		
+		Assert.assertNull(seenAuthentication.get());
+		verify(contextRepository, never()).save(any(), any());
+	}
+	
+	@Test
+	public void filterWhenNoShopifyOriginTokenThenAuthenticationUnchanged() {
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/install/shopify?shop=lmdev.myshopify.com"));
+		
+		StepVerifier.create(filter.filter(exchange, chain)).verifyComplete();
+		
+		Assert.assertNull(seenAuthentication.get());
+		verify(clientService, never()).loadAuthorizedClient(any(), any());
+	}
+
+}
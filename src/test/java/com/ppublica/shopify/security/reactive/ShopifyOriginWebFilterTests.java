@@ -0,0 +1,111 @@
+package com.ppublica.shopify.security.reactive;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.ReactiveSecurityContextHolder;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilterChain;
+
+import com.ppublica.shopify.security.authentication.ShopifyOriginToken;
+
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+public class ShopifyOriginWebFilterTests {
+	
+	ReactiveShopifyVerificationStrategy strategy;
+	ShopifyOriginWebFilter filter;
+	AtomicReference<Authentication> seenAuthentication;
+	WebFilterChain chain;
+	
+	@Before
+	public void setup() {
+		strategy = mock(ReactiveShopifyVerificationStrategy.class);
+		filter = new ShopifyOriginWebFilter(strategy, "/login/app/oauth2/code/**", "/install/**");
+		seenAuthentication = new AtomicReference<>();
+		chain = exchange -> ReactiveSecurityContextHolder.getContext()
+				.map(SecurityContext::getAuthentication)
+				.doOnNext(seenAuthentication::set)
+				.then();
+	}
+	
+	@Test
+	public void filterWhenPathDoesNotMatchThenContinueChain() {
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/other"));
+		WebFilterChain mockChain = mock(WebFilterChain.class);
+		when(mockChain.filter(any())).thenReturn(Mono.empty());
+		
+		StepVerifier.create(filter.filter(exchange, mockChain)).verifyComplete();
+		
+		verify(mockChain).filter(exchange);
+		verify(strategy, never()).isShopifyRequest(any(), any());
+	}
+	
+	@Test
+	public void filterWhenInstallPathFromShopifyThenShopifyOriginToken() {
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/install/shopify"));
+		when(strategy.isShopifyRequest(exchange, "shopify")).thenReturn(Mono.just(true));
+		
+		StepVerifier.create(filter.filter(exchange, chain)).verifyComplete();
+		
+		Assert.assertTrue(seenAuthentication.get() instanceof ShopifyOriginToken);
+	}
+	
+	@Test
+	public void filterWhenInstallPathNotFromShopifyThenNoAuthentication() {
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/install/shopify"));
+		when(strategy.isShopifyRequest(exchange, "shopify")).thenReturn(Mono.just(false));
+		
+		StepVerifier.create(filter.filter(exchange, chain)).verifyComplete();
+		
+		Assert.assertNull(seenAuthentication.get());
+	}
+	
+	@Test
+	public void filterWhenAuthorizationPathWithValidNonceThenContinueChain() {
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/login/app/oauth2/code/shopify"));
+		when(strategy.isShopifyRequest(exchange, "shopify")).thenReturn(Mono.just(true));
+		when(strategy.hasValidNonce(exchange)).thenReturn(Mono.just(true));
+		
+		StepVerifier.create(filter.filter(exchange, chain)).verifyComplete();
+		
+		Assert.assertNull(exchange.getResponse().getStatusCode());
+	}
+	
+	@Test
+	public void filterWhenAuthorizationPathWithoutValidNonceThenForbidden() {
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/login/app/oauth2/code/shopify"));
+		when(strategy.isShopifyRequest(exchange, "shopify")).thenReturn(Mono.just(true));
+		when(strategy.hasValidNonce(exchange)).thenReturn(Mono.just(false));
+		
+		StepVerifier.create(filter.filter(exchange, chain)).verifyComplete();
+		
+		Assert.assertEquals(HttpStatus.FORBIDDEN, exchange.getResponse().getStatusCode());
+	}
+	
+	@Test
+	public void filterWhenAuthorizationPathNotFromShopifyThenForbidden() {
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/login/app/oauth2/code/shopify"));
+		when(strategy.isShopifyRequest(exchange, "shopify")).thenReturn(Mono.just(false));
+		
+		StepVerifier.create(filter.filter(exchange, chain)).verifyComplete();
+		
+		verify(strategy, never()).hasValidNonce(any());
+		Assert.assertEquals(HttpStatus.FORBIDDEN, exchange.getResponse().getStatusCode());
+	}
+
+}
@@ -0,0 +1,87 @@
+package com.ppublica.shopify.security.reactive;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.security.oauth2.client.ReactiveOAuth2AuthorizedClientService;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilterChain;
+
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+public class UninstallWebFilterTests {
+	
+	ReactiveShopifyVerificationStrategy strategy;
+	ReactiveOAuth2AuthorizedClientService clientService;
+	WebFilterChain chain;
+	UninstallWebFilter filter;
+	
+	@Before
+	public void setup() {
+		strategy = mock(ReactiveShopifyVerificationStrategy.class);
+		clientService = mock(ReactiveOAuth2AuthorizedClientService.class);
+		chain = mock(WebFilterChain.class);
+		when(chain.filter(any())).thenReturn(Mono.empty());
+		when(clientService.removeAuthorizedClient(any(), any())).thenReturn(Mono.empty());
+		
+		filter = new UninstallWebFilter("/store/uninstall", strategy, clientService);
+	}
+	
+	@Test
+	public void filterWhenPathDoesNotMatchThenContinueChain() {
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.post("/other"));
+		
+		StepVerifier.create(filter.filter(exchange, chain)).verifyComplete();
+		
+		verify(chain).filter(exchange);
+		verify(strategy, never()).verifyHeaderRequest(any(), any());
+	}
+	
+	@Test
+	public void filterWhenVerifiedThenUninstallAndOk() {
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.post("/store/uninstall/shopify"));
+		byte[] body = "{\"shop_id\":954889,\"shop_domain\":\"snowdevil.myshopify.com\"}".getBytes(StandardCharsets.UTF_8);
+		when(strategy.verifyHeaderRequest(exchange, "shopify")).thenReturn(Mono.just(body));
+		
+		StepVerifier.create(filter.filter(exchange, chain)).verifyComplete();
+		
+		verify(clientService).removeAuthorizedClient("shopify", "snowdevil.myshopify.com");
+		verify(chain, never()).filter(any());
+		Assert.assertEquals(HttpStatus.OK, exchange.getResponse().getStatusCode());
+	}
+	
+	@Test
+	public void filterWhenNotVerifiedThenForbidden() {
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.post("/store/uninstall/shopify"));
+		when(strategy.verifyHeaderRequest(exchange, "shopify")).thenReturn(Mono.empty());
+		
+		StepVerifier.create(filter.filter(exchange, chain)).verifyComplete();
+		
+		verify(clientService, never()).removeAuthorizedClient(any(), any());
+		Assert.assertEquals(HttpStatus.FORBIDDEN, exchange.getResponse().getStatusCode());
+	}
+	
+	@Test
+	public void filterWhenNoShopDomainThenForbidden() {
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.post("/store/uninstall/shopify"));
+		when(strategy.verifyHeaderRequest(exchange, "shopify")).thenReturn(Mono.just("{\"shop_id\":954889}".getBytes(StandardCharsets.UTF_8)));
+		
+		StepVerifier.create(filter.filter(exchange, chain)).verifyComplete();
+		
+		verify(clientService, never()).removeAuthorizedClient(any(), any());
+		Assert.assertEquals(HttpStatus.FORBIDDEN, exchange.getResponse().getStatusCode());
+	}
+
+}
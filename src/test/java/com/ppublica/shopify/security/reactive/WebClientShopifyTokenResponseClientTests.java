@@ -0,0 +1,120 @@
+package com.ppublica.shopify.security.reactive;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.ClientAuthenticationMethod;
+import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationExchange;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationResponse;
+
+import com.ppublica.shopify.security.web.ShopifyOAuth2AuthorizationRequestResolver;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import reactor.test.StepVerifier;
+
+public class WebClientShopifyTokenResponseClientTests {
+	MockWebServer server;
+	ClientRegistration clientRegistration;
+	OAuth2AuthorizationExchange authorizationExchange;
+	WebClientShopifyTokenResponseClient tokenResponseClient;
+	
+	@Before
+	public void setup() throws Exception {
+		this.server = new MockWebServer();
+		this.server.start();
+		String url = this.server.url("/admin/oauth/access_token/").toString();
+		
+		this.clientRegistration = ClientRegistration.withRegistrationId("shopify")
+				.clientId("client-1")
+				.clientSecret("secret")
+				.clientAuthenticationMethod(ClientAuthenticationMethod.POST)
+				.authorizationGrantType(AuthorizationGrantType.AUTHORIZATION_CODE)
+				.redirectUriTemplate("{baseUrl}/login/app/oauth2/code/{registrationId}")
+				.scope("read_products")
+				.authorizationUri("https://{shop}/admin/oauth/authorize")
+				.tokenUri(url + "{shop}")
+				.clientName("client-1")
+				.build();
+		
+		Map<String, Object> additionalParameters = new HashMap<>();
+		additionalParameters.put(ShopifyOAuth2AuthorizationRequestResolver.SHOPIFY_SHOP_PARAMETER_KEY_FOR_TOKEN, "lmdev.myshopify.com");
+		
+		OAuth2AuthorizationRequest authorizationRequest = OAuth2AuthorizationRequest.authorizationCode()
+				.clientId("client-1")
+				.authorizationUri("https://lmdev.myshopify.com/admin/oauth/authorize")
+				.redirectUri("https://ppublica.com/login/app/oauth2/code/shopify")
+				.state("statekey")
+				.additionalParameters(additionalParameters)
+				.build();
+		
+		OAuth2AuthorizationResponse authorizationResponse = OAuth2AuthorizationResponse.success("code-1")
+				.state("statekey")
+				.redirectUri("https://ppublica.com/login/app/oauth2/code/shopify")
+				.build();
+		
+		this.authorizationExchange = new OAuth2AuthorizationExchange(authorizationRequest, authorizationResponse);
+		this.tokenResponseClient = new WebClientShopifyTokenResponseClient();
+	}
+	
+	@After
+	public void cleanup() throws Exception {
+		this.server.shutdown();
+	}
+	
+	@Test
+	public void getTokenResponseWhenSuccessThenShopAddedToAdditionalParameters() throws Exception {
+		this.server.enqueue(new MockResponse()
+				.setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+				.setBody("{\"access_token\":\"access-token-1234\",\"scope\":\"read_products\"}"));
+		
+		StepVerifier.create(tokenResponseClient.getTokenResponse(new OAuth2AuthorizationCodeGrantRequest(clientRegistration, authorizationExchange)))
+			.assertNext(resp -> {
+				Assert.assertEquals("access-token-1234", resp.getAccessToken().getTokenValue());
+				Assert.assertEquals("lmdev.myshopify.com", resp.getAdditionalParameters().get(ShopifyOAuth2AuthorizationRequestResolver.SHOPIFY_SHOP_PARAMETER_KEY_FOR_TOKEN));
+			})
+			.verifyComplete();
+		
+		RecordedRequest recorded = this.server.takeRequest();
+		String body = recorded.getBody().readUtf8();
+		
+		Assert.assertEquals("/admin/oauth/access_token/lmdev.myshopify.com", recorded.getPath());
+		Assert.assertTrue(body.contains("client_id=client-1"));
+		Assert.assertTrue(body.contains("client_secret=secret"));
+		Assert.assertTrue(body.contains("code=code-1"));
+	}
+	
+	@Test
+	public void getTokenResponseWhenErrorStatusThenOAuth2AuthorizationException() {
+		this.server.enqueue(new MockResponse().setResponseCode(400));
+		
+		StepVerifier.create(tokenResponseClient.getTokenResponse(new OAuth2AuthorizationCodeGrantRequest(clientRegistration, authorizationExchange)))
+			.expectError(OAuth2AuthorizationException.class)
+			.verify();
+	}
+	
+	@Test
+	public void getTokenResponseWhenNoShopThenError() {
+		OAuth2AuthorizationRequest noShop = OAuth2AuthorizationRequest.from(authorizationExchange.getAuthorizationRequest())
+				.additionalParameters(new HashMap<>())
+				.build();
+		OAuth2AuthorizationExchange exchange = new OAuth2AuthorizationExchange(noShop, authorizationExchange.getAuthorizationResponse());
+		
+		StepVerifier.create(tokenResponseClient.getTokenResponse(new OAuth2AuthorizationCodeGrantRequest(clientRegistration, exchange)))
+			.expectError(RuntimeException.class)
+			.verify();
+	}
+
+}
@@ -0,0 +1,54 @@
+package com.ppublica.shopify.security.repository;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ppublica.shopify.security.service.BoundedBlockingExecutor;
+
+public class ExecutorTokenRepositoryTests {
+	
+	TokenRepository delegate;
+	BoundedBlockingExecutor executor;
+	ExecutorTokenRepository repo;
+	
+	@Before
+	public void setup() {
+		delegate = mock(TokenRepository.class);
+		executor = BoundedBlockingExecutor.newDefault(4);
+		repo = new ExecutorTokenRepository(delegate, executor);
+	}
+	
+	@After
+	public void cleanup() {
+		executor.shutdown();
+	}
+	
+	@Test
+	public void findTokenForStoreDelegates() {
+		PersistedStoreAccessToken token = new PersistedStoreAccessToken();
+		doReturn(token).when(delegate).findTokenForStore("lmdev.myshopify.com");
+		
+		Assert.assertSame(token, repo.findTokenForStore("lmdev.myshopify.com"));
+	}
+	
+	@Test
+	public void writesDelegate() {
+		PersistedStoreAccessToken token = new PersistedStoreAccessToken();
+		
+		repo.saveNewStore(token);
+		repo.updateStore(token);
+		repo.uninstallStore("lmdev.myshopify.com");
+		
+		verify(delegate, times(1)).saveNewStore(token);
+		verify(delegate, times(1)).updateStore(token);
+		verify(delegate, times(1)).uninstallStore("lmdev.myshopify.com");
+	}
+
+}
@@ -0,0 +1,254 @@
+package com.ppublica.shopify.security.repository;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.ppublica.shopify.security.service.EncryptedTokenAndSalt;
+
+public class InMemoryTokenRepositoryTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	InMemoryTokenRepository repo;
+
+	@Before
+	public void setup() {
+		repo = new InMemoryTokenRepository();
+	}
+
+	@Test
+	public void saveNewStoreThenFind() {
+		repo.saveNewStore(store("lmdev.myshopify.com", "token-value"));
+
+		PersistedStoreAccessToken token = repo.findTokenForStore("lmdev.myshopify.com");
+
+		Assert.assertEquals("lmdev.myshopify.com", token.getStoreDomain());
+		Assert.assertEquals("BEARER", token.getTokenType());
+		Assert.assertEquals("token-value", token.getTokenAndSalt().getEncryptedToken());
+		Assert.assertEquals("salt-value", token.getTokenAndSalt().getSalt());
+		Assert.assertEquals(new Long(2000), token.getIssuedAt());
+		Assert.assertEquals(new Long(3000), token.getExpiresAt());
+		Assert.assertEquals(new HashSet<>(Arrays.asList("read_products", "write_products")), token.getScopes());
+		Assert.assertNotNull(token.getId());
+		Assert.assertNull(repo.findTokenForStore("other.myshopify.com"));
+	}
+
+	@Test
+	public void changingSavedOrReturnedTokenDoesNotChangeStore() {
+		PersistedStoreAccessToken saved = store("lmdev.myshopify.com", "token-value");
+		repo.saveNewStore(saved);
+
+		saved.setTokenType("CHANGED");
+		saved.getScopes().add("read_orders");
+		repo.findTokenForStore("lmdev.myshopify.com").setTokenType("CHANGED");
+
+		PersistedStoreAccessToken token = repo.findTokenForStore("lmdev.myshopify.com");
+
+		Assert.assertEquals("BEARER", token.getTokenType());
+		Assert.assertEquals(2, token.getScopes().size());
+	}
+
+	@Test
+	public void upsertKeepsIdOfExistingStore() {
+		repo.upsert(store("lmdev.myshopify.com", "token-value"));
+		Long id = repo.findTokenForStore("lmdev.myshopify.com").getId();
+
+		repo.upsert(store("lmdev.myshopify.com", "new-token-value"));
+
+		PersistedStoreAccessToken token = repo.findTokenForStore("lmdev.myshopify.com");
+		Assert.assertEquals(id, token.getId());
+		Assert.assertEquals("new-token-value", token.getTokenAndSalt().getEncryptedToken());
+		Assert.assertEquals(1, repo.size());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void upsertWithoutStoreDomainThrows() {
+		repo.upsert(store(null, "token-value"));
+	}
+
+	@Test
+	public void updateStoreWhenStoreDoesNotExistDoesNothing() {
+		repo.updateStore(store("lmdev.myshopify.com", "token-value"));
+
+		Assert.assertNull(repo.findTokenForStore("lmdev.myshopify.com"));
+	}
+
+	@Test
+	public void uninstallStoreRemovesStore() {
+		repo.saveNewStore(store("lmdev.myshopify.com", "token-value"));
+
+		repo.uninstallStore("lmdev.myshopify.com");
+
+		Assert.assertNull(repo.findTokenForStore("lmdev.myshopify.com"));
+		Assert.assertEquals(0, repo.size());
+	}
+
+	@Test
+	public void bulkOperations() {
+		repo.saveAll(Arrays.asList(store("store1.myshopify.com", "token1"), store("store2.myshopify.com", "token2"), store("store3.myshopify.com", "token3")));
+
+		Assert.assertEquals(3, repo.size());
+		Assert.assertEquals(3, repo.findAll().size());
+
+		repo.uninstallAll(Arrays.asList("store1.myshopify.com", "store3.myshopify.com"));
+
+		Assert.assertEquals(1, repo.size());
+		Assert.assertNotNull(repo.findTokenForStore("store2.myshopify.com"));
+
+		repo.clear();
+
+		Assert.assertEquals(0, repo.size());
+	}
+
+	@Test
+	public void findStoresAfterPagesInIdOrder() {
+		for(int i = 0; i < 5; i++) {
+			repo.saveNewStore(store("store" + i + ".myshopify.com", "token" + i));
+		}
+
+		List<PersistedStoreAccessToken> first = repo.findStoresAfter(null, 3);
+		List<PersistedStoreAccessToken> second = repo.findStoresAfter(first.get(2).getId(), 3);
+
+		Assert.assertEquals(3, first.size());
+		Assert.assertEquals(2, second.size());
+		Assert.assertEquals("store0.myshopify.com", first.get(0).getStoreDomain());
+		Assert.assertEquals("store4.myshopify.com", second.get(1).getStoreDomain());
+	}
+
+	@Test
+	public void updateEncryptedTokensOnlyWhenSaltUnchanged() {
+		repo.saveNewStore(store("store1.myshopify.com", "token1"));
+		repo.saveNewStore(store("store2.myshopify.com", "token2"));
+
+		ReEncryptedToken unchanged = new ReEncryptedToken("store1.myshopify.com", new EncryptedTokenAndSalt("token1", "salt-value"), new EncryptedTokenAndSalt("new-token1", "new-salt"));
+		ReEncryptedToken changed = new ReEncryptedToken("store2.myshopify.com", new EncryptedTokenAndSalt("token2", "old-salt"), new EncryptedTokenAndSalt("new-token2", "new-salt"));
+		ReEncryptedToken missing = new ReEncryptedToken("store3.myshopify.com", new EncryptedTokenAndSalt("token3", "salt-value"), new EncryptedTokenAndSalt("new-token3", "new-salt"));
+
+		int updated = repo.updateEncryptedTokens(Arrays.asList(unchanged, changed, missing));
+
+		Assert.assertEquals(1, updated);
+		Assert.assertEquals("new-token1", repo.findTokenForStore("store1.myshopify.com").getTokenAndSalt().getEncryptedToken());
+		Assert.assertEquals("token2", repo.findTokenForStore("store2.myshopify.com").getTokenAndSalt().getEncryptedToken());
+	}
+
+	@Test
+	public void findRecentStoresPrefersLastSeen() {
+		PersistedStoreAccessToken older = store("older.myshopify.com", "token");
+		older.setIssuedAt(1000L);
+		PersistedStoreAccessToken newer = store("newer.myshopify.com", "token");
+		newer.setIssuedAt(5000L);
+		repo.saveAll(Arrays.asList(older, newer));
+
+		Assert.assertEquals("newer.myshopify.com", repo.findRecentStores(1).get(0).getStoreDomain());
+
+		Assert.assertEquals(1, repo.updateLastSeen(Collections.singletonMap("older.myshopify.com", 9000L)));
+
+		Assert.assertEquals("older.myshopify.com", repo.findRecentStores(1).get(0).getStoreDomain());
+	}
+
+	@Test
+	public void uninstallStoresIfUnchangedKeepsChangedStores() {
+		repo.saveAll(Arrays.asList(store("store1.myshopify.com", "token1"), store("store2.myshopify.com", "token2"), store("store3.myshopify.com", "token3")));
+		List<PersistedStoreAccessToken> read = repo.findStoresAfter(null, 10);
+
+		PersistedStoreAccessToken reinstalled = store("store2.myshopify.com", "new-token");
+		reinstalled.setTokenAndSalt(new EncryptedTokenAndSalt("new-token", "new-salt"));
+		repo.upsert(reinstalled);
+		repo.updateLastSeen(Collections.singletonMap("store3.myshopify.com", 9000L));
+
+		Assert.assertEquals(1, repo.uninstallStoresIfUnchanged(read));
+
+		Assert.assertNull(repo.findTokenForStore("store1.myshopify.com"));
+		Assert.assertNotNull(repo.findTokenForStore("store2.myshopify.com"));
+		Assert.assertEquals(new Long(9000), repo.findTokenForStore("store3.myshopify.com").getLastSeen());
+	}
+
+	@Test
+	public void concurrentUpsertsOfSameStoreKeepOneId() throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		CountDownLatch start = new CountDownLatch(1);
+
+		for(int i = 0; i < 200; i++) {
+			String tokenValue = "token" + i;
+			executor.execute(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				repo.upsert(store("lmdev.myshopify.com", tokenValue));
+			});
+		}
+		start.countDown();
+		executor.shutdown();
+		Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+		Assert.assertEquals(1, repo.size());
+		Assert.assertEquals(new Long(1), repo.findTokenForStore("lmdev.myshopify.com").getId());
+	}
+
+	@Test
+	public void snapshotThenReload() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("tokens.snapshot");
+		InMemoryTokenRepository snapshotted = new InMemoryTokenRepository(file);
+
+		List<PersistedStoreAccessToken> tokens = new ArrayList<>();
+		for(int i = 0; i < 3; i++) {
+			tokens.add(store("store" + i + ".myshopify.com", "token" + i));
+		}
+		PersistedStoreAccessToken noScopes = store("noscopes.myshopify.com", "token");
+		noScopes.setScopes(Collections.emptySet());
+		noScopes.setExpiresAt(null);
+		tokens.add(noScopes);
+		snapshotted.saveAll(tokens);
+
+		snapshotted.snapshot();
+
+		InMemoryTokenRepository reloaded = new InMemoryTokenRepository(file);
+
+		Assert.assertEquals(4, reloaded.size());
+		PersistedStoreAccessToken token = reloaded.findTokenForStore("store1.myshopify.com");
+		Assert.assertEquals(snapshotted.findTokenForStore("store1.myshopify.com").getId(), token.getId());
+		Assert.assertEquals("token1", token.getTokenAndSalt().getEncryptedToken());
+		Assert.assertEquals(new HashSet<>(Arrays.asList("read_products", "write_products")), token.getScopes());
+		Assert.assertNull(reloaded.findTokenForStore("noscopes.myshopify.com").getExpiresAt());
+
+		// new stores don't reuse ids
+		reloaded.saveNewStore(store("new.myshopify.com", "token"));
+		Assert.assertEquals(new Long(5), reloaded.findTokenForStore("new.myshopify.com").getId());
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void snapshotWithoutFileThrows() {
+		repo.snapshot();
+	}
+
+	private PersistedStoreAccessToken store(String domain, String tokenValue) {
+		PersistedStoreAccessToken token = new PersistedStoreAccessToken();
+		token.setStoreDomain(domain);
+		token.setTokenType("BEARER");
+		token.setTokenAndSalt(new EncryptedTokenAndSalt(tokenValue, "salt-value"));
+		token.setIssuedAt(2000L);
+		token.setExpiresAt(3000L);
+		token.setScopes(new HashSet<>(Arrays.asList("read_products", "write_products")));
+
+		return token;
+	}
+
+}
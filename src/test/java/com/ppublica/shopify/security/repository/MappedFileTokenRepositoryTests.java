@@ -0,0 +1,265 @@
+package com.ppublica.shopify.security.repository;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.ppublica.shopify.security.service.EncryptedTokenAndSalt;
+
+public class MappedFileTokenRepositoryTests {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	Path directory;
+	MappedFileTokenRepository repo;
+	
+	@Before
+	public void setup() throws IOException {
+		directory = folder.newFolder("tokens").toPath();
+		repo = new MappedFileTokenRepository(directory);
+	}
+	
+	@After
+	public void cleanup() {
+		try {
+			repo.close();
+		} catch(IllegalStateException ex) {
+			// already closed
+		}
+	}
+	
+	@Test
+	public void saveNewStoreThenFind() {
+		repo.saveNewStore(store("lmdev.myshopify.com", "token-value"));
+		
+		PersistedStoreAccessToken token = repo.findTokenForStore("lmdev.myshopify.com");
+		
+		Assert.assertEquals("lmdev.myshopify.com", token.getStoreDomain());
+		Assert.assertEquals("BEARER", token.getTokenType());
+		Assert.assertEquals("token-value", token.getTokenAndSalt().getEncryptedToken());
+		Assert.assertEquals("salt-value", token.getTokenAndSalt().getSalt());
+		Assert.assertEquals(new Long(2000), token.getIssuedAt());
+		Assert.assertEquals(new Long(3000), token.getExpiresAt());
+		Assert.assertEquals(new HashSet<>(Arrays.asList("read_products", "write_products")), token.getScopes());
+		Assert.assertNotNull(token.getId());
+		Assert.assertNull(repo.findTokenForStore("other.myshopify.com"));
+	}
+	
+	@Test
+	public void updateStoreThenReplacedAndIdKept() {
+		repo.saveNewStore(store("lmdev.myshopify.com", "token-value"));
+		Long id = repo.findTokenForStore("lmdev.myshopify.com").getId();
+		
+		repo.updateStore(store("lmdev.myshopify.com", "new-token"));
+		
+		PersistedStoreAccessToken token = repo.findTokenForStore("lmdev.myshopify.com");
+		Assert.assertEquals("new-token", token.getTokenAndSalt().getEncryptedToken());
+		Assert.assertEquals(id, token.getId());
+		Assert.assertEquals(1, repo.size());
+	}
+	
+	@Test
+	public void updateStoreWhenNotExistsThenNothingSaved() {
+		repo.updateStore(store("lmdev.myshopify.com", "token-value"));
+		
+		Assert.assertNull(repo.findTokenForStore("lmdev.myshopify.com"));
+	}
+	
+	@Test
+	public void uninstallStoreThenNotFound() {
+		repo.saveNewStore(store("lmdev.myshopify.com", "token-value"));
+		repo.uninstallStore("lmdev.myshopify.com");
+		
+		Assert.assertNull(repo.findTokenForStore("lmdev.myshopify.com"));
+		Assert.assertEquals(0, repo.size());
+		
+		repo.saveNewStore(store("lmdev.myshopify.com", "again"));
+		Assert.assertEquals("again", repo.findTokenForStore("lmdev.myshopify.com").getTokenAndSalt().getEncryptedToken());
+	}
+	
+	@Test
+	public void reopenThenStoresRestored() {
+		for(int i = 0; i < 2000; i++) {
+			repo.saveNewStore(store("store" + i + ".myshopify.com", "token" + i));
+		}
+		repo.uninstallStore("store5.myshopify.com");
+		repo.close();
+		
+		repo = new MappedFileTokenRepository(directory);
+		
+		Assert.assertEquals(1999, repo.size());
+		Assert.assertEquals("token1234", repo.findTokenForStore("store1234.myshopify.com").getTokenAndSalt().getEncryptedToken());
+		Assert.assertNull(repo.findTokenForStore("store5.myshopify.com"));
+	}
+	
+	@Test
+	public void reopenWithoutCheckpointThenTailReplayed() throws IOException {
+		repo.saveNewStore(store("first.myshopify.com", "token1"));
+		repo.checkpoint();
+		repo.saveNewStore(store("second.myshopify.com", "token2"));
+		repo.updateStore(store("first.myshopify.com", "token1b"));
+		
+		// simulate a crash: copy the files without checkpointing the index again
+		Path copy = folder.newFolder("copy").toPath();
+		for(String file : new String[] {"CURRENT", "0.log", "0.idx"}) {
+			Files.copy(directory.resolve(file), copy.resolve(file));
+		}
+		
+		MappedFileTokenRepository reopened = new MappedFileTokenRepository(copy);
+		try {
+			Assert.assertEquals("token1b", reopened.findTokenForStore("first.myshopify.com").getTokenAndSalt().getEncryptedToken());
+			Assert.assertEquals("token2", reopened.findTokenForStore("second.myshopify.com").getTokenAndSalt().getEncryptedToken());
+			Assert.assertEquals(2, reopened.size());
+		} finally {
+			reopened.close();
+		}
+	}
+	
+	@Test
+	public void reopenWhenTornRecordThenDiscarded() throws IOException {
+		repo.saveNewStore(store("first.myshopify.com", "token1"));
+		repo.close();
+		
+		// a record header promising more bytes than were written
+		Path log = directory.resolve("0.log");
+		try(FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+			long end = findLogEnd(channel);
+			ByteBuffer torn = ByteBuffer.allocate(12).putInt(100).putInt(12345).putInt(42);
+			torn.flip();
+			channel.write(torn, end);
+		}
+		
+		repo = new MappedFileTokenRepository(directory);
+		Assert.assertEquals("token1", repo.findTokenForStore("first.myshopify.com").getTokenAndSalt().getEncryptedToken());
+		
+		repo.saveNewStore(store("second.myshopify.com", "token2"));
+		repo.close();
+		
+		repo = new MappedFileTokenRepository(directory);
+		Assert.assertEquals("token2", repo.findTokenForStore("second.myshopify.com").getTokenAndSalt().getEncryptedToken());
+	}
+	
+	@Test
+	public void reopenWhenIndexMissingThenRebuiltFromLog() throws IOException {
+		repo.saveNewStore(store("first.myshopify.com", "token1"));
+		repo.close();
+		Files.delete(directory.resolve("0.idx"));
+		
+		repo = new MappedFileTokenRepository(directory);
+		
+		Assert.assertEquals("token1", repo.findTokenForStore("first.myshopify.com").getTokenAndSalt().getEncryptedToken());
+	}
+	
+	@Test
+	public void compactThenGarbageRemovedAndStoresKept() throws IOException {
+		for(int round = 0; round < 5; round++) {
+			for(int i = 0; i < 100; i++) {
+				repo.saveNewStore(store("store" + i + ".myshopify.com", "token" + i + "-" + round));
+			}
+		}
+		repo.uninstallStore("store7.myshopify.com");
+		Assert.assertTrue(repo.getGarbageBytes() > 0);
+		
+		repo.compact();
+		
+		Assert.assertEquals(0, repo.getGarbageBytes());
+		Assert.assertEquals(99, repo.size());
+		Assert.assertEquals("token42-4", repo.findTokenForStore("store42.myshopify.com").getTokenAndSalt().getEncryptedToken());
+		Assert.assertNull(repo.findTokenForStore("store7.myshopify.com"));
+		Assert.assertFalse(Files.exists(directory.resolve("0.log")));
+		
+		repo.close();
+		repo = new MappedFileTokenRepository(directory);
+		Assert.assertEquals(99, repo.size());
+		Assert.assertEquals("token42-4", repo.findTokenForStore("store42.myshopify.com").getTokenAndSalt().getEncryptedToken());
+	}
+	
+	@Test(expected=IllegalStateException.class)
+	public void openWhenInUseThenException() {
+		new MappedFileTokenRepository(directory);
+	}
+	
+	@Test
+	public void syncOnWriteFalseThenReadsSeePendingWrites() {
+		repo.setSyncOnWrite(false);
+		
+		repo.saveNewStore(store("lmdev.myshopify.com", "token-value"));
+		Assert.assertEquals("token-value", repo.findTokenForStore("lmdev.myshopify.com").getTokenAndSalt().getEncryptedToken());
+		
+		repo.sync();
+		Assert.assertEquals("token-value", repo.findTokenForStore("lmdev.myshopify.com").getTokenAndSalt().getEncryptedToken());
+	}
+	
+	@Test
+	public void findStoresAfterPagesById() {
+		for(int i = 0; i < 25; i++) {
+			repo.saveNewStore(store("store" + i + ".myshopify.com", "token" + i));
+		}
+		
+		List<PersistedStoreAccessToken> first = repo.findStoresAfter(null, 10);
+		List<PersistedStoreAccessToken> second = repo.findStoresAfter(first.get(9).getId(), 10);
+		List<PersistedStoreAccessToken> third = repo.findStoresAfter(second.get(9).getId(), 10);
+		
+		Assert.assertEquals(10, first.size());
+		Assert.assertEquals(10, second.size());
+		Assert.assertEquals(5, third.size());
+		Assert.assertEquals("store0.myshopify.com", first.get(0).getStoreDomain());
+		Assert.assertEquals("store24.myshopify.com", third.get(4).getStoreDomain());
+		Assert.assertTrue(first.get(9).getId() < second.get(0).getId());
+	}
+	
+	@Test
+	public void updateEncryptedTokensOnlyWhenSaltUnchanged() {
+		repo.saveNewStore(store("lmdev.myshopify.com", "token-value"));
+		
+		ReEncryptedToken stale = new ReEncryptedToken("lmdev.myshopify.com", new EncryptedTokenAndSalt("token-value", "other-salt"), new EncryptedTokenAndSalt("x", "{v1}x"));
+		ReEncryptedToken matching = new ReEncryptedToken("lmdev.myshopify.com", new EncryptedTokenAndSalt("token-value", "salt-value"), new EncryptedTokenAndSalt("new-token", "{v1}new-salt"));
+		
+		Assert.assertEquals(0, repo.updateEncryptedTokens(Collections.singletonList(stale)));
+		Assert.assertEquals(1, repo.updateEncryptedTokens(Collections.singletonList(matching)));
+		Assert.assertEquals("{v1}new-salt", repo.findTokenForStore("lmdev.myshopify.com").getTokenAndSalt().getSalt());
+	}
+	
+	private long findLogEnd(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(4);
+		long position = 8;
+		while(true) {
+			header.clear();
+			channel.read(header, position);
+			header.flip();
+			int length = header.getInt();
+			if(length == 0) {
+				return position;
+			}
+			position += 8 + length;
+		}
+	}
+	
+	private PersistedStoreAccessToken store(String domain, String tokenValue) {
+		PersistedStoreAccessToken token = new PersistedStoreAccessToken();
+		token.setStoreDomain(domain);
+		token.setTokenType("BEARER");
+		token.setTokenAndSalt(new EncryptedTokenAndSalt(tokenValue, "salt-value"));
+		token.setIssuedAt(2000L);
+		token.setExpiresAt(3000L);
+		token.setScopes(new HashSet<>(Arrays.asList("read_products", "write_products")));
+		
+		return token;
+	}
+
+}
@@ -99,6 +99,22 @@ public class PersistedStoreAccessTokenUtilityTests {
 		
 	}
 	
+	@Test
+	public void fromAuthenticationObjectsToPersistedStoreAccessTokenWhenNoIssuedOrExpiresAtThenDefaulted() {
+		OAuth2AccessToken noTimes = new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "raw-token", null, null);
+		OAuth2AuthorizedClient client = new OAuth2AuthorizedClient(clientRegistration, principalName, noTimes);
+		OAuth2AuthenticationToken authToken = new OAuth2AuthenticationToken(principal, authorities, registrationId);
+		long before = Instant.now().getEpochSecond();
+
+		PersistedStoreAccessToken tok = utility.fromAuthenticationObjectsToPersistedStoreAccessToken(client, authToken, new EncryptedTokenAndSalt("enc-token", "salt"));
+		
+		Assert.assertTrue(tok.getIssuedAt() >= before);
+		Assert.assertEquals(tok.getIssuedAt() + 1, (long) tok.getExpiresAt());
+		
+		OAuth2AuthorizedClient readBack = utility.fromPersistedStoreAccessTokenToOAuth2AuthorizedClient(tok, new DecryptedTokenAndSalt("raw-token", "salt"), clientRegistration);
+		Assert.assertEquals("raw-token", readBack.getAccessToken().getTokenValue());
+	}
+	
 	@Test
 	public void fromPersistedStoreAccessTokenToOAuth2AuthorizedClientGivenCorrectArgumentsThenReturnsClient() {
 		PersistedStoreAccessToken persistedToken = new PersistedStoreAccessToken();
@@ -0,0 +1,64 @@
+package com.ppublica.shopify.security.repository;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ScopeDictionaryTests {
+	
+	@Test
+	public void decodeSameScopesInAnyOrderThenSameInstance() {
+		ScopeDictionary dictionary = new ScopeDictionary();
+		
+		Set<String> first = dictionary.decode("read_products,write_orders");
+		Set<String> second = dictionary.decode("write_orders, read_products");
+		
+		Assert.assertSame(first, second);
+		Assert.assertEquals(new HashSet<>(Arrays.asList("read_products", "write_orders")), first);
+	}
+	
+	@Test(expected=UnsupportedOperationException.class)
+	public void decodeThenUnmodifiable() {
+		new ScopeDictionary().decode("read_products").add("write_products");
+	}
+	
+	@Test
+	public void encodeThenAlphabeticalOrder() {
+		ScopeDictionary dictionary = new ScopeDictionary();
+		
+		Assert.assertEquals("read_products,write_orders", dictionary.encode(new HashSet<>(Arrays.asList("write_orders", "read_products"))));
+		Assert.assertEquals("read_products,write_orders", dictionary.encode(dictionary.decode("write_orders,read_products")));
+	}
+	
+	@Test
+	public void decodeWhenMaxCombinationsReachedThenStillDecoded() {
+		ScopeDictionary dictionary = new ScopeDictionary(1);
+		
+		Set<String> shared = dictionary.decode("read_products");
+		Set<String> notShared = dictionary.decode("write_products");
+		
+		Assert.assertSame(shared, dictionary.decode("read_products"));
+		Assert.assertEquals(new HashSet<>(Arrays.asList("write_products")), notShared);
+		Assert.assertNotSame(notShared, dictionary.decode("write_products"));
+	}
+	
+	@Test
+	public void decodeWhenTrailingOrDoubledCommaThenNoEmptyScope() {
+		ScopeDictionary dictionary = new ScopeDictionary();
+		Set<String> expected = new HashSet<>(Arrays.asList("read_products", "write_orders"));
+		
+		Assert.assertEquals(expected, dictionary.decode("read_products,write_orders,"));
+		Assert.assertEquals(expected, dictionary.decode("read_products,,write_orders"));
+		Assert.assertEquals(expected, dictionary.decode("read_products, ,write_orders"));
+		Assert.assertSame(dictionary.decode("read_products,write_orders"), dictionary.decode("read_products,write_orders,"));
+	}
+	
+	@Test
+	public void decodeSingleScope() {
+		Assert.assertEquals(new HashSet<>(Arrays.asList("read_products")), new ScopeDictionary().decode("read_products"));
+	}
+
+}
@@ -0,0 +1,264 @@
+package com.ppublica.shopify.security.repository;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import com.ppublica.shopify.TestDataSource;
+import com.ppublica.shopify.security.service.EncryptedTokenAndSalt;
+
+public class ShardedTokenRepositoryTests {
+	
+	List<TestDataSource> dataSources;
+	Map<String, TokenRepository> twoShards;
+	Map<String, TokenRepository> threeShards;
+	
+	@Before
+	public void setup() {
+		dataSources = Arrays.asList(new TestDataSource("shard0"), new TestDataSource("shard1"), new TestDataSource("shard2"));
+		
+		threeShards = new LinkedHashMap<>();
+		for(int i = 0; i < dataSources.size(); i++) {
+			JdbcTemplate template = new JdbcTemplate(dataSources.get(i));
+			template.execute("CREATE TABLE STOREACCESSTOKENS(id BIGINT NOT NULL IDENTITY, storeDomain VARCHAR(50) NOT NULL, tokenType VARCHAR(50) NOT NULL, tokenValue VARCHAR(100) NOT NULL, salt VARCHAR(100) NOT NULL, issuedAt BIGINT NOT NULL, expiresAt BIGINT NOT NULL, scopes VARCHAR(200) NOT NULL);");
+			
+			ShopifyTokenRepositoryImpl repo = new ShopifyTokenRepositoryImpl();
+			repo.setJdbc(template);
+			threeShards.put("shard" + i, repo);
+		}
+		
+		twoShards = new LinkedHashMap<>(threeShards);
+		twoShards.remove("shard2");
+	}
+	
+	@After
+	public void cleanup() {
+		for(TestDataSource dataSource : dataSources) {
+			dataSource.destroy();
+		}
+	}
+	
+	@Test
+	public void saveNewStoreThenStoredOnlyInItsShard() {
+		ShardedTokenRepository repo = new ShardedTokenRepository(threeShards);
+		
+		for(int i = 0; i < 30; i++) {
+			repo.saveNewStore(store("store" + i + ".myshopify.com", "token" + i));
+		}
+		
+		int total = 0;
+		for(Map.Entry<String, TokenRepository> shard : threeShards.entrySet()) {
+			int count = 0;
+			for(int i = 0; i < 30; i++) {
+				String domain = "store" + i + ".myshopify.com";
+				boolean found = shard.getValue().findTokenForStore(domain) != null;
+				Assert.assertEquals(shard.getKey().equals(repo.shardFor(domain)), found);
+				if(found) {
+					count++;
+				}
+			}
+			Assert.assertTrue("Every shard should have some stores", count > 0);
+			total += count;
+		}
+		Assert.assertEquals(30, total);
+		
+		Assert.assertEquals("token7", repo.findTokenForStore("store7.myshopify.com").getTokenAndSalt().getEncryptedToken());
+	}
+	
+	@Test
+	public void addShardThenOnlySomeStoresMove() {
+		ShardedTokenRepository before = new ShardedTokenRepository(twoShards);
+		ShardedTokenRepository after = new ShardedTokenRepository(threeShards);
+		
+		int moved = 0;
+		for(int i = 0; i < 1000; i++) {
+			String domain = "store" + i + ".myshopify.com";
+			String newShard = after.shardFor(domain);
+			if(!before.shardFor(domain).equals(newShard)) {
+				Assert.assertEquals("shard2", newShard);
+				moved++;
+			}
+		}
+		
+		Assert.assertTrue(moved > 200 && moved < 500);
+	}
+	
+	@Test
+	public void reshardThenDualReadsAndWritesMoveStores() {
+		ShardedTokenRepository before = new ShardedTokenRepository(twoShards);
+		ShardedTokenRepository after = new ShardedTokenRepository(threeShards);
+		after.setPreviousShards(twoShards);
+		
+		String moving = null;
+		for(int i = 0; moving == null; i++) {
+			String domain = "store" + i + ".myshopify.com";
+			if(after.shardFor(domain).equals("shard2")) {
+				moving = domain;
+			}
+		}
+		String previousShard = before.shardFor(moving);
+		before.saveNewStore(store(moving, "old-token"));
+		
+		// read from the previous shard
+		PersistedStoreAccessToken token = after.findTokenForStore(moving);
+		Assert.assertEquals("old-token", token.getTokenAndSalt().getEncryptedToken());
+		
+		// the update moves the store
+		token.setTokenAndSalt(new EncryptedTokenAndSalt("new-token", "salt"));
+		after.updateStore(token);
+		
+		Assert.assertEquals("new-token", threeShards.get("shard2").findTokenForStore(moving).getTokenAndSalt().getEncryptedToken());
+		Assert.assertNull(twoShards.get(previousShard).findTokenForStore(moving));
+		
+		after.uninstallStore(moving);
+		Assert.assertNull(after.findTokenForStore(moving));
+	}
+	
+	@Test
+	public void uninstallStoreDuringReshardThenRemovedFromPreviousShard() {
+		ShardedTokenRepository before = new ShardedTokenRepository(twoShards);
+		ShardedTokenRepository after = new ShardedTokenRepository(threeShards);
+		after.setPreviousShards(twoShards);
+		
+		for(int i = 0; i < 20; i++) {
+			before.saveNewStore(store("store" + i + ".myshopify.com", "token" + i));
+		}
+		for(int i = 0; i < 20; i++) {
+			after.uninstallStore("store" + i + ".myshopify.com");
+		}
+		for(int i = 0; i < 20; i++) {
+			Assert.assertNull(before.findTokenForStore("store" + i + ".myshopify.com"));
+		}
+	}
+	
+	@Test
+	public void callsThenStatsRecordedPerShard() {
+		ShardedTokenRepository repo = new ShardedTokenRepository(threeShards);
+		String domain = "lmdev.myshopify.com";
+		
+		repo.saveNewStore(store(domain, "token"));
+		repo.findTokenForStore(domain);
+		
+		ShardedTokenRepository.ShardStats stats = repo.getShardStats().get(repo.shardFor(domain));
+		Assert.assertEquals(2, stats.getCallCount());
+		Assert.assertEquals(0, stats.getErrorCount());
+		Assert.assertTrue(stats.getMaxLatencyNanos() > 0);
+		Assert.assertTrue(stats.getAverageLatencyNanos() <= stats.getMaxLatencyNanos());
+	}
+	
+	@Test
+	public void updateEncryptedTokensThenGroupedByShard() {
+		ShardedTokenRepository repo = new ShardedTokenRepository(threeShards);
+		Map<String, ReEncryptedToken> reEncrypted = new HashMap<>();
+		for(int i = 0; i < 10; i++) {
+			String domain = "store" + i + ".myshopify.com";
+			repo.saveNewStore(store(domain, "token" + i));
+			reEncrypted.put(domain, new ReEncryptedToken(domain, new EncryptedTokenAndSalt("token" + i, "salt"), new EncryptedTokenAndSalt("new" + i, "{v1}salt")));
+		}
+		
+		Assert.assertEquals(10, repo.updateEncryptedTokens(Arrays.asList(reEncrypted.values().toArray(new ReEncryptedToken[0]))));
+		Assert.assertEquals("new3", repo.findTokenForStore("store3.myshopify.com").getTokenAndSalt().getEncryptedToken());
+	}
+	
+	@Test
+	public void findStoresAfterThenEveryStoreOnceAcrossShards() {
+		ShardedTokenRepository repo = new ShardedTokenRepository(threeShards);
+		for(int i = 0; i < 20; i++) {
+			repo.saveNewStore(store("store" + i + ".myshopify.com", "token" + i));
+		}
+		
+		Set<String> seen = new HashSet<>();
+		Long lastId = null;
+		List<PersistedStoreAccessToken> page;
+		do {
+			page = repo.findStoresAfter(lastId, 2);
+			for(int i = 0; i < page.size(); i++) {
+				Assert.assertTrue(seen.add(page.get(i).getStoreDomain()));
+				Assert.assertTrue(i == 0 || page.get(i - 1).getId() <= page.get(i).getId());
+			}
+			Assert.assertTrue(page.size() <= 2 + threeShards.size() - 1);
+			if(!page.isEmpty()) {
+				lastId = page.get(page.size() - 1).getId();
+			}
+		} while(page.size() >= 2);
+		
+		Assert.assertEquals(20, seen.size());
+	}
+	
+	@Test
+	public void findRecentStoresThenMergedMostRecentFirst() {
+		ShardedTokenRepository repo = new ShardedTokenRepository(threeShards);
+		for(int i = 0; i < 20; i++) {
+			PersistedStoreAccessToken token = store("store" + i + ".myshopify.com", "token" + i);
+			token.setIssuedAt(1000L + i);
+			repo.saveNewStore(token);
+		}
+		
+		List<PersistedStoreAccessToken> recent = repo.findRecentStores(5);
+		
+		Assert.assertEquals(5, recent.size());
+		for(int i = 0; i < 5; i++) {
+			Assert.assertEquals("store" + (19 - i) + ".myshopify.com", recent.get(i).getStoreDomain());
+		}
+	}
+	
+	@Test
+	public void updateLastSeenThenGroupedByShard() {
+		for(int i = 0; i < dataSources.size(); i++) {
+			new JdbcTemplate(dataSources.get(i)).execute("ALTER TABLE STOREACCESSTOKENS ADD COLUMN lastSeen BIGINT");
+			((ShopifyTokenRepositoryImpl)threeShards.get("shard" + i)).setLastSeenColumn(true);
+		}
+		ShardedTokenRepository repo = new ShardedTokenRepository(threeShards);
+		Map<String, Long> lastSeen = new HashMap<>();
+		for(int i = 0; i < 10; i++) {
+			repo.saveNewStore(store("store" + i + ".myshopify.com", "token" + i));
+			lastSeen.put("store" + i + ".myshopify.com", 5000L + i);
+		}
+		
+		Assert.assertEquals(10, repo.updateLastSeen(lastSeen));
+		
+		List<PersistedStoreAccessToken> recent = repo.findRecentStores(1);
+		Assert.assertEquals("store9.myshopify.com", recent.get(0).getStoreDomain());
+		Assert.assertEquals(Long.valueOf(5009L), recent.get(0).getLastSeen());
+	}
+	
+	@Test
+	public void uninstallStoresIfUnchangedThenGroupedByShard() {
+		ShardedTokenRepository repo = new ShardedTokenRepository(threeShards);
+		for(int i = 0; i < 10; i++) {
+			repo.saveNewStore(store("store" + i + ".myshopify.com", "token" + i));
+		}
+		List<PersistedStoreAccessToken> stores = repo.findStoresAfter(null, 100);
+		
+		PersistedStoreAccessToken reinstalled = store("store3.myshopify.com", "new-token");
+		reinstalled.setTokenAndSalt(new EncryptedTokenAndSalt("new-token", "new-salt"));
+		repo.updateStore(reinstalled);
+		
+		Assert.assertEquals(9, repo.uninstallStoresIfUnchanged(stores));
+		Assert.assertNotNull(repo.findTokenForStore("store3.myshopify.com"));
+		Assert.assertNull(repo.findTokenForStore("store4.myshopify.com"));
+	}
+	
+	private PersistedStoreAccessToken store(String domain, String tokenValue) {
+		PersistedStoreAccessToken token = new PersistedStoreAccessToken();
+		token.setStoreDomain(domain);
+		token.setTokenType("BEARER");
+		token.setTokenAndSalt(new EncryptedTokenAndSalt(tokenValue, "salt"));
+		token.setIssuedAt(2000L);
+		token.setExpiresAt(3000L);
+		token.setScopes(new HashSet<>(Arrays.asList("read_products")));
+		
+		return token;
+	}
+
+}
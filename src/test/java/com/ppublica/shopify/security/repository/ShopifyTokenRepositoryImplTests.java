@@ -1,7 +1,9 @@
 package com.ppublica.shopify.security.repository;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
@@ -196,4 +198,178 @@ public class ShopifyTokenRepositoryImplTests {
 		
 	}
 	
+	@Test
+	public void findStoresAfterPagesById() {
+		template.execute("INSERT INTO STOREACCESSTOKENS(storeDomain,tokenType,tokenValue,salt,issuedAt,expiresAt,scopes) VALUES('second.myshopify.com','BEARER','token-value','salt-value',2000,3000,'read_products');");
+		template.execute("INSERT INTO STOREACCESSTOKENS(storeDomain,tokenType,tokenValue,salt,issuedAt,expiresAt,scopes) VALUES('third.myshopify.com','BEARER','token-value','salt-value',2000,3000,'read_products');");
+		
+		List<PersistedStoreAccessToken> first = repo.findStoresAfter(null, 2);
+		Assert.assertEquals(2, first.size());
+		Assert.assertEquals(shop, first.get(0).getStoreDomain());
+		Assert.assertEquals("second.myshopify.com", first.get(1).getStoreDomain());
+		
+		List<PersistedStoreAccessToken> second = repo.findStoresAfter(first.get(1).getId(), 2);
+		Assert.assertEquals(1, second.size());
+		Assert.assertEquals("third.myshopify.com", second.get(0).getStoreDomain());
+		
+		Assert.assertTrue(repo.findStoresAfter(second.get(0).getId(), 2).isEmpty());
+	}
+	
+	@Test
+	public void findRecentStoresMostRecentFirst() {
+		template.execute("INSERT INTO STOREACCESSTOKENS(storeDomain,tokenType,tokenValue,salt,issuedAt,expiresAt,scopes) VALUES('newest.myshopify.com','BEARER','token-value','salt-value',4000,5000,'read_products');");
+		template.execute("INSERT INTO STOREACCESSTOKENS(storeDomain,tokenType,tokenValue,salt,issuedAt,expiresAt,scopes) VALUES('oldest.myshopify.com','BEARER','token-value','salt-value',1000,5000,'read_products');");
+		
+		List<PersistedStoreAccessToken> recent = repo.findRecentStores(2);
+		
+		Assert.assertEquals(2, recent.size());
+		Assert.assertEquals("newest.myshopify.com", recent.get(0).getStoreDomain());
+		Assert.assertEquals(shop, recent.get(1).getStoreDomain());
+	}
+	
+	@Test
+	public void updateLastSeenOnlyMovesForward() {
+		template.execute("ALTER TABLE STOREACCESSTOKENS ADD COLUMN lastSeen BIGINT");
+		
+		Assert.assertEquals(1, repo.updateLastSeen(Collections.singletonMap(shop, 9000L)));
+		Assert.assertEquals(0, repo.updateLastSeen(Collections.singletonMap(shop, 8000L)));
+		Assert.assertEquals(0, repo.updateLastSeen(Collections.singletonMap("unknown.myshopify.com", 9000L)));
+		
+		Assert.assertEquals(new Long(9000), template.queryForObject("SELECT lastSeen FROM STOREACCESSTOKENS WHERE storeDomain=?", Long.class, shop));
+	}
+	
+	@Test
+	public void findRecentStoresWhenLastSeenColumnThenMostRecentlySeenFirst() {
+		template.execute("ALTER TABLE STOREACCESSTOKENS ADD COLUMN lastSeen BIGINT");
+		template.execute("INSERT INTO STOREACCESSTOKENS(storeDomain,tokenType,tokenValue,salt,issuedAt,expiresAt,scopes) VALUES('newest.myshopify.com','BEARER','token-value','salt-value',4000,5000,'read_products');");
+		repo.setLastSeenColumn(true);
+		repo.updateLastSeen(Collections.singletonMap(shop, 9000L));
+		
+		List<PersistedStoreAccessToken> recent = repo.findRecentStores(2);
+		
+		Assert.assertEquals(shop, recent.get(0).getStoreDomain());
+		Assert.assertEquals("newest.myshopify.com", recent.get(1).getStoreDomain());
+	}
+	
+	@Test
+	public void findStoresAfterWhenLastSeenColumnThenReadsLastSeen() {
+		template.execute("ALTER TABLE STOREACCESSTOKENS ADD COLUMN lastSeen BIGINT");
+		template.execute("INSERT INTO STOREACCESSTOKENS(storeDomain,tokenType,tokenValue,salt,issuedAt,expiresAt,scopes) VALUES('unseen.myshopify.com','BEARER','token-value','salt-value',4000,5000,'read_products');");
+		repo.setLastSeenColumn(true);
+		repo.updateLastSeen(Collections.singletonMap(shop, 9000L));
+		
+		List<PersistedStoreAccessToken> stores = repo.findStoresAfter(null, 10);
+		
+		Assert.assertEquals(new Long(9000), stores.get(0).getLastSeen());
+		Assert.assertNull(stores.get(1).getLastSeen());
+	}
+	
+	@Test
+	public void uninstallStoresIfUnchangedKeepsReinstalledStores() {
+		template.execute("INSERT INTO STOREACCESSTOKENS(storeDomain,tokenType,tokenValue,salt,issuedAt,expiresAt,scopes) VALUES('reinstalled.myshopify.com','BEARER','token-value','salt-value',4000,5000,'read_products');");
+		List<PersistedStoreAccessToken> stores = repo.findStoresAfter(null, 10);
+		template.update("UPDATE STOREACCESSTOKENS SET salt='new-salt' WHERE storeDomain='reinstalled.myshopify.com'");
+		
+		Assert.assertEquals(1, repo.uninstallStoresIfUnchanged(stores));
+		
+		Assert.assertNull(repo.findTokenForStore(shop));
+		Assert.assertNotNull(repo.findTokenForStore("reinstalled.myshopify.com"));
+	}
+	
+	@Test
+	public void uninstallStoresIfUnchangedWhenLastSeenColumnKeepsStoresSeenSinceRead() {
+		template.execute("ALTER TABLE STOREACCESSTOKENS ADD COLUMN lastSeen BIGINT");
+		template.execute("INSERT INTO STOREACCESSTOKENS(storeDomain,tokenType,tokenValue,salt,issuedAt,expiresAt,scopes) VALUES('seen.myshopify.com','BEARER','token-value','salt-value',4000,5000,'read_products');");
+		repo.setLastSeenColumn(true);
+		repo.updateLastSeen(Collections.singletonMap(shop, 9000L));
+		List<PersistedStoreAccessToken> stores = repo.findStoresAfter(null, 10);
+		repo.updateLastSeen(Collections.singletonMap("seen.myshopify.com", 10000L));
+		
+		Assert.assertEquals(1, repo.uninstallStoresIfUnchanged(stores));
+		
+		Assert.assertNull(repo.findTokenForStore(shop));
+		Assert.assertNotNull(repo.findTokenForStore("seen.myshopify.com"));
+	}
+	
+	@Test
+	public void updateEncryptedTokensOnlyWhenSaltUnchanged() {
+		ReEncryptedToken matching = new ReEncryptedToken(shop, new EncryptedTokenAndSalt("token-value", "salt-value"), new EncryptedTokenAndSalt("new-token", "{v1}new-salt"));
+		ReEncryptedToken stale = new ReEncryptedToken(shop, new EncryptedTokenAndSalt("token-value", "other-salt"), new EncryptedTokenAndSalt("stale-token", "{v1}stale-salt"));
+		
+		Assert.assertEquals(1, repo.updateEncryptedTokens(Arrays.asList(matching, stale)));
+		
+		PersistedStoreAccessToken result = repo.findTokenForStore(shop);
+		Assert.assertEquals("new-token", result.getTokenAndSalt().getEncryptedToken());
+		Assert.assertEquals("{v1}new-salt", result.getTokenAndSalt().getSalt());
+	}
+	
+	@Test
+	public void findTokenForStoreWhenReadJdbcThenReadFromReplica() {
+		TestDataSource replica = newReplica("replicareadtest");
+		try {
+			repo.setReadJdbc(new JdbcTemplate(replica));
+			
+			Assert.assertEquals("replica-token", repo.findTokenForStore(shop).getTokenAndSalt().getEncryptedToken());
+		} finally {
+			replica.destroy();
+		}
+	}
+	
+	@Test
+	public void findTokenForStoreWhenWrittenWithinWindowThenReadFromPrimary() {
+		TestDataSource replica = newReplica("replicawindowtest");
+		try {
+			repo.setReadJdbc(new JdbcTemplate(replica));
+			repo.setReadAfterWriteWindow(60000L);
+			
+			PersistedStoreAccessToken token = repo.findTokenForStore(shop);
+			token.setTokenAndSalt(new EncryptedTokenAndSalt("updated-token", "updated-salt"));
+			repo.updateStore(token);
+			
+			Assert.assertEquals("updated-token", repo.findTokenForStore(shop).getTokenAndSalt().getEncryptedToken());
+		} finally {
+			replica.destroy();
+		}
+	}
+	
+	@Test
+	public void findTokenForStoreWhenReEncryptedWithinWindowThenReadFromPrimary() {
+		TestDataSource replica = newReplica("replicareencryptedtest");
+		try {
+			repo.setReadJdbc(new JdbcTemplate(replica));
+			repo.setReadAfterWriteWindow(60000L);
+			
+			repo.updateEncryptedTokens(Arrays.asList(new ReEncryptedToken(shop, new EncryptedTokenAndSalt("token-value", "salt-value"), new EncryptedTokenAndSalt("new-token", "{v1}new-salt"))));
+			
+			Assert.assertEquals("new-token", repo.findTokenForStore(shop).getTokenAndSalt().getEncryptedToken());
+		} finally {
+			replica.destroy();
+		}
+	}
+	
+	@Test
+	public void findTokenForStoreWhenWindowExpiredThenReadFromReplica() throws Exception {
+		TestDataSource replica = newReplica("replicaexpiredtest");
+		try {
+			repo.setReadJdbc(new JdbcTemplate(replica));
+			repo.setReadAfterWriteWindow(1L);
+			
+			repo.uninstallStore(shop);
+			Thread.sleep(5L);
+			
+			Assert.assertEquals("replica-token", repo.findTokenForStore(shop).getTokenAndSalt().getEncryptedToken());
+		} finally {
+			replica.destroy();
+		}
+	}
+	
+	private TestDataSource newReplica(String name) {
+		TestDataSource replica = new TestDataSource(name);
+		JdbcTemplate replicaTemplate = new JdbcTemplate(replica);
+		replicaTemplate.execute("CREATE TABLE STOREACCESSTOKENS(id BIGINT NOT NULL IDENTITY, storeDomain VARCHAR(50) NOT NULL, tokenType VARCHAR(50) NOT NULL, tokenValue VARCHAR(100) NOT NULL, salt VARCHAR(100) NOT NULL, issuedAt BIGINT NOT NULL, expiresAt BIGINT NOT NULL, scopes VARCHAR(200) NOT NULL);");
+		replicaTemplate.execute("INSERT INTO STOREACCESSTOKENS(storeDomain,tokenType,tokenValue,salt,issuedAt,expiresAt,scopes) VALUES('lmdev.myshopify.com','BEARER','replica-token','salt-value',2000,3000,'read_products,write_products');");
+		
+		return replica;
+	}
+	
 }
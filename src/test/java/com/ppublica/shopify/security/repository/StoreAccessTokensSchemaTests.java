@@ -0,0 +1,130 @@
+package com.ppublica.shopify.security.repository;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import com.ppublica.shopify.TestDataSource;
+import com.ppublica.shopify.security.repository.StoreAccessTokensSchema.Dialect;
+import com.ppublica.shopify.security.service.EncryptedTokenAndSalt;
+
+public class StoreAccessTokensSchemaTests {
+
+	TestDataSource dataSource;
+	JdbcTemplate template;
+	StoreAccessTokensSchema schema;
+
+	@Before
+	public void setup() {
+		dataSource = new TestDataSource("schematest");
+		template = new JdbcTemplate(dataSource);
+		schema = new StoreAccessTokensSchema(template);
+	}
+
+	@After
+	public void cleanup() {
+		dataSource.destroy();
+	}
+
+	@Test
+	public void initializeCreatesTableAndIndex() {
+		Assert.assertEquals(0, schema.getVersion());
+		Assert.assertFalse(schema.checkIndexes());
+
+		schema.initialize();
+
+		Assert.assertEquals(StoreAccessTokensSchema.CURRENT_VERSION, schema.getVersion());
+		Assert.assertTrue(schema.checkIndexes());
+		Assert.assertTrue(schema.columnExists("lastSeen"));
+		Assert.assertTrue(schema.hasIndexOn("lastSeen", false));
+		Assert.assertTrue(schema.hasIndexOn("issuedAt", false));
+
+		ShopifyTokenRepositoryImpl repo = new ShopifyTokenRepositoryImpl();
+		repo.setJdbc(template);
+		repo.saveNewStore(store("lmdev.myshopify.com"));
+
+		Assert.assertNotNull(repo.findTokenForStore("lmdev.myshopify.com").getId());
+	}
+
+	@Test
+	public void initializeTwiceDoesNothing() {
+		schema.initialize();
+		schema.initialize();
+
+		Assert.assertEquals(StoreAccessTokensSchema.CURRENT_VERSION, schema.getVersion());
+		Assert.assertEquals(new Integer(1), template.queryForObject("SELECT COUNT(*) FROM StoreAccessTokensSchema", Integer.class));
+	}
+
+	@Test
+	public void initializeAddsIndexToExistingTable() {
+		template.execute("CREATE TABLE STOREACCESSTOKENS(id BIGINT NOT NULL IDENTITY, storeDomain VARCHAR(50) NOT NULL, tokenType VARCHAR(50) NOT NULL, tokenValue VARCHAR(100) NOT NULL, salt VARCHAR(100) NOT NULL, issuedAt BIGINT NOT NULL, expiresAt BIGINT NOT NULL, scopes VARCHAR(200) NOT NULL);");
+		template.execute("INSERT INTO STOREACCESSTOKENS(storeDomain,tokenType,tokenValue,salt,issuedAt,expiresAt,scopes) VALUES('lmdev.myshopify.com','BEARER','token-value','salt-value',2000,3000,'read_products,write_products');");
+
+		Assert.assertFalse(schema.checkIndexes());
+		Assert.assertFalse(schema.hasLastSeenColumn());
+
+		schema.initialize();
+
+		Assert.assertTrue(schema.checkIndexes());
+		Assert.assertTrue(schema.hasLastSeenColumn());
+		Assert.assertTrue(schema.hasIndexOn("issuedAt", false));
+		Assert.assertEquals(new Integer(1), template.queryForObject("SELECT COUNT(*) FROM STOREACCESSTOKENS", Integer.class));
+	}
+
+	@Test
+	public void initializeIndexesRegistrationIdIfPresent() {
+		template.execute("CREATE TABLE STOREACCESSTOKENS(id BIGINT NOT NULL IDENTITY, registrationId VARCHAR(50), storeDomain VARCHAR(50) NOT NULL, tokenType VARCHAR(50) NOT NULL, tokenValue VARCHAR(100) NOT NULL, salt VARCHAR(100) NOT NULL, issuedAt BIGINT NOT NULL, expiresAt BIGINT NOT NULL, scopes VARCHAR(200) NOT NULL);");
+
+		Assert.assertFalse(schema.hasIndexOn("registrationId", false));
+
+		schema.initialize();
+
+		Assert.assertTrue(schema.hasIndexOn("registrationId", false));
+	}
+
+	@Test
+	public void compositeIndexIsNotUniqueOnStoreDomain() {
+		template.execute("CREATE TABLE STOREACCESSTOKENS(id BIGINT NOT NULL IDENTITY, storeDomain VARCHAR(50) NOT NULL, tokenType VARCHAR(50) NOT NULL, tokenValue VARCHAR(100) NOT NULL, salt VARCHAR(100) NOT NULL, issuedAt BIGINT NOT NULL, expiresAt BIGINT NOT NULL, scopes VARCHAR(200) NOT NULL);");
+		template.execute("CREATE UNIQUE INDEX composite ON STOREACCESSTOKENS(storeDomain, tokenType)");
+
+		Assert.assertFalse(schema.checkIndexes());
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void initializeWithDuplicateStoresThrows() {
+		template.execute("CREATE TABLE STOREACCESSTOKENS(id BIGINT NOT NULL IDENTITY, storeDomain VARCHAR(50) NOT NULL, tokenType VARCHAR(50) NOT NULL, tokenValue VARCHAR(100) NOT NULL, salt VARCHAR(100) NOT NULL, issuedAt BIGINT NOT NULL, expiresAt BIGINT NOT NULL, scopes VARCHAR(200) NOT NULL);");
+		template.execute("INSERT INTO STOREACCESSTOKENS(storeDomain,tokenType,tokenValue,salt,issuedAt,expiresAt,scopes) VALUES('lmdev.myshopify.com','BEARER','token-value','salt-value',2000,3000,'read_products');");
+		template.execute("INSERT INTO STOREACCESSTOKENS(storeDomain,tokenType,tokenValue,salt,issuedAt,expiresAt,scopes) VALUES('lmdev.myshopify.com','BEARER','token-value','salt-value',2000,3000,'read_products');");
+
+		schema.initialize();
+	}
+
+	@Test
+	public void dialectFromProductName() {
+		Assert.assertEquals(Dialect.HSQLDB, schema.getDialect());
+		Assert.assertEquals(Dialect.POSTGRESQL, Dialect.of("PostgreSQL"));
+		Assert.assertEquals(Dialect.MYSQL, Dialect.of("MySQL"));
+		Assert.assertEquals(Dialect.MYSQL, Dialect.of("MariaDB"));
+		Assert.assertEquals(Dialect.H2, Dialect.of("H2"));
+		Assert.assertEquals(Dialect.SQLSERVER, Dialect.of("Microsoft SQL Server"));
+		Assert.assertEquals(Dialect.STANDARD, Dialect.of("Oracle"));
+	}
+
+	private PersistedStoreAccessToken store(String domain) {
+		PersistedStoreAccessToken token = new PersistedStoreAccessToken();
+		token.setStoreDomain(domain);
+		token.setTokenType("BEARER");
+		token.setTokenAndSalt(new EncryptedTokenAndSalt("token-value", "salt-value"));
+		token.setIssuedAt(2000L);
+		token.setExpiresAt(3000L);
+		token.setScopes(new HashSet<>(Arrays.asList("read_products", "write_products")));
+
+		return token;
+	}
+
+}
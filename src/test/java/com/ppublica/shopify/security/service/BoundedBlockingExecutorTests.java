@@ -0,0 +1,113 @@
+package com.ppublica.shopify.security.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BoundedBlockingExecutorTests {
+	
+	ExecutorService callers;
+	
+	@Before
+	public void setup() {
+		callers = Executors.newFixedThreadPool(8);
+	}
+	
+	@After
+	public void cleanup() {
+		callers.shutdownNow();
+	}
+	
+	@Test
+	public void executeReturnsResultOfTask() {
+		BoundedBlockingExecutor executor = BoundedBlockingExecutor.newDefault(2);
+		
+		Assert.assertEquals("result", executor.execute(() -> "result"));
+		
+		executor.shutdown();
+	}
+	
+	@Test
+	public void executeRunsTaskOnAnotherThread() {
+		BoundedBlockingExecutor executor = BoundedBlockingExecutor.newDefault(2);
+		Thread caller = Thread.currentThread();
+		
+		Thread worker = executor.execute(() -> Thread.currentThread());
+		
+		Assert.assertNotSame(caller, worker);
+		
+		executor.shutdown();
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void executeRethrowsRuntimeExceptionUnwrapped() {
+		BoundedBlockingExecutor executor = BoundedBlockingExecutor.newDefault(2);
+		
+		executor.execute(() -> { 
+			throw new IllegalArgumentException("bad");
+		});
+	}
+	
+	@Test
+	public void executeWrapsCheckedException() {
+		BoundedBlockingExecutor executor = BoundedBlockingExecutor.newDefault(2);
+		
+		try {
+			executor.execute(() -> { 
+				throw new IOException("io");
+			});
+			Assert.fail("Exception expected");
+		} catch(RuntimeException ex) {
+			Assert.assertTrue(ex.getCause() instanceof IOException);
+		}
+		
+		Assert.assertEquals(0, executor.getActiveCount());
+	}
+	
+	@Test
+	public void executeNeverExceedsMaxConcurrency() throws Exception {
+		BoundedBlockingExecutor executor = BoundedBlockingExecutor.newDefault(2);
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		CountDownLatch start = new CountDownLatch(1);
+		
+		List<Future<?>> results = new ArrayList<>();
+		for(int i = 0; i < 8; i++) {
+			results.add(callers.submit(() -> {
+				start.await();
+				return executor.execute(() -> {
+					int now = running.incrementAndGet();
+					maxRunning.accumulateAndGet(now, Math::max);
+					Thread.sleep(20);
+					running.decrementAndGet();
+					return now;
+				});
+			}));
+		}
+		start.countDown();
+		
+		for(Future<?> result : results) {
+			result.get(5, TimeUnit.SECONDS);
+		}
+		
+		Assert.assertTrue(maxRunning.get() <= 2);
+		Assert.assertEquals(0, executor.getActiveCount());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void constructorRejectsZeroConcurrency() {
+		new BoundedBlockingExecutor(Executors.newSingleThreadExecutor(), 0);
+	}
+
+}
@@ -0,0 +1,119 @@
+package com.ppublica.shopify.security.service;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.ppublica.shopify.security.authentication.CipherPassword;
+
+public class CipherKeyRingTests {
+	
+	CipherPassword legacy = new CipherPassword("legacy-password");
+	CipherPassword v1 = new CipherPassword("v1", "password-1");
+	CipherPassword v2 = new CipherPassword("v2", "password-2");
+	
+	@Test
+	public void encryptWithKeyIdThenSaltIsPrefixedAndDecrypts() {
+		CipherKeyRing ring = new CipherKeyRing(v1);
+		
+		EncryptedTokenAndSalt encrypted = ring.encrypt("raw-token");
+		
+		Assert.assertTrue(encrypted.getSalt().startsWith("{v1}"));
+		Assert.assertEquals("v1", CipherKeyRing.getKeyId(encrypted.getSalt()));
+		Assert.assertEquals("raw-token", ring.decrypt(encrypted));
+		Assert.assertTrue(ring.isCurrent(encrypted));
+	}
+	
+	@Test
+	public void encryptWithLegacyPasswordThenSaltIsNotPrefixed() {
+		CipherKeyRing ring = new CipherKeyRing(legacy);
+		
+		EncryptedTokenAndSalt encrypted = ring.encrypt("raw-token");
+		
+		Assert.assertNull(CipherKeyRing.getKeyId(encrypted.getSalt()));
+		Assert.assertEquals(encrypted.getSalt(), CipherKeyRing.getSalt(encrypted.getSalt()));
+		Assert.assertEquals("raw-token", ring.decrypt(encrypted));
+	}
+	
+	@Test
+	public void decryptWithPreviousPasswordsAfterRotation() {
+		EncryptedTokenAndSalt fromLegacy = new CipherKeyRing(legacy).encrypt("legacy-token");
+		EncryptedTokenAndSalt fromV1 = new CipherKeyRing(v1).encrypt("v1-token");
+		
+		CipherKeyRing rotated = new CipherKeyRing(v2, Arrays.asList(legacy, v1));
+		
+		Assert.assertEquals("legacy-token", rotated.decrypt(fromLegacy));
+		Assert.assertEquals("v1-token", rotated.decrypt(fromV1));
+		Assert.assertFalse(rotated.isCurrent(fromLegacy));
+		Assert.assertFalse(rotated.isCurrent(fromV1));
+		Assert.assertTrue(rotated.isCurrent(rotated.encrypt("v2-token")));
+	}
+	
+	@Test
+	public void decryptWhenKeyUnknownThenNull() {
+		EncryptedTokenAndSalt fromV1 = new CipherKeyRing(v1).encrypt("v1-token");
+		
+		Assert.assertNull(new CipherKeyRing(v2).decrypt(fromV1));
+	}
+	
+	@Test
+	public void decryptWhenPasswordChangedWithoutKeyIdThenNull() {
+		EncryptedTokenAndSalt fromLegacy = new CipherKeyRing(legacy).encrypt("legacy-token");
+		
+		Assert.assertNull(new CipherKeyRing(new CipherPassword("other-password")).decrypt(fromLegacy));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void duplicateKeyIdsThenException() {
+		new CipherKeyRing(v2, Arrays.asList(v1, new CipherPassword("v1", "other")));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void invalidKeyIdThenException() {
+		new CipherPassword("{v1}", "password");
+	}
+
+	@Test
+	public void decryptWhenQueryableTextFormatThenSuccessAndNotCurrent() {
+		EncryptedTokenAndSalt fromQueryable = new CipherKeyRing(v1).encrypt("old-format-token");
+		
+		CipherKeyRing ring = new CipherKeyRing(v1, null, CipherKeyRing.ALGORITHM_AES_GCM);
+		
+		Assert.assertEquals("old-format-token", ring.decrypt(fromQueryable));
+		Assert.assertFalse(ring.isCurrent(fromQueryable));
+	}
+	
+	@Test
+	public void encryptWithDefaultAlgorithmThenQueryableText() {
+		CipherKeyRing ring = new CipherKeyRing(v1, Arrays.asList(v2));
+		EncryptedTokenAndSalt encrypted = ring.encrypt("raw-token");
+		
+		Assert.assertTrue(ring.getCurrent() instanceof QueryableTextTokenCipher);
+		Assert.assertFalse(CipherKeyRing.getSalt(encrypted.getSalt()).startsWith(AesGcmTokenCipher.SALT_PREFIX));
+		Assert.assertTrue(new CipherKeyRing(v1).getCurrent() instanceof QueryableTextTokenCipher);
+	}
+	
+	@Test
+	public void encryptWithAesGcmThenAesGcm() {
+		EncryptedTokenAndSalt encrypted = new CipherKeyRing(v1, null, CipherKeyRing.ALGORITHM_AES_GCM).encrypt("raw-token");
+		
+		Assert.assertTrue(CipherKeyRing.getSalt(encrypted.getSalt()).startsWith(AesGcmTokenCipher.SALT_PREFIX));
+	}
+	
+	@Test
+	public void encryptWithQueryableTextThenAesGcmTokensNotCurrent() {
+		CipherKeyRing ring = new CipherKeyRing(v1, null, CipherKeyRing.ALGORITHM_QUERYABLE_TEXT);
+		EncryptedTokenAndSalt fromGcm = new CipherKeyRing(v1, null, CipherKeyRing.ALGORITHM_AES_GCM).encrypt("raw-token");
+		
+		Assert.assertEquals("raw-token", ring.decrypt(fromGcm));
+		Assert.assertFalse(ring.isCurrent(fromGcm));
+		Assert.assertTrue(ring.isCurrent(ring.encrypt("raw-token")));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void unsupportedAlgorithmThenException() {
+		new CipherKeyRing(v1, null, "des");
+	}
+
+}
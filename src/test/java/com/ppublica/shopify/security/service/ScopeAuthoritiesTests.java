@@ -0,0 +1,63 @@
+package com.ppublica.shopify.security.service;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+
+public class ScopeAuthoritiesTests {
+
+	@Test
+	public void forScopesReturnsSortedAuthorities() {
+		List<GrantedAuthority> authorities = ScopeAuthorities.forScopes(Arrays.asList("write_orders", "read_orders"));
+
+		Assert.assertEquals(Arrays.asList(new SimpleGrantedAuthority("read_orders"), new SimpleGrantedAuthority("write_orders")), authorities);
+	}
+
+	@Test
+	public void forScopesWhenSameScopesReturnsSameList() {
+		List<GrantedAuthority> authorities = ScopeAuthorities.forScopes(new HashSet<>(Arrays.asList("read_orders", "write_orders")));
+
+		Assert.assertSame(authorities, ScopeAuthorities.forScopes(Arrays.asList("write_orders", "read_orders")));
+		Assert.assertSame(authorities, ScopeAuthorities.of(Arrays.asList(new SimpleGrantedAuthority("read_orders"), new SimpleGrantedAuthority("write_orders"))));
+	}
+
+	@Test
+	public void forScopesWhenNoneReturnsEmptyList() {
+		Assert.assertTrue(ScopeAuthorities.forScopes(null).isEmpty());
+		Assert.assertSame(ScopeAuthorities.forScopes(null), ScopeAuthorities.of(null));
+	}
+
+	@Test
+	public void ofWhenNotSortedKeepsOrder() {
+		List<SimpleGrantedAuthority> given = Arrays.asList(new SimpleGrantedAuthority("write_orders"), new SimpleGrantedAuthority("read_orders"),
+				new SimpleGrantedAuthority("read_orders"));
+
+		List<? extends GrantedAuthority> authorities = ScopeAuthorities.of(given);
+
+		Assert.assertEquals(given, authorities);
+		Assert.assertNotSame(authorities, ScopeAuthorities.forScopes(Arrays.asList("read_orders", "write_orders")));
+	}
+
+	@Test
+	public void ofWhenOtherAuthorityTypeCopiesThem() {
+		GrantedAuthority custom = () -> "custom";
+
+		List<? extends GrantedAuthority> authorities = ScopeAuthorities.of(Arrays.asList(custom, new SimpleGrantedAuthority("read_orders")));
+
+		Assert.assertEquals(2, authorities.size());
+		Assert.assertSame(custom, authorities.get(0));
+	}
+
+	@Test(expected=UnsupportedOperationException.class)
+	public void authoritiesAreUnmodifiable() {
+		List<GrantedAuthority> authorities = ScopeAuthorities.forScopes(Arrays.asList("read_orders"));
+
+		authorities.add(new SimpleGrantedAuthority("write_orders"));
+	}
+
+}
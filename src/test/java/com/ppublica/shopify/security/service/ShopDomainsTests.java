@@ -0,0 +1,67 @@
+package com.ppublica.shopify.security.service;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ShopDomainsTests {
+
+	@Test
+	public void isValidWhenShopDomainThenTrue() {
+		Assert.assertTrue(ShopDomains.isValid("lmdev.myshopify.com"));
+		Assert.assertTrue(ShopDomains.isValid("lm-dev-2.myshopify.com"));
+		Assert.assertTrue(ShopDomains.isValid("LmDev.MyShopify.com"));
+	}
+
+	@Test
+	public void isValidWhenNotShopDomainThenFalse() {
+		Assert.assertFalse(ShopDomains.isValid(null));
+		Assert.assertFalse(ShopDomains.isValid(""));
+		Assert.assertFalse(ShopDomains.isValid("lmdev"));
+		Assert.assertFalse(ShopDomains.isValid(".myshopify.com"));
+		Assert.assertFalse(ShopDomains.isValid("-lmdev.myshopify.com"));
+		Assert.assertFalse(ShopDomains.isValid("lm.dev.myshopify.com"));
+		Assert.assertFalse(ShopDomains.isValid("lm_dev.myshopify.com"));
+		Assert.assertFalse(ShopDomains.isValid("lmdev.myshopify.com.evil.com"));
+		Assert.assertFalse(ShopDomains.isValid("lmdev.myshopifyxcom"));
+		Assert.assertFalse(ShopDomains.isValid("lmdev.myshopify.com "));
+	}
+
+	@Test
+	public void isValidWhenHandleTooLongThenFalse() {
+		StringBuilder handle = new StringBuilder();
+		for(int i = 0; i < ShopDomains.MAX_HANDLE_LENGTH; i++) {
+			handle.append('a');
+		}
+		Assert.assertTrue(ShopDomains.isValid(handle + ShopDomains.SUFFIX));
+		Assert.assertFalse(ShopDomains.isValid(handle + "a" + ShopDomains.SUFFIX));
+	}
+
+	@Test
+	public void normalizeWhenMixedCaseThenLowerCase() {
+		Assert.assertEquals("lmdev.myshopify.com", ShopDomains.normalize("LmDev.MYSHOPIFY.COM"));
+	}
+
+	@Test
+	public void normalizeWhenInvalidThenNull() {
+		Assert.assertNull(ShopDomains.normalize(null));
+		Assert.assertNull(ShopDomains.normalize("lmdev.example.com"));
+	}
+
+	@Test
+	public void normalizeWhenNotInternedDoesNotInternIt() {
+		String first = ShopDomains.normalize(new String("unknown-shop.myshopify.com"));
+
+		Assert.assertEquals(first, ShopDomains.normalize(new String("unknown-shop.myshopify.com")));
+		Assert.assertNotSame(first, ShopDomains.normalize(new String("unknown-shop.myshopify.com")));
+	}
+
+	@Test
+	public void normalizeWhenInternedReturnsSameInstanceForSameShop() {
+		String interned = ShopDomains.intern(new String("same-shop.myshopify.com"));
+
+		Assert.assertSame(interned, ShopDomains.intern(new String("same-shop.myshopify.com")));
+		Assert.assertSame(interned, ShopDomains.normalize(new String("same-shop.myshopify.com")));
+		Assert.assertSame(interned, ShopDomains.normalize("Same-Shop.myshopify.com"));
+	}
+
+}
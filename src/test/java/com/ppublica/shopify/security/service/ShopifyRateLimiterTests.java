@@ -0,0 +1,91 @@
+package com.ppublica.shopify.security.service;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ShopifyRateLimiterTests {
+
+	private static final long MINUTE = TimeUnit.MINUTES.toNanos(1);
+
+	@Test
+	public void tryAcquireAllowsBurstThenRejects() {
+		ShopifyRateLimiter limiter = new ShopifyRateLimiter();
+		limiter.setAddressRequestsPerMinute(60);
+		limiter.setBurst(3);
+
+		long now = 1000L;
+		Assert.assertTrue(limiter.tryAcquireForAddress("1.2.3.4", now));
+		Assert.assertTrue(limiter.tryAcquireForAddress("1.2.3.4", now));
+		Assert.assertTrue(limiter.tryAcquireForAddress("1.2.3.4", now));
+		Assert.assertFalse(limiter.tryAcquireForAddress("1.2.3.4", now));
+		Assert.assertTrue(limiter.tryAcquireForAddress("5.6.7.8", now));
+
+		Assert.assertEquals(1, limiter.getRejectedCount());
+	}
+
+	@Test
+	public void tryAcquireRefillsAtRate() {
+		ShopifyRateLimiter limiter = new ShopifyRateLimiter();
+		limiter.setAddressRequestsPerMinute(60);
+		limiter.setBurst(1);
+
+		long now = 1000L;
+		Assert.assertTrue(limiter.tryAcquireForAddress("1.2.3.4", now));
+		Assert.assertFalse(limiter.tryAcquireForAddress("1.2.3.4", now + MINUTE / 120));
+		Assert.assertTrue(limiter.tryAcquireForAddress("1.2.3.4", now + MINUTE / 60));
+	}
+
+	@Test
+	public void shopsAndAddressesHaveSeparateLimits() {
+		ShopifyRateLimiter limiter = new ShopifyRateLimiter();
+		limiter.setBurst(1);
+
+		Assert.assertTrue(limiter.tryAcquireForAddress("lmdev.myshopify.com", 0L));
+		Assert.assertTrue(limiter.tryAcquireForShop("lmdev.myshopify.com", 0L));
+		Assert.assertFalse(limiter.tryAcquireForShop("lmdev.myshopify.com", 0L));
+	}
+
+	@Test
+	public void tryAcquireWhenFullEvictsRefilledBuckets() {
+		ShopifyRateLimiter limiter = new ShopifyRateLimiter();
+		limiter.setAddressRequestsPerMinute(60);
+		limiter.setMaxKeys(2);
+
+		Assert.assertTrue(limiter.tryAcquireForAddress("1.1.1.1", 0L));
+		Assert.assertTrue(limiter.tryAcquireForAddress("2.2.2.2", 0L));
+
+		Assert.assertTrue(limiter.tryAcquireForAddress("3.3.3.3", MINUTE));
+		Assert.assertTrue(limiter.tryAcquireForAddress("4.4.4.4", MINUTE));
+	}
+
+	@Test
+	public void tryAcquireWhenFullAndNoneRefilledEvictsLeastRecentlyUsed() {
+		ShopifyRateLimiter limiter = new ShopifyRateLimiter();
+		limiter.setAddressRequestsPerMinute(60);
+		limiter.setBurst(1);
+		limiter.setMaxKeys(2);
+		long second = TimeUnit.SECONDS.toNanos(1);
+
+		Assert.assertTrue(limiter.tryAcquireForAddress("1.1.1.1", 0L));
+		Assert.assertTrue(limiter.tryAcquireForAddress("2.2.2.2", second / 2));
+
+		// neither bucket has refilled yet: the new key is allowed, and 1.1.1.1's bucket is evicted
+		Assert.assertTrue(limiter.tryAcquireForAddress("3.3.3.3", second / 2 + 1));
+		// 2.2.2.2 is still limited
+		Assert.assertFalse(limiter.tryAcquireForAddress("2.2.2.2", second / 2 + 2));
+		Assert.assertEquals(1, limiter.getRejectedCount());
+	}
+
+	@Test
+	public void tryAcquireWhenNoKeyThenAllowed() {
+		Assert.assertTrue(new ShopifyRateLimiter().tryAcquireForAddress(null));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void setRequestsPerMinuteWhenZeroThenException() {
+		new ShopifyRateLimiter().setShopRequestsPerMinute(0);
+	}
+
+}
@@ -0,0 +1,59 @@
+package com.ppublica.shopify.security.service;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+
+public class ShopifyStoreRehydratorTests {
+
+	OAuth2AuthorizedClientService clientService;
+	ShopifyStoreRehydrator rehydrator;
+
+	@Before
+	public void setup() {
+		clientService = mock(OAuth2AuthorizedClientService.class);
+		OAuth2AuthorizedClient client = mock(OAuth2AuthorizedClient.class);
+		OAuth2AccessToken token = mock(OAuth2AccessToken.class);
+		when(token.getTokenValue()).thenReturn("loaded-token");
+		when(client.getAccessToken()).thenReturn(token);
+		doReturn(client).when(clientService).loadAuthorizedClient("shopify", "lmdev.myshopify.com");
+
+		rehydrator = new ShopifyStoreRehydrator(clientService);
+	}
+
+	@Test
+	public void rehydrateWhenNoTokenLoadsToken() {
+		ShopifyStore store = new ShopifyStore("lmdev.myshopify.com", null, "api-key", null, true);
+
+		Assert.assertTrue(rehydrator.rehydrate("shopify", store));
+
+		Assert.assertEquals("loaded-token", store.getAttributes().get(ShopifyStore.ACCESS_TOKEN_KEY));
+	}
+
+	@Test
+	public void rehydrateWhenTokenDoesNothing() {
+		ShopifyStore store = new ShopifyStore("lmdev.myshopify.com", "access-token", "api-key", null);
+
+		Assert.assertTrue(rehydrator.rehydrate("shopify", store));
+
+		Assert.assertEquals("access-token", store.getAttributes().get(ShopifyStore.ACCESS_TOKEN_KEY));
+		verify(clientService, never()).loadAuthorizedClient("shopify", "lmdev.myshopify.com");
+	}
+
+	@Test
+	public void rehydrateWhenUninstalledReturnsFalse() {
+		ShopifyStore store = new ShopifyStore("other.myshopify.com", null, "api-key", null, true);
+
+		Assert.assertFalse(rehydrator.rehydrate("shopify", store));
+	}
+
+}
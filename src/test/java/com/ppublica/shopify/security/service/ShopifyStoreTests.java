@@ -0,0 +1,147 @@
+package com.ppublica.shopify.security.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+
+public class ShopifyStoreTests {
+
+	@Test
+	public void attributesHoldTokenAndApiKey() {
+		ShopifyStore store = new ShopifyStore("lmdev.myshopify.com", "access-token", "api-key", null);
+
+		Assert.assertEquals("access-token", store.getAttributes().get(ShopifyStore.ACCESS_TOKEN_KEY));
+		Assert.assertEquals("api-key", store.getAttributes().get(ShopifyStore.API_KEY));
+		Assert.assertEquals(2, store.getAttributes().size());
+		Assert.assertSame(store.getAttributes(), store.getAttributes());
+		Assert.assertTrue(store.getAuthorities().isEmpty());
+	}
+
+	@Test(expected=UnsupportedOperationException.class)
+	public void attributesAreUnmodifiable() {
+		new ShopifyStore("lmdev.myshopify.com", "access-token", "api-key", null).getAttributes().put("other", "value");
+	}
+
+	@Test
+	public void createWithAttributesCopiesThem() {
+		Map<String, Object> attributes = new HashMap<>();
+		attributes.put(ShopifyStore.ACCESS_TOKEN_KEY, "access-token");
+		attributes.put("other", "value");
+
+		ShopifyStore store = new ShopifyStore("lmdev.myshopify.com", null, attributes);
+		attributes.put("other", "changed");
+
+		Assert.assertEquals("access-token", store.getAccessToken());
+		Assert.assertNull(store.getApiKey());
+		Assert.assertEquals("value", store.getAttributes().get("other"));
+	}
+
+	@Test
+	public void storesWithSameScopesShareAuthorities() {
+		ShopifyStore store1 = new ShopifyStore("store1.myshopify.com", "token1", "api-key",
+				Arrays.asList(new SimpleGrantedAuthority("read_products"), new SimpleGrantedAuthority("write_products")));
+		ShopifyStore store2 = new ShopifyStore("store2.myshopify.com", "token2", "api-key",
+				Arrays.asList(new SimpleGrantedAuthority("read_products"), new SimpleGrantedAuthority("write_products")));
+
+		Assert.assertSame(store1.getAuthorities(), store2.getAuthorities());
+	}
+
+	@Test
+	public void createKeepsOrderOfAuthorities() {
+		ShopifyStore store = new ShopifyStore("store1.myshopify.com", "token1", "api-key",
+				Arrays.asList(new SimpleGrantedAuthority("write_products"), new SimpleGrantedAuthority("read_products")));
+
+		Assert.assertEquals(Arrays.asList(new SimpleGrantedAuthority("write_products"), new SimpleGrantedAuthority("read_products")),
+				new ArrayList<>(store.getAuthorities()));
+	}
+
+	@Test
+	public void rehydrateSetsMissingTokenOnly() {
+		ShopifyStore store = new ShopifyStore("lmdev.myshopify.com", null, "api-key", null, true);
+		Assert.assertNull(store.getAttributes().get(ShopifyStore.ACCESS_TOKEN_KEY));
+
+		store.rehydrate("access-token");
+		store.rehydrate("other-token");
+
+		Assert.assertEquals("access-token", store.getAccessToken());
+		Assert.assertEquals("access-token", store.getAttributes().get(ShopifyStore.ACCESS_TOKEN_KEY));
+	}
+
+	@Test
+	public void serializeThenDeserializeKeepsStore() throws IOException, ClassNotFoundException {
+		Map<String, Object> attributes = new HashMap<>();
+		attributes.put(ShopifyStore.ACCESS_TOKEN_KEY, "access-token");
+		attributes.put(ShopifyStore.API_KEY, "api-key");
+		attributes.put("other", 5);
+		ShopifyStore store = new ShopifyStore("lmdev.myshopify.com",
+				Arrays.asList(new SimpleGrantedAuthority("read_products"), new SimpleGrantedAuthority("write_products")), attributes);
+
+		ShopifyStore read = (ShopifyStore) deserialize(serialize(store));
+
+		Assert.assertEquals("lmdev.myshopify.com", read.getName());
+		Assert.assertEquals(attributes, read.getAttributes());
+		Assert.assertEquals(store.getAuthorities(), read.getAuthorities());
+		Assert.assertFalse(read.isShopOnlyInSession());
+	}
+
+	@Test
+	public void serializeWhenShopOnlyInSessionLeavesOutAccessToken() throws IOException, ClassNotFoundException {
+		ShopifyStore store = new ShopifyStore("lmdev.myshopify.com", "access-token", "api-key", null, true);
+
+		byte[] serialized = serialize(store);
+		ShopifyStore read = (ShopifyStore) deserialize(serialized);
+
+		Assert.assertEquals("lmdev.myshopify.com", read.getName());
+		Assert.assertNull(read.getAttributes().get(ShopifyStore.ACCESS_TOKEN_KEY));
+		Assert.assertEquals("api-key", read.getAttributes().get(ShopifyStore.API_KEY));
+		Assert.assertTrue(read.isShopOnlyInSession());
+		Assert.assertFalse(new String(serialized, "ISO-8859-1").contains("access-token"));
+	}
+
+	@Test
+	public void serializedStoreIsSmallerThanItsFields() throws IOException {
+		ShopifyStore store = new ShopifyStore("lmdev.myshopify.com", "access-token", "api-key",
+				Arrays.asList(new SimpleGrantedAuthority("read_products")));
+		// roughly what default serialization wrote
+		Object fields = Arrays.asList(store.getName(), new HashMap<>(store.getAttributes()), new ArrayList<>(store.getAuthorities()));
+
+		Assert.assertTrue(serialize(store).length * 2 < serialize(fields).length);
+	}
+
+	@Test
+	public void serializeInAuthenticationToken() throws IOException, ClassNotFoundException {
+		ShopifyStore store = new ShopifyStore("lmdev.myshopify.com", "access-token", "api-key", null);
+		OAuth2AuthenticationToken token = new OAuth2AuthenticationToken(store, null, "shopify");
+
+		OAuth2AuthenticationToken read = (OAuth2AuthenticationToken) deserialize(serialize(token));
+
+		Assert.assertEquals("access-token", ((ShopifyStore) read.getPrincipal()).getAttributes().get(ShopifyStore.ACCESS_TOKEN_KEY));
+		Assert.assertTrue(read.isAuthenticated());
+	}
+
+	private static byte[] serialize(Object object) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(object);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+		try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+			return in.readObject();
+		}
+	}
+
+}
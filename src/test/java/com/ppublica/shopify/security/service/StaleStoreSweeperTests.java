@@ -0,0 +1,161 @@
+package com.ppublica.shopify.security.service;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.ClientAuthenticationMethod;
+
+import com.ppublica.shopify.security.authentication.CipherPassword;
+import com.ppublica.shopify.security.repository.InMemoryTokenRepository;
+import com.ppublica.shopify.security.repository.PersistedStoreAccessToken;
+
+public class StaleStoreSweeperTests {
+
+	InMemoryTokenRepository repo;
+	CipherPassword password = new CipherPassword("password");
+	TokenService tokenService;
+	StaleStoreSweeper sweeper;
+	long now = System.currentTimeMillis();
+
+	@Before
+	public void setup() {
+		repo = new InMemoryTokenRepository();
+		tokenService = new TokenService(repo, password, mock(ClientRegistrationRepository.class));
+
+		CipherKeyRing keyRing = new CipherKeyRing(password);
+		for(int i = 0; i < 6; i++) {
+			repo.saveNewStore(store("store" + i + ".myshopify.com", keyRing.encrypt("token-" + i)));
+		}
+		// a token no password can decrypt
+		repo.saveNewStore(store("lost.myshopify.com", new EncryptedTokenAndSalt("abcdef", "{gone}0123456789abcdef")));
+
+		Map<String, Long> lastSeen = new HashMap<>();
+		lastSeen.put("store0.myshopify.com", now - 100000L);
+		lastSeen.put("store1.myshopify.com", now - 100000L);
+		lastSeen.put("store2.myshopify.com", now);
+		repo.updateLastSeen(lastSeen);
+
+		sweeper = new StaleStoreSweeper(tokenService, repo);
+		sweeper.setMaxAge(50000L);
+		sweeper.setBatchSize(3);
+		sweeper.setPauseBetweenBatches(0);
+	}
+
+	@Test
+	public void sweepDeletesUnseenAndUndecryptableStores() throws InterruptedException {
+		Assert.assertEquals(3, sweeper.sweep());
+
+		Assert.assertEquals(7, sweeper.getProcessedCount());
+		Assert.assertEquals(2, sweeper.getUnseenCount());
+		Assert.assertEquals(1, sweeper.getUndecryptableCount());
+		Assert.assertEquals(3, sweeper.getDeletedCount());
+
+		Assert.assertNull(repo.findTokenForStore("store0.myshopify.com"));
+		Assert.assertNull(repo.findTokenForStore("store1.myshopify.com"));
+		Assert.assertNull(repo.findTokenForStore("lost.myshopify.com"));
+		Assert.assertNotNull(repo.findTokenForStore("store2.myshopify.com"));
+		// never seen, so kept
+		Assert.assertNotNull(repo.findTokenForStore("store3.myshopify.com"));
+		Assert.assertEquals(4, repo.size());
+	}
+
+	@Test
+	public void sweepWhenDryRunDeletesNothing() throws InterruptedException {
+		sweeper.setDryRun(true);
+
+		Assert.assertEquals(3, sweeper.sweep());
+
+		Assert.assertEquals(7, repo.size());
+	}
+
+	@Test
+	public void sweepWhenMostStoresUndecryptableStopsWithoutDeleting() throws InterruptedException {
+		TokenService wrongPassword = new TokenService(repo, new CipherPassword("wrong-password"), mock(ClientRegistrationRepository.class));
+		sweeper = new StaleStoreSweeper(wrongPassword, repo);
+		sweeper.setMaxAge(50000L);
+		sweeper.setPauseBetweenBatches(0);
+
+		Assert.assertEquals(0, sweeper.sweep());
+
+		Assert.assertEquals(7, repo.size());
+	}
+
+	@Test
+	public void sweepWhenUndecryptableStoresComeLastDeletesNothing() throws InterruptedException {
+		CipherKeyRing lostRing = new CipherKeyRing(new CipherPassword("lost-password"));
+		for(int i = 0; i < 10; i++) {
+			repo.saveNewStore(store("lost" + i + ".myshopify.com", lostRing.encrypt("token-" + i)));
+		}
+
+		Assert.assertEquals(0, sweeper.sweep());
+
+		Assert.assertEquals(17, repo.size());
+		Assert.assertNotNull(repo.findTokenForStore("store0.myshopify.com"));
+		Assert.assertEquals(0, sweeper.getDeletedCount());
+	}
+
+	@Test
+	public void sweepKeepsStoresLoadedByTokenService() throws InterruptedException {
+		ClientRegistrationRepository clientRepo = mock(ClientRegistrationRepository.class);
+		when(clientRepo.findByRegistrationId("shopify")).thenReturn(ClientRegistration.withRegistrationId("shopify")
+				.clientId("client-id")
+				.clientSecret("client-secret")
+				.clientAuthenticationMethod(ClientAuthenticationMethod.POST)
+				.authorizationGrantType(AuthorizationGrantType.AUTHORIZATION_CODE)
+				.redirectUriTemplate("{baseUrl}/login/app/oauth2/code/{registrationId}")
+				.authorizationUri("https://{shop}/admin/oauth/authorize")
+				.tokenUri("https://{shop}/admin/oauth/access_token")
+				.build());
+		tokenService = new TokenService(repo, password, clientRepo);
+		sweeper = new StaleStoreSweeper(tokenService, repo);
+		sweeper.setMaxAge(50000L);
+		sweeper.setBatchSize(3);
+		sweeper.setPauseBetweenBatches(0);
+
+		StoreLastSeenTracker tracker = new StoreLastSeenTracker(repo);
+		tokenService.setLastSeenTracker(tracker);
+		Assert.assertNotNull(tokenService.getStore("store0.myshopify.com"));
+		tracker.flush();
+
+		Assert.assertEquals(2, sweeper.sweep());
+
+		Assert.assertNotNull(repo.findTokenForStore("store0.myshopify.com"));
+		Assert.assertNull(repo.findTokenForStore("store1.myshopify.com"));
+	}
+
+	@Test
+	public void sweepInvalidatesCachedStores() throws InterruptedException {
+		StoreCache storeCache = new StoreCache();
+		tokenService.setStoreCache(storeCache);
+		storeCache.put("store0.myshopify.com", mock(OAuth2AuthorizedClient.class), storeCache.stamp());
+
+		sweeper.sweep();
+
+		Assert.assertNull(storeCache.get("store0.myshopify.com"));
+	}
+
+	private PersistedStoreAccessToken store(String domain, EncryptedTokenAndSalt tokenAndSalt) {
+		PersistedStoreAccessToken token = new PersistedStoreAccessToken();
+		token.setStoreDomain(domain);
+		token.setTokenType("BEARER");
+		token.setTokenAndSalt(tokenAndSalt);
+		token.setIssuedAt(2000L);
+		token.setExpiresAt(3000L);
+		token.setScopes(new HashSet<>(Arrays.asList("read_products")));
+
+		return token;
+	}
+
+}
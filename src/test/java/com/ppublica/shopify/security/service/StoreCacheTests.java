@@ -0,0 +1,95 @@
+package com.ppublica.shopify.security.service;
+
+import static org.mockito.Mockito.mock;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+
+public class StoreCacheTests {
+
+	OAuth2AuthorizedClient client = mock(OAuth2AuthorizedClient.class);
+
+	@Test
+	public void putThenGet() {
+		StoreCache cache = new StoreCache();
+
+		Assert.assertTrue(cache.put("lmdev.myshopify.com", client, cache.stamp()));
+
+		Assert.assertSame(client, cache.get("lmdev.myshopify.com"));
+		Assert.assertNull(cache.get("other.myshopify.com"));
+		Assert.assertEquals(1, cache.getHitCount());
+		Assert.assertEquals(1, cache.getMissCount());
+	}
+
+	@Test
+	public void putAfterStoreInvalidatedIsRejected() {
+		StoreCache cache = new StoreCache();
+		long stamp = cache.stamp();
+
+		cache.invalidate("lmdev.myshopify.com");
+
+		Assert.assertFalse(cache.put("lmdev.myshopify.com", client, stamp));
+		Assert.assertNull(cache.get("lmdev.myshopify.com"));
+	}
+
+	@Test
+	public void putAfterOtherStoreInvalidatedIsAccepted() {
+		StoreCache cache = new StoreCache();
+		long stamp = cache.stamp();
+
+		cache.invalidate("other.myshopify.com");
+
+		Assert.assertTrue(cache.put("lmdev.myshopify.com", client, stamp));
+	}
+
+	@Test
+	public void putAfterClearIsRejected() {
+		StoreCache cache = new StoreCache();
+		long stamp = cache.stamp();
+
+		cache.clear();
+
+		Assert.assertFalse(cache.put("lmdev.myshopify.com", client, stamp));
+		Assert.assertTrue(cache.put("lmdev.myshopify.com", client, cache.stamp()));
+	}
+
+	@Test
+	public void putAfterForgottenInvalidationsIsRejected() {
+		StoreCache cache = new StoreCache(2, StoreCache.DEFAULT_TIME_TO_LIVE);
+		long stamp = cache.stamp();
+
+		cache.invalidate("store1.myshopify.com");
+		cache.invalidate("store2.myshopify.com");
+		cache.invalidate("store3.myshopify.com");
+
+		Assert.assertFalse(cache.put("store4.myshopify.com", client, stamp));
+	}
+
+	@Test
+	public void expiredStoreIsNotReturned() throws InterruptedException {
+		StoreCache cache = new StoreCache(10, 1);
+		cache.put("lmdev.myshopify.com", client, cache.stamp());
+
+		Thread.sleep(5);
+
+		Assert.assertNull(cache.get("lmdev.myshopify.com"));
+		Assert.assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void sizeNeverExceedsMaxSize() {
+		StoreCache cache = new StoreCache(100, StoreCache.DEFAULT_TIME_TO_LIVE);
+
+		for(int i = 0; i < 1000; i++) {
+			cache.put("store" + i + ".myshopify.com", client, cache.stamp());
+			Assert.assertTrue(cache.size() <= 100);
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void maxSizeMustBePositive() {
+		new StoreCache(0, StoreCache.DEFAULT_TIME_TO_LIVE);
+	}
+
+}
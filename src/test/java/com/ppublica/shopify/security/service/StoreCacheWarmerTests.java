@@ -0,0 +1,114 @@
+package com.ppublica.shopify.security.service;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.ClientAuthenticationMethod;
+
+import com.ppublica.shopify.security.authentication.CipherPassword;
+import com.ppublica.shopify.security.repository.InMemoryTokenRepository;
+import com.ppublica.shopify.security.repository.PersistedStoreAccessToken;
+import com.ppublica.shopify.security.repository.TokenRepository;
+
+public class StoreCacheWarmerTests {
+
+	CipherPassword password = new CipherPassword("v1", "password-1");
+	InMemoryTokenRepository repo;
+	TokenService tokenService;
+	StoreCache cache;
+
+	@Before
+	public void setup() {
+		ClientRegistrationRepository clientRepo = mock(ClientRegistrationRepository.class);
+		ClientRegistration registration = ClientRegistration.withRegistrationId("shopify")
+		        .clientId("testId")
+		        .clientSecret("secret")
+		        .clientAuthenticationMethod(ClientAuthenticationMethod.POST)
+		        .authorizationGrantType(AuthorizationGrantType.AUTHORIZATION_CODE)
+		        .redirectUriTemplate("{baseUrl}/login/app/oauth2/code/{registrationId}")
+		        .scope("read_products")
+		        .authorizationUri("https://{shop}/admin/oauth/authorize")
+		        .tokenUri("https://{shop}/admin/oauth/access_token")
+		        .clientName("Shopify")
+		        .build();
+		when(clientRepo.findByRegistrationId("shopify")).thenReturn(registration);
+
+		repo = new InMemoryTokenRepository();
+		tokenService = new TokenService(repo, password, clientRepo);
+		cache = new StoreCache();
+		tokenService.setStoreCache(cache);
+
+		CipherKeyRing keyRing = new CipherKeyRing(password);
+		for(int i = 0; i < 20; i++) {
+			repo.saveNewStore(store("store" + i + ".myshopify.com", 1000L + i, keyRing.encrypt("raw-token-" + i)));
+		}
+	}
+
+	@Test
+	public void warmCachesMostRecentStores() {
+		StoreCacheWarmer warmer = new StoreCacheWarmer(tokenService, repo, cache);
+		warmer.setMaxStores(5);
+		warmer.setBatchSize(2);
+		warmer.setParallelism(2);
+
+		Assert.assertEquals(5, warmer.warm());
+
+		Assert.assertEquals(5, cache.size());
+		OAuth2AuthorizedClient client = cache.get("store19.myshopify.com");
+		Assert.assertEquals("raw-token-19", client.getAccessToken().getTokenValue());
+		Assert.assertNull(cache.get("store0.myshopify.com"));
+	}
+
+	@Test
+	public void warmSkipsStoresThatCannotBeDecrypted() {
+		repo.saveNewStore(store("broken.myshopify.com", 5000L, new EncryptedTokenAndSalt("not-a-token", "gcm:00")));
+
+		StoreCacheWarmer warmer = new StoreCacheWarmer(tokenService, repo, cache);
+
+		Assert.assertEquals(20, warmer.warm());
+		Assert.assertNull(cache.get("broken.myshopify.com"));
+	}
+
+	@Test
+	public void warmWithNoTimeLeftCachesNothing() {
+		StoreCacheWarmer warmer = new StoreCacheWarmer(tokenService, repo, cache);
+		warmer.setTimeBudget(0);
+
+		Assert.assertEquals(0, warmer.warm());
+	}
+
+	@Test
+	public void warmWhenRepositoryDoesNotSupportRecentStoresThenNothingCached() {
+		TokenRepository unsupported = mock(TokenRepository.class);
+		when(unsupported.findRecentStores(any(Integer.class))).thenThrow(new UnsupportedOperationException("unsupported"));
+
+		StoreCacheWarmer warmer = new StoreCacheWarmer(tokenService, unsupported, cache);
+
+		Assert.assertEquals(0, warmer.warm());
+		Assert.assertEquals(0, cache.size());
+	}
+
+	private PersistedStoreAccessToken store(String domain, long issuedAt, EncryptedTokenAndSalt tokenAndSalt) {
+		PersistedStoreAccessToken token = new PersistedStoreAccessToken();
+		token.setStoreDomain(domain);
+		token.setTokenType("BEARER");
+		token.setTokenAndSalt(tokenAndSalt);
+		token.setIssuedAt(issuedAt);
+		token.setExpiresAt(issuedAt + 1000L);
+		token.setScopes(new HashSet<>(Arrays.asList("read_products")));
+
+		return token;
+	}
+
+}
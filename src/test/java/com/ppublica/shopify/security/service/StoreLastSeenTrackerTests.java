@@ -0,0 +1,108 @@
+package com.ppublica.shopify.security.service;
+
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.ppublica.shopify.security.repository.TokenRepository;
+
+public class StoreLastSeenTrackerTests {
+
+	TokenRepository repo;
+	StoreLastSeenTracker tracker;
+
+	@Before
+	public void setup() {
+		repo = mock(TokenRepository.class);
+		tracker = new StoreLastSeenTracker(repo);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void flushSavesLatestTimeOfEachStoreInOneBatch() {
+		tracker.recordAccess("store1.myshopify.com", 1000L);
+		tracker.recordAccess("store1.myshopify.com", 5000L);
+		tracker.recordAccess("store1.myshopify.com", 3000L);
+		tracker.recordAccess("store2.myshopify.com", 2000L);
+
+		tracker.flush();
+
+		ArgumentCaptor<Map<String, Long>> captor = ArgumentCaptor.forClass(Map.class);
+		verify(repo, times(1)).updateLastSeen(captor.capture());
+		Assert.assertEquals(new Long(5000), captor.getValue().get("store1.myshopify.com"));
+		Assert.assertEquals(new Long(2000), captor.getValue().get("store2.myshopify.com"));
+		Assert.assertEquals(0, tracker.getPendingCount());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void accessWithinResolutionIsCoalesced() {
+		tracker.recordAccess("store1.myshopify.com", 1000L);
+		tracker.recordAccess("store1.myshopify.com", 1500L);
+
+		tracker.flush();
+
+		ArgumentCaptor<Map<String, Long>> captor = ArgumentCaptor.forClass(Map.class);
+		verify(repo).updateLastSeen(captor.capture());
+		Assert.assertEquals(new Long(1000), captor.getValue().get("store1.myshopify.com"));
+	}
+
+	@Test
+	public void flushWhenNothingPendingDoesNotCallRepository() {
+		tracker.flush();
+
+		verify(repo, never()).updateLastSeen(anyMap());
+	}
+
+	@Test
+	public void storesBeyondMaxPendingAreDropped() {
+		tracker.setMaxPending(2);
+
+		tracker.recordAccess("store1.myshopify.com", 1000L);
+		tracker.recordAccess("store2.myshopify.com", 1000L);
+		tracker.recordAccess("store3.myshopify.com", 1000L);
+		tracker.recordAccess("store1.myshopify.com", 9000L);
+
+		Assert.assertEquals(2, tracker.getPendingCount());
+		Assert.assertEquals(1, tracker.getDroppedCount());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void failedFlushIsRetried() {
+		when(repo.updateLastSeen(anyMap())).thenThrow(new RuntimeException("db down")).thenReturn(1);
+
+		tracker.recordAccess("store1.myshopify.com", 1000L);
+
+		Assert.assertEquals(0, tracker.flush());
+		Assert.assertEquals(1, tracker.getPendingCount());
+
+		Assert.assertEquals(1, tracker.flush());
+
+		ArgumentCaptor<Map<String, Long>> captor = ArgumentCaptor.forClass(Map.class);
+		verify(repo, times(2)).updateLastSeen(captor.capture());
+		Assert.assertEquals(new Long(1000), captor.getValue().get("store1.myshopify.com"));
+	}
+
+	@Test
+	public void stopFlushesPending() {
+		tracker.start();
+		tracker.recordAccess("store1.myshopify.com");
+
+		tracker.stop();
+
+		verify(repo).updateLastSeen(anyMap());
+		Assert.assertEquals(0, tracker.getPendingCount());
+	}
+
+}
@@ -0,0 +1,63 @@
+package com.ppublica.shopify.security.service;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.ppublica.shopify.security.authentication.CipherPassword;
+import com.ppublica.shopify.security.repository.PersistedStoreAccessToken;
+import com.ppublica.shopify.security.repository.ReEncryptedToken;
+
+public class TokenEncryptorTests {
+	
+	CipherPassword legacy = new CipherPassword("legacy-password");
+	CipherPassword v1 = new CipherPassword("v1", "password-1");
+	
+	@Test
+	public void encryptThenDecrypts() {
+		TokenEncryptor encryptor = new TokenEncryptor(v1);
+		
+		PersistedStoreAccessToken token = token(encryptor.encrypt("raw-token"));
+		DecryptedTokenAndSalt decrypted = encryptor.decrypt(token);
+		
+		Assert.assertEquals("raw-token", decrypted.getDecryptedToken());
+		Assert.assertEquals(token.getTokenAndSalt().getSalt(), decrypted.getSalt());
+		Assert.assertTrue(encryptor.isCurrent(token));
+	}
+	
+	@Test
+	public void decryptWhenSaltOrTokenMissingThenNull() {
+		TokenEncryptor encryptor = new TokenEncryptor(v1);
+		
+		Assert.assertNull(encryptor.decrypt(token(null)));
+		Assert.assertNull(encryptor.decrypt(token(new EncryptedTokenAndSalt("token", ""))));
+		Assert.assertNull(encryptor.decrypt(token(new EncryptedTokenAndSalt("", "salt"))));
+		Assert.assertFalse(encryptor.isCurrent(token(null)));
+	}
+	
+	@Test
+	public void reEncryptWhenPreviousPasswordThenCurrent() {
+		PersistedStoreAccessToken token = token(new TokenEncryptor(legacy).encrypt("raw-token"));
+		
+		TokenEncryptor encryptor = new TokenEncryptor(v1);
+		encryptor.setPreviousCipherPasswords(Arrays.asList(legacy));
+		
+		Assert.assertFalse(encryptor.isCurrent(token));
+		
+		ReEncryptedToken reEncrypted = encryptor.reEncrypt(token, encryptor.decrypt(token).getDecryptedToken());
+		
+		Assert.assertEquals("example.myshopify.com", reEncrypted.getStoreDomain());
+		Assert.assertSame(token.getTokenAndSalt(), reEncrypted.getPrevious());
+		Assert.assertTrue(encryptor.isCurrent(token(reEncrypted.getCurrent())));
+		Assert.assertEquals("raw-token", encryptor.decrypt(token(reEncrypted.getCurrent())).getDecryptedToken());
+	}
+	
+	private PersistedStoreAccessToken token(EncryptedTokenAndSalt tokenAndSalt) {
+		PersistedStoreAccessToken token = new PersistedStoreAccessToken();
+		token.setStoreDomain("example.myshopify.com");
+		token.setTokenAndSalt(tokenAndSalt);
+		return token;
+	}
+
+}
@@ -0,0 +1,148 @@
+package com.ppublica.shopify.security.service;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
+
+import com.ppublica.shopify.TestDataSource;
+import com.ppublica.shopify.security.authentication.CipherPassword;
+import com.ppublica.shopify.security.repository.PersistedStoreAccessToken;
+import com.ppublica.shopify.security.repository.ShopifyTokenRepositoryImpl;
+import com.ppublica.shopify.security.repository.TokenRepository;
+
+public class TokenReEncryptionJobTests {
+	
+	TestDataSource dataSource;
+	JdbcTemplate template;
+	ShopifyTokenRepositoryImpl repo;
+	CipherPassword legacy = new CipherPassword("legacy-password");
+	CipherPassword v1 = new CipherPassword("v1", "password-1");
+	
+	@Before
+	public void setup() {
+		dataSource = new TestDataSource("reencryptiontest");
+		template = new JdbcTemplate(dataSource);
+		template.execute("CREATE TABLE STOREACCESSTOKENS(id BIGINT NOT NULL IDENTITY, storeDomain VARCHAR(50) NOT NULL, tokenType VARCHAR(50) NOT NULL, tokenValue VARCHAR(100) NOT NULL, salt VARCHAR(100) NOT NULL, issuedAt BIGINT NOT NULL, expiresAt BIGINT NOT NULL, scopes VARCHAR(200) NOT NULL);");
+		
+		repo = new ShopifyTokenRepositoryImpl();
+		repo.setJdbc(template);
+		
+		CipherKeyRing legacyRing = new CipherKeyRing(legacy);
+		for(int i = 0; i < 7; i++) {
+			EncryptedTokenAndSalt encrypted = legacyRing.encrypt("token-" + i);
+			template.update("INSERT INTO STOREACCESSTOKENS(storeDomain,tokenType,tokenValue,salt,issuedAt,expiresAt,scopes) VALUES(?,'BEARER',?,?,2000,3000,'read_products')",
+					"store" + i + ".myshopify.com", encrypted.getEncryptedToken(), encrypted.getSalt());
+		}
+		// a token no password can decrypt
+		template.execute("INSERT INTO STOREACCESSTOKENS(storeDomain,tokenType,tokenValue,salt,issuedAt,expiresAt,scopes) VALUES('lost.myshopify.com','BEARER','abcdef','{gone}0123456789abcdef',2000,3000,'read_products')");
+	}
+	
+	@After
+	public void cleanup() {
+		dataSource.destroy();
+	}
+	
+	@Test
+	public void runReEncryptsAllStoresInBatches() {
+		TokenService tokenService = new TokenService(repo, v1, mock(ClientRegistrationRepository.class));
+		tokenService.setPreviousCipherPasswords(Collections.singletonList(legacy));
+		
+		TokenReEncryptionJob job = new TokenReEncryptionJob(tokenService, repo);
+		job.setBatchSize(3);
+		job.setPauseBetweenBatches(0);
+		
+		job.run();
+		
+		Assert.assertEquals(8, job.getProcessedCount());
+		Assert.assertEquals(7, job.getReEncryptedCount());
+		Assert.assertEquals(1, job.getUndecryptableCount());
+		
+		CipherKeyRing v1Ring = new CipherKeyRing(v1);
+		for(int i = 0; i < 7; i++) {
+			PersistedStoreAccessToken token = repo.findTokenForStore("store" + i + ".myshopify.com");
+			Assert.assertEquals("v1", CipherKeyRing.getKeyId(token.getTokenAndSalt().getSalt()));
+			Assert.assertEquals("token-" + i, v1Ring.decrypt(token.getTokenAndSalt()));
+		}
+	}
+	
+	@Test
+	public void runWhenCalledDirectlyThenRunningUntilDone() {
+		TokenService tokenService = new TokenService(repo, v1, mock(ClientRegistrationRepository.class));
+		TokenRepository spied = spy(repo);
+		TokenReEncryptionJob job = new TokenReEncryptionJob(tokenService, spied);
+		job.setPauseBetweenBatches(0);
+		
+		boolean[] runningDuringRun = new boolean[1];
+		doAnswer(inv -> {
+			runningDuringRun[0] = job.isRunning();
+			return inv.callRealMethod();
+		}).when(spied).findStoresAfter(any(), anyInt());
+		
+		job.run();
+		
+		Assert.assertTrue(runningDuringRun[0]);
+		Assert.assertFalse(job.isRunning());
+	}
+	
+	@Test
+	public void runWhenAlreadyCurrentThenNothingReEncrypted() {
+		TokenService tokenService = new TokenService(repo, legacy, mock(ClientRegistrationRepository.class));
+		
+		TokenReEncryptionJob job = new TokenReEncryptionJob(tokenService, repo);
+		job.setPauseBetweenBatches(0);
+		job.run();
+		
+		Assert.assertEquals(8, job.getProcessedCount());
+		Assert.assertEquals(0, job.getReEncryptedCount());
+	}
+	
+	@Test
+	public void updateEncryptedTokensWhenTokenChangedSinceReadThenNotOverwritten() {
+		TokenService tokenService = new TokenService(repo, v1, mock(ClientRegistrationRepository.class));
+		tokenService.setPreviousCipherPasswords(Arrays.asList(legacy));
+		
+		PersistedStoreAccessToken read = repo.findTokenForStore("store0.myshopify.com");
+		
+		// the merchant reinstalls before the re-encrypted token is written
+		PersistedStoreAccessToken reinstalled = repo.findTokenForStore("store0.myshopify.com");
+		reinstalled.setTokenAndSalt(new CipherKeyRing(v1).encrypt("new-token"));
+		repo.updateStore(reinstalled);
+		
+		Assert.assertEquals(0, repo.updateEncryptedTokens(Collections.singletonList(tokenService.reEncrypt(read))));
+		Assert.assertEquals("new-token", new CipherKeyRing(v1).decrypt(repo.findTokenForStore("store0.myshopify.com").getTokenAndSalt()));
+	}
+
+	@Test
+	public void runWhenSamePasswordInQueryableTextFormatThenMigratedToAesGcm() {
+		template.execute("DELETE FROM STOREACCESSTOKENS");
+		EncryptedTokenAndSalt oldFormat = new CipherKeyRing(legacy, null, CipherKeyRing.ALGORITHM_QUERYABLE_TEXT).encrypt("old-token");
+		template.update("INSERT INTO STOREACCESSTOKENS(storeDomain,tokenType,tokenValue,salt,issuedAt,expiresAt,scopes) VALUES('old.myshopify.com','BEARER',?,?,2000,3000,'read_products')",
+				oldFormat.getEncryptedToken(), oldFormat.getSalt());
+		
+		TokenService tokenService = new TokenService(repo, legacy, mock(ClientRegistrationRepository.class));
+		tokenService.setCipherAlgorithm(CipherKeyRing.ALGORITHM_AES_GCM);
+		
+		TokenReEncryptionJob job = new TokenReEncryptionJob(tokenService, repo);
+		job.setPauseBetweenBatches(0);
+		job.run();
+		
+		Assert.assertEquals(1, job.getReEncryptedCount());
+		
+		PersistedStoreAccessToken token = repo.findTokenForStore("old.myshopify.com");
+		Assert.assertTrue(token.getTokenAndSalt().getSalt().startsWith(AesGcmTokenCipher.SALT_PREFIX));
+		Assert.assertEquals("old-token", new CipherKeyRing(legacy).decrypt(token.getTokenAndSalt()));
+	}
+
+}
@@ -1,15 +1,20 @@
 package com.ppublica.shopify.security.service;
 
-import static org.mockito.Mockito.mock;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.Mockito.doReturn;
-import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
-import static org.mockito.Mockito.never;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -38,6 +43,7 @@ import com.ppublica.shopify.security.authentication.CipherPassword;
 import com.ppublica.shopify.security.configuration.SecurityBeansConfig;
 import com.ppublica.shopify.security.repository.PersistedStoreAccessToken;
 import com.ppublica.shopify.security.repository.PersistedStoreAccessTokenUtility;
+import com.ppublica.shopify.security.repository.ReEncryptedToken;
 import com.ppublica.shopify.security.repository.TokenRepository;
 
 public class TokenServiceTests {
@@ -45,6 +51,11 @@ public class TokenServiceTests {
 	ClientRegistration clientRegistration;
 	Collection <? extends GrantedAuthority> authorities;
 	
+	TokenRepository repo;
+	ClientRegistrationRepository clientRepo;
+	CipherPassword legacy = new CipherPassword("legacy-password");
+	CipherPassword v1 = new CipherPassword("v1", "password-1");
+	
 	@BeforeClass
 	public static void testSetup() {
 		Logger logger = Logger.getLogger(TokenService.class.getName());
@@ -69,6 +80,10 @@ public class TokenServiceTests {
 	            .build();
 		
 		authorities = new ArrayList<SimpleGrantedAuthority>(Arrays.asList(new SimpleGrantedAuthority("read"), new SimpleGrantedAuthority("write")));
+		
+		repo = mock(TokenRepository.class);
+		clientRepo = mock(ClientRegistrationRepository.class);
+		when(clientRepo.findByRegistrationId("shopify")).thenReturn(clientRegistration);
 
 
 	}
@@ -369,6 +384,130 @@ public class TokenServiceTests {
 		
 		
 	}
-
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void getStoreWhenEncryptedWithPreviousKeyThenReEncryptOnRead() {
+		when(repo.findTokenForStore("lmdev.myshopify.com")).thenReturn(store(new CipherKeyRing(legacy).encrypt("raw-token")));
+		
+		TokenService service = new TokenService(repo, v1, clientRepo);
+		service.setPreviousCipherPasswords(Arrays.asList(legacy));
+		
+		OAuth2AuthorizedClient client = service.getStore("lmdev.myshopify.com");
+		
+		Assert.assertEquals("raw-token", client.getAccessToken().getTokenValue());
+		
+		ArgumentCaptor<List<ReEncryptedToken>> captor = ArgumentCaptor.forClass(List.class);
+		verify(repo).updateEncryptedTokens(captor.capture());
+		ReEncryptedToken reEncrypted = captor.getValue().get(0);
+		Assert.assertEquals("v1", CipherKeyRing.getKeyId(reEncrypted.getCurrent().getSalt()));
+		Assert.assertEquals("raw-token", new CipherKeyRing(v1).decrypt(reEncrypted.getCurrent()));
+	}
+	
+	@Test
+	public void getStoreWhenEncryptedWithCurrentKeyThenNoReEncryption() {
+		when(repo.findTokenForStore("lmdev.myshopify.com")).thenReturn(store(new CipherKeyRing(v1).encrypt("raw-token")));
+		
+		TokenService service = new TokenService(repo, v1, clientRepo);
+		
+		Assert.assertNotNull(service.getStore("lmdev.myshopify.com"));
+		verify(repo, never()).updateEncryptedTokens(anyList());
+	}
+	
+	@Test
+	public void getStoreWhenReEncryptionFailsThenStillReturnStore() {
+		when(repo.findTokenForStore("lmdev.myshopify.com")).thenReturn(store(new CipherKeyRing(legacy).encrypt("raw-token")));
+		when(repo.updateEncryptedTokens(any())).thenThrow(new RuntimeException("db down"));
+		
+		TokenService service = new TokenService(repo, v1, clientRepo);
+		service.setPreviousCipherPasswords(Collections.singletonList(legacy));
+		
+		Assert.assertNotNull(service.getStore("lmdev.myshopify.com"));
+	}
+	
+	@Test
+	public void getStoreWhenKeyUnknownThenNull() {
+		when(repo.findTokenForStore("lmdev.myshopify.com")).thenReturn(store(new CipherKeyRing(legacy).encrypt("raw-token")));
+		
+		TokenService service = new TokenService(repo, v1, clientRepo);
+		
+		Assert.assertNull(service.getStore("lmdev.myshopify.com"));
+	}
+	
+	@Test
+	public void getStoreWhenCachedThenRepositoryNotRead() {
+		when(repo.findTokenForStore("lmdev.myshopify.com")).thenReturn(store(new CipherKeyRing(v1).encrypt("raw-token")));
+		
+		TokenService service = new TokenService(repo, v1, clientRepo);
+		service.setStoreCache(new StoreCache());
+		
+		OAuth2AuthorizedClient first = service.getStore("lmdev.myshopify.com");
+		OAuth2AuthorizedClient second = service.getStore("lmdev.myshopify.com");
+		
+		Assert.assertSame(first, second);
+		verify(repo, times(1)).findTokenForStore("lmdev.myshopify.com");
+	}
+	
+	@Test
+	public void uninstallStoreThenCachedStoreRemoved() {
+		when(repo.findTokenForStore("lmdev.myshopify.com")).thenReturn(store(new CipherKeyRing(v1).encrypt("raw-token")));
+		
+		TokenService service = new TokenService(repo, v1, clientRepo);
+		StoreCache cache = new StoreCache();
+		service.setStoreCache(cache);
+		
+		service.getStore("lmdev.myshopify.com");
+		service.uninstallStore("lmdev.myshopify.com");
+		
+		Assert.assertNull(cache.get("lmdev.myshopify.com"));
+	}
+	
+	@Test
+	public void newTokenServiceThenLegacyFormatByDefaultAndKeyRingBuiltOnce() {
+		TokenService service = new TokenService(repo, v1, clientRepo);
+		service.setPreviousCipherPasswords(Arrays.asList(legacy));
+		service.init();
+		
+		CipherKeyRing ring = service.getTokenEncryptor().getCipherKeyRing();
+		
+		Assert.assertTrue(ring.getCurrent() instanceof QueryableTextTokenCipher);
+		Assert.assertSame(ring, service.getTokenEncryptor().getCipherKeyRing());
+	}
+	
+	@Test
+	public void setCipherAlgorithmWhenAesGcmThenNewTokensAesGcm() {
+		TokenService service = new TokenService(repo, v1, clientRepo);
+		service.setCipherAlgorithm(CipherKeyRing.ALGORITHM_AES_GCM);
+		
+		Assert.assertTrue(service.getTokenEncryptor().getCipherKeyRing().getCurrent() instanceof AesGcmTokenCipher);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void setCipherAlgorithmWhenUnsupportedThenException() {
+		new TokenService(repo, v1, clientRepo).setCipherAlgorithm("des");
+	}
+	
+	@Test
+	public void decryptStoreDoesNotReEncrypt() {
+		TokenService service = new TokenService(repo, v1, clientRepo);
+		service.setPreviousCipherPasswords(Arrays.asList(legacy));
+		
+		OAuth2AuthorizedClient client = service.decryptStore(store(new CipherKeyRing(legacy).encrypt("raw-token")));
+		
+		Assert.assertEquals("raw-token", client.getAccessToken().getTokenValue());
+		verify(repo, never()).updateEncryptedTokens(anyList());
+	}
+	
+	private PersistedStoreAccessToken store(EncryptedTokenAndSalt tokenAndSalt) {
+		PersistedStoreAccessToken token = new PersistedStoreAccessToken();
+		token.setStoreDomain("lmdev.myshopify.com");
+		token.setTokenType("BEARER");
+		token.setTokenAndSalt(tokenAndSalt);
+		token.setIssuedAt(1000L);
+		token.setExpiresAt(2000L);
+		token.setScopes(new HashSet<>(Arrays.asList("read_products")));
+		
+		return token;
+	}
 
 }
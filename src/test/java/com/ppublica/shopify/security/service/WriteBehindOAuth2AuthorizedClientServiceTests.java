@@ -0,0 +1,220 @@
+package com.ppublica.shopify.security.service;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.ClientAuthenticationMethod;
+
+public class WriteBehindOAuth2AuthorizedClientServiceTests {
+	
+	OAuth2AuthorizedClientService delegate;
+	ScheduledExecutorService executor;
+	WriteBehindOAuth2AuthorizedClientService service;
+	OAuth2AuthorizedClient client;
+	Authentication principal;
+	
+	@Before
+	public void setup() {
+		delegate = mock(OAuth2AuthorizedClientService.class);
+		executor = Executors.newSingleThreadScheduledExecutor();
+		service = new WriteBehindOAuth2AuthorizedClientService(delegate, executor);
+		service.setRetryDelay(10L);
+		
+		ClientRegistration registration = ClientRegistration.withRegistrationId("shopify")
+		        .clientId("testId")
+		        .clientSecret("secret")
+		        .clientAuthenticationMethod(ClientAuthenticationMethod.POST)
+		        .authorizationGrantType(AuthorizationGrantType.AUTHORIZATION_CODE)
+		        .redirectUriTemplate("{baseUrl}/login/app/oauth2/code/{registrationId}")
+		        .scope("read_products")
+		        .authorizationUri("https://{shop}/admin/oauth/authorize")
+		        .tokenUri("https://{shop}/admin/oauth/access_token")
+		        .clientName("Shopify")
+		        .build();
+		client = mock(OAuth2AuthorizedClient.class);
+		when(client.getClientRegistration()).thenReturn(registration);
+		principal = mock(Authentication.class);
+		when(principal.getName()).thenReturn("lmdev.myshopify.com");
+	}
+	
+	@After
+	public void cleanup() {
+		executor.shutdownNow();
+	}
+	
+	@Test
+	public void saveAuthorizedClientReturnsBeforeDelegateSaves() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		doAnswer(inv -> {
+			release.await(5, TimeUnit.SECONDS);
+			return null;
+		}).when(delegate).saveAuthorizedClient(client, principal);
+		
+		service.saveAuthorizedClient(client, principal);
+		
+		Assert.assertEquals(1, service.getPendingCount());
+		release.countDown();
+		
+		verify(delegate, timeout(1000)).saveAuthorizedClient(client, principal);
+	}
+	
+	@Test
+	public void loadAuthorizedClientWhenPendingThenReturnPendingClient() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		doAnswer(inv -> {
+			release.await(5, TimeUnit.SECONDS);
+			return null;
+		}).when(delegate).saveAuthorizedClient(client, principal);
+		
+		service.saveAuthorizedClient(client, principal);
+		
+		Assert.assertSame(client, service.loadAuthorizedClient("shopify", "lmdev.myshopify.com"));
+		verify(delegate, never()).loadAuthorizedClient(any(), any());
+		
+		release.countDown();
+	}
+	
+	@Test
+	public void loadAuthorizedClientWhenFlushedThenLoadFromDelegate() {
+		service.saveAuthorizedClient(client, principal);
+		verify(delegate, timeout(1000)).saveAuthorizedClient(client, principal);
+		waitForEmptyBuffer();
+		
+		service.loadAuthorizedClient("shopify", "lmdev.myshopify.com");
+		
+		verify(delegate).loadAuthorizedClient("shopify", "lmdev.myshopify.com");
+	}
+	
+	@Test
+	public void saveAuthorizedClientWhenDelegateFailsThenRetry() {
+		doThrow(new RuntimeException("db down"))
+			.doThrow(new RuntimeException("db down"))
+			.doNothing()
+			.when(delegate).saveAuthorizedClient(client, principal);
+		
+		service.saveAuthorizedClient(client, principal);
+		
+		verify(delegate, timeout(1000).times(3)).saveAuthorizedClient(client, principal);
+		waitForEmptyBuffer();
+		Assert.assertEquals(0, service.getFailedCount());
+	}
+	
+	@Test
+	public void saveAuthorizedClientWhenAllAttemptsFailThenDropAndCount() {
+		service.setMaxAttempts(2);
+		doThrow(new RuntimeException("db down")).when(delegate).saveAuthorizedClient(client, principal);
+		
+		service.saveAuthorizedClient(client, principal);
+		
+		verify(delegate, timeout(1000).times(2)).saveAuthorizedClient(client, principal);
+		waitForEmptyBuffer();
+		Assert.assertEquals(1, service.getFailedCount());
+	}
+	
+	@Test
+	public void removeAuthorizedClientCancelsPendingWrite() throws Exception {
+		ScheduledExecutorService paused = mock(ScheduledExecutorService.class);
+		service = new WriteBehindOAuth2AuthorizedClientService(delegate, paused);
+		
+		service.saveAuthorizedClient(client, principal);
+		service.removeAuthorizedClient("shopify", "lmdev.myshopify.com");
+		
+		Assert.assertEquals(0, service.getPendingCount());
+		verify(delegate).removeAuthorizedClient("shopify", "lmdev.myshopify.com");
+		verify(delegate, never()).saveAuthorizedClient(any(), any());
+	}
+	
+	@Test
+	public void saveAuthorizedClientWhenBufferFullThenSaveOnCallingThread() {
+		ScheduledExecutorService paused = mock(ScheduledExecutorService.class);
+		service = new WriteBehindOAuth2AuthorizedClientService(delegate, paused);
+		service.setMaxPending(0);
+		
+		service.saveAuthorizedClient(client, principal);
+		
+		verify(delegate, times(1)).saveAuthorizedClient(client, principal);
+		Assert.assertEquals(0, service.getPendingCount());
+	}
+	
+	@Test
+	public void shutdownFlushesPendingWrites() {
+		ScheduledExecutorService paused = mock(ScheduledExecutorService.class);
+		service = new WriteBehindOAuth2AuthorizedClientService(delegate, paused);
+		
+		service.saveAuthorizedClient(client, principal);
+		service.shutdown();
+		
+		verify(delegate).saveAuthorizedClient(client, principal);
+		Assert.assertEquals(0, service.getPendingCount());
+	}
+	
+	@Test
+	public void shutdownWhenRetryScheduledThenRetryDroppedAndSavedOnce() {
+		ScheduledThreadPoolExecutor retrying = new ScheduledThreadPoolExecutor(1);
+		executor = retrying;
+		service = new WriteBehindOAuth2AuthorizedClientService(delegate, retrying);
+		service.setRetryDelay(60_000L);
+		doThrow(new RuntimeException("db down")).doNothing().when(delegate).saveAuthorizedClient(client, principal);
+		
+		service.saveAuthorizedClient(client, principal);
+		verify(delegate, timeout(1000).times(1)).saveAuthorizedClient(client, principal);
+		
+		// wait for the retry to be scheduled
+		long deadline = System.currentTimeMillis() + 1000;
+		while(retrying.getQueue().isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.yield();
+		}
+		service.shutdown();
+		
+		Assert.assertTrue(executor.isTerminated());
+		verify(delegate, times(2)).saveAuthorizedClient(client, principal);
+		Assert.assertEquals(0, service.getPendingCount());
+		Assert.assertEquals(0, service.getFailedCount());
+	}
+	
+	@Test
+	public void shutdownWhenSaveFailsThenNotRetriedAndCounted() {
+		ScheduledExecutorService paused = mock(ScheduledExecutorService.class);
+		when(paused.isShutdown()).thenReturn(true);
+		service = new WriteBehindOAuth2AuthorizedClientService(delegate, paused);
+		doThrow(new RuntimeException("db down")).when(delegate).saveAuthorizedClient(client, principal);
+		
+		service.saveAuthorizedClient(client, principal);
+		service.shutdown();
+		
+		verify(paused).shutdownNow();
+		verify(delegate, times(1)).saveAuthorizedClient(client, principal);
+		Assert.assertEquals(0, service.getPendingCount());
+		Assert.assertEquals(1, service.getFailedCount());
+	}
+	
+	private void waitForEmptyBuffer() {
+		long deadline = System.currentTimeMillis() + 1000;
+		while(service.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.yield();
+		}
+	}
+
+}
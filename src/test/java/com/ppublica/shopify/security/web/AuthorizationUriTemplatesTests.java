@@ -0,0 +1,96 @@
+package com.ppublica.shopify.security.web;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.ClientAuthenticationMethod;
+
+public class AuthorizationUriTemplatesTests {
+
+	@Test
+	public void expandRedirectUriFillsRegistrationIdAndBaseUrl() {
+		AuthorizationUriTemplates templates = AuthorizationUriTemplates.compile(registration("{baseUrl}/login/app/oauth2/code/{registrationId}", "https://{shop}/admin/oauth/authorize"));
+
+		Assert.assertEquals("https://ppublica.com:8443/app/login/app/oauth2/code/shopify", templates.expandRedirectUri("https://ppublica.com:8443/app"));
+	}
+
+	@Test
+	public void expandAuthorizationUriFillsShop() {
+		AuthorizationUriTemplates templates = AuthorizationUriTemplates.compile(registration("{baseUrl}/login/app/oauth2/code/{registrationId}", "https://{shop}/admin/oauth/authorize"));
+
+		Assert.assertEquals("https://testStore.myshopify.com/admin/oauth/authorize", templates.expandAuthorizationUri("testStore.myshopify.com"));
+	}
+
+	@Test
+	public void addRedirectParamsAppendsPrecomputedParams() {
+		AuthorizationUriTemplates templates = AuthorizationUriTemplates.compile(registration("{baseUrl}/login/app/oauth2/code/{registrationId}", "https://{shop}/admin/oauth/authorize"));
+
+		Assert.assertEquals("/oauth/authorize?client_id=client-id&redirect_uri=https://ppublica.com/login&scope=read_products,write_products&state=statekey",
+				templates.addRedirectParams("/oauth/authorize", "https://ppublica.com/login", "statekey"));
+		Assert.assertEquals("/oauth/authorize?a=b&client_id=client-id&redirect_uri=https://ppublica.com/login&scope=read_products,write_products&state=statekey",
+				templates.addRedirectParams("/oauth/authorize?a=b", "https://ppublica.com/login", "statekey"));
+	}
+
+	@Test
+	public void addRedirectParamsWhenUriHasFragmentThenParamsBeforeFragment() {
+		AuthorizationUriTemplates templates = AuthorizationUriTemplates.compile(registration("{baseUrl}/login/app/oauth2/code/{registrationId}", "https://{shop}/admin/oauth/authorize"));
+
+		Assert.assertEquals("/oauth/authorize?client_id=client-id&redirect_uri=https://ppublica.com/login&scope=read_products,write_products&state=statekey#top",
+				templates.addRedirectParams("/oauth/authorize#top", "https://ppublica.com/login", "statekey"));
+		Assert.assertEquals("/oauth/authorize?a=b&client_id=client-id&redirect_uri=https://ppublica.com/login&scope=read_products,write_products&state=statekey#top?x",
+				templates.addRedirectParams("/oauth/authorize?a=b#top?x", "https://ppublica.com/login", "statekey"));
+	}
+
+	@Test
+	public void addRedirectParamsWhenQueryEmptyOrEndsWithAmpersandThenNoExtraSeparator() {
+		AuthorizationUriTemplates templates = AuthorizationUriTemplates.compile(registration("{baseUrl}/login/app/oauth2/code/{registrationId}", "https://{shop}/admin/oauth/authorize"));
+
+		Assert.assertEquals("/oauth/authorize?client_id=client-id&redirect_uri=https://ppublica.com/login&scope=read_products,write_products&state=statekey",
+				templates.addRedirectParams("/oauth/authorize?", "https://ppublica.com/login", "statekey"));
+		Assert.assertEquals("/oauth/authorize?a=b&client_id=client-id&redirect_uri=https://ppublica.com/login&scope=read_products,write_products&state=statekey",
+				templates.addRedirectParams("/oauth/authorize?a=b&", "https://ppublica.com/login", "statekey"));
+	}
+
+	@Test
+	public void addRedirectParamsEncodesCharactersNotAllowedInQuery() {
+		AuthorizationUriTemplates templates = AuthorizationUriTemplates.compile(registration("{baseUrl}/login/app/oauth2/code/{registrationId}", "https://{shop}/admin/oauth/authorize"));
+
+		Assert.assertEquals("/oauth/authorize?client_id=client-id&redirect_uri=https://ppublica.com/my%20login%23x&scope=read_products,write_products&state=state=key",
+				templates.addRedirectParams("/oauth/authorize", "https://ppublica.com/my login#x", "state=key"));
+	}
+
+	@Test
+	public void isForOnlyTheSameRegistration() {
+		ClientRegistration registration = registration("{baseUrl}/login/app/oauth2/code/{registrationId}", "https://{shop}/admin/oauth/authorize");
+		AuthorizationUriTemplates templates = AuthorizationUriTemplates.compile(registration);
+
+		Assert.assertTrue(templates.isFor(registration));
+		Assert.assertFalse(templates.isFor(registration("{baseUrl}/login/app/oauth2/code/{registrationId}", "https://{shop}/admin/oauth/authorize")));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void compileWhenUnsupportedVariableThenException() {
+		AuthorizationUriTemplates.compile(registration("{baseUrl}/{action}/oauth2/code/{registrationId}", "https://{shop}/admin/oauth/authorize"));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void compileWhenAuthorizationUriNotHttpThenException() {
+		AuthorizationUriTemplates.compile(registration("{baseUrl}/login/app/oauth2/code/{registrationId}", "{shop}/admin/oauth/authorize"));
+	}
+
+	private ClientRegistration registration(String redirectUriTemplate, String authorizationUri) {
+		return ClientRegistration.withRegistrationId("shopify")
+				.clientId("client-id")
+				.clientSecret("client-secret")
+				.clientAuthenticationMethod(ClientAuthenticationMethod.POST)
+				.authorizationGrantType(AuthorizationGrantType.AUTHORIZATION_CODE)
+				.redirectUriTemplate(redirectUriTemplate)
+				.scope("read_products", "write_products")
+				.authorizationUri(authorizationUri)
+				.tokenUri("https://{shop}/admin/oauth/access_token")
+				.clientName("Shopify")
+				.build();
+	}
+
+}
@@ -0,0 +1,86 @@
+package com.ppublica.shopify.security.web;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
+
+public class SessionAuthorizationRequestsTests {
+
+	OAuth2AuthorizationRequest authorizationRequest;
+
+	@Before
+	public void setup() {
+		Map<String, Object> additionalParameters = new HashMap<>();
+		additionalParameters.put(ShopifyOAuth2AuthorizationRequestResolver.SHOPIFY_SHOP_PARAMETER_KEY_FOR_TOKEN, "lmdev.myshopify.com");
+		Map<String, Object> attributes = new HashMap<>();
+		attributes.put(OAuth2ParameterNames.REGISTRATION_ID, "shopify");
+		attributes.put("count", 3);
+
+		authorizationRequest = OAuth2AuthorizationRequest.authorizationCode()
+				.clientId("client-id")
+				.authorizationUri("https://lmdev.myshopify.com/admin/oauth/authorize")
+				.redirectUri("https://ppublica.com/login/app/oauth2/code/shopify")
+				.scopes(new HashSet<>(Arrays.asList("read_products", "write_products")))
+				.state("statekey")
+				.additionalParameters(additionalParameters)
+				.attributes(attributes)
+				.build();
+	}
+
+	@Test
+	public void serializeThenDeserializeKeepsRequests() throws IOException, ClassNotFoundException {
+		SessionAuthorizationRequests requests = new SessionAuthorizationRequests();
+		requests.put("statekey", authorizationRequest);
+
+		@SuppressWarnings("unchecked")
+		Map<String, OAuth2AuthorizationRequest> read = (Map<String, OAuth2AuthorizationRequest>) deserialize(serialize(requests));
+
+		Assert.assertTrue(read instanceof SessionAuthorizationRequests);
+		OAuth2AuthorizationRequest readRequest = read.get("statekey");
+		Assert.assertEquals(AuthorizationGrantType.AUTHORIZATION_CODE, readRequest.getGrantType());
+		Assert.assertEquals(authorizationRequest.getAuthorizationUri(), readRequest.getAuthorizationUri());
+		Assert.assertEquals("client-id", readRequest.getClientId());
+		Assert.assertEquals(authorizationRequest.getRedirectUri(), readRequest.getRedirectUri());
+		Assert.assertEquals(authorizationRequest.getScopes(), readRequest.getScopes());
+		Assert.assertEquals("statekey", readRequest.getState());
+		Assert.assertEquals(authorizationRequest.getAuthorizationRequestUri(), readRequest.getAuthorizationRequestUri());
+		Assert.assertEquals(authorizationRequest.getAdditionalParameters(), readRequest.getAdditionalParameters());
+		Assert.assertEquals(authorizationRequest.getAttributes(), readRequest.getAttributes());
+	}
+
+	@Test
+	public void serializedRequestsAreSmallerThanHashMap() throws IOException {
+		SessionAuthorizationRequests requests = new SessionAuthorizationRequests();
+		requests.put("statekey", authorizationRequest);
+
+		Assert.assertTrue(serialize(requests).length * 2 < serialize(new HashMap<>(requests)).length);
+	}
+
+	private static byte[] serialize(Object object) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(object);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+		try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+			return in.readObject();
+		}
+	}
+
+}
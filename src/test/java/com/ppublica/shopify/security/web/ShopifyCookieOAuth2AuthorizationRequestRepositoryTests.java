@@ -0,0 +1,173 @@
+package com.ppublica.shopify.security.web;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+
+import javax.servlet.http.Cookie;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+
+import com.ppublica.shopify.security.authentication.CipherPassword;
+import com.ppublica.shopify.security.service.AesGcmTokenCipher;
+import com.ppublica.shopify.security.service.TokenCipher;
+
+public class ShopifyCookieOAuth2AuthorizationRequestRepositoryTests {
+
+	private static TokenCipher cipher;
+
+	private OAuth2AuthorizationRequest authorizationRequest;
+	private ShopifyCookieOAuth2AuthorizationRequestRepository repository;
+
+	@BeforeClass
+	public static void createCipher() {
+		cipher = new AesGcmTokenCipher(new CipherPassword("authorization-request", "password"));
+	}
+
+	@Before
+	public void setup() {
+		authorizationRequest = OAuth2AuthorizationRequest.authorizationCode()
+				.clientId("client-id")
+				.authorizationUri("https://teststore.myshopify.com/admin/oauth/authorize")
+				.redirectUri("https://ppublica.com/login/app/oauth2/code/shopify")
+				.scopes(new HashSet<>(Arrays.asList("read_products", "write_products")))
+				.state("statekey")
+				.build();
+
+		repository = new ShopifyCookieOAuth2AuthorizationRequestRepository("/install", cipher);
+	}
+
+	@Test
+	public void saveAuthorizationRequestSetsCookieWithoutSession() {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setSecure(true);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		request.setAttribute(ShopifyCookieOAuth2AuthorizationRequestRepository.RESPONSE_ATTRIBUTE, response);
+
+		repository.saveAuthorizationRequest(authorizationRequest, request);
+
+		String setCookie = response.getHeader("Set-Cookie");
+		Assert.assertTrue(setCookie.startsWith(ShopifyCookieOAuth2AuthorizationRequestRepository.COOKIE_NAME + "_statekey="));
+		Assert.assertTrue(setCookie.contains("HttpOnly"));
+		Assert.assertTrue(setCookie.contains("Secure"));
+		Assert.assertTrue(setCookie.contains("SameSite=None"));
+		Assert.assertFalse(setCookie.contains("client-id"));
+		Assert.assertNull(request.getSession(false));
+	}
+
+	@Test
+	public void saveAuthorizationRequestWhenNotSecureThenLax() {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		repository.saveAuthorizationRequest(authorizationRequest, new MockHttpServletRequest(), response);
+
+		String setCookie = response.getHeader("Set-Cookie");
+		Assert.assertTrue(setCookie.contains("SameSite=Lax"));
+		Assert.assertFalse(setCookie.contains("Secure"));
+		Assert.assertFalse(setCookie.contains("SameSite=None"));
+	}
+
+	@Test
+	public void saveAuthorizationRequestWhenStateHasPaddingThenValidCookieName() {
+		OAuth2AuthorizationRequest padded = OAuth2AuthorizationRequest.from(authorizationRequest).state("abc-_12==").build();
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		repository.saveAuthorizationRequest(padded, new MockHttpServletRequest(), response);
+
+		Assert.assertTrue(response.getHeader("Set-Cookie").startsWith(ShopifyCookieOAuth2AuthorizationRequestRepository.COOKIE_NAME + "_abc-_12="));
+		Assert.assertNotNull(repository.getAuthorizationRequests(requestWithCookies(savedCookie(padded))).get("abc-_12=="));
+	}
+
+	@Test
+	public void getAuthorizationRequestsWhenTwoFlowsThenBothKept() {
+		OAuth2AuthorizationRequest second = OAuth2AuthorizationRequest.from(authorizationRequest).state("otherkey").build();
+		MockHttpServletRequest request = requestWithCookies(savedCookie(authorizationRequest), savedCookie(second));
+		request.addParameter("state", "otherkey");
+
+		Assert.assertEquals(2, repository.getAuthorizationRequests(request).size());
+
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		Assert.assertEquals("otherkey", repository.removeAuthorizationRequest(request, response).getState());
+
+		Assert.assertTrue(response.getHeader("Set-Cookie").startsWith(ShopifyCookieOAuth2AuthorizationRequestRepository.COOKIE_NAME + "_otherkey=;"));
+		Assert.assertEquals(1, repository.getAuthorizationRequests(request).size());
+		Assert.assertNotNull(repository.getAuthorizationRequests(request).get("statekey"));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void saveAuthorizationRequestWhenNoResponseThenException() {
+		repository.saveAuthorizationRequest(authorizationRequest, new MockHttpServletRequest());
+	}
+
+	@Test
+	public void getAuthorizationRequestsReadsCookie() {
+		MockHttpServletRequest request = requestWithCookies(savedCookie(authorizationRequest));
+
+		Map<String, OAuth2AuthorizationRequest> authorizationRequests = repository.getAuthorizationRequests(request);
+
+		Assert.assertEquals(1, authorizationRequests.size());
+		OAuth2AuthorizationRequest read = authorizationRequests.get("statekey");
+		Assert.assertEquals("client-id", read.getClientId());
+		Assert.assertEquals(authorizationRequest.getAuthorizationUri(), read.getAuthorizationUri());
+		Assert.assertEquals(authorizationRequest.getScopes(), read.getScopes());
+		Assert.assertSame(read, repository.getAnAuthorizationRequest(request));
+	}
+
+	@Test
+	public void getAuthorizationRequestsWhenTamperedThenEmpty() {
+		Cookie cookie = savedCookie(authorizationRequest);
+		MockHttpServletRequest request = requestWithCookies(new Cookie(cookie.getName(), cookie.getValue().substring(0, cookie.getValue().length() - 4) + "AAAA"));
+
+		Assert.assertTrue(repository.getAuthorizationRequests(request).isEmpty());
+	}
+
+	@Test
+	public void getAuthorizationRequestsWhenOtherKeyThenEmpty() {
+		ShopifyCookieOAuth2AuthorizationRequestRepository other = new ShopifyCookieOAuth2AuthorizationRequestRepository("/install",
+				new AesGcmTokenCipher(new CipherPassword("authorization-request", "other-password")));
+
+		Assert.assertTrue(other.getAuthorizationRequests(requestWithCookies(savedCookie(authorizationRequest))).isEmpty());
+	}
+
+	@Test
+	public void removeAuthorizationRequestWhenStateMatchesThenCookieCleared() {
+		MockHttpServletRequest request = requestWithCookies(savedCookie(authorizationRequest));
+		request.addParameter("state", "statekey");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		OAuth2AuthorizationRequest removed = repository.removeAuthorizationRequest(request, response);
+
+		Assert.assertEquals("client-id", removed.getClientId());
+		Assert.assertTrue(response.getHeader("Set-Cookie").contains("Max-Age=0"));
+		Assert.assertTrue(repository.getAuthorizationRequests(request).isEmpty());
+	}
+
+	@Test
+	public void loadAuthorizationRequestWhenOtherStateThenNull() {
+		MockHttpServletRequest request = requestWithCookies(savedCookie(authorizationRequest));
+		request.addParameter("state", "otherkey");
+
+		Assert.assertNull(repository.loadAuthorizationRequest(request));
+	}
+
+	private Cookie savedCookie(OAuth2AuthorizationRequest authorizationRequest) {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		repository.saveAuthorizationRequest(authorizationRequest, new MockHttpServletRequest(), response);
+
+		String setCookie = response.getHeader("Set-Cookie");
+		return new Cookie(setCookie.substring(0, setCookie.indexOf('=')), setCookie.substring(setCookie.indexOf('=') + 1, setCookie.indexOf(';')));
+	}
+
+	private static MockHttpServletRequest requestWithCookies(Cookie... cookies) {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setCookies(cookies);
+		return request;
+	}
+
+}
@@ -1,6 +1,7 @@
 package com.ppublica.shopify.security.web;
 
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.logging.ConsoleHandler;
@@ -149,4 +150,22 @@ public class ShopifyHttpSessionOAuth2AuthorizationRequestRepositoryTests {
 		
 	}	
 	
+	@Test
+	public void saveAuthorizationRequestWhenPlainMapInSessionSavesCompactMap() {
+		
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		Map<String, OAuth2AuthorizationRequest> saved = new HashMap<>();
+		saved.put("otherstate", authorizationRequest);
+		request.getSession().setAttribute(ShopifyHttpSessionOAuth2AuthorizationRequestRepository.DEFAULT_AUTHORIZATION_REQUEST_ATTR_NAME, saved);
+		
+		this.authorizationRequestRepository.saveAuthorizationRequest(authorizationRequest, request);
+		
+		Map<String, OAuth2AuthorizationRequest> authorizationRequests =
+				this.authorizationRequestRepository.getAuthorizationRequests(request);
+		
+		Assert.assertTrue(authorizationRequests instanceof SessionAuthorizationRequests);
+		Assert.assertEquals(2, authorizationRequests.size());
+		
+	}
+	
 }
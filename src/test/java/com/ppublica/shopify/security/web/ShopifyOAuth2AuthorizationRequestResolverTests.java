@@ -31,6 +31,8 @@ import java.util.logging.Logger;
 
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.times;
+import static org.mockito.ArgumentMatchers.any;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -131,7 +133,7 @@ public class ShopifyOAuth2AuthorizationRequestResolverTests {
 		HttpServletRequest req = mock(HttpServletRequest.class);
 		when(req.getServletPath()).thenReturn("/install/other");
 		when(req.getScheme()).thenReturn("http");
-		doReturn("shop").when(req).getParameter(TokenService.SHOP_ATTRIBUTE_NAME);
+		doReturn("shop.myshopify.com").when(req).getParameter(TokenService.SHOP_ATTRIBUTE_NAME);
 		
 		res.resolve(req);
 		
@@ -160,18 +162,44 @@ public class ShopifyOAuth2AuthorizationRequestResolverTests {
 		OAuth2AuthorizationRequest foundReq = authReq.getValue();
 		
 		Assert.assertEquals("client-id", foundReq.getClientId());	
-		Assert.assertTrue(foundReq.getAuthorizationRequestUri().contains("https://testStore.myshopify.com/admin/oauth/authorize?"));	
+		Assert.assertTrue(foundReq.getAuthorizationRequestUri().contains("https://teststore.myshopify.com/admin/oauth/authorize?"));	
 		Assert.assertTrue(foundReq.getAuthorizationRequestUri().contains("response_type="));		
 		Assert.assertTrue(foundReq.getAuthorizationRequestUri().contains("client_id="));		
 		Assert.assertTrue(foundReq.getAuthorizationRequestUri().contains("scope="));		
 		Assert.assertTrue(foundReq.getAuthorizationRequestUri().contains("state="));		
-		Assert.assertEquals("https://testStore.myshopify.com/admin/oauth/authorize", foundReq.getAuthorizationUri());		
+		Assert.assertEquals("https://teststore.myshopify.com/admin/oauth/authorize", foundReq.getAuthorizationUri());		
 		Assert.assertEquals("https://ppublica.com/login/app/oauth2/code/shopify", foundReq.getRedirectUri());
 		
 		Assert.assertEquals(1, foundReq.getAdditionalParameters().size());
 
 		Assert.assertEquals("shopify", foundReq.getAttribute(OAuth2ParameterNames.REGISTRATION_ID));
-		Assert.assertEquals("testStore.myshopify.com", foundReq.getAdditionalParameters().get(ShopifyOAuth2AuthorizationRequestResolver.SHOPIFY_SHOP_PARAMETER_KEY_FOR_TOKEN));
+		Assert.assertEquals("teststore.myshopify.com", foundReq.getAdditionalParameters().get(ShopifyOAuth2AuthorizationRequestResolver.SHOPIFY_SHOP_PARAMETER_KEY_FOR_TOKEN));
+		
+	}
+	
+	@Test
+	public void resolveWhenValidAuthorizationRequestThenSavesAuthenticationUris() {
+		
+		ShopifyOAuth2AuthorizationRequestResolver res = new ShopifyOAuth2AuthorizationRequestResolver(clientRegistrationRepository, customAuthorizationRequestRepository, authorizationRequestBaseUri, loginUri);
+		HttpServletRequest req = mock(HttpServletRequest.class);
+		when(req.getServletPath()).thenReturn("/install/shopify");
+		when(req.getScheme()).thenReturn("HTTP");
+		when(req.getServerPort()).thenReturn(8080);
+		when(req.getContextPath()).thenReturn("/app");
+		when(req.getServerName()).thenReturn("ppublica.com");
+		doReturn("testStore.myshopify.com").when(req).getParameter(TokenService.SHOP_ATTRIBUTE_NAME);
+		
+		ArgumentCaptor<OAuth2AuthorizationRequest> authReq = ArgumentCaptor.forClass(OAuth2AuthorizationRequest.class);
+		
+		res.resolve(req);
+		res.resolve(req);
+		
+		verify(customAuthorizationRequestRepository, times(2)).saveAuthorizationRequest(authReq.capture(), any());
+		String state = authReq.getValue().getState();
+		
+		Assert.assertEquals("http://ppublica.com:8080/app/login/app/oauth2/code/shopify", authReq.getValue().getRedirectUri());
+		verify(req).setAttribute("PARENT_AUTHENTICATION_URI", "https://teststore.myshopify.com/admin/oauth/authorize?client_id=client-id&redirect_uri=http://ppublica.com:8080/app/login/app/oauth2/code/shopify&scope=read_products,write_products&state=" + state);
+		verify(req).setAttribute("I_FRAME_AUTHENTICATION_URI", "/oauth/authorize?client_id=client-id&redirect_uri=http://ppublica.com:8080/app/login/app/oauth2/code/shopify&scope=read_products,write_products&state=" + state);
 		
 	}
 	
@@ -0,0 +1,100 @@
+package com.ppublica.shopify.security.web;
+
+import javax.servlet.DispatcherType;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+import org.springframework.security.web.util.matcher.RequestMatcher.MatchResult;
+
+import com.ppublica.shopify.security.filters.ShopifyOriginFilter;
+
+public class ShopifyRequestContextTests {
+
+	@Test
+	public void getWhenSameRequestThenSameContext() {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/install/shopify");
+
+		ShopifyRequestContext context = ShopifyRequestContext.get(request);
+
+		Assert.assertSame(context, ShopifyRequestContext.get(request));
+		Assert.assertSame(context, request.getAttribute(ShopifyRequestContext.REQUEST_ATTRIBUTE));
+	}
+
+	@Test
+	public void getWhenForwardedThenNewContext() {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/install/shopify");
+		ShopifyRequestContext context = ShopifyRequestContext.get(request);
+
+		request.setRequestURI("/success");
+		request.setDispatcherType(DispatcherType.FORWARD);
+
+		Assert.assertNotSame(context, ShopifyRequestContext.get(request));
+	}
+
+	@Test
+	public void getShopThenNormalizedOnce() {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/install/shopify");
+		request.setParameter("shop", "Test-Store.myshopify.com");
+		ShopifyRequestContext context = ShopifyRequestContext.get(request);
+
+		Assert.assertEquals("test-store.myshopify.com", context.getShop());
+
+		request.setParameter("shop", "other-store.myshopify.com");
+		Assert.assertEquals("test-store.myshopify.com", context.getShop());
+	}
+
+	@Test
+	public void getShopWhenInvalidThenNull() {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/install/shopify");
+		request.setParameter("shop", "evil.com");
+
+		Assert.assertNull(ShopifyRequestContext.get(request).getShop());
+	}
+
+	@Test
+	public void getPathThenWithoutContextPathOrPathParameters() {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/app/install/shopify;jsessionid=abc");
+		request.setContextPath("/app");
+
+		Assert.assertEquals("/install/shopify", ShopifyRequestContext.get(request).getPath());
+	}
+
+	@Test
+	public void matchThenSharedByEqualMatchers() {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/install/shopify");
+		request.setServletPath("/install/shopify");
+		ShopifyRequestContext context = ShopifyRequestContext.get(request);
+
+		MatchResult result = context.match(new AntPathRequestMatcher("/install/{registrationId}"));
+
+		Assert.assertTrue(result.isMatch());
+		Assert.assertEquals("shopify", result.getVariables().get("registrationId"));
+		Assert.assertSame(result, context.match(new AntPathRequestMatcher("/install/{registrationId}")));
+		Assert.assertFalse(context.matches(new AntPathRequestMatcher("/login/**")));
+	}
+
+	@Test
+	public void isEmbeddedAppThenFromSessionUntilSet() {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/install/shopify");
+		request.getSession().setAttribute(ShopifyOriginFilter.SHOPIFY_EMBEDDED_APP, true);
+		ShopifyRequestContext context = ShopifyRequestContext.get(request);
+
+		Assert.assertTrue(context.isEmbeddedApp());
+
+		context.setEmbeddedApp(false);
+		Assert.assertFalse(context.isEmbeddedApp());
+	}
+
+	@Test
+	public void getFromShopifyThenNullUntilSet() {
+		ShopifyRequestContext context = ShopifyRequestContext.get(new MockHttpServletRequest("GET", "/install/shopify"));
+
+		Assert.assertNull(context.getFromShopify());
+
+		context.setFromShopify(true);
+		Assert.assertTrue(context.getFromShopify());
+	}
+
+}